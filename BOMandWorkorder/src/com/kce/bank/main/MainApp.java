@@ -1,17 +1,71 @@
 package com.kce.bank.main;
 import com.kce.bank.exception.InsufficientStockException;
 import com.kce.bank.exception.InvalidOperationException;
+import com.kce.bank.metrics.MetricsReporter;
 import com.kce.bank.model.*;
+import com.kce.bank.persistence.BulkExporter;
+import com.kce.bank.persistence.BulkLoader;
+import com.kce.bank.persistence.BulkStats;
+import com.kce.bank.persistence.IdCeilingFile;
+import com.kce.bank.persistence.SnapshotManager;
+import com.kce.bank.persistence.TransactionJournal;
+import com.kce.bank.server.MrpServer;
 import com.kce.bank.service.MRPService;
+import com.kce.bank.service.WorkOrderPipeline;
+import com.kce.bank.util.IdGenerator;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
 public class MainApp {
     private static final Scanner SC = new Scanner(System.in);
+    private static final int PAGE_SIZE = 20;
     private static MRPService service;
-    public static void main(String[] args) {
+    private static TransactionJournal journal;
+    private static SnapshotManager snapshots;
+    private static MetricsReporter metrics;
+    public static void main(String[] args) throws Exception {
         System.out.println("=== Simple MRP Console App ===");
         Warehouse wh = new Warehouse("MainWarehouse");
         service = new MRPService(wh);
-        seedSampleData();
+        Path dataDir = Path.of(System.getProperty("mrp.data", "data"));
+        recover(dataDir.resolve("mrp.journal"), dataDir.resolve("mrp.snapshot"));
+        // JMX under com.kce.bank:service=mrp, and a JSON dump every minute
+        service.getMetrics().register("mrp");
+        metrics = new MetricsReporter(service.getMetrics(), dataDir.resolve("mrp.metrics.json"), true);
+        metrics.start(1, TimeUnit.MINUTES);
+        if (service.allProducts().isEmpty()) seedSampleData();
+        if (args.length == 2 && args[0].equals("--serve")) serve(Integer.parseInt(args[1]));
+        else console();
+        metrics.close();
+        snapshots.checkpoint();
+        snapshots.close();
+        journal.close();
+        System.out.println("Exiting. Goodbye!");
+        SC.close();
+    }
+
+    // "--serve port": the line protocol of MrpServer instead of the menu, until
+    // quit or end of input on the console
+    private static void serve(int port) throws IOException {
+        try (MrpServer server = new MrpServer(service)) {
+            server.start(port);
+            System.out.println("Serving on port " + server.getPort() + "; type quit to stop.");
+            while (SC.hasNextLine()) {
+                if (SC.nextLine().strip().equalsIgnoreCase("quit")) break;
+            }
+        }
+    }
+
+    private static void console() {
         boolean running = true;
         while (running) {
             printMenu();
@@ -24,8 +78,15 @@ public class MainApp {
                     case 4: issueMaterials(); break;
                     case 5: reportProduction(); break;
                     case 6: stockSummary(); break;
-                    case 7: listWorkOrders(); break;
-                    case 8: running = false; break;
+                    case 7: queryWorkOrders(); break;
+                    case 8: addSite(); break;
+                    case 9: receiveStock(); break;
+                    case 10: availability(); break;
+                    case 11: runPipeline(); break;
+                    case 12: importExport(); break;
+                    case 13: System.out.print(service.getMetrics().getText()); break;
+                    case 14: scheduling(); break;
+                    case 15: running = false; break;
                     default: System.out.println("Invalid option."); break;
                 }
             } catch (InvalidOperationException | InsufficientStockException e) {
@@ -35,8 +96,15 @@ public class MainApp {
                 e.printStackTrace();
             }
         }
-        System.out.println("Exiting. Goodbye!");
-        SC.close();
+    }
+
+    private static void recover(Path journalFile, Path snapshotFile) throws IOException {
+        journal = TransactionJournal.open(journalFile, true);
+        snapshots = new SnapshotManager(snapshotFile, journal);
+        System.out.println(snapshots.recover(service));
+        service.setTransactionLog(journal);
+        IdCeilingFile.open(journalFile.resolveSibling("mrp.ids"));
+        snapshots.checkpointEvery(5, TimeUnit.MINUTES);
     }
 
     private static void printMenu() {
@@ -48,7 +116,14 @@ public class MainApp {
         System.out.println("5. Report Production");
         System.out.println("6. Stock Summary");
         System.out.println("7. List Work Orders");
-        System.out.println("8. Exit");
+        System.out.println("8. Add Site");
+        System.out.println("9. Receive Stock at Site");
+        System.out.println("10. Availability by Site");
+        System.out.println("11. Run Work Orders Through Pipeline");
+        System.out.println("12. Bulk Import / Export");
+        System.out.println("13. Metrics");
+        System.out.println("14. Capacity Scheduling");
+        System.out.println("15. Exit");
     }
 
     private static void addProduct() {
@@ -58,7 +133,7 @@ public class MainApp {
         try {
             service.addProduct(code, name, stock);
             System.out.println("Added product " + code);
-        } catch (IllegalArgumentException e) {
+        } catch (IllegalArgumentException | InvalidOperationException e) {
             System.out.println("Could not add product: " + e.getMessage());
         }
     }
@@ -79,7 +154,8 @@ public class MainApp {
                 continue;
             }
             int qty = readInt("Qty per finished unit: ");
-            items.add(new BOMItem(p, qty));
+            int offset = readInt("Days it must be ready before the parent starts (0 for none): ");
+            items.add(new BOMItem(p, qty, offset));
         }
         if (items.isEmpty()) {
             System.out.println("No BOM items specified.");
@@ -92,59 +168,247 @@ public class MainApp {
     private static void createWorkOrder() throws InvalidOperationException, InsufficientStockException {
         String prodCode = readStr("Product to produce: ");
         int qty = readInt("Quantity to produce: ");
-        WorkOrder wo = service.createWorkOrder(prodCode, qty);
-        System.out.println("Created WorkOrder: " + wo.getId() + " (materials reserved).");
+        String site = "";
+        if (service.getNetwork().size() > 1) site = readStr("Producing site (blank for " + service.getNetwork().primary().getName() + "): ");
+        LocalDate due = readDate("Due date (yyyy-mm-dd, blank for unscheduled): ");
+        WorkOrder wo = service.createWorkOrder(prodCode, qty, site.isBlank() ? service.getNetwork().primary().getName() : site, due);
+        System.out.println("Created WorkOrder: " + wo.getDisplayId() + " (materials reserved).");
+        for (StockAllocation a : wo.getAllocations()) System.out.println("  " + a);
     }
 
     private static void issueMaterials() throws InvalidOperationException, InsufficientStockException {
-        listWorkOrders();
+        listWorkOrders(new WorkOrderQuery().status(WorkOrder.Status.MATERIAL_RESERVED, WorkOrder.Status.MATERIAL_ISSUED, WorkOrder.Status.IN_PRODUCTION));
         String woId = readStr("WorkOrder id to issue materials for: ");
         WorkOrder wo = findWorkOrder(woId);
         if (wo == null) {
             System.out.println("WO not found.");
             return;
         }
-        System.out.println("1. Issue all per BOM\n2. Issue selected component");
+        for (int i = 0; i < wo.materialLines(); i++)
+            System.out.printf("  %-10s issued %d of %d%n", wo.materialAt(i).getCode(), wo.issuedAt(i), wo.requiredAt(i));
+        System.out.println("1. Issue all outstanding per BOM\n2. Issue selected component");
         int opt = readInt("Choose: ");
         if (opt == 1) {
-            List<MaterialIssue> issued = service.issueMaterialsForWorkOrder(woId);
+            List<MaterialIssue> issued = service.issueMaterialsForWorkOrder(wo.getId());
             System.out.println("Issued materials:");
             issued.forEach(m -> System.out.println("  " + m));
         } else {
             String comp = readStr("Component code: ");
             int qty = readInt("Qty to issue: ");
-            MaterialIssue mi = service.issueMaterial(woId, comp, qty);
-            System.out.println("Issued: " + mi);
+            List<MaterialIssue> issued = service.issueMaterial(wo.getId(), comp, qty);
+            System.out.println("Issued:");
+            issued.forEach(m -> System.out.println("  " + m));
         }
     }
 
-    private static void reportProduction() throws InvalidOperationException {
-        listWorkOrders();
+    private static void reportProduction() throws InvalidOperationException, InsufficientStockException {
+        listWorkOrders(new WorkOrderQuery().open());
         String woId = readStr("WorkOrder id to report production for: ");
         WorkOrder wo = findWorkOrder(woId);
         if (wo == null) {
             System.out.println("WO not found.");
             return;
         }
-        int qty = readInt("Quantity produced (<= WO qty): ");
-        ProductionReport pr = service.reportProduction(woId, qty);
+        int qty = readInt("Lot quantity produced (" + wo.getRemainingQuantity() + " of " + wo.getQuantity() + " remain): ");
+        boolean last = qty < wo.getRemainingQuantity() && readStr("Last lot, closing the order short? (y/n): ").equalsIgnoreCase("y");
+        ProductionReport pr = service.reportProduction(wo.getId(), qty, last);
         System.out.println("Production reported: " + pr);
+        pr.getBackflushed().forEach(m -> System.out.println("  Backflushed: " + m));
+        pr.getReleased().forEach(a -> System.out.println("  Released: " + a));
     }
 
-    private static void stockSummary() {
-        System.out.println(service.warehouseSummary());
+    // streamed, so a large catalog is printed without building it in memory first
+    private static void stockSummary() throws IOException {
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16);
+        service.warehouseSummary(out);
+        out.write('\n');
+        out.flush();
+    }
+
+    private static void addSite() {
+        String name = readStr("Site name: ");
+        int x = readInt("Location x: ");
+        int y = readInt("Location y: ");
+        try {
+            service.addSite(name, x, y);
+            System.out.println("Added site " + name);
+        } catch (IllegalArgumentException | InvalidOperationException e) {
+            System.out.println("Could not add site: " + e.getMessage());
+        }
+    }
+
+    private static void receiveStock() throws InvalidOperationException {
+        String site = readStr("Site name: ");
+        String code = readStr("Product code: ");
+        int qty = readInt("Quantity received: ");
+        service.receiveStock(site, code, qty);
+        System.out.println("Received " + qty + " of " + code + " at " + site);
+    }
+
+    private static void availability() {
+        String code = readStr("Product code: ");
+        Map<String, Integer> bySite = service.availability(code);
+        if (bySite.isEmpty()) {
+            System.out.println("Product not found.");
+            return;
+        }
+        bySite.forEach((site, qty) -> System.out.println(String.format("  %-15s %d", site, qty)));
+        System.out.println("  Total available: " + service.totalAvailable(code));
+        if (service.getBOM(code) == null) return;
+        try {
+            System.out.println("  Buildable from components: " + service.buildable(code));
+            LocalDate by = readDate("Promise date (yyyy-mm-dd, blank to skip): ");
+            if (by != null) System.out.println("  Available to promise by " + by + ": " + service.availableToPromise(code, by));
+        } catch (InvalidOperationException e) {
+            System.out.println("ERROR: " + e.getMessage());
+        }
+    }
+
+    // Submits a batch of orders, each taken from reservation to completion.
+    private static void runPipeline() throws InterruptedException {
+        String prodCode = readStr("Product to produce: ");
+        int qty = readInt("Quantity per work order: ");
+        int count = readInt("Number of work orders: ");
+        long start = System.nanoTime();
+        List<CompletableFuture<WorkOrder>> results = new ArrayList<>(count);
+        try (WorkOrderPipeline pipeline = new WorkOrderPipeline(service)) {
+            for (int i = 0; i < count; i++) results.add(pipeline.submit(prodCode, qty));
+        }
+        int completed = 0;
+        Map<String, Integer> failures = new TreeMap<>();
+        for (CompletableFuture<WorkOrder> f : results) {
+            try {
+                f.join();
+                completed++;
+            } catch (CompletionException e) {
+                failures.merge(e.getCause().getMessage(), 1, Integer::sum);
+            }
+        }
+        System.out.printf("%d of %d work orders completed in %d ms%n", completed, count, (System.nanoTime() - start) / 1_000_000);
+        failures.forEach((msg, n) -> System.out.println("  " + n + " failed: " + msg));
     }
 
-    private static void listWorkOrders() {
+    // A directory means products.csv, boms.csv and stock.csv; a file the binary format.
+    private static void importExport() throws IOException, InvalidOperationException {
+        System.out.println("1. Import\n2. Export CSV\n3. Export binary");
+        int opt = readInt("Choose: ");
+        if (opt < 1 || opt > 3) {
+            System.out.println("Invalid option.");
+            return;
+        }
+        Path path = Path.of(readStr(opt == 1 ? "Directory of CSV files or binary file: " : opt == 2 ? "Directory: " : "File: "));
+        BulkStats stats;
+        if (opt == 1) {
+            BulkLoader loader = new BulkLoader(service);
+            stats = Files.isDirectory(path) ? loader.loadCsv(path) : loader.loadBinary(path);
+            // fold the load into the snapshot rather than leave it to journal replay
+            snapshots.checkpoint();
+            System.out.println("Imported " + stats);
+        } else {
+            BulkExporter exporter = new BulkExporter(service);
+            stats = opt == 2 ? exporter.exportCsv(path) : exporter.exportBinary(path);
+            System.out.println("Exported " + stats);
+        }
+    }
+
+    private static void scheduling() throws InvalidOperationException {
+        System.out.println("1. Add work center\n2. Set day capacity\n3. Set product lead time / work center\n4. Set WO due date"
+                + "\n5. Show WO schedule\n6. Show work-center load\n7. Late work orders\n8. Reschedule all");
+        switch (readInt("Choose: ")) {
+            case 1: {
+                String code = readStr("Work center code: ");
+                service.addWorkCenter(code, readStr("Name: "), readInt("Minutes available per day: "));
+                System.out.println("Added work center " + code);
+                break;
+            }
+            case 2: {
+                String code = readStr("Work center code: ");
+                LocalDate day = readDate("Day (yyyy-mm-dd): ");
+                if (day == null) return;
+                service.setWorkCenterCapacity(code, day, readInt("Minutes available that day (0 for closed): "));
+                break;
+            }
+            case 3: {
+                String code = readStr("Product code: ");
+                int lead = readInt("Lead time in days: ");
+                String wc = readStr("Work center (blank if bought in): ");
+                int minutes = wc.isBlank() ? 0 : readInt("Minutes per unit: ");
+                service.setProductPlanning(code, lead, wc.isBlank() ? null : wc, minutes);
+                break;
+            }
+            case 4: {
+                WorkOrder wo = findWorkOrder(readStr("WorkOrder id: "));
+                if (wo == null) {
+                    System.out.println("WO not found.");
+                    return;
+                }
+                service.setDueDate(wo.getId(), readDate("Due date (yyyy-mm-dd, blank to unschedule): "));
+                break;
+            }
+            case 5: {
+                WorkOrder wo = findWorkOrder(readStr("WorkOrder id: "));
+                if (wo == null) {
+                    System.out.println("WO not found.");
+                    return;
+                }
+                for (ScheduledOperation op : service.schedule(wo.getId())) System.out.println("  " + op);
+                break;
+            }
+            case 6: {
+                String code = readStr("Work center code: ");
+                LocalDate from = LocalDate.now();
+                int days = readInt("Days ahead: ");
+                for (CapacityBucket b : service.capacityLoad(code, from, from.plusDays(Math.max(0, days - 1)))) System.out.println("  " + b);
+                break;
+            }
+            case 7:
+                for (WorkOrder w : service.lateWorkOrders()) System.out.println("  " + w.summaryLine() + " due " + w.getDueDate());
+                break;
+            case 8:
+                System.out.println("Scheduled " + service.reschedule() + " work orders.");
+                break;
+            default:
+                System.out.println("Invalid option.");
+        }
+    }
+
+    private static void queryWorkOrders() {
+        WorkOrderQuery query = new WorkOrderQuery();
+        String product = readStr("Product code (blank for all): ");
+        if (!product.isBlank()) query.product(product);
+        String status = readStr("Status, OPEN or blank for all: ").toUpperCase();
+        if (status.equals("OPEN")) query.open();
+        else if (!status.isBlank()) {
+            try {
+                query.status(WorkOrder.Status.valueOf(status));
+            } catch (IllegalArgumentException e) {
+                System.out.println("Unknown status: " + status);
+                return;
+            }
+        }
+        listWorkOrders(query);
+        String id = readStr("WorkOrder id for details (blank to skip): ");
+        if (id.isBlank()) return;
+        WorkOrder wo = findWorkOrder(id);
+        System.out.println(wo == null ? "WO not found." : wo.toString());
+    }
+
+    // one line per order, a page at a time
+    private static void listWorkOrders(WorkOrderQuery query) {
         System.out.println("\nWork Orders:");
-        for (WorkOrder w : service.allWorkOrders()) {
-            System.out.println(w);
+        while (true) {
+            List<WorkOrder> page = service.findWorkOrders(query, PAGE_SIZE);
+            for (WorkOrder w : page) System.out.println("  " + w.summaryLine());
+            if (page.size() < PAGE_SIZE) return;
+            if (!readStr("-- Enter for more, q to stop: ").isBlank()) return;
+            query.after(page.get(page.size() - 1).getId());
         }
     }
 
-    private static WorkOrder findWorkOrder(String id) {
-        for (WorkOrder w : service.allWorkOrders()) if (w.getId().equals(id)) return w;
-        return null;
+    // "WO-1001" or just "1001"
+    private static WorkOrder findWorkOrder(String text) {
+        long id = IdGenerator.WORK_ORDERS.parse(text);
+        return id < 0 ? null : service.getWorkOrder(id);
     }
 
     private static int readInt(String prompt) {
@@ -163,14 +427,27 @@ public class MainApp {
         System.out.print(prompt);
         return SC.nextLine().trim();
     }
+
+    // null for a blank answer
+    private static LocalDate readDate(String prompt) {
+        while (true) {
+            String line = readStr(prompt);
+            if (line.isBlank()) return null;
+            try {
+                return LocalDate.parse(line);
+            } catch (DateTimeParseException e) {
+                System.out.println("Please enter a date as yyyy-mm-dd.");
+            }
+        }
+    }
     private static void seedSampleData() {
-        service.addProduct("C001", "Component-1", 500);
-        service.addProduct("C002", "Component-2", 300);
-        service.addProduct("FG01", "Finished-Good-1", 10);
-        List<BOMItem> items = new ArrayList<>();
-        items.add(new BOMItem(service.getProduct("C001"), 2));
-        items.add(new BOMItem(service.getProduct("C002"), 1));
         try {
+            service.addProduct("C001", "Component-1", 500);
+            service.addProduct("C002", "Component-2", 300);
+            service.addProduct("FG01", "Finished-Good-1", 10);
+            List<BOMItem> items = new ArrayList<>();
+            items.add(new BOMItem(service.getProduct("C001"), 2));
+            items.add(new BOMItem(service.getProduct("C002"), 1));
             service.defineBOM("FG01", items);
         } catch (InvalidOperationException e) {
             System.out.println("Seed BOM failed: " + e.getMessage());
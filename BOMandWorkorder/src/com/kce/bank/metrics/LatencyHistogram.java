@@ -0,0 +1,88 @@
+package com.kce.bank.metrics;
+import java.util.concurrent.atomic.AtomicLongArray;
+/*
+ * Log-linear histogram of nanosecond durations, in the manner of HdrHistogram:
+ * every power of two is split into SUB equal buckets, so a recorded value is
+ * known to within 1/SUB (about 3%) at any magnitude, in a fixed array with no
+ * allocation per value. Recording is one bucket increment plus count, sum and
+ * max in the caller's stripe; stripes are picked by thread id, so threads
+ * recording at once rarely touch the same counters. Reading merges the stripes
+ * and is only weakly consistent with recordings in progress.
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BITS = 5, SUB = 1 << SUB_BITS;
+    // anything longer is counted as this (about 18 minutes)
+    private static final long MAX_VALUE = (1L << 40) - 1;
+    private static final int BUCKETS = (40 - SUB_BITS + 1) * SUB;
+    // each stripe: the buckets, then count, sum and max
+    private static final int COUNT = BUCKETS, SUM = BUCKETS + 1, MAX = BUCKETS + 2;
+    private final AtomicLongArray[] stripes;
+    private final int mask;
+    public LatencyHistogram() {
+        int n = Integer.highestOneBit(Math.min(8, Runtime.getRuntime().availableProcessors()) * 2 - 1);
+        stripes = new AtomicLongArray[n];
+        for (int i = 0; i < n; i++) stripes[i] = new AtomicLongArray(BUCKETS + 3);
+        mask = n - 1;
+    }
+    public void record(long nanos) {
+        long v = Math.max(0, Math.min(nanos, MAX_VALUE));
+        AtomicLongArray s = stripes[(int) Thread.currentThread().threadId() & mask];
+        s.getAndIncrement(index(v));
+        s.getAndIncrement(COUNT);
+        s.getAndAdd(SUM, v);
+        long max = s.get(MAX);
+        while (v > max && !s.compareAndSet(MAX, max, v)) max = s.get(MAX);
+    }
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        long count = 0, sum = 0, max = 0;
+        for (AtomicLongArray s : stripes) {
+            for (int i = 0; i < BUCKETS; i++) counts[i] += s.get(i);
+            count += s.get(COUNT);
+            sum += s.get(SUM);
+            max = Math.max(max, s.get(MAX));
+        }
+        return new Snapshot(counts, count, sum, max);
+    }
+    // values below SUB have a bucket each; above that, bucket b covers SUB values'
+    // worth of the power of two holding v
+    static int index(long v) {
+        if (v < SUB) return (int) v;
+        int e = 63 - Long.numberOfLeadingZeros(v);
+        return (e - SUB_BITS + 1) * SUB + (int) (v >>> (e - SUB_BITS)) - SUB;
+    }
+    // the largest value that falls in bucket i
+    static long highestIn(int i) {
+        if (i < SUB) return i;
+        int shift = i / SUB - 1;
+        return ((long) (SUB + i % SUB) << shift) + (1L << shift) - 1;
+    }
+
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long count, sum, max;
+        private Snapshot(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+        public long getCount() { return count; }
+        public long getMax() { return max; }
+        public double getMean() { return count == 0 ? 0 : (double) sum / count; }
+        // the value at or below which the given fraction (0..1) of recordings fall,
+        // rounded up to its bucket's upper edge
+        public long percentile(double fraction) {
+            long total = 0;
+            for (long c : counts) total += c;
+            if (total == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(fraction * total));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) return Math.min(highestIn(i), max);
+            }
+            return max;
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package com.kce.bank.metrics;
+// One operation or work-order stage; times in microseconds, totals since start.
+public interface LatencyMXBean {
+    long getCount();
+    long getFailures();
+    long getShortages();
+    double getMeanMicros();
+    double getP50Micros();
+    double getP99Micros();
+    double getP999Micros();
+    double getMaxMicros();
+}
@@ -0,0 +1,183 @@
+package com.kce.bank.metrics;
+import com.kce.bank.exception.InsufficientStockException;
+import com.kce.bank.model.StockNetwork;
+import com.kce.bank.model.Warehouse;
+import com.kce.bank.model.WorkOrder;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+/*
+ * Latency and failure counts for one service's operations, time spent in each
+ * work-order stage, and the sites' CAS retry and shortage counters. Timing a
+ * call costs two System.nanoTime() reads and one histogram recording; with
+ * metrics disabled start() returns 0 and nothing further is done. Everything is
+ * cumulative from start; readers wanting rates take differences.
+ */
+public class Metrics implements MetricsMXBean {
+    private static final Operation[] OPERATIONS = Operation.values();
+    // the stages a work order passes through after creation; leadTime covers them all
+    private static final WorkOrder.Status[] STAGES = { WorkOrder.Status.MATERIAL_RESERVED, WorkOrder.Status.MATERIAL_ISSUED, WorkOrder.Status.IN_PRODUCTION };
+    private static final String[] STAGE_LABELS = { "materialReserved", "materialIssued", "inProduction" };
+    private final StockNetwork network;
+    private final LatencyHistogram[] latency = new LatencyHistogram[OPERATIONS.length];
+    private final LongAdder[] failures = new LongAdder[OPERATIONS.length];
+    private final LongAdder[] shortages = new LongAdder[OPERATIONS.length];
+    private final LatencyHistogram[] stages = new LatencyHistogram[WorkOrder.Status.values().length];
+    private final LatencyHistogram leadTime = new LatencyHistogram();
+    private final List<ObjectName> registered = new ArrayList<>();
+    private volatile boolean enabled = true;
+    public Metrics(StockNetwork network) {
+        this.network = network;
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            latency[i] = new LatencyHistogram();
+            failures[i] = new LongAdder();
+            shortages[i] = new LongAdder();
+        }
+        for (WorkOrder.Status s : STAGES) stages[s.ordinal()] = new LatencyHistogram();
+    }
+    public boolean isEnabled() { return enabled; }
+    public void setEnabled(boolean enabled) { this.enabled = enabled; }
+
+    // ---- recording
+
+    public long start() { return enabled ? System.nanoTime() : 0; }
+    public void stop(Operation op, long start) {
+        if (start != 0) latency[op.ordinal()].record(System.nanoTime() - start);
+    }
+    // a failed call still counts in the latency of its operation
+    public void failed(Operation op, Exception e) {
+        if (!enabled) return;
+        failures[op.ordinal()].increment();
+        if (e instanceof InsufficientStockException) shortages[op.ordinal()].increment();
+    }
+    // the order has just moved on from the stage 'left'
+    public void stageEnded(WorkOrder wo, WorkOrder.Status left) {
+        if (!enabled) return;
+        long now = System.nanoTime();
+        stages[left.ordinal()].record(now - wo.enterStage(now));
+    }
+    public void completed(WorkOrder wo, WorkOrder.Status left) {
+        if (!enabled) return;
+        long now = System.nanoTime();
+        stages[left.ordinal()].record(now - wo.enterStage(now));
+        leadTime.record(now - wo.getCreatedNanos());
+    }
+
+    // ---- reading
+
+    public LatencyHistogram.Snapshot latency(Operation op) { return latency[op.ordinal()].snapshot(); }
+    public long failures(Operation op) { return failures[op.ordinal()].sum(); }
+    public long shortages(Operation op) { return shortages[op.ordinal()].sum(); }
+    public LatencyHistogram.Snapshot stage(WorkOrder.Status stage) { return stages[stage.ordinal()].snapshot(); }
+    public LatencyHistogram.Snapshot leadTime() { return leadTime.snapshot(); }
+    public long getCasRetries() {
+        long n = 0;
+        for (Warehouse w : network.sites()) n += w.getCasRetries();
+        return n;
+    }
+    public long getShortages() {
+        long n = 0;
+        for (Warehouse w : network.sites()) n += w.getShortages();
+        return n;
+    }
+    public String getText() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%-28s %10s %8s %8s %10s %10s %10s %10s %10s\n", "Operation (us)", "Count", "Failed", "Short", "Mean", "p50", "p99", "p99.9", "Max"));
+        for (Operation op : OPERATIONS) row(sb, op.label(), latency(op), failures(op), shortages(op));
+        sb.append("Stage (us)\n");
+        for (int i = 0; i < STAGES.length; i++) row(sb, STAGE_LABELS[i], stage(STAGES[i]), 0, 0);
+        row(sb, "leadTime", leadTime(), 0, 0);
+        sb.append(String.format("%-28s %12s %10s\n", "Site", "CAS retries", "Shortages"));
+        for (Warehouse w : network.sites()) sb.append(String.format("%-28s %12d %10d\n", w.getName(), w.getCasRetries(), w.getShortages()));
+        return sb.toString();
+    }
+    private static void row(StringBuilder sb, String label, LatencyHistogram.Snapshot s, long failed, long shortfalls) {
+        sb.append(String.format("%-28s %10d %8d %8d %10.1f %10.1f %10.1f %10.1f %10.1f\n", label, s.getCount(), failed, shortfalls,
+                s.getMean() / 1000, s.percentile(0.5) / 1000.0, s.percentile(0.99) / 1000.0, s.percentile(0.999) / 1000.0, s.getMax() / 1000.0));
+    }
+    public String getJson() {
+        StringBuilder sb = new StringBuilder("{\"enabled\":").append(enabled).append(",\"operations\":{");
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            if (i > 0) sb.append(',');
+            json(sb, OPERATIONS[i].label(), latency(OPERATIONS[i]), failures(OPERATIONS[i]), shortages(OPERATIONS[i]));
+        }
+        sb.append("},\"stages\":{");
+        for (int i = 0; i < STAGES.length; i++) {
+            json(sb, STAGE_LABELS[i], stage(STAGES[i]), 0, 0);
+            sb.append(',');
+        }
+        json(sb, "leadTime", leadTime(), 0, 0);
+        sb.append("},\"sites\":{");
+        List<Warehouse> sites = network.sites();
+        for (int i = 0; i < sites.size(); i++) {
+            Warehouse w = sites.get(i);
+            if (i > 0) sb.append(',');
+            string(sb, w.getName()).append(":{\"casRetries\":").append(w.getCasRetries()).append(",\"shortages\":").append(w.getShortages()).append('}');
+        }
+        return sb.append("}}").toString();
+    }
+    private static void json(StringBuilder sb, String label, LatencyHistogram.Snapshot s, long failed, long shortfalls) {
+        string(sb, label).append(":{\"count\":").append(s.getCount()).append(",\"failures\":").append(failed).append(",\"shortages\":").append(shortfalls)
+                .append(",\"meanMicros\":").append(micros(Math.round(s.getMean())))
+                .append(",\"p50Micros\":").append(micros(s.percentile(0.5)))
+                .append(",\"p99Micros\":").append(micros(s.percentile(0.99)))
+                .append(",\"p999Micros\":").append(micros(s.percentile(0.999)))
+                .append(",\"maxMicros\":").append(micros(s.getMax())).append('}');
+    }
+    private static StringBuilder string(StringBuilder sb, String s) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') sb.append('\\').append(c);
+            else if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+            else sb.append(c);
+        }
+        return sb.append('"');
+    }
+    private static double micros(long nanos) { return nanos / 1000.0; }
+
+    // ---- JMX
+
+    // Registers this bean and one LatencyMXBean per operation and stage under
+    // com.kce.bank:service=<service>,...
+    public synchronized void register(String service) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        String base = "com.kce.bank:service=" + ObjectName.quote(service);
+        register(server, new ObjectName(base + ",type=Metrics"), this);
+        for (Operation op : OPERATIONS)
+            register(server, new ObjectName(base + ",type=Operation,name=" + op.label()), new View(latency[op.ordinal()], failures[op.ordinal()], shortages[op.ordinal()]));
+        for (int i = 0; i < STAGES.length; i++)
+            register(server, new ObjectName(base + ",type=Stage,name=" + STAGE_LABELS[i]), new View(stages[STAGES[i].ordinal()], null, null));
+        register(server, new ObjectName(base + ",type=Stage,name=leadTime"), new View(leadTime, null, null));
+    }
+    private void register(MBeanServer server, ObjectName name, Object bean) throws JMException {
+        server.registerMBean(bean, name);
+        registered.add(name);
+    }
+    public synchronized void unregister() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName name : registered) if (server.isRegistered(name)) server.unregisterMBean(name);
+        registered.clear();
+    }
+    private static final class View implements LatencyMXBean {
+        private final LatencyHistogram histogram;
+        private final LongAdder failures, shortages;
+        View(LatencyHistogram histogram, LongAdder failures, LongAdder shortages) {
+            this.histogram = histogram;
+            this.failures = failures;
+            this.shortages = shortages;
+        }
+        public long getCount() { return histogram.snapshot().getCount(); }
+        public long getFailures() { return failures == null ? 0 : failures.sum(); }
+        public long getShortages() { return shortages == null ? 0 : shortages.sum(); }
+        public double getMeanMicros() { return histogram.snapshot().getMean() / 1000; }
+        public double getP50Micros() { return micros(histogram.snapshot().percentile(0.5)); }
+        public double getP99Micros() { return micros(histogram.snapshot().percentile(0.99)); }
+        public double getP999Micros() { return micros(histogram.snapshot().percentile(0.999)); }
+        public double getMaxMicros() { return micros(histogram.snapshot().getMax()); }
+    }
+}
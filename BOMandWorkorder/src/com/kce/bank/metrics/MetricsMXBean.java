@@ -0,0 +1,10 @@
+package com.kce.bank.metrics;
+public interface MetricsMXBean {
+    boolean isEnabled();
+    void setEnabled(boolean enabled);
+    // summed over every site
+    long getCasRetries();
+    long getShortages();
+    String getText();
+    String getJson();
+}
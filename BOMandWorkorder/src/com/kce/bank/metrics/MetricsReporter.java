@@ -0,0 +1,52 @@
+package com.kce.bank.metrics;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+/*
+ * Rewrites a file with the current metrics at a fixed period, as text or as
+ * JSON. Each dump is written beside the file and renamed over it, so a reader
+ * never sees half a dump.
+ */
+public class MetricsReporter implements AutoCloseable {
+    private final Metrics metrics;
+    private final Path file;
+    private final boolean json;
+    private ScheduledExecutorService scheduler;
+    public MetricsReporter(Metrics metrics, Path file, boolean json) {
+        this.metrics = metrics;
+        this.file = file;
+        this.json = json;
+    }
+    public synchronized void start(long period, TimeUnit unit) {
+        if (scheduler != null) return;
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "metrics-reporter");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                dump();
+            } catch (IOException e) {
+                System.err.println("Metrics dump failed: " + e.getMessage());
+            }
+        }, period, period, unit);
+    }
+    public void dump() throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.writeString(tmp, json ? metrics.getJson() + "\n" : metrics.getText(), StandardCharsets.UTF_8);
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    // stops the schedule after one last dump
+    public synchronized void close() throws IOException {
+        if (scheduler == null) return;
+        scheduler.shutdownNow();
+        scheduler = null;
+        dump();
+    }
+}
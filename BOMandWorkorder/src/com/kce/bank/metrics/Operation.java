@@ -0,0 +1,20 @@
+package com.kce.bank.metrics;
+// What Metrics times. The first group are MRPService calls; the rest are steps
+// inside them, so their time is also part of the calls'.
+public enum Operation {
+    CREATE_WORK_ORDER, ISSUE_MATERIAL, ISSUE_MATERIALS, START_PRODUCTION, REPORT_PRODUCTION,
+    RECEIVE_STOCK, PLAN, AVAILABILITY, AVAILABLE_TO_PROMISE,
+    ADD_PRODUCT, ADD_SITE, DEFINE_BOM, ADD_WORK_CENTER, SET_CAPACITY, SET_PLANNING, SET_DUE_DATE,
+    // reserving and issuing stock at the sites, however many sites take part
+    RESERVE_STOCK, ISSUE_STOCK,
+    // appending to the transaction log and waiting for the commit
+    JOURNAL;
+    // createWorkOrder, reserveStock, ...
+    public String label() {
+        StringBuilder sb = new StringBuilder();
+        for (String word : name().toLowerCase().split("_")) {
+            sb.append(sb.length() == 0 ? word : Character.toUpperCase(word.charAt(0)) + word.substring(1));
+        }
+        return sb.toString();
+    }
+}
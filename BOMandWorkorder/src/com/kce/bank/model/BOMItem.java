@@ -2,14 +2,22 @@ package com.kce.bank.model;
 public class BOMItem {
     private final Product component;
     private final int qtyPerProduct;
+    // days before the parent starts that the component must be ready
+    private final int leadTimeOffsetDays;
     public BOMItem(Product component, int qtyPerProduct) {
+        this(component, qtyPerProduct, 0);
+    }
+    public BOMItem(Product component, int qtyPerProduct, int leadTimeOffsetDays) {
         if (qtyPerProduct <= 0) throw new IllegalArgumentException("qtyPerProduct > 0");
+        if (leadTimeOffsetDays < 0) throw new IllegalArgumentException("leadTimeOffsetDays >= 0");
         this.component = component;
         this.qtyPerProduct = qtyPerProduct;
+        this.leadTimeOffsetDays = leadTimeOffsetDays;
     }
     public Product getComponent() { return component; }
     public int getQtyPerProduct() { return qtyPerProduct; }
+    public int getLeadTimeOffsetDays() { return leadTimeOffsetDays; }
     public String toString() {
-        return component + " x" + qtyPerProduct;
+        return component + " x" + qtyPerProduct + (leadTimeOffsetDays > 0 ? " (" + leadTimeOffsetDays + "d before)" : "");
     }
 }
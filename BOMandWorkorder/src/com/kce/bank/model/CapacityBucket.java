@@ -0,0 +1,20 @@
+package com.kce.bank.model;
+import java.time.LocalDate;
+// Booked load against capacity at one work center on one day, in minutes.
+public class CapacityBucket {
+    private final LocalDate day;
+    private final int capacity;
+    private final long load;
+    public CapacityBucket(LocalDate day, int capacity, long load) {
+        this.day = day;
+        this.capacity = capacity;
+        this.load = load;
+    }
+    public LocalDate getDay() { return day; }
+    public int getCapacity() { return capacity; }
+    public long getLoad() { return load; }
+    public boolean isOverloaded() { return load > capacity; }
+    public String toString() {
+        return String.format("%s %6d / %-6d%s", day, load, capacity, isOverloaded() ? " OVER" : "");
+    }
+}
@@ -0,0 +1,19 @@
+package com.kce.bank.model;
+import java.time.LocalDate;
+public class Demand {
+    private final String productCode;
+    private final int quantity;
+    private final LocalDate dueDate;
+    public Demand(String productCode, int quantity, LocalDate dueDate) {
+        if (quantity <= 0) throw new IllegalArgumentException("quantity > 0");
+        this.productCode = productCode;
+        this.quantity = quantity;
+        this.dueDate = dueDate;
+    }
+    public String getProductCode() { return productCode; }
+    public int getQuantity() { return quantity; }
+    public LocalDate getDueDate() { return dueDate; }
+    public String toString() {
+        return productCode + " x" + quantity + " due " + dueDate;
+    }
+}
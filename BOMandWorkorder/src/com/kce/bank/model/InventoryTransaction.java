@@ -1,13 +1,18 @@
 package com.kce.bank.model;
 import java.time.LocalDateTime;
 public abstract class InventoryTransaction {
-    private final String id;
+    private final long id;
     private final LocalDateTime timestamp;
-    protected InventoryTransaction(String id) {
+    protected InventoryTransaction(long id) {
+        this(id, LocalDateTime.now());
+    }
+    protected InventoryTransaction(long id, LocalDateTime timestamp) {
         this.id = id;
-        this.timestamp = LocalDateTime.now();
+        this.timestamp = timestamp;
     }
-    public String getId() { return id; }
+    public long getId() { return id; }
+    // as shown to users, e.g. MI-1042
+    public abstract String getDisplayId();
     public LocalDateTime getTimestamp() { return timestamp; }
     public abstract String summary();
 }
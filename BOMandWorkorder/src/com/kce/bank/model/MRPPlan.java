@@ -0,0 +1,22 @@
+package com.kce.bank.model;
+import java.util.Collections;
+import java.util.List;
+public class MRPPlan {
+    private final List<PlannedOrder> plannedOrders;
+    private final List<Shortage> shortages;
+    private final long elapsedMillis;
+    public MRPPlan(List<PlannedOrder> plannedOrders, List<Shortage> shortages, long elapsedMillis) {
+        this.plannedOrders = Collections.unmodifiableList(plannedOrders);
+        this.shortages = Collections.unmodifiableList(shortages);
+        this.elapsedMillis = elapsedMillis;
+    }
+    public List<PlannedOrder> getPlannedOrders() { return plannedOrders; }
+    public List<Shortage> getShortages() { return shortages; }
+    public long getElapsedMillis() { return elapsedMillis; }
+    public String toString() {
+        StringBuilder sb = new StringBuilder("MRP plan (" + elapsedMillis + " ms):\n");
+        for (PlannedOrder po : plannedOrders) sb.append("   ").append(po).append("\n");
+        for (Shortage s : shortages) sb.append("   ").append(s).append("\n");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,18 @@
+package com.kce.bank.model;
+import java.time.LocalDate;
+public class PlannedOrder {
+    private final Product product;
+    private final long quantity;
+    private final LocalDate dueDate;
+    public PlannedOrder(Product product, long quantity, LocalDate dueDate) {
+        this.product = product;
+        this.quantity = quantity;
+        this.dueDate = dueDate;
+    }
+    public Product getProduct() { return product; }
+    public long getQuantity() { return quantity; }
+    public LocalDate getDueDate() { return dueDate; }
+    public String toString() {
+        return "Planned " + product.getCode() + " x" + quantity + " due " + dueDate;
+    }
+}
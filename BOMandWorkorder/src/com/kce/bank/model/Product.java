@@ -1,16 +1,35 @@
 package com.kce.bank.model;
 public class Product {
+    private final int ordinal;
     private final String code;
     private String name;
+    // planning data: days to make or buy, and where making it loads capacity
+    private volatile int leadTimeDays;
+    private volatile WorkCenter workCenter;
+    private volatile int minutesPerUnit;
     public Product(String code, String name) {
+        this(-1, code, name);
+    }
+    // ordinal is the dense index assigned by a ProductCatalog, -1 if not catalogued
+    public Product(int ordinal, String code, String name) {
+        this.ordinal = ordinal;
         this.code = code;
         this.name = name;
     }
+    public int getOrdinal() { return ordinal; }
     public String getCode() { return code; }
     public String getName() { return name; }
     public void setName(String name) { this.name = name; }
+    public int getLeadTimeDays() { return leadTimeDays; }
+    public WorkCenter getWorkCenter() { return workCenter; }
+    public int getMinutesPerUnit() { return minutesPerUnit; }
+    public void setPlanning(int leadTimeDays, WorkCenter workCenter, int minutesPerUnit) {
+        if (leadTimeDays < 0 || minutesPerUnit < 0) throw new IllegalArgumentException("lead time and minutes per unit >= 0");
+        this.leadTimeDays = leadTimeDays;
+        this.workCenter = workCenter;
+        this.minutesPerUnit = minutesPerUnit;
+    }
     public String toString() {
         return name + " [" + code + "]";
     }
 }
-
@@ -0,0 +1,60 @@
+package com.kce.bank.model;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+/*
+ * One canonical Product per code, each with a dense int ordinal in registration
+ * order. Stock and requirement data are kept in arrays indexed by that ordinal;
+ * the code map is only consulted at the String-keyed edges of the API.
+ */
+public class ProductCatalog {
+    private final Map<String, Product> byCode = new ConcurrentHashMap<>();
+    private volatile Product[] byOrdinal = new Product[1024];
+    private volatile int size;
+    public synchronized Product register(String code, String name) {
+        if (byCode.containsKey(code)) throw new IllegalArgumentException("Product code exists: " + code);
+        return add(code, name);
+    }
+    public synchronized Product intern(String code, String name) {
+        Product p = byCode.get(code);
+        return p != null ? p : add(code, name);
+    }
+    // All or none: every code is checked before any is registered.
+    public synchronized Product[] registerAll(String[] codes, String[] names, int count) {
+        Set<String> batch = new HashSet<>(count * 2);
+        for (int i = 0; i < count; i++) {
+            if (byCode.containsKey(codes[i]) || !batch.add(codes[i])) throw new IllegalArgumentException("Product code exists: " + codes[i]);
+        }
+        if (size + count > byOrdinal.length) byOrdinal = Arrays.copyOf(byOrdinal, Math.max(byOrdinal.length * 2, size + count));
+        Product[] added = new Product[count];
+        for (int i = 0; i < count; i++) added[i] = add(codes[i], names[i]);
+        return added;
+    }
+    private Product add(String code, String name) {
+        int ordinal = size;
+        if (ordinal == byOrdinal.length) byOrdinal = Arrays.copyOf(byOrdinal, ordinal * 2);
+        Product p = new Product(ordinal, code, name);
+        byOrdinal[ordinal] = p;
+        byCode.put(code, p);
+        size = ordinal + 1;
+        return p;
+    }
+    public Product get(String code) { return byCode.get(code); }
+    public Product get(int ordinal) {
+        int n = size;
+        return ordinal >= 0 && ordinal < n ? byOrdinal[ordinal] : null;
+    }
+    public int ordinal(String code) {
+        Product p = byCode.get(code);
+        return p == null ? -1 : p.getOrdinal();
+    }
+    public int size() { return size; }
+    public Collection<Product> all() {
+        int n = size;
+        return Collections.unmodifiableList(Arrays.asList(byOrdinal).subList(0, n));
+    }
+}
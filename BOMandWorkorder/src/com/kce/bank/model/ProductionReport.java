@@ -1,17 +1,40 @@
 package com.kce.bank.model;
 import com.kce.bank.util.IdGenerator;
+import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.List;
+// One lot produced against a work order, with the components backflushed for it
+// and, on the lot that closed the order short, the reservation handed back.
 public class ProductionReport extends InventoryTransaction {
     private final WorkOrder workOrder;
     private final int producedQuantity;
+    private final boolean last;
+    private final List<MaterialIssue> backflushed;
+    private final List<StockAllocation> released;
     public ProductionReport(WorkOrder workOrder, int producedQuantity) {
-        super(IdGenerator.next("PR"));
+        this(IdGenerator.PRODUCTION_REPORTS.next(), LocalDateTime.now(), workOrder, producedQuantity, true);
+    }
+    public ProductionReport(long id, LocalDateTime timestamp, WorkOrder workOrder, int producedQuantity, boolean last) {
+        this(id, timestamp, workOrder, producedQuantity, last, Collections.emptyList(), Collections.emptyList());
+    }
+    public ProductionReport(long id, LocalDateTime timestamp, WorkOrder workOrder, int producedQuantity, boolean last,
+            List<MaterialIssue> backflushed, List<StockAllocation> released) {
+        super(id, timestamp);
         this.workOrder = workOrder;
         this.producedQuantity = producedQuantity;
+        this.last = last;
+        this.backflushed = backflushed;
+        this.released = released;
     }
+    public String getDisplayId() { return IdGenerator.PRODUCTION_REPORTS.format(getId()); }
     public WorkOrder getWorkOrder() { return workOrder; }
     public int getProducedQuantity() { return producedQuantity; }
+    // this lot completed the order
+    public boolean isLast() { return last; }
+    public List<MaterialIssue> getBackflushed() { return backflushed; }
+    public List<StockAllocation> getReleased() { return released; }
     public String summary() {
-        return String.format("%s: Produced %d units for %s", getId(), producedQuantity, workOrder.simple());
+        return String.format("%s: Produced %d units for %s%s", getDisplayId(), producedQuantity, workOrder.simple(), last ? " (last lot)" : "");
     }
     public String toString() { return summary(); }
 }
@@ -0,0 +1,57 @@
+package com.kce.bank.model;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+// Sparse component quantities, sorted by product ordinal.
+public final class RequirementVector {
+    public static final RequirementVector EMPTY = new RequirementVector(new int[0], new int[0]);
+    private final int[] ordinals;
+    private final int[] quantities;
+    private RequirementVector(int[] ordinals, int[] quantities) {
+        this.ordinals = ordinals;
+        this.quantities = quantities;
+    }
+    // entries are ordinal << 32 | quantity; duplicates are summed
+    public static RequirementVector ofPacked(long[] entries, int count) {
+        Arrays.sort(entries, 0, count);
+        int[] ords = new int[count];
+        int[] qty = new int[count];
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            int ord = (int) (entries[i] >>> 32);
+            int q = (int) entries[i];
+            if (n > 0 && ords[n - 1] == ord) qty[n - 1] = Math.addExact(qty[n - 1], q);
+            else {
+                ords[n] = ord;
+                qty[n++] = q;
+            }
+        }
+        return new RequirementVector(Arrays.copyOf(ords, n), Arrays.copyOf(qty, n));
+    }
+    public static RequirementVector of(Map<String, Integer> lines, ProductCatalog catalog) {
+        long[] entries = new long[lines.size()];
+        int n = 0;
+        for (Map.Entry<String, Integer> e : lines.entrySet()) {
+            int ord = catalog.ordinal(e.getKey());
+            if (ord < 0) throw new IllegalArgumentException("Unknown product: " + e.getKey());
+            entries[n++] = pack(ord, e.getValue());
+        }
+        return ofPacked(entries, n);
+    }
+    public static long pack(int ordinal, int quantity) {
+        return ((long) ordinal << 32) | (quantity & 0xFFFFFFFFL);
+    }
+    public int size() { return ordinals.length; }
+    public int ordinal(int i) { return ordinals[i]; }
+    public int quantity(int i) { return quantities[i]; }
+    public RequirementVector times(int factor) {
+        int[] qty = new int[quantities.length];
+        for (int i = 0; i < qty.length; i++) qty[i] = Math.multiplyExact(quantities[i], factor);
+        return new RequirementVector(ordinals, qty);
+    }
+    public Map<String, Integer> toMap(ProductCatalog catalog) {
+        Map<String, Integer> m = new TreeMap<>();
+        for (int i = 0; i < ordinals.length; i++) m.put(catalog.get(ordinals[i]).getCode(), quantities[i]);
+        return m;
+    }
+}
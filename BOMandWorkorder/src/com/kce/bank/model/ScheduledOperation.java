@@ -0,0 +1,38 @@
+package com.kce.bank.model;
+import java.time.LocalDate;
+// One node of a scheduled work order: making (or, without a BOM, buying) a
+// product between start and finish, both inclusive. latestFinish is what the
+// due date and the parent allowed; finishing later makes the order late.
+public class ScheduledOperation {
+    private final Product product;
+    private final WorkCenter workCenter;
+    private final long quantity;
+    private final long loadMinutes;
+    private final LocalDate start;
+    private final LocalDate finish;
+    private final LocalDate latestFinish;
+    public ScheduledOperation(Product product, WorkCenter workCenter, long quantity, long loadMinutes,
+            LocalDate start, LocalDate finish, LocalDate latestFinish) {
+        this.product = product;
+        this.workCenter = workCenter;
+        this.quantity = quantity;
+        this.loadMinutes = loadMinutes;
+        this.start = start;
+        this.finish = finish;
+        this.latestFinish = latestFinish;
+    }
+    public Product getProduct() { return product; }
+    // null for bought-in parts and assemblies not routed to a work center
+    public WorkCenter getWorkCenter() { return workCenter; }
+    public long getQuantity() { return quantity; }
+    public long getLoadMinutes() { return loadMinutes; }
+    public LocalDate getStart() { return start; }
+    public LocalDate getFinish() { return finish; }
+    public LocalDate getLatestFinish() { return latestFinish; }
+    public boolean isLate() { return finish.isAfter(latestFinish); }
+    public String toString() {
+        return String.format("%-10s x%-6d %-8s %s .. %s%s", product.getCode(), quantity,
+                workCenter == null ? "-" : workCenter.getCode(), start, finish,
+                isLate() ? "  LATE (needed by " + latestFinish + ")" : "");
+    }
+}
@@ -0,0 +1,26 @@
+package com.kce.bank.model;
+import java.time.LocalDate;
+public class Shortage {
+    private final Product component;
+    private final long required;
+    private final int available;
+    private final int reserved;
+    private final LocalDate neededBy;
+    public Shortage(Product component, long required, int available, int reserved, LocalDate neededBy) {
+        this.component = component;
+        this.required = required;
+        this.available = available;
+        this.reserved = reserved;
+        this.neededBy = neededBy;
+    }
+    public Product getComponent() { return component; }
+    public long getRequired() { return required; }
+    public int getAvailable() { return available; }
+    public int getReserved() { return reserved; }
+    public long getShortfall() { return required - available; }
+    public LocalDate getNeededBy() { return neededBy; }
+    public String toString() {
+        return String.format("Short %s: need %d, available %d (reserved %d), short %d by %s",
+                component.getCode(), required, available, reserved, getShortfall(), neededBy);
+    }
+}
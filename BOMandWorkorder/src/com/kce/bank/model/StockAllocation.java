@@ -0,0 +1,18 @@
+package com.kce.bank.model;
+// Part of a work order's requirement reserved at one site of the network.
+public class StockAllocation {
+    private final Warehouse site;
+    private final Product component;
+    private final int quantity;
+    public StockAllocation(Warehouse site, Product component, int quantity) {
+        this.site = site;
+        this.component = component;
+        this.quantity = quantity;
+    }
+    public Warehouse getSite() { return site; }
+    public Product getComponent() { return component; }
+    public int getQuantity() { return quantity; }
+    public String toString() {
+        return quantity + " of " + component.getCode() + " at " + site.getName();
+    }
+}
@@ -0,0 +1,69 @@
+package com.kce.bank.model;
+import java.util.concurrent.atomic.AtomicLongArray;
+/*
+ * Consistent reads of stock that never block writers, in the style of sleepable
+ * RCU. Every stock mutation runs registered in the current epoch, counted in a
+ * padded stripe per thread and epoch parity. Taking a view advances the epoch
+ * and waits for the writers still registered in the old one; from then until
+ * the view is taken, a writer preserves each page it is about to change, once,
+ * and the reader copies every page, using the preserved copy where there is
+ * one. The view is the stock as it stood when the old epoch drained: a
+ * mutation, a whole batch of lines included, is either all in it or not at all.
+ * All sites of a network share one, so a view is one cut across the sites.
+ */
+final class StockEpochs {
+    private static final int STRIPES = 32, PAD = 16;
+    // writers in flight per stripe and epoch parity, a cache line pair apart
+    private final AtomicLongArray writers = new AtomicLongArray(STRIPES * 2 * PAD);
+    private volatile long epoch = 1;
+    private volatile Cut cut;
+
+    // registers the calling thread as a writer; returns the epoch to pass to exit()
+    long enter() {
+        int stripe = stripe();
+        while (true) {
+            long e = epoch;
+            writers.getAndIncrement(slot(stripe, e));
+            if (epoch == e) return e;
+            // a view advanced the epoch meanwhile and may not have counted us
+            writers.getAndDecrement(slot(stripe, e));
+        }
+    }
+    void exit(long e) { writers.getAndDecrement(slot(stripe(), e)); }
+    // The epoch of the view a writer registered in epoch e must preserve pages
+    // for, 0 if none. Waits out the writers of the epoch before.
+    long cut(long e) {
+        Cut c = cut;
+        if (c == null || c.epoch != e) return 0;
+        while (!c.ready) Thread.yield();
+        return e;
+    }
+
+    // One view at a time; writers only wait for the old epoch to drain, never
+    // for the copy.
+    synchronized StockView view(Warehouse[] sites) {
+        Cut c = new Cut(epoch + 1);
+        cut = c;
+        epoch = c.epoch;
+        for (int s = 0; s < STRIPES; s++) {
+            while (writers.get(slot(s, c.epoch - 1)) != 0) Thread.yield();
+        }
+        c.ready = true;
+        Warehouse.Frozen[][] pages = new Warehouse.Frozen[sites.length][];
+        try {
+            for (int s = 0; s < sites.length; s++) pages[s] = sites[s].capture(c.epoch);
+        } finally {
+            cut = null;
+            for (Warehouse w : sites) w.thaw(c.epoch);
+        }
+        return new StockView(c.epoch, sites, pages);
+    }
+
+    private static int stripe() { return (int) Thread.currentThread().threadId() & (STRIPES - 1); }
+    private static int slot(int stripe, long epoch) { return ((stripe << 1) | (int) (epoch & 1)) * PAD; }
+    private static final class Cut {
+        final long epoch;
+        volatile boolean ready;
+        Cut(long epoch) { this.epoch = epoch; }
+    }
+}
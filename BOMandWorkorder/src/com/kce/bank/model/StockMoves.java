@@ -0,0 +1,37 @@
+package com.kce.bank.model;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+// Stock movements across a network's sites, summed per site and product so that
+// StockNetwork.moveAll touches each cell once however many movements it holds.
+public final class StockMoves {
+    // site << 32 | ordinal -> entry
+    private final Map<Long, Integer> index = new HashMap<>();
+    private int[] sites = new int[8], ordinals = new int[8], available = new int[8], reserved = new int[8];
+    private int size;
+
+    public void add(Warehouse site, int ordinal, int availableDelta, int reservedDelta) {
+        Integer at = index.get((long) site.getSite() << 32 | ordinal);
+        if (at != null) {
+            available[at] = Math.addExact(available[at], availableDelta);
+            reserved[at] = Math.addExact(reserved[at], reservedDelta);
+            return;
+        }
+        if (size == sites.length) {
+            sites = Arrays.copyOf(sites, size * 2);
+            ordinals = Arrays.copyOf(ordinals, size * 2);
+            available = Arrays.copyOf(available, size * 2);
+            reserved = Arrays.copyOf(reserved, size * 2);
+        }
+        index.put((long) site.getSite() << 32 | ordinal, size);
+        sites[size] = site.getSite();
+        ordinals[size] = ordinal;
+        available[size] = availableDelta;
+        reserved[size++] = reservedDelta;
+    }
+    public int size() { return size; }
+    public int site(int i) { return sites[i]; }
+    public int ordinal(int i) { return ordinals[i]; }
+    public int available(int i) { return available[i]; }
+    public int reserved(int i) { return reserved[i]; }
+}
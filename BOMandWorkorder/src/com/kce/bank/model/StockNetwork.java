@@ -0,0 +1,155 @@
+package com.kce.bank.model;
+import com.kce.bank.exception.InsufficientStockException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.IntStream;
+/*
+ * The plants and stores stock is held at. All sites share one ProductCatalog, so
+ * a product has the same ordinal everywhere and a cross-site lookup is one
+ * packed-cell read per site. Sites are only ever added; their index in
+ * registration order is what the journal and snapshots record. The sites share
+ * the primary's StockEpochs, so view() is one consistent cut across all of them.
+ */
+public class StockNetwork {
+    // below this many cells a query is cheaper on the calling thread
+    private static final int PARALLEL_CELLS = 1 << 16;
+    private final ProductCatalog catalog;
+    private volatile Warehouse[] sites;
+    private Warehouse.StockListener listener;
+    public StockNetwork(Warehouse primary) {
+        this.catalog = primary.getCatalog();
+        primary.setSite(0);
+        this.sites = new Warehouse[] { primary };
+    }
+    public synchronized Warehouse addSite(String name, int x, int y) {
+        if (site(name) != null) throw new IllegalArgumentException("Site exists: " + name);
+        Warehouse w = new Warehouse(name, catalog, x, y, primary().epochs());
+        w.setSite(sites.length);
+        w.setStockListener(listener);
+        Warehouse[] grown = Arrays.copyOf(sites, sites.length + 1);
+        grown[sites.length] = w;
+        sites = grown;
+        return w;
+    }
+    // installed on every site, present and future
+    public synchronized void setStockListener(Warehouse.StockListener listener) {
+        this.listener = listener;
+        for (Warehouse w : sites) w.setStockListener(listener);
+    }
+    public ProductCatalog getCatalog() { return catalog; }
+    public Warehouse primary() { return sites[0]; }
+    public int size() { return sites.length; }
+    public Warehouse site(int index) {
+        Warehouse[] ws = sites;
+        return index >= 0 && index < ws.length ? ws[index] : null;
+    }
+    public Warehouse site(String name) {
+        for (Warehouse w : sites) if (w.getName().equals(name)) return w;
+        return null;
+    }
+    public List<Warehouse> sites() { return Collections.unmodifiableList(Arrays.asList(sites)); }
+    // Batches spanning sites, each all or nothing and in one epoch, so a view
+    // sees the whole batch or none of it. bySite holds a site's lines at its
+    // index, null where it has none.
+    public void reserveAll(RequirementVector[] bySite) throws InsufficientStockException {
+        Warehouse[] ws = sites;
+        StockEpochs epochs = primary().epochs();
+        long e = epochs.enter();
+        int done = 0;
+        try {
+            long cut = epochs.cut(e);
+            try {
+                for (; done < bySite.length; done++) if (bySite[done] != null) ws[done].reserveAll(bySite[done], cut);
+            } catch (InsufficientStockException x) {
+                for (int s = 0; s < done; s++) undo(ws[s], bySite[s], 1, -1, cut);
+                throw x;
+            }
+        } finally {
+            epochs.exit(e);
+        }
+    }
+    public void issueReservedAll(RequirementVector[] bySite) throws InsufficientStockException {
+        Warehouse[] ws = sites;
+        StockEpochs epochs = primary().epochs();
+        long e = epochs.enter();
+        int done = 0;
+        try {
+            long cut = epochs.cut(e);
+            try {
+                for (; done < bySite.length; done++) if (bySite[done] != null) ws[done].issueReservedAll(bySite[done], cut);
+            } catch (InsufficientStockException x) {
+                for (int s = 0; s < done; s++) undo(ws[s], bySite[s], 0, 1, cut);
+                throw x;
+            }
+        } finally {
+            epochs.exit(e);
+        }
+    }
+    private static void undo(Warehouse site, RequirementVector lines, int available, int reserved, long cut) {
+        if (lines == null) return;
+        for (int i = 0; i < lines.size(); i++) site.adjust(lines.ordinal(i), available * lines.quantity(i), reserved * lines.quantity(i), cut);
+    }
+    // Checked movements: none is applied unless all can be.
+    public void moveAll(StockMoves moves) throws InsufficientStockException {
+        Warehouse[] ws = sites;
+        StockEpochs epochs = primary().epochs();
+        long e = epochs.enter();
+        int done = 0;
+        try {
+            long cut = epochs.cut(e);
+            try {
+                for (; done < moves.size(); done++) ws[moves.site(done)].move(moves.ordinal(done), moves.available(done), moves.reserved(done), cut);
+            } catch (InsufficientStockException | ArithmeticException x) {
+                for (int i = 0; i < done; i++) ws[moves.site(i)].adjust(moves.ordinal(i), -moves.available(i), -moves.reserved(i), cut);
+                throw x;
+            }
+        } finally {
+            epochs.exit(e);
+        }
+    }
+    // Unchecked, as Warehouse.adjust, for receipts and for handing stock back;
+    // still none is applied if one overflows.
+    public void adjustAll(StockMoves moves) {
+        Warehouse[] ws = sites;
+        StockEpochs epochs = primary().epochs();
+        long e = epochs.enter();
+        int done = 0;
+        try {
+            long cut = epochs.cut(e);
+            try {
+                for (; done < moves.size(); done++) ws[moves.site(done)].adjust(moves.ordinal(done), moves.available(done), moves.reserved(done), cut);
+            } catch (ArithmeticException x) {
+                for (int i = 0; i < done; i++) ws[moves.site(i)].adjust(moves.ordinal(i), -moves.available(i), -moves.reserved(i), cut);
+                throw x;
+            }
+        } finally {
+            epochs.exit(e);
+        }
+    }
+    // every site's stock as of one moment; writers carry on while it is taken
+    public StockView view() { return primary().epochs().view(sites); }
+    public int getAvailable(int ordinal) {
+        long total = 0;
+        for (Warehouse w : sites) total += w.getAvailable(ordinal);
+        return (int) Math.min(Integer.MAX_VALUE, total);
+    }
+    public int getReserved(int ordinal) {
+        long total = 0;
+        for (Warehouse w : sites) total += w.getReserved(ordinal);
+        return (int) Math.min(Integer.MAX_VALUE, total);
+    }
+    // available[site][i] for each ordinal; large queries fan out one task per site
+    public int[][] availability(int[] ordinals) {
+        Warehouse[] ws = sites;
+        int[][] result = new int[ws.length][];
+        IntStream bySite = IntStream.range(0, ws.length);
+        if ((long) ws.length * ordinals.length >= PARALLEL_CELLS) bySite = bySite.parallel();
+        bySite.forEach(s -> {
+            int[] row = new int[ordinals.length];
+            for (int i = 0; i < ordinals.length; i++) row[i] = ws[s].getAvailable(ordinals[i]);
+            result[s] = row;
+        });
+        return result;
+    }
+}
@@ -0,0 +1,77 @@
+package com.kce.bank.model;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Comparator;
+/*
+ * An immutable, consistent copy of the stock of one or more sites, taken
+ * without stopping writers (see StockEpochs). Versions increase with every
+ * view taken from the same network. Site numbers here are positions in the
+ * view, which for a network's view are the sites' own indexes.
+ */
+public final class StockView {
+    private final long version;
+    private final Warehouse[] sites;
+    private final Warehouse.Frozen[][] pages;
+    StockView(long version, Warehouse[] sites, Warehouse.Frozen[][] pages) {
+        this.version = version;
+        this.sites = sites;
+        this.pages = pages;
+    }
+    public long getVersion() { return version; }
+    public int size() { return sites.length; }
+    public Warehouse site(int site) { return sites[site]; }
+    public int getAvailable(int site, int ordinal) { return Warehouse.available(cell(site, ordinal)); }
+    public int getReserved(int site, int ordinal) { return Warehouse.reserved(cell(site, ordinal)); }
+    // every product of the site that has had a movement, in ordinal order
+    public void forEachStock(int site, Warehouse.StockRow row) {
+        Warehouse.Frozen[] ps = pages[site];
+        for (int p = 0; p < ps.length; p++) ps[p].forEach(p, row);
+    }
+    // Rows sorted by product code, written a line at a time.
+    public void summary(int site, Writer out) throws IOException {
+        ProductCatalog catalog = sites[site].getCatalog();
+        Warehouse.Frozen[] ps = pages[site];
+        int n = 0;
+        for (Warehouse.Frozen f : ps) n += f.count();
+        Product[] rows = new Product[n];
+        int[] next = { 0 };
+        forEachStock(site, (ord, available, reserved) -> rows[next[0]++] = catalog.get(ord));
+        // products are mostly registered in code order, which the sort finds in one pass
+        Arrays.sort(rows, Comparator.comparing(Product::getCode));
+        Line line = new Line(out);
+        out.write("Warehouse " + sites[site].getName() + " Stock:\n");
+        line.cell("Product", 12).cell("Available", 10).cell("Reserved", 10).end();
+        for (Product p : rows) {
+            long v = cell(site, p.getOrdinal());
+            line.cell(p.getCode(), 12).cell(Integer.toString(Warehouse.available(v)), 10).cell(Integer.toString(Warehouse.reserved(v)), 10).end();
+        }
+    }
+    private long cell(int site, int ordinal) {
+        Warehouse.Frozen[] ps = pages[site];
+        int p = ordinal >>> Warehouse.PAGE_BITS;
+        return ordinal >= 0 && p < ps.length ? ps[p].cell(ordinal) : 0;
+    }
+
+    // Left-aligned, space-separated columns, as "%-12s %-10s ..." would give,
+    // handed to the writer one line per call.
+    private static final class Line {
+        private final Writer out;
+        private final StringBuilder sb = new StringBuilder(64);
+        private char[] buf = new char[64];
+        Line(Writer out) { this.out = out; }
+        Line cell(String text, int width) {
+            if (sb.length() > 0) sb.append(' ');
+            sb.append(text);
+            for (int i = text.length(); i < width; i++) sb.append(' ');
+            return this;
+        }
+        void end() throws IOException {
+            sb.append('\n');
+            if (buf.length < sb.length()) buf = new char[sb.length()];
+            sb.getChars(0, sb.length(), buf, 0);
+            out.write(buf, 0, sb.length());
+            sb.setLength(0);
+        }
+    }
+}
@@ -1,39 +1,403 @@
 package com.kce.bank.model;
 import com.kce.bank.exception.InsufficientStockException;
-import java.util.HashMap;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.Arrays;
 import java.util.Map;
-import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 public class Warehouse {
+    static final int PAGE_BITS = 12, PAGE = 1 << PAGE_BITS;
     private final String name;
-    private final Map<String, Integer> available = new HashMap<>();
-    private final Map<String, Integer> reserved = new HashMap<>();
+    private final ProductCatalog catalog;
+    private final int x, y;
+    private volatile int site = -1;
+    // One long per product ordinal: available in the high 32 bits, reserved in the
+    // low 32 bits, so that a reservation moves stock between the two in one CAS.
+    // Pages are allocated as the catalog grows.
+    private volatile Page[] pages = new Page[0];
+    // Each public mutation runs registered here, so a view sees all of it or
+    // none of it; shared by the sites of a network.
+    private final StockEpochs epochs;
+    // contention and shortfall counts for metrics; only touched off the fast path
+    private final LongAdder casRetries = new LongAdder(), shortages = new LongAdder();
+    private volatile StockListener listener;
     public Warehouse(String name) {
+        this(name, new ProductCatalog());
+    }
+    public Warehouse(String name, ProductCatalog catalog) {
+        this(name, catalog, 0, 0);
+    }
+    // x, y: grid location of the site, used by distance-based sourcing
+    public Warehouse(String name, ProductCatalog catalog, int x, int y) {
+        this(name, catalog, x, y, new StockEpochs());
+    }
+    Warehouse(String name, ProductCatalog catalog, int x, int y, StockEpochs epochs) {
         this.name = name;
+        this.catalog = catalog;
+        this.x = x;
+        this.y = y;
+        this.epochs = epochs;
     }
     public String getName() { return name; }
-    public synchronized void addStock(Product p, int qty) {
+    public int getX() { return x; }
+    public int getY() { return y; }
+    public double distanceTo(Warehouse other) { return Math.hypot((double) x - other.x, (double) y - other.y); }
+    // position in its StockNetwork, -1 while standalone
+    public int getSite() { return site; }
+    void setSite(int site) { this.site = site; }
+    StockEpochs epochs() { return epochs; }
+    public ProductCatalog getCatalog() { return catalog; }
+    // told of every change to a product's available quantity, after it is made
+    public interface StockListener {
+        void availableChanged(int ordinal);
+    }
+    public void setStockListener(StockListener listener) { this.listener = listener; }
+    public void addStock(Product p, int qty) {
         if (qty <= 0) return;
-        available.put(p.getCode(), available.getOrDefault(p.getCode(), 0) + qty);}
-    public synchronized void reserve(String productCode, int qty) throws InsufficientStockException {
-        int avail = available.getOrDefault(productCode, 0);
-        if (qty > avail) throw new InsufficientStockException("Not enough available stock to reserve for " + productCode);
-        available.put(productCode, avail - qty);
-        reserved.put(productCode, reserved.getOrDefault(productCode, 0) + qty); }
-    public synchronized void issueReserved(String productCode, int qty) throws InsufficientStockException {
-        int res = reserved.getOrDefault(productCode, 0);
-        if (qty > res) throw new InsufficientStockException("Not enough reserved stock to issue for " + productCode);
-        reserved.put(productCode, res - qty); }
-    public synchronized int getAvailable(String productCode) { return available.getOrDefault(productCode, 0); }
-    public synchronized int getReserved(String productCode) { return reserved.getOrDefault(productCode, 0); }
-    public synchronized String stockSummary() {
-        StringBuilder sb = new StringBuilder();
-        sb.append("Warehouse ").append(name).append(" Stock:\n");
-        Set<String> keys = new java.util.TreeSet<>();
-        keys.addAll(available.keySet());
-        sb.append(String.format("%-12s %-10s %-10s\n", "Product", "Available", "Reserved"));
-        for (String k : keys) {
-            sb.append(String.format("%-12s %-10d %-10d\n", k, available.getOrDefault(k, 0), reserved.getOrDefault(k, 0)));
-        }
-        return sb.toString();
+        int ord = ordinalOf(p);
+        long e = epochs.enter();
+        try {
+            Page page = writable(ord, epochs.cut(e));
+            int i = ord & (PAGE - 1);
+            page.touch(i);
+            while (true) {
+                long v = page.cells.get(i);
+                if (page.cells.compareAndSet(i, v, pack(Math.addExact(available(v), qty), reserved(v)))) {
+                    changed(ord);
+                    return;
+                }
+                casRetries.increment();
+            }
+        } finally {
+            epochs.exit(e);
+        }
+    }
+    public void reserve(String productCode, int qty) throws InsufficientStockException {
+        int ord = catalog.ordinal(productCode);
+        if (ord < 0) {
+            if (qty > 0) throw new InsufficientStockException("Not enough available stock to reserve for " + productCode);
+            return;
+        }
+        reserve(ord, qty);
+    }
+    public void reserve(int ordinal, int qty) throws InsufficientStockException {
+        long e = epochs.enter();
+        try {
+            reserve(ordinal, qty, epochs.cut(e));
+        } finally {
+            epochs.exit(e);
+        }
+    }
+    // the cut variants take the caller's epoch; StockNetwork runs several sites in one
+    void reserve(int ordinal, int qty, long cut) throws InsufficientStockException {
+        checkOrdinal(ordinal);
+        if (qty < 0) throw new IllegalArgumentException("Reserve quantity must not be negative: " + qty);
+        Page page = writable(ordinal, cut);
+        int i = ordinal & (PAGE - 1);
+        while (true) {
+            long v = page.cells.get(i);
+            int avail = available(v);
+            if (qty > avail) {
+                shortages.increment();
+                throw new InsufficientStockException("Not enough available stock to reserve for " + catalog.get(ordinal).getCode());
+            }
+            if (page.cells.compareAndSet(i, v, pack(avail - qty, reserved(v) + qty))) {
+                page.touch(i);
+                if (qty != 0) changed(ordinal);
+                return;
+            }
+            casRetries.increment();
+        }
+    }
+    public void issueReserved(String productCode, int qty) throws InsufficientStockException {
+        int ord = catalog.ordinal(productCode);
+        if (ord < 0) {
+            if (qty > 0) throw new InsufficientStockException("Not enough reserved stock to issue for " + productCode);
+            return;
+        }
+        issueReserved(ord, qty);
+    }
+    public void issueReserved(int ordinal, int qty) throws InsufficientStockException {
+        long e = epochs.enter();
+        try {
+            issueReserved(ordinal, qty, epochs.cut(e));
+        } finally {
+            epochs.exit(e);
+        }
+    }
+    void issueReserved(int ordinal, int qty, long cut) throws InsufficientStockException {
+        checkOrdinal(ordinal);
+        if (qty < 0) throw new IllegalArgumentException("Issue quantity must not be negative: " + qty);
+        Page page = writable(ordinal, cut);
+        int i = ordinal & (PAGE - 1);
+        while (true) {
+            long v = page.cells.get(i);
+            int res = reserved(v);
+            if (qty > res) {
+                shortages.increment();
+                throw new InsufficientStockException("Not enough reserved stock to issue for " + catalog.get(ordinal).getCode());
+            }
+            if (page.cells.compareAndSet(i, v, pack(available(v), res - qty))) {
+                page.touch(i);
+                return;
+            }
+            casRetries.increment();
+        }
+    }
+    // All-or-nothing: lines are taken in ordinal order and every line already
+    // taken is handed back if a later one is short. No locks are held, so batches
+    // running concurrently cannot deadlock.
+    public void reserveAll(Map<String, Integer> lines) throws InsufficientStockException {
+        reserveAll(RequirementVector.of(lines, catalog));
+    }
+    public void reserveAll(RequirementVector lines) throws InsufficientStockException {
+        long e = epochs.enter();
+        try {
+            reserveAll(lines, epochs.cut(e));
+        } finally {
+            epochs.exit(e);
+        }
+    }
+    void reserveAll(RequirementVector lines, long cut) throws InsufficientStockException {
+        int done = 0;
+        try {
+            for (; done < lines.size(); done++) reserve(lines.ordinal(done), lines.quantity(done), cut);
+        } catch (InsufficientStockException x) {
+            for (int i = 0; i < done; i++) adjust(lines.ordinal(i), lines.quantity(i), -lines.quantity(i), cut);
+            throw x;
+        }
+    }
+    public void issueReservedAll(Map<String, Integer> lines) throws InsufficientStockException {
+        issueReservedAll(RequirementVector.of(lines, catalog));
+    }
+    public void issueReservedAll(RequirementVector lines) throws InsufficientStockException {
+        long e = epochs.enter();
+        try {
+            issueReservedAll(lines, epochs.cut(e));
+        } finally {
+            epochs.exit(e);
+        }
+    }
+    void issueReservedAll(RequirementVector lines, long cut) throws InsufficientStockException {
+        int done = 0;
+        try {
+            for (; done < lines.size(); done++) issueReserved(lines.ordinal(done), lines.quantity(done), cut);
+        } catch (InsufficientStockException x) {
+            for (int i = 0; i < done; i++) adjust(lines.ordinal(i), 0, lines.quantity(i), cut);
+            throw x;
+        }
+    }
+    // Unchecked movement, used for rollback and for replaying journalled deltas,
+    // which commute and may therefore be applied in any order.
+    public void adjust(String productCode, int availableDelta, int reservedDelta) {
+        int ord = catalog.ordinal(productCode);
+        if (ord < 0) throw new IllegalArgumentException("Unknown product: " + productCode);
+        adjust(ord, availableDelta, reservedDelta);
+    }
+    public void adjust(int ordinal, int availableDelta, int reservedDelta) {
+        long e = epochs.enter();
+        try {
+            adjust(ordinal, availableDelta, reservedDelta, epochs.cut(e));
+        } finally {
+            epochs.exit(e);
+        }
+    }
+    void adjust(int ordinal, int availableDelta, int reservedDelta, long cut) {
+        checkOrdinal(ordinal);
+        Page page = writable(ordinal, cut);
+        int i = ordinal & (PAGE - 1);
+        page.touch(i);
+        while (true) {
+            long v = page.cells.get(i);
+            if (page.cells.compareAndSet(i, v, pack(Math.addExact(available(v), availableDelta), Math.addExact(reserved(v), reservedDelta)))) {
+                if (availableDelta != 0) changed(ordinal);
+                return;
+            }
+            casRetries.increment();
+        }
+    }
+    // Checked form of adjust(): refuses to take either balance below zero. Lets a
+    // batch of movements on one product land as a single CAS.
+    public void move(int ordinal, int availableDelta, int reservedDelta) throws InsufficientStockException {
+        long e = epochs.enter();
+        try {
+            move(ordinal, availableDelta, reservedDelta, epochs.cut(e));
+        } finally {
+            epochs.exit(e);
+        }
+    }
+    void move(int ordinal, int availableDelta, int reservedDelta, long cut) throws InsufficientStockException {
+        checkOrdinal(ordinal);
+        Page page = writable(ordinal, cut);
+        int i = ordinal & (PAGE - 1);
+        page.touch(i);
+        while (true) {
+            long v = page.cells.get(i);
+            int avail = Math.addExact(available(v), availableDelta), res = Math.addExact(reserved(v), reservedDelta);
+            if (avail < 0 || res < 0) {
+                shortages.increment();
+                throw new InsufficientStockException("Not enough " + (res < 0 ? "reserved" : "available") + " stock to move for " + catalog.get(ordinal).getCode());
+            }
+            if (page.cells.compareAndSet(i, v, pack(avail, res))) {
+                if (availableDelta != 0) changed(ordinal);
+                return;
+            }
+            casRetries.increment();
+        }
+    }
+    // an unknown code has no stock; an ordinal outside the catalog is refused
+    public int getAvailable(String productCode) { return available(cell(catalog.ordinal(productCode))); }
+    public int getReserved(String productCode) { return reserved(cell(catalog.ordinal(productCode))); }
+    public int getAvailable(int ordinal) { return available(cell(checkOrdinal(ordinal))); }
+    public int getReserved(int ordinal) { return reserved(cell(checkOrdinal(ordinal))); }
+    // available and reserved together, from one read
+    public long getOnHand(int ordinal) {
+        long v = cell(checkOrdinal(ordinal));
+        return (long) available(v) + reserved(v);
+    }
+    // failed compare-and-sets on stock cells, i.e. updates that lost a race and went again
+    public long getCasRetries() { return casRetries.sum(); }
+    // reservations and issues refused for want of stock
+    public long getShortages() { return shortages.sum(); }
+    // A consistent copy of this site's stock; see StockView. For a cut across
+    // every site of a network use StockNetwork.view().
+    public StockView view() { return epochs.view(new Warehouse[] { this }); }
+    // Rows by product code, from a view: pairs that were all true at one moment.
+    public Map<String, long[]> snapshot() {
+        Map<String, long[]> rows = new TreeMap<>();
+        view().forEachStock(0, (ord, available, reserved) -> rows.put(catalog.get(ord).getCode(), new long[] { available, reserved }));
+        return rows;
+    }
+    public interface StockRow {
+        void accept(int ordinal, int available, int reserved);
+    }
+    // Every product that has had a movement, in ordinal order, read live: each
+    // row is an exact pair, but rows read at different times may straddle a
+    // batch. view() gives rows that agree.
+    public void forEachStock(StockRow row) {
+        Page[] ps = pages;
+        for (int p = 0; p < ps.length; p++) {
+            for (int i = 0; i < PAGE; i++) {
+                if (!ps[p].touched(i)) continue;
+                long v = ps[p].cells.get(i);
+                row.accept((p << PAGE_BITS) | i, available(v), reserved(v));
+            }
+        }
+    }
+    public String stockSummary() {
+        StringWriter out = new StringWriter();
+        try {
+            stockSummary(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toString();
+    }
+    // streamed a row at a time, so a large catalog is never one String
+    public void stockSummary(Writer out) throws IOException { view().summary(0, out); }
+    private void changed(int ordinal) {
+        StockListener l = listener;
+        if (l != null) l.availableChanged(ordinal);
+    }
+    private int ordinalOf(Product p) {
+        int ord = p.getOrdinal();
+        if (ord >= 0 && catalog.get(ord) == p) return ord;
+        return catalog.intern(p.getCode(), p.getName()).getOrdinal();
+    }
+    private int checkOrdinal(int ordinal) {
+        if (ordinal < 0 || ordinal >= catalog.size()) throw new IllegalArgumentException("Unknown product ordinal: " + ordinal);
+        return ordinal;
+    }
+    private long cell(int ordinal) {
+        if (ordinal < 0) return 0;
+        Page[] ps = pages;
+        int p = ordinal >>> PAGE_BITS;
+        return p < ps.length ? ps[p].cells.get(ordinal & (PAGE - 1)) : 0;
+    }
+    // the page to write an ordinal in, preserved first for the view being taken, if any
+    private Page writable(int ordinal, long cut) {
+        Page page = page(ordinal);
+        if (cut != 0) page.freeze(cut);
+        return page;
+    }
+    Frozen[] capture(long cut) {
+        Page[] ps = pages;
+        Frozen[] copy = new Frozen[ps.length];
+        for (int p = 0; p < ps.length; p++) copy[p] = ps[p].freeze(cut);
+        return copy;
+    }
+    // drops the copies writers kept for a view that has been taken
+    void thaw(long cut) {
+        for (Page page : pages) {
+            Frozen f = page.frozen.get();
+            if (f != null && f.epoch == cut) page.frozen.compareAndSet(f, null);
+        }
+    }
+    private Page page(int ordinal) {
+        Page[] ps = pages;
+        int p = ordinal >>> PAGE_BITS;
+        return p < ps.length ? ps[p] : grow(p);
+    }
+    private synchronized Page grow(int p) {
+        Page[] ps = pages;
+        if (p < ps.length) return ps[p];
+        Page[] grown = Arrays.copyOf(ps, p + 1);
+        for (int i = ps.length; i <= p; i++) grown[i] = new Page();
+        pages = grown;
+        return grown[p];
+    }
+    private static long pack(int available, int reserved) {
+        return ((long) available << 32) | (reserved & 0xFFFFFFFFL);
+    }
+    static int available(long v) { return (int) (v >>> 32); }
+    static int reserved(long v) { return (int) v; }
+    private static final class Page {
+        final AtomicLongArray cells = new AtomicLongArray(PAGE);
+        // products that have ever had a stock movement, for the summary
+        final AtomicLongArray touched = new AtomicLongArray(PAGE / 64);
+        void touch(int i) {
+            long bit = 1L << i;
+            if ((touched.get(i >>> 6) & bit) == 0) touched.getAndAccumulate(i >>> 6, bit, (a, b) -> a | b);
+        }
+        boolean touched(int i) { return (touched.get(i >>> 6) & (1L << i)) != 0; }
+        // the page as it was when the view 'cut' was taken; the first copy installed wins
+        final AtomicReference<Frozen> frozen = new AtomicReference<>();
+        Frozen freeze(long cut) {
+            while (true) {
+                Frozen f = frozen.get();
+                if (f != null && f.epoch == cut) return f;
+                Frozen copy = new Frozen(cut, this);
+                if (frozen.compareAndSet(f, copy)) return copy;
+            }
+        }
+    }
+    // An immutable copy of a page, for a view.
+    static final class Frozen {
+        final long epoch;
+        private final long[] cells = new long[PAGE], touched = new long[PAGE / 64];
+        private Frozen(long epoch, Page page) {
+            this.epoch = epoch;
+            for (int i = 0; i < touched.length; i++) touched[i] = page.touched.get(i);
+            for (int i = 0; i < PAGE; i++) cells[i] = page.cells.get(i);
+        }
+        long cell(int ordinal) { return cells[ordinal & (PAGE - 1)]; }
+        int count() {
+            int n = 0;
+            for (long w : touched) n += Long.bitCount(w);
+            return n;
+        }
+        void forEach(int page, StockRow row) {
+            for (int w = 0; w < touched.length; w++) {
+                for (long bits = touched[w]; bits != 0; bits &= bits - 1) {
+                    int i = (w << 6) | Long.numberOfTrailingZeros(bits);
+                    row.accept((page << PAGE_BITS) | i, available(cells[i]), reserved(cells[i]));
+                }
+            }
+        }
     }
 }
@@ -0,0 +1,37 @@
+package com.kce.bank.model;
+import java.time.LocalDate;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+// A resource that manufacturing load is booked against, in minutes per day. Days
+// can be given their own capacity (0 for a shutdown); the rest get the default.
+public class WorkCenter {
+    private final String code;
+    private final String name;
+    private volatile int minutesPerDay;
+    private final Map<Long, Integer> days = new ConcurrentHashMap<>();
+    public WorkCenter(String code, String name, int minutesPerDay) {
+        if (minutesPerDay < 0) throw new IllegalArgumentException("minutesPerDay >= 0");
+        this.code = code;
+        this.name = name;
+        this.minutesPerDay = minutesPerDay;
+    }
+    public String getCode() { return code; }
+    public String getName() { return name; }
+    public int getMinutesPerDay() { return minutesPerDay; }
+    public void setMinutesPerDay(int minutes) {
+        if (minutes < 0) throw new IllegalArgumentException("minutesPerDay >= 0");
+        this.minutesPerDay = minutes;
+    }
+    public int getCapacity(LocalDate day) { return getCapacity(day.toEpochDay()); }
+    public int getCapacity(long epochDay) { return days.getOrDefault(epochDay, minutesPerDay); }
+    public void setCapacity(LocalDate day, int minutes) {
+        if (minutes < 0) throw new IllegalArgumentException("capacity >= 0");
+        days.put(day.toEpochDay(), minutes);
+    }
+    // epoch day -> minutes, for the days that differ from the default
+    public Map<Long, Integer> getCapacityOverrides() { return new TreeMap<>(days); }
+    public String toString() {
+        return name + " [" + code + "] " + minutesPerDay + " min/day";
+    }
+}
@@ -1,41 +1,250 @@
 package com.kce.bank.model;
 import com.kce.bank.util.IdGenerator;
-import java.util.ArrayList;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
 public class WorkOrder {
-    public enum Status { CREATED, MATERIAL_RESERVED, MATERIAL_ISSUED, IN_PRODUCTION, COMPLETED }
-    private final String id;
+    public enum Status {
+        CREATED, MATERIAL_RESERVED, MATERIAL_ISSUED, IN_PRODUCTION, COMPLETED;
+        // one stage forward; reporting production may also skip IN_PRODUCTION, and a
+        // backflushed order, whose materials are issued as lots are reported, MATERIAL_ISSUED
+        public boolean canMoveTo(Status next) {
+            return next.ordinal() == ordinal() + 1 || (this == MATERIAL_ISSUED && next == COMPLETED)
+                    || (this == MATERIAL_RESERVED && next == IN_PRODUCTION);
+        }
+    }
+    private final long id;
     private final Product product;
     private final int quantity;
-    private Status status;
-    private final List<MaterialIssue> materialIssues = new ArrayList<>();
-    private ProductionReport productionReport; 
+    private final LocalDateTime createdAt;
+    private final AtomicReference<Status> status = new AtomicReference<>(Status.CREATED);
+    private volatile Warehouse site;
+    private final List<StockAllocation> allocations = new CopyOnWriteArrayList<>();
+    // drawn so far on each allocation's site of its component: claimed by an issue
+    // (or the release closing the order) before the stock moves, so two issues
+    // cannot both take what is left there; keyed by site index << 32 | ordinal
+    private final Map<Long, AtomicInteger> issuedFromAllocated = new ConcurrentHashMap<>();
+    // appended to once per lot as well as per issue, so not copy-on-write; readers get a copy
+    private final Queue<MaterialIssue> materialIssues = new ConcurrentLinkedQueue<>();
+    // Leaf components reserved at creation, one line each, with how much of each
+    // has been issued and how much handed back when the order was closed short.
+    // An issue claims its quantity here before stock moves, so an order is never
+    // issued more than it requires. Cells pack issued (high) and released (low).
+    private volatile Product[] components = new Product[0];
+    private volatile int[] required = new int[0];
+    private volatile AtomicLongArray settled = new AtomicLongArray(0);
+    private final Queue<ProductionReport> productionReports = new ConcurrentLinkedQueue<>();
+    // written only by the service's production batcher, or by recovery
+    private volatile int produced;
+    // when the finished quantity is wanted; null if the order is not scheduled
+    private volatile LocalDate dueDate;
+    // System.nanoTime() at creation and when the current stage began, for metrics
+    private final long createdNanos = System.nanoTime();
+    private volatile long stageNanos = createdNanos;
     public WorkOrder(Product product, int quantity) {
-        this.id = IdGenerator.next("WO");
+        this(IdGenerator.WORK_ORDERS.next(), product, quantity);
+    }
+    public WorkOrder(long id, Product product, int quantity) {
+        this(id, LocalDateTime.now(), product, quantity);
+    }
+    public WorkOrder(long id, LocalDateTime createdAt, Product product, int quantity) {
+        this.id = id;
+        this.createdAt = createdAt;
         this.product = product;
-        this.quantity = quantity;
-        this.status = Status.CREATED;}
-    public String getId() { return id; }
+        this.quantity = quantity;}
+    public long getId() { return id; }
+    public long getCreatedNanos() { return createdNanos; }
+    // marks the start of a new stage and returns when the previous one began
+    public long enterStage(long nanos) {
+        long since = stageNanos;
+        stageNanos = nanos;
+        return since;
+    }
+    public String getDisplayId() { return IdGenerator.WORK_ORDERS.format(id); }
     public Product getProduct() { return product; }
     public int getQuantity() { return quantity; }
-    public synchronized Status getStatus() { return status; }
-    public synchronized void setStatus(Status status) { this.status = status; }
+    public LocalDateTime getCreatedAt() { return createdAt; }
+    public LocalDate getDueDate() { return dueDate; }
+    public void setDueDate(LocalDate dueDate) { this.dueDate = dueDate; }
+    public Status getStatus() { return status.get(); }
+    // unconditional, for rebuilding state; live changes go through transition()
+    public void setStatus(Status status) { this.status.set(status); }
+    // Moves from 'from' to 'to' only if the order is still in 'from'; false if
+    // another thread got there first.
+    public boolean transition(Status from, Status to) {
+        if (!from.canMoveTo(to)) throw new IllegalArgumentException("Illegal work order transition " + from + " -> " + to);
+        return status.compareAndSet(from, to);
+    }
+    // site the order is produced at; finished goods are received there
+    public Warehouse getSite() { return site; }
+    public void setSite(Warehouse site) { this.site = site; }
+    // where the reserved components are held; empty when all of it is at the order's own site
+    public void addAllocation(StockAllocation a) {
+        issuedFromAllocated.computeIfAbsent(allocationKey(a.getSite(), a.getComponent()), k -> {
+            int issued = 0;
+            for (MaterialIssue mi : materialIssues) if (mi.getComponent() == a.getComponent() && mi.getWarehouse() == a.getSite()) issued += mi.getQuantityIssued();
+            return new AtomicInteger(issued);
+        });
+        allocations.add(a);
+    }
+    public void addAllocations(Collection<StockAllocation> all) { for (StockAllocation a : all) addAllocation(a); }
+    public List<StockAllocation> getAllocations() { return Collections.unmodifiableList(allocations); }
+    // what the order still holds of a component at one site
+    public int heldAt(Warehouse site, Product component) {
+        AtomicInteger drawn = issuedFromAllocated.get(allocationKey(site, component));
+        return drawn == null ? 0 : allocatedAt(site, component) - drawn.get();
+    }
+    private int allocatedAt(Warehouse site, Product component) {
+        int allocated = 0;
+        for (StockAllocation a : allocations) if (a.getComponent() == component && a.getSite() == site) allocated += a.getQuantity();
+        return allocated;
+    }
+    // Claims qty of what the order holds of a component at a site; false,
+    // claiming nothing, if less than that is left there.
+    public boolean claimFrom(Warehouse site, Product component, int qty) {
+        AtomicInteger drawn = issuedFromAllocated.get(allocationKey(site, component));
+        if (drawn == null) return false;
+        int allocated = allocatedAt(site, component);
+        for (int v = drawn.get(); ; v = drawn.get()) {
+            if (allocated - v < qty) return false;
+            if (drawn.compareAndSet(v, v + qty)) return true;
+        }
+    }
+    // undoes a claim whose stock did not move; a no-op for an order without allocations
+    public void unclaimFrom(Warehouse site, Product component, int qty) {
+        AtomicInteger drawn = issuedFromAllocated.get(allocationKey(site, component));
+        if (drawn != null) drawn.addAndGet(-qty);
+    }
+    // recovery: an issue or release replayed draws on its site as its claim did
+    public void recordDrawnFrom(Warehouse site, Product component, int qty) {
+        AtomicInteger drawn = issuedFromAllocated.get(allocationKey(site, component));
+        if (drawn != null) drawn.addAndGet(qty);
+    }
+    // issues already claimed, on their lines and sites
     public void addMaterialIssue(MaterialIssue mi) { materialIssues.add(mi); }
-    public List<MaterialIssue> getMaterialIssues() { return Collections.unmodifiableList(materialIssues); }
-    public void setProductionReport(ProductionReport pr) { this.productionReport = pr; }
-    public ProductionReport getProductionReport() { return productionReport; }
+    public void addMaterialIssues(Collection<MaterialIssue> all) { for (MaterialIssue mi : all) addMaterialIssue(mi); }
+    private static long allocationKey(Warehouse site, Product component) { return (long) site.getSite() << 32 | component.getOrdinal(); }
+    public List<MaterialIssue> getMaterialIssues() { return List.copyOf(materialIssues); }
+    // at creation or recovery, before the order is shared; repeated components add up
+    public void require(Product component, int qty) {
+        int line = lineOf(component);
+        if (line >= 0) {
+            required[line] += qty;
+            return;
+        }
+        int n = components.length;
+        Product[] c = Arrays.copyOf(components, n + 1);
+        int[] r = Arrays.copyOf(required, n + 1);
+        c[n] = component;
+        r[n] = qty;
+        AtomicLongArray s = new AtomicLongArray(n + 1);
+        for (int i = 0; i < n; i++) s.set(i, settled.get(i));
+        components = c;
+        required = r;
+        settled = s;
+    }
+    // the whole requirement at once, distinct components, at creation
+    public void require(Product[] components, int[] quantities) {
+        this.components = components.clone();
+        this.required = quantities.clone();
+        this.settled = new AtomicLongArray(components.length);
+    }
+    public int materialLines() { return components.length; }
+    public int lineOf(Product component) {
+        Product[] c = components;
+        for (int i = 0; i < c.length; i++) if (c[i] == component) return i;
+        return -1;
+    }
+    public Product materialAt(int line) { return components[line]; }
+    public int requiredAt(int line) { return required[line]; }
+    public int issuedAt(int line) { return (int) (settled.get(line) >>> 32); }
+    public int releasedAt(int line) { return (int) settled.get(line); }
+    // neither issued nor released yet
+    public int outstandingAt(int line) {
+        long v = settled.get(line);
+        return required[line] - (int) (v >>> 32) - (int) v;
+    }
+    // false, claiming nothing, if the line does not have qty outstanding
+    public boolean claimIssue(int line, int qty) {
+        while (true) {
+            long v = settled.get(line);
+            if (required[line] - (int) (v >>> 32) - (int) v < qty) return false;
+            if (settled.compareAndSet(line, v, v + ((long) qty << 32))) return true;
+        }
+    }
+    // claims whatever is outstanding on the line, returning it
+    public int claimOutstanding(int line) {
+        while (true) {
+            long v = settled.get(line);
+            int left = required[line] - (int) (v >>> 32) - (int) v;
+            if (left <= 0 || settled.compareAndSet(line, v, v + ((long) left << 32))) return Math.max(left, 0);
+        }
+    }
+    // gives back a claim whose stock movement failed
+    public void unclaimIssue(int line, int qty) { settled.addAndGet(line, -((long) qty << 32)); }
+    // the order is closing short: the outstanding quantity is handed back, never issued
+    public int releaseOutstanding(int line) {
+        while (true) {
+            long v = settled.get(line);
+            int left = required[line] - (int) (v >>> 32) - (int) v;
+            if (left <= 0 || settled.compareAndSet(line, v, v + left)) return Math.max(left, 0);
+        }
+    }
+    // unchecked, for rebuilding state
+    public void recordIssued(int line, int qty) { settled.addAndGet(line, (long) qty << 32); }
+    public void recordReleased(int line, int qty) { settled.addAndGet(line, qty); }
+    // a completed order restored from its summary, without its lots
+    public void recordProduced(int qty) { produced += qty; }
+    public void addProductionReport(ProductionReport pr) {
+        productionReports.add(pr);
+        produced += pr.getProducedQuantity();
+    }
+    public List<ProductionReport> getProductionReports() { return List.copyOf(productionReports); }
+    public int getProducedQuantity() { return produced; }
+    public int getRemainingQuantity() { return quantity - produced; }
     public String simple() {
-        return id + " [" + product.getCode() + " x" + quantity + "]";
+        return getDisplayId() + " [" + product.getCode() + " x" + quantity + "]";
+    }
+    // one line, without the issue history
+    public String summaryLine() {
+        return String.format("%-10s %-10s %6d  %-17s %s", getDisplayId(), product.getCode(), quantity, getStatus(), createdAt.withNano(0));
     }
     public String toString() {
         StringBuilder sb = new StringBuilder();
-        sb.append(simple()).append(" Status=").append(status).append("\n");
+        sb.append(simple()).append(" Status=").append(getStatus());
+        if (dueDate != null) sb.append(" Due=").append(dueDate);
+        sb.append("\n");
+        if (!allocations.isEmpty()) {
+            sb.append("  Reserved:\n");
+            for (StockAllocation a : allocations) sb.append("    ").append(a).append("\n");
+        }
+        if (materialLines() > 0) {
+            sb.append("  Materials (issued/required):\n");
+            for (int i = 0; i < materialLines(); i++) {
+                sb.append(String.format("    %-10s %6d/%-6d", materialAt(i).getCode(), issuedAt(i), requiredAt(i)));
+                if (releasedAt(i) > 0) sb.append(" released ").append(releasedAt(i));
+                sb.append("\n");
+            }
+        }
         if (!materialIssues.isEmpty()) {
             sb.append("  Material Issues:\n");
             for (MaterialIssue mi : materialIssues) sb.append("    ").append(mi).append("\n");
         }
-        if (productionReport != null) sb.append("  Production: ").append(productionReport).append("\n");
+        if (!productionReports.isEmpty()) {
+            sb.append("  Production (").append(produced).append(" of ").append(quantity).append("):\n");
+            for (ProductionReport pr : productionReports) sb.append("    ").append(pr).append("\n");
+        }
         return sb.toString();
     }
 }
@@ -0,0 +1,30 @@
+package com.kce.bank.model;
+import java.time.LocalDateTime;
+import java.util.EnumSet;
+import java.util.Set;
+// Criteria for MRPService.findWorkOrders; unset criteria match everything.
+// Results come in creation order, so after(id) continues from the last order of
+// the previous page.
+public class WorkOrderQuery {
+    private String productCode;
+    private Set<WorkOrder.Status> statuses;
+    private LocalDateTime createdFrom;
+    private LocalDateTime createdTo;
+    private long afterId = -1;
+    public WorkOrderQuery product(String productCode) { this.productCode = productCode; return this; }
+    public WorkOrderQuery status(WorkOrder.Status first, WorkOrder.Status... rest) { this.statuses = EnumSet.of(first, rest); return this; }
+    public WorkOrderQuery open() { this.statuses = EnumSet.complementOf(EnumSet.of(WorkOrder.Status.COMPLETED)); return this; }
+    // created in [from, to); either end may be null
+    public WorkOrderQuery createdBetween(LocalDateTime from, LocalDateTime to) {
+        this.createdFrom = from;
+        this.createdTo = to;
+        return this;
+    }
+    public WorkOrderQuery after(long workOrderId) { this.afterId = workOrderId; return this; }
+    public String getProductCode() { return productCode; }
+    public Set<WorkOrder.Status> getStatuses() { return statuses; }
+    public LocalDateTime getCreatedFrom() { return createdFrom; }
+    public LocalDateTime getCreatedTo() { return createdTo; }
+    // -1 when not paging
+    public long getAfterId() { return afterId; }
+}
@@ -0,0 +1,250 @@
+package com.kce.bank.persistence;
+import com.kce.bank.model.*;
+import com.kce.bank.service.MRPService;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+/*
+ * Writes products, BOMs and stock in the formats BulkLoader reads, streaming
+ * straight from the catalog, the BOM map and a StockView through one fixed
+ * buffer; only the view, one long per product and site, grows with the data.
+ * Stock is exported as each site's available quantity: reserved stock belongs
+ * to open work orders, which are not part of a bulk load. The stock of all
+ * sites is one consistent cut, but products and BOMs changed meanwhile may not
+ * match it; a snapshot is consistent throughout.
+ */
+public class BulkExporter {
+    private static final int BLOCK = 65536;
+    private final MRPService service;
+    private final ProductCatalog catalog;
+    public BulkExporter(MRPService service) {
+        this.service = service;
+        this.catalog = service.getCatalog();
+    }
+    // products.csv, boms.csv and stock.csv in dir
+    public BulkStats exportCsv(Path dir) throws IOException {
+        try {
+            return csv(dir);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+    public BulkStats exportBinary(Path file) throws IOException {
+        try {
+            return binary(file);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+    private BulkStats csv(Path dir) throws IOException {
+        long start = System.nanoTime();
+        Files.createDirectories(dir);
+        long products = 0, bomLines = 0, stockLines = 0, bytes = 0;
+        try (Out out = new Out(dir.resolve("products.csv"))) {
+            out.text(BulkLoader.HEADERS[BulkLoader.PRODUCTS]).newLine();
+            for (int i = 0; i < catalog.size(); i++) {
+                Product p = catalog.get(i);
+                out.field(p.getCode()).comma().field(p.getName()).newLine();
+                products++;
+            }
+            bytes += out.written();
+        }
+        try (Out out = new Out(dir.resolve("boms.csv"))) {
+            out.text(BulkLoader.HEADERS[BulkLoader.BOMS]).newLine();
+            for (int i = 0; i < catalog.size(); i++) {
+                BOM bom = service.getBOM(catalog.get(i).getCode());
+                if (bom == null) continue;
+                List<BOMItem> items = bom.getItems();
+                if (items.isEmpty()) out.field(bom.getFinishedProduct().getCode()).text(",,").newLine();
+                for (BOMItem it : items) {
+                    out.field(bom.getFinishedProduct().getCode()).comma().field(it.getComponent().getCode())
+                            .comma().number(it.getQtyPerProduct()).newLine();
+                    bomLines++;
+                }
+            }
+            bytes += out.written();
+        }
+        try (Out out = new Out(dir.resolve("stock.csv"))) {
+            out.text(BulkLoader.HEADERS[BulkLoader.STOCK]).newLine();
+            StockView view = service.getNetwork().view();
+            for (int s = 0; s < view.size(); s++) {
+                Warehouse site = view.site(s);
+                long[] rows = { 0 };
+                view.forEachStock(s, (ord, available, reserved) -> {
+                    if (available <= 0) return;
+                    out.field(site.getName()).comma().field(catalog.get(ord).getCode()).comma().number(available).newLine();
+                    rows[0]++;
+                });
+                stockLines += rows[0];
+            }
+            bytes += out.written();
+        }
+        return new BulkStats(products, bomLines, stockLines, bytes, (System.nanoTime() - start) / 1_000_000);
+    }
+    private BulkStats binary(Path file) throws IOException {
+        long start = System.nanoTime();
+        long products = 0, bomLines = 0, stockLines = 0;
+        try (Out out = new Out(file)) {
+            out.buf.putInt(BulkLoader.MAGIC).putInt(BulkLoader.VERSION);
+            Block block = new Block(out);
+            for (int i = 0; i < catalog.size(); i++) {
+                Product p = catalog.get(i);
+                block.start(BulkLoader.PRODUCTS, 1);
+                block.string(p.getCode());
+                block.string(p.getName());
+                products++;
+            }
+            for (int i = 0; i < catalog.size(); i++) {
+                BOM bom = service.getBOM(catalog.get(i).getCode());
+                if (bom == null) continue;
+                List<BOMItem> items = bom.getItems();
+                // whole BOMs per block; an empty BOM counts as one record
+                block.start(BulkLoader.BOMS, Math.max(1, items.size()));
+                block.string(bom.getFinishedProduct().getCode());
+                block.varint(items.size());
+                for (BOMItem it : items) {
+                    block.string(it.getComponent().getCode());
+                    block.varint(it.getQtyPerProduct());
+                }
+                bomLines += items.size();
+            }
+            StockView view = service.getNetwork().view();
+            for (int s = 0; s < view.size(); s++) {
+                Warehouse site = view.site(s);
+                block.flush();
+                long[] rows = { 0 };
+                view.forEachStock(s, (ord, available, reserved) -> {
+                    if (available <= 0) return;
+                    if (!block.start(BulkLoader.STOCK, 1)) block.string(site.getName());
+                    block.string(catalog.get(ord).getCode());
+                    block.varint(available);
+                    rows[0]++;
+                });
+                stockLines += rows[0];
+            }
+            block.flush();
+            out.ensure(1);
+            out.buf.put(BulkLoader.END);
+            return new BulkStats(products, bomLines, stockLines, out.written(), (System.nanoTime() - start) / 1_000_000);
+        }
+    }
+
+    // Collects one block's payload; start() begins a new block when the kind
+    // changes or the current one is full, and says whether it continued the
+    // current block.
+    private static final class Block {
+        private final Out out;
+        private ByteBuffer payload = ByteBuffer.allocate(1 << 20);
+        private byte kind;
+        private int count;
+        Block(Out out) { this.out = out; }
+        boolean start(byte kind, int records) {
+            if (count > 0 && kind == this.kind && count + records <= BLOCK) {
+                count += records;
+                return true;
+            }
+            flush();
+            this.kind = kind;
+            count = records;
+            return false;
+        }
+        void string(String s) {
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            varint(b.length);
+            room(b.length);
+            payload.put(b);
+        }
+        void varint(int v) {
+            room(5);
+            while ((v & ~0x7F) != 0) {
+                payload.put((byte) ((v & 0x7F) | 0x80));
+                v >>>= 7;
+            }
+            payload.put((byte) v);
+        }
+        private void room(int n) {
+            if (payload.remaining() >= n) return;
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(payload.capacity() * 2, payload.position() + n));
+            payload.flip();
+            payload = grown.put(payload);
+        }
+        void flush() {
+            if (count == 0) return;
+            out.ensure(9);
+            out.buf.put(kind).putInt(count).putInt(payload.position());
+            payload.flip();
+            out.bytes(payload);
+            payload.clear();
+            count = 0;
+        }
+    }
+    // Buffered channel writer. Stock rows are written from a callback, so a failed
+    // write surfaces as UncheckedIOException and is unwrapped by the export methods.
+    private static final class Out implements Closeable {
+        final ByteBuffer buf = ByteBuffer.allocate(1 << 20);
+        private final FileChannel channel;
+        private long written;
+        Out(Path file) throws IOException {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        }
+        long written() { return written + buf.position(); }
+        Out text(String s) {
+            bytes(ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8)));
+            return this;
+        }
+        // quoted only when it has to be
+        Out field(String s) {
+            if (s.indexOf('\n') >= 0 || s.indexOf('\r') >= 0) throw new IllegalArgumentException("Line break in field: " + s);
+            if (s.indexOf(',') < 0 && s.indexOf('"') < 0 && s.trim().length() == s.length()) return text(s);
+            return text('"' + s.replace("\"", "\"\"") + '"');
+        }
+        Out number(int v) { return text(Integer.toString(v)); }
+        Out comma() {
+            ensure(1);
+            buf.put((byte) ',');
+            return this;
+        }
+        Out newLine() {
+            ensure(1);
+            buf.put((byte) '\n');
+            return this;
+        }
+        void bytes(ByteBuffer src) {
+            while (src.hasRemaining()) {
+                ensure(1);
+                int n = Math.min(src.remaining(), buf.remaining());
+                int limit = src.limit();
+                src.limit(src.position() + n);
+                buf.put(src);
+                src.limit(limit);
+            }
+        }
+        void ensure(int n) {
+            if (buf.remaining() >= n) return;
+            try {
+                drain();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        private void drain() throws IOException {
+            buf.flip();
+            while (buf.hasRemaining()) written += channel.write(buf);
+            buf.clear();
+        }
+        public void close() throws IOException {
+            try {
+                drain();
+            } finally {
+                channel.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,433 @@
+package com.kce.bank.persistence;
+import com.kce.bank.exception.InvalidOperationException;
+import com.kce.bank.model.*;
+import com.kce.bank.service.MRPService;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+/*
+ * Streams product master, BOM structures and opening stock into an MRPService.
+ *
+ * CSV, one file per kind (a header line is optional, blank lines are skipped):
+ *
+ *   products.csv  code,name
+ *   boms.csv      parent,component,quantity   a parent's lines must be contiguous;
+ *                                             "parent,," defines an empty BOM
+ *   stock.csv     site,code,quantity          an empty site means the primary one
+ *
+ * Fields may be quoted ("a,b" and "say ""hi""") but may not contain line breaks.
+ *
+ * Binary, as written by BulkExporter: a "MRPB" header, then blocks of
+ * [kind byte, record count int, payload length int, payload] ending with kind 0.
+ * Strings are a varint byte length plus UTF-8 and quantities are varints; a BOM
+ * block holds whole BOMs and a stock block a single site.
+ *
+ * Either way the file is read sequentially in large chunks (CSV chunks are cut
+ * after their last line break), chunks are parsed in parallel with at most a
+ * small window of them in memory, and the parsed batches are applied in file
+ * order through the service's bulk methods: one catalog lock, one BOM lock and
+ * one journal commit per batch. A failing batch stops the load; the batches
+ * before it stay applied.
+ */
+public class BulkLoader {
+    static final int MAGIC = 0x4D525042; // "MRPB"
+    static final int VERSION = 1;
+    static final byte END = 0, PRODUCTS = 1, BOMS = 2, STOCK = 3;
+    static final String[] HEADERS = { null, "code,name", "parent,component,quantity", "site,code,quantity" };
+    private static final String[] FILES = { null, "products.csv", "boms.csv", "stock.csv" };
+    private static final int CHUNK = 4 << 20;
+    private final MRPService service;
+    private final ProductCatalog catalog;
+    private final ForkJoinPool pool;
+    private final int window;
+    public BulkLoader(MRPService service) {
+        this(service, ForkJoinPool.commonPool());
+    }
+    public BulkLoader(MRPService service, ForkJoinPool pool) {
+        this.service = service;
+        this.catalog = service.getCatalog();
+        this.pool = pool;
+        this.window = Math.max(2, pool.getParallelism() * 2);
+    }
+    // products.csv, boms.csv and stock.csv from dir, each if present
+    public BulkStats loadCsv(Path dir) throws IOException, InvalidOperationException {
+        Path[] files = new Path[FILES.length];
+        for (int kind = PRODUCTS; kind <= STOCK; kind++) {
+            Path f = dir.resolve(FILES[kind]);
+            if (Files.exists(f)) files[kind] = f;
+        }
+        return loadCsv(files[PRODUCTS], files[BOMS], files[STOCK]);
+    }
+    // any of the files may be null
+    public BulkStats loadCsv(Path products, Path boms, Path stock) throws IOException, InvalidOperationException {
+        long start = System.nanoTime();
+        Applier applier = new Applier();
+        long bytes = 0;
+        Path[] files = { null, products, boms, stock };
+        for (byte kind = PRODUCTS; kind <= STOCK; kind++) {
+            if (files[kind] == null) continue;
+            applier.file = files[kind].getFileName().toString();
+            bytes += csv(files[kind], kind, applier);
+            applier.finish();
+        }
+        return applier.stats(bytes, start);
+    }
+    public BulkStats loadBinary(Path file) throws IOException, InvalidOperationException {
+        long start = System.nanoTime();
+        Applier applier = new Applier();
+        applier.file = file.getFileName().toString();
+        applier.unit = "record";
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer head = ByteBuffer.allocate(9);
+            read(ch, head, 0, 8);
+            if (head.getInt(0) != MAGIC || head.getInt(4) != VERSION) throw new IOException(applier.file + " is not a bulk file");
+            long pos = 8, record = 0;
+            Deque<ForkJoinTask<Rows>> pending = new ArrayDeque<>();
+            boolean more = true;
+            while (more || !pending.isEmpty()) {
+                while (more && pending.size() < window) {
+                    read(ch, head, pos, 1);
+                    byte kind = head.get(0);
+                    if (kind == END) {
+                        more = false;
+                        break;
+                    }
+                    read(ch, head, pos + 1, 8);
+                    int count = head.getInt(0), length = head.getInt(4);
+                    if (kind > STOCK || count < 0 || length < 0) throw new IOException(applier.file + ": bad block at byte " + pos);
+                    ByteBuffer payload = ByteBuffer.allocate(length);
+                    read(ch, payload, pos + 9, length);
+                    long first = record;
+                    pending.add(pool.submit((Callable<Rows>) () -> decode(kind, payload.array(), count, first, catalog)));
+                    pos += 9 + length;
+                    record += count;
+                }
+                if (!pending.isEmpty()) applier.apply(pending.poll().join());
+            }
+            applier.finish();
+            return applier.stats(pos + 1, start);
+        }
+    }
+
+    // ---- CSV
+
+    private long csv(Path file, byte kind, Applier applier) throws IOException, InvalidOperationException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = ch.size(), pos = 0, line = 0;
+            Deque<ForkJoinTask<Rows>> pending = new ArrayDeque<>();
+            while (pos < size || !pending.isEmpty()) {
+                while (pos < size && pending.size() < window) {
+                    byte[] chunk = chunk(ch, pos, size);
+                    boolean first = pos == 0;
+                    pending.add(pool.submit((Callable<Rows>) () -> parse(kind, chunk, first, catalog)));
+                    pos += chunk.length;
+                }
+                Rows rows = pending.poll().join();
+                rows.firstLine = line + 1;
+                applier.apply(rows);
+                line += rows.lines;
+            }
+            return size;
+        }
+    }
+    // from pos up to and including the last line break, growing until a whole line fits
+    private static byte[] chunk(FileChannel ch, long pos, long size) throws IOException {
+        for (int want = CHUNK; ; want *= 2) {
+            int len = (int) Math.min(want, size - pos);
+            ByteBuffer buf = ByteBuffer.allocate(len);
+            read(ch, buf, pos, len);
+            if (pos + len == size) return buf.array();
+            byte[] b = buf.array();
+            for (int i = len - 1; i >= 0; i--) if (b[i] == '\n') return i + 1 == len ? b : Arrays.copyOf(b, i + 1);
+        }
+    }
+    private static void read(FileChannel ch, ByteBuffer buf, long pos, int len) throws IOException {
+        buf.clear().limit(len);
+        while (buf.hasRemaining()) {
+            if (ch.read(buf, pos + buf.position()) < 0) throw new IOException("Unexpected end of file");
+        }
+    }
+    private static Rows parse(byte kind, byte[] b, boolean firstChunk, ProductCatalog catalog) {
+        Rows rows = new Rows(kind, Math.max(16, b.length / 24), catalog);
+        int[] from = new int[4], to = new int[4];
+        boolean[] quoted = new boolean[4];
+        int pos = 0, line = 0;
+        while (pos < b.length) {
+            int eol = pos;
+            while (eol < b.length && b[eol] != '\n') eol++;
+            int end = eol > pos && b[eol - 1] == '\r' ? eol - 1 : eol;
+            int start = pos;
+            pos = eol + 1;
+            line++;
+            if (end == start) continue;
+            if (firstChunk && line == 1 && HEADERS[kind].equalsIgnoreCase(new String(b, start, end - start, StandardCharsets.UTF_8).replace(" ", ""))) continue;
+            int n = split(b, start, end, from, to, quoted);
+            int expected = kind == PRODUCTS ? 2 : 3;
+            if (n != expected) return rows.fail(line, n < 0 ? "unbalanced quotes" : "expected " + expected + " fields, found " + n);
+            String a = text(b, from[0], to[0], quoted[0]);
+            String c = text(b, from[1], to[1], quoted[1]);
+            if (kind == PRODUCTS) {
+                if (a.isEmpty()) return rows.fail(line, "empty product code");
+                rows.add(line, a, c, 0);
+                continue;
+            }
+            int qty;
+            if (kind == BOMS && c.isEmpty() && from[2] == to[2]) qty = 0;
+            else {
+                qty = number(b, from[2], to[2]);
+                if (qty <= 0) return rows.fail(line, "quantity must be a positive integer");
+            }
+            if (kind == BOMS ? a.isEmpty() : c.isEmpty()) return rows.fail(line, "empty product code");
+            rows.add(line, a, c, qty);
+        }
+        rows.lines = line;
+        return rows;
+    }
+    // field boundaries of one line (quotes excluded); -1 if a quote is left open
+    private static int split(byte[] b, int start, int end, int[] from, int[] to, boolean[] quoted) {
+        int n = 0, i = start;
+        while (true) {
+            if (n == from.length) return n + 1;
+            if (i < end && b[i] == '"') {
+                int j = i + 1;
+                while (true) {
+                    if (j >= end) return -1;
+                    if (b[j] == '"') {
+                        if (j + 1 < end && b[j + 1] == '"') j += 2;
+                        else break;
+                    } else j++;
+                }
+                from[n] = i + 1;
+                to[n] = j;
+                quoted[n++] = true;
+                i = j + 1;
+                if (i < end && b[i] != ',') return -1;
+            } else {
+                int j = i;
+                while (j < end && b[j] != ',') j++;
+                from[n] = i;
+                to[n] = j;
+                quoted[n++] = false;
+                i = j;
+            }
+            if (i >= end) return n;
+            i++;
+        }
+    }
+    private static String text(byte[] b, int from, int to, boolean quoted) {
+        String s = new String(b, from, to - from, StandardCharsets.UTF_8);
+        return quoted ? s.replace("\"\"", "\"") : s.trim();
+    }
+    // -1 unless the field is a positive decimal int
+    private static int number(byte[] b, int from, int to) {
+        while (from < to && b[from] == ' ') from++;
+        while (to > from && b[to - 1] == ' ') to--;
+        if (from == to || to - from > 10) return -1;
+        long v = 0;
+        for (int i = from; i < to; i++) {
+            if (b[i] < '0' || b[i] > '9') return -1;
+            v = v * 10 + (b[i] - '0');
+        }
+        return v > Integer.MAX_VALUE ? -1 : (int) v;
+    }
+
+    // ---- binary
+
+    private static Rows decode(byte kind, byte[] payload, int count, long firstRecord, ProductCatalog catalog) {
+        Rows rows = new Rows(kind, Math.max(16, count), catalog);
+        rows.firstLine = firstRecord + 1;
+        ByteBuffer in = ByteBuffer.wrap(payload);
+        try {
+            switch (kind) {
+                case PRODUCTS:
+                    for (int i = 0; i < count; i++) rows.add(i + 1, string(in), string(in), 0);
+                    break;
+                case BOMS:
+                    for (int i = 0; i < count; ) {
+                        String parent = string(in);
+                        int lines = varint(in);
+                        if (lines == 0) rows.add(++i, parent, "", 0);
+                        for (int k = 0; k < lines; k++) rows.add(++i, parent, string(in), varint(in));
+                    }
+                    break;
+                case STOCK: {
+                    String site = string(in);
+                    for (int i = 0; i < count; i++) rows.add(i + 1, site, string(in), varint(in));
+                    break;
+                }
+            }
+        } catch (RuntimeException e) {
+            return rows.fail(rows.count + 1, "corrupt block");
+        }
+        if (in.hasRemaining()) return rows.fail(rows.count, "corrupt block");
+        rows.lines = count;
+        return rows;
+    }
+    static String string(ByteBuffer in) {
+        int len = varint(in);
+        String s = new String(in.array(), in.position(), len, StandardCharsets.UTF_8);
+        in.position(in.position() + len);
+        return s;
+    }
+    static int varint(ByteBuffer in) {
+        int v = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = in.get();
+            v |= (b & 0x7F) << shift;
+            if (b >= 0) return v;
+        }
+        throw new IllegalStateException("varint too long");
+    }
+
+    // ---- applying, on the caller's thread and in file order
+
+    // One parsed chunk or block, column-wise: products (code, name),
+    // BOM lines (parent, component, quantity), stock (site, code, quantity).
+    // Component and stock codes are looked up while parsing, off the applying
+    // thread; ord is -1 where the product was not (yet) in the catalog.
+    private static final class Rows {
+        final byte kind;
+        final ProductCatalog catalog;
+        String[] a, b;
+        int[] qty, line, ord;
+        int count;
+        long firstLine, lines;
+        String error;
+        int errorLine;
+        Rows(byte kind, int capacity, ProductCatalog catalog) {
+            this.kind = kind;
+            this.catalog = catalog;
+            a = new String[capacity];
+            b = new String[capacity];
+            qty = new int[capacity];
+            line = new int[capacity];
+            ord = new int[capacity];
+        }
+        void add(int at, String first, String second, int quantity) {
+            if (count == a.length) {
+                int cap = count * 2;
+                a = Arrays.copyOf(a, cap);
+                b = Arrays.copyOf(b, cap);
+                qty = Arrays.copyOf(qty, cap);
+                line = Arrays.copyOf(line, cap);
+                ord = Arrays.copyOf(ord, cap);
+            }
+            a[count] = first;
+            b[count] = second;
+            qty[count] = quantity;
+            ord[count] = kind == PRODUCTS || second.isEmpty() ? -1 : catalog.ordinal(second);
+            line[count++] = at;
+        }
+        Rows fail(int at, String message) {
+            error = message;
+            errorLine = at;
+            return this;
+        }
+    }
+    private final class Applier {
+        String file, unit = "line";
+        long products, bomLines, stockLines;
+        // BOM lines are grouped by parent; a group may continue into the next chunk
+        private final BitSet defined = new BitSet();
+        private List<BOM> boms = new ArrayList<>();
+        private BOM open;
+        void apply(Rows rows) throws InvalidOperationException {
+            if (rows.error != null) throw failure(rows.firstLine + rows.errorLine - 1, rows.error);
+            switch (rows.kind) {
+                case PRODUCTS:
+                    try {
+                        service.addProducts(rows.a, rows.b, rows.count);
+                    } catch (InvalidOperationException e) {
+                        throw new InvalidOperationException(file + ": " + e.getMessage());
+                    }
+                    products += rows.count;
+                    break;
+                case BOMS:
+                    bomLines(rows);
+                    break;
+                case STOCK:
+                    stock(rows);
+                    break;
+            }
+        }
+        private void bomLines(Rows rows) throws InvalidOperationException {
+            for (int i = 0; i < rows.count; i++) {
+                if (open == null || !open.getFinishedProduct().getCode().equals(rows.a[i])) {
+                    close();
+                    Product parent = catalog.get(rows.a[i]);
+                    if (parent == null) throw failure(rows, i, "Product not found: " + rows.a[i]);
+                    if (defined.get(parent.getOrdinal())) throw failure(rows, i, "lines for " + rows.a[i] + " are not contiguous");
+                    defined.set(parent.getOrdinal());
+                    open = new BOM(parent);
+                }
+                if (rows.qty[i] == 0) continue;
+                Product comp = rows.ord[i] >= 0 ? catalog.get(rows.ord[i]) : catalog.get(rows.b[i]);
+                if (comp == null) throw failure(rows, i, "Component not found: " + rows.b[i]);
+                open.addItem(new BOMItem(comp, rows.qty[i]));
+                bomLines++;
+            }
+            flushBoms();
+        }
+        private void close() {
+            if (open != null) boms.add(open);
+            open = null;
+        }
+        private void flushBoms() throws InvalidOperationException {
+            if (boms.isEmpty()) return;
+            try {
+                service.defineBOMs(boms);
+            } catch (InvalidOperationException e) {
+                throw new InvalidOperationException(file + ": " + e.getMessage());
+            }
+            boms = new ArrayList<>();
+        }
+        private void stock(Rows rows) throws InvalidOperationException {
+            long[] lines = new long[rows.count];
+            for (int from = 0; from < rows.count; ) {
+                String site = rows.a[from];
+                int n = 0, i = from;
+                for (; i < rows.count && rows.a[i].equals(site); i++) {
+                    int ord = rows.ord[i] >= 0 ? rows.ord[i] : catalog.ordinal(rows.b[i]);
+                    if (ord < 0) throw failure(rows, i, "Product not found: " + rows.b[i]);
+                    lines[n++] = RequirementVector.pack(ord, rows.qty[i]);
+                }
+                RequirementVector received;
+                try {
+                    // repeated lines for a product are summed here
+                    received = RequirementVector.ofPacked(lines, n);
+                } catch (ArithmeticException e) {
+                    throw failure(rows, from, "stock lines for one product add up to more than a site can hold");
+                }
+                try {
+                    service.receiveStock(site.isEmpty() ? service.getNetwork().primary().getName() : site, received);
+                } catch (InvalidOperationException e) {
+                    throw failure(rows, from, e.getMessage());
+                }
+                stockLines += n;
+                from = i;
+            }
+        }
+        void finish() throws InvalidOperationException {
+            close();
+            flushBoms();
+            defined.clear();
+        }
+        private InvalidOperationException failure(Rows rows, int row, String message) {
+            return failure(rows.firstLine + rows.line[row] - 1, message);
+        }
+        private InvalidOperationException failure(long line, String message) {
+            return new InvalidOperationException(file + " " + unit + " " + line + ": " + message);
+        }
+        BulkStats stats(long bytes, long startNanos) {
+            return new BulkStats(products, bomLines, stockLines, bytes, (System.nanoTime() - startNanos) / 1_000_000);
+        }
+    }
+}
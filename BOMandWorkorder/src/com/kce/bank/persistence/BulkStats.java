@@ -0,0 +1,24 @@
+package com.kce.bank.persistence;
+public class BulkStats {
+    private final long products;
+    private final long bomLines;
+    private final long stockLines;
+    private final long bytes;
+    private final long millis;
+    public BulkStats(long products, long bomLines, long stockLines, long bytes, long millis) {
+        this.products = products;
+        this.bomLines = bomLines;
+        this.stockLines = stockLines;
+        this.bytes = bytes;
+        this.millis = millis;
+    }
+    public long getProducts() { return products; }
+    public long getBomLines() { return bomLines; }
+    public long getStockLines() { return stockLines; }
+    public long getBytes() { return bytes; }
+    public long getMillis() { return millis; }
+    public String toString() {
+        return String.format("%d products, %d BOM lines, %d stock lines (%.1f MB) in %d ms",
+                products, bomLines, stockLines, bytes / 1048576.0, millis);
+    }
+}
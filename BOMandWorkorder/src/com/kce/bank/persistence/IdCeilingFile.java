@@ -0,0 +1,61 @@
+package com.kce.bank.persistence;
+import com.kce.bank.util.IdGenerator;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+/*
+ * Saved id ceilings, one "PREFIX ceiling" line per IdGenerator. Each save writes
+ * a new file, forces it and renames it over the old one, so the file always
+ * holds a complete set. Saves happen once per lease of ids per generator, not
+ * per id.
+ */
+public class IdCeilingFile implements IdGenerator.CeilingStore {
+    private final Path file;
+    private final Map<String, Long> ceilings = new LinkedHashMap<>();
+    private IdCeilingFile(Path file) {
+        this.file = file;
+    }
+    // Moves every generator past its saved ceiling, then makes it save a new
+    // ceiling here before handing out ids beyond it.
+    public static IdCeilingFile open(Path file) throws IOException {
+        IdCeilingFile store = new IdCeilingFile(file);
+        if (Files.exists(file)) {
+            List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+            for (String line : lines) {
+                String[] parts = line.trim().split("\\s+");
+                if (parts.length != 2) continue;
+                try {
+                    store.ceilings.put(parts[0], Long.parseLong(parts[1]));
+                } catch (NumberFormatException e) {
+                    throw new IOException("Bad line in " + file + ": " + line);
+                }
+            }
+        }
+        for (IdGenerator ids : IdGenerator.all()) {
+            Long saved = store.ceilings.get(ids.getPrefix());
+            if (saved != null) ids.advanceTo(saved);
+        }
+        IdGenerator.useCeilingStore(store);
+        return store;
+    }
+    public synchronized void save(IdGenerator generator, long ceiling) throws IOException {
+        ceilings.merge(generator.getPrefix(), ceiling, Math::max);
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Long> e : ceilings.entrySet()) sb.append(e.getKey()).append(' ').append(e.getValue()).append('\n');
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buf = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+            while (buf.hasRemaining()) ch.write(buf);
+            ch.force(true);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,107 @@
+package com.kce.bank.persistence;
+import com.kce.bank.service.TransactionLog;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+/*
+ * Fixed-width 128 byte journal record. Every transaction type uses the same
+ * layout and leaves unused fields zero:
+ *
+ *   0  type        1  flags       2  site (unsigned short)
+ *   4  qty (int)   8  aux (int)   12 timestamp (long, ms)
+ *   20 own id (long)  28 work order id (long)
+ *   52 code  (1 length byte + 31 bytes UTF-8)
+ *   84 text  (1 length byte + 39 bytes UTF-8)
+ *   124 CRC32C of bytes 0..123
+ *
+ * A logical transaction is a group of consecutive records, the last of which
+ * carries END; a group that is not complete on disk is discarded on replay.
+ * Dates (due dates, capacity days) are ISO text, or epoch days where the text
+ * field is taken; an empty due date means none.
+ * A production report is one lot, with LAST on the one that completed the order,
+ * and is followed in its group by its backflushed ISSUE and RELEASE lines.
+ */
+final class JournalRecord {
+    static final int SIZE = 128;
+    static final byte PRODUCT = 1, NAME = 2, BOM = 3, BOM_LINE = 4, WORK_ORDER = 5, RESERVE = 6, ISSUE = 7, PRODUCTION = 8,
+            SITE = 9, RECEIPT = 10, STARTED = 11, WORK_CENTER = 12, CAPACITY = 13, PLANNING = 14, DUE = 15, RELEASE = 16;
+    static final byte END = 1, LAST = 2;
+    private static final int SITE_AT = 2, QTY = 4, AUX = 8, TIME = 12, ID = 20, CODE = 52, TEXT = 84, CRC = 124;
+    static final int CODE_BYTES = TransactionLog.CODE_BYTES, TEXT_BYTES = TransactionLog.NAME_BYTES;
+    final byte[] bytes = new byte[SIZE];
+    private final ByteBuffer buf = ByteBuffer.wrap(bytes);
+    private final CRC32C crc = new CRC32C();
+
+    JournalRecord clear(byte type) {
+        Arrays.fill(bytes, (byte) 0);
+        bytes[0] = type;
+        return this;
+    }
+    JournalRecord end() { bytes[1] |= END; return this; }
+    JournalRecord flag(byte f) { bytes[1] |= f; return this; }
+    JournalRecord site(int v) {
+        if (v < 0 || v > 0xFFFF) throw new IllegalArgumentException("Site index out of range for journal: " + v);
+        buf.putShort(SITE_AT, (short) v);
+        return this;
+    }
+    JournalRecord qty(int v) { buf.putInt(QTY, v); return this; }
+    JournalRecord aux(int v) { buf.putInt(AUX, v); return this; }
+    JournalRecord time(LocalDateTime t) {
+        buf.putLong(TIME, t.toInstant(ZoneOffset.UTC).toEpochMilli());
+        return this;
+    }
+    // id: the record's own transaction; workOrder: the order it belongs to (0 if none)
+    JournalRecord ids(long id, long workOrder) {
+        buf.putLong(ID, id);
+        buf.putLong(ID + 8, workOrder);
+        return this;
+    }
+    JournalRecord code(String s) { return str(CODE, CODE_BYTES, s.getBytes(StandardCharsets.UTF_8)); }
+    JournalRecord text(byte[] utf8, int from, int len) {
+        bytes[TEXT] = (byte) len;
+        System.arraycopy(utf8, from, bytes, TEXT + 1, len);
+        return this;
+    }
+    JournalRecord text(String s) { return str(TEXT, TEXT_BYTES, s.getBytes(StandardCharsets.UTF_8)); }
+    private JournalRecord str(int at, int max, byte[] utf8) {
+        if (utf8.length > max) throw new IllegalArgumentException("Value too long for journal field (" + max + " bytes): " + new String(utf8, StandardCharsets.UTF_8));
+        bytes[at] = (byte) utf8.length;
+        System.arraycopy(utf8, 0, bytes, at + 1, utf8.length);
+        return this;
+    }
+    JournalRecord seal() {
+        crc.reset();
+        crc.update(bytes, 0, CRC);
+        buf.putInt(CRC, (int) crc.getValue());
+        return this;
+    }
+
+    // ---- reading back
+
+    boolean load(ByteBuffer src, int at) {
+        src.get(at, bytes, 0, SIZE);
+        if (bytes[0] == 0) return false;
+        crc.reset();
+        crc.update(bytes, 0, CRC);
+        return buf.getInt(CRC) == (int) crc.getValue();
+    }
+    byte type() { return bytes[0]; }
+    boolean isEnd() { return (bytes[1] & END) != 0; }
+    boolean has(byte f) { return (bytes[1] & f) != 0; }
+    int site() { return buf.getShort(SITE_AT) & 0xFFFF; }
+    int qty() { return buf.getInt(QTY); }
+    int aux() { return buf.getInt(AUX); }
+    LocalDateTime time() { return LocalDateTime.ofEpochSecond(Math.floorDiv(buf.getLong(TIME), 1000), Math.floorMod(buf.getLong(TIME), 1000) * 1_000_000, ZoneOffset.UTC); }
+    long longId() { return buf.getLong(ID); }
+    long workOrderId() { return buf.getLong(ID + 8); }
+    String code() { return str(CODE); }
+    String text() { return str(TEXT); }
+    int textLength() { return bytes[TEXT] & 0xFF; }
+    void copyText(byte[] dst, int at) { System.arraycopy(bytes, TEXT + 1, dst, at, textLength()); }
+    private String str(int at) {
+        return new String(bytes, at + 1, bytes[at] & 0xFF, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,22 @@
+package com.kce.bank.persistence;
+public class RecoveryStats {
+    private final long snapshotPosition;
+    private final long snapshotMillis;
+    private final long journalRecords;
+    private final long journalMillis;
+    public RecoveryStats(long snapshotPosition, long snapshotMillis, long journalRecords, long journalMillis) {
+        this.snapshotPosition = snapshotPosition;
+        this.snapshotMillis = snapshotMillis;
+        this.journalRecords = journalRecords;
+        this.journalMillis = journalMillis;
+    }
+    public long getSnapshotPosition() { return snapshotPosition; }
+    public long getSnapshotMillis() { return snapshotMillis; }
+    public long getJournalRecords() { return journalRecords; }
+    public long getJournalMillis() { return journalMillis; }
+    public long getTotalMillis() { return snapshotMillis + journalMillis; }
+    public String toString() {
+        return String.format("Cold start %d ms: snapshot @%d loaded in %d ms, %d journal records replayed in %d ms",
+                getTotalMillis(), snapshotPosition, snapshotMillis, journalRecords, journalMillis);
+    }
+}
@@ -0,0 +1,290 @@
+package com.kce.bank.persistence;
+import com.kce.bank.model.*;
+import com.kce.bank.service.MRPService;
+import com.kce.bank.util.IdGenerator;
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+/*
+ * Compact snapshots of sites, work centers, products with their planning data,
+ * BOMs, stock and open work orders with their material ledger and lots, each tagged
+ * with the journal position it reflects; a completed order is kept as a one-line
+ * summary. A checkpoint never reads the live service: it loads the previous
+ * snapshot into a private shadow service, folds in the journal up to the current
+ * (durable) position and writes the result, so writers carry on untouched and the
+ * snapshot is an exact cut of the journal. The journal segments it covers are
+ * then dropped, so neither the journal nor a restart grows with all of history.
+ */
+public class SnapshotManager implements Closeable {
+    private static final int MAGIC = 0x4D525053; // "MRPS"
+    private static final int VERSION = 8;
+    private final Path file;
+    private final TransactionJournal journal;
+    private ScheduledExecutorService scheduler;
+    public SnapshotManager(Path file, TransactionJournal journal) {
+        this.file = file;
+        this.journal = journal;
+    }
+    public RecoveryStats recover(MRPService service) throws IOException {
+        long start = System.nanoTime();
+        long position = 0;
+        if (Files.exists(file)) {
+            if (verify(file)) position = load(file, service.recovery(), true);
+            else System.err.println("Snapshot " + file + " is corrupt or of an older version; replaying the whole journal.");
+        }
+        long loaded = System.nanoTime();
+        long records = journal.replay(position, service.recovery());
+        return new RecoveryStats(position, (loaded - start) / 1_000_000, records, (System.nanoTime() - loaded) / 1_000_000);
+    }
+    public synchronized long checkpoint() throws IOException {
+        long upTo = journal.position();
+        journal.awaitDurable(upTo);
+        MRPService shadow = new MRPService(new Warehouse("snapshot"));
+        long from = Files.exists(file) && verify(file) ? load(file, shadow.recovery(), false) : 0;
+        if (from == upTo) return upTo;
+        journal.read(from, upTo, shadow.recovery());
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        write(tmp, shadow, upTo);
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+            ch.force(true);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        journal.discardBefore(upTo);
+        return upTo;
+    }
+    public void checkpointEvery(long period, TimeUnit unit) {
+        if (scheduler != null) return;
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "snapshot-checkpoint");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                checkpoint();
+            } catch (IOException e) {
+                System.err.println("Checkpoint failed: " + e.getMessage());
+            }
+        }, period, period, unit);
+    }
+    public void close() {
+        if (scheduler != null) scheduler.shutdownNow();
+    }
+
+    private static void write(Path target, MRPService shadow, long position) throws IOException {
+        CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(Files.newOutputStream(target), 1 << 16), new CRC32());
+        try (DataOutputStream out = new DataOutputStream(checked)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(position);
+            for (IdGenerator ids : IdGenerator.all()) out.writeLong(ids.peek());
+            List<Warehouse> sites = shadow.getNetwork().sites();
+            out.writeInt(sites.size());
+            for (Warehouse w : sites) {
+                out.writeUTF(w.getName());
+                out.writeInt(w.getX());
+                out.writeInt(w.getY());
+            }
+            Collection<WorkCenter> workCenters = shadow.allWorkCenters();
+            out.writeInt(workCenters.size());
+            for (WorkCenter wc : workCenters) {
+                out.writeUTF(wc.getCode());
+                out.writeUTF(wc.getName());
+                out.writeInt(wc.getMinutesPerDay());
+                Map<Long, Integer> days = wc.getCapacityOverrides();
+                out.writeInt(days.size());
+                for (Map.Entry<Long, Integer> e : days.entrySet()) {
+                    out.writeLong(e.getKey());
+                    out.writeInt(e.getValue());
+                }
+            }
+            Collection<Product> products = shadow.allProducts();
+            out.writeInt(products.size());
+            for (Product p : products) {
+                out.writeUTF(p.getCode());
+                out.writeUTF(p.getName());
+                out.writeInt(p.getLeadTimeDays());
+                out.writeUTF(p.getWorkCenter() == null ? "" : p.getWorkCenter().getCode());
+                out.writeInt(p.getMinutesPerUnit());
+            }
+            List<BOM> boms = new ArrayList<>();
+            for (Product p : products) if (shadow.getBOM(p.getCode()) != null) boms.add(shadow.getBOM(p.getCode()));
+            out.writeInt(boms.size());
+            for (BOM bom : boms) {
+                out.writeUTF(bom.getFinishedProduct().getCode());
+                out.writeInt(bom.getItems().size());
+                for (BOMItem it : bom.getItems()) {
+                    out.writeUTF(it.getComponent().getCode());
+                    out.writeInt(it.getQtyPerProduct());
+                    out.writeInt(it.getLeadTimeOffsetDays());
+                }
+            }
+            for (Warehouse w : sites) {
+                Map<String, long[]> rows = w.snapshot();
+                out.writeInt(rows.size());
+                for (Map.Entry<String, long[]> e : rows.entrySet()) {
+                    out.writeUTF(e.getKey());
+                    out.writeInt((int) e.getValue()[0]);
+                    out.writeInt((int) e.getValue()[1]);
+                }
+            }
+            List<WorkOrder> all = new ArrayList<>(shadow.allWorkOrders());
+            out.writeInt(all.size());
+            for (WorkOrder wo : all) {
+                out.writeLong(wo.getId());
+                out.writeLong(wo.getCreatedAt().toInstant(ZoneOffset.UTC).toEpochMilli());
+                out.writeUTF(wo.getProduct().getCode());
+                out.writeInt(wo.getQuantity());
+                out.writeShort(wo.getSite().getSite());
+                out.writeByte(wo.getStatus().ordinal());
+                out.writeLong(wo.getDueDate() == null ? Long.MIN_VALUE : wo.getDueDate().toEpochDay());
+                // a completed order by what it produced; its ledger is history
+                if (wo.getStatus() == WorkOrder.Status.COMPLETED) {
+                    out.writeInt(wo.getProducedQuantity());
+                    continue;
+                }
+                out.writeInt(wo.getAllocations().size());
+                for (StockAllocation a : wo.getAllocations()) {
+                    out.writeShort(a.getSite().getSite());
+                    out.writeUTF(a.getComponent().getCode());
+                    out.writeInt(a.getQuantity());
+                }
+                out.writeInt(wo.materialLines());
+                for (int i = 0; i < wo.materialLines(); i++) {
+                    out.writeUTF(wo.materialAt(i).getCode());
+                    out.writeInt(wo.requiredAt(i));
+                    out.writeInt(wo.releasedAt(i));
+                }
+                out.writeInt(wo.getMaterialIssues().size());
+                for (MaterialIssue mi : wo.getMaterialIssues()) {
+                    out.writeLong(mi.getId());
+                    out.writeLong(mi.getTimestamp().toInstant(ZoneOffset.UTC).toEpochMilli());
+                    out.writeShort(mi.getWarehouse().getSite());
+                    out.writeUTF(mi.getComponent().getCode());
+                    out.writeInt(mi.getQuantityIssued());
+                }
+                out.writeInt(wo.getProductionReports().size());
+                for (ProductionReport pr : wo.getProductionReports()) {
+                    out.writeLong(pr.getId());
+                    out.writeLong(pr.getTimestamp().toInstant(ZoneOffset.UTC).toEpochMilli());
+                    out.writeInt(pr.getProducedQuantity());
+                    out.writeBoolean(pr.isLast());
+                }
+            }
+            out.flush();
+            out.writeLong(checked.getChecksum().getValue());
+        }
+    }
+    // checksum intact and written by this version
+    private static boolean verify(Path source) throws IOException {
+        try (CheckedInputStream in = new CheckedInputStream(new BufferedInputStream(Files.newInputStream(source), 1 << 16), new CRC32())) {
+            long size = Files.size(source);
+            if (size < 16) return false;
+            byte[] buf = new byte[1 << 16];
+            long left = size - 8;
+            while (left > 0) {
+                int n = in.read(buf, 0, (int) Math.min(buf.length, left));
+                if (n < 0) return false;
+                left -= n;
+            }
+            long expected = in.getChecksum().getValue();
+            if (new DataInputStream(in).readLong() != expected) return false;
+        }
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(source))) {
+            return in.readInt() == MAGIC && in.readInt() == VERSION;
+        }
+    }
+    // Returns the journal position the snapshot was taken at. 'restart': the id
+    // sequences are moved up to the snapshot's where they are below it; a
+    // checkpoint's shadow leaves them, and the blocks live threads draw on, alone.
+    private static long load(Path source, MRPService.Recovery target, boolean restart) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(source), 1 << 16))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) throw new IOException("Not a snapshot file: " + source);
+            long position = in.readLong();
+            for (IdGenerator ids : IdGenerator.all()) {
+                long next = in.readLong();
+                if (restart && next > ids.peek()) ids.advanceTo(next);
+            }
+            int sites = in.readInt();
+            for (int s = 0; s < sites; s++) target.site(s, in.readUTF(), in.readInt(), in.readInt());
+            for (int n = in.readInt(); n > 0; n--) {
+                String code = in.readUTF();
+                target.workCenter(code, in.readUTF(), in.readInt());
+                for (int i = in.readInt(); i > 0; i--) target.capacity(code, LocalDate.ofEpochDay(in.readLong()), in.readInt());
+            }
+            for (int n = in.readInt(); n > 0; n--) {
+                String code = in.readUTF();
+                target.product(code, in.readUTF(), 0);
+                int leadTime = in.readInt();
+                String wc = in.readUTF();
+                int minutes = in.readInt();
+                if (leadTime != 0 || !wc.isEmpty() || minutes != 0) target.planning(code, leadTime, wc.isEmpty() ? null : wc, minutes);
+            }
+            for (int n = in.readInt(); n > 0; n--) {
+                String parent = in.readUTF();
+                int lines = in.readInt();
+                List<String> components = new ArrayList<>(lines);
+                List<Integer> qty = new ArrayList<>(lines);
+                List<Integer> offsets = new ArrayList<>(lines);
+                for (int i = 0; i < lines; i++) {
+                    components.add(in.readUTF());
+                    qty.add(in.readInt());
+                    offsets.add(in.readInt());
+                }
+                target.bom(parent, components, qty, offsets);
+            }
+            for (int s = 0; s < sites; s++) {
+                for (int n = in.readInt(); n > 0; n--) target.stock(s, in.readUTF(), in.readInt(), in.readInt());
+            }
+            WorkOrder.Status[] statuses = WorkOrder.Status.values();
+            for (int n = in.readInt(); n > 0; n--) {
+                long id = in.readLong();
+                LocalDateTime createdAt = time(in.readLong());
+                String product = in.readUTF();
+                int qty = in.readInt();
+                int site = in.readUnsignedShort();
+                WorkOrder.Status status = statuses[in.readByte()];
+                LocalDate due = date(in.readLong());
+                if (status == WorkOrder.Status.COMPLETED) {
+                    target.completed(id, createdAt, product, qty, site, due, in.readInt());
+                    continue;
+                }
+                target.workOrder(id, createdAt, product, qty, site, status, due);
+                for (int i = in.readInt(); i > 0; i--) target.allocation(id, in.readUnsignedShort(), in.readUTF(), in.readInt());
+                for (int i = in.readInt(); i > 0; i--) {
+                    String component = in.readUTF();
+                    target.requirement(id, component, in.readInt());
+                    target.release(id, component, in.readInt());
+                }
+                for (int i = in.readInt(); i > 0; i--) {
+                    long miId = in.readLong();
+                    LocalDateTime ts = time(in.readLong());
+                    target.issue(miId, ts, id, in.readUnsignedShort(), in.readUTF(), in.readInt());
+                }
+                for (int i = in.readInt(); i > 0; i--) {
+                    long prId = in.readLong();
+                    LocalDateTime ts = time(in.readLong());
+                    target.lot(prId, ts, id, in.readInt(), in.readBoolean());
+                }
+            }
+            return position;
+        }
+    }
+    private static LocalDate date(long epochDay) { return epochDay == Long.MIN_VALUE ? null : LocalDate.ofEpochDay(epochDay); }
+    private static LocalDateTime time(long millis) {
+        return LocalDateTime.ofEpochSecond(Math.floorDiv(millis, 1000), Math.floorMod(millis, 1000) * 1_000_000, ZoneOffset.UTC);
+    }
+}
@@ -0,0 +1,522 @@
+package com.kce.bank.persistence;
+import com.kce.bank.model.*;
+import com.kce.bank.service.MRPService;
+import com.kce.bank.service.TransactionLog;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+/*
+ * Append-only journal of MRPService transactions on memory-mapped files. The
+ * journal grows in fixed segments, one file each (journal.0, journal.1, ...), so
+ * that the segments a snapshot covers can be dropped. A transaction's records
+ * are copied into the mapping under a short lock and made durable by group
+ * commit: the first caller to need a force flushes everything appended so far,
+ * and callers queued behind it find their records already covered.
+ *
+ * A call that throws has appended nothing, so its caller may undo what it had
+ * prepared. Once records are appended the change stands, as they may reach the
+ * disk whatever happens: if a force fails the journal stops, refusing every
+ * later append, and restart replays whatever of the tail was written.
+ */
+public class TransactionJournal implements TransactionLog, Closeable {
+    static final int SEGMENT = 32 << 20;
+    private final Path file;
+    private final int segmentSize;
+    private final boolean syncCommit;
+    // indexed by segment number; null where a segment has been dropped
+    private final List<MappedByteBuffer> segments = new ArrayList<>();
+    private final ReentrantLock appendLock = new ReentrantLock();
+    // a Lock rather than a monitor: committers may be virtual threads, which a
+    // monitor held across the force would pin to their carrier
+    private final ReentrantLock commitLock = new ReentrantLock();
+    private final ThreadLocal<JournalRecord> scratch = ThreadLocal.withInitial(JournalRecord::new);
+    private volatile long tail;
+    private volatile long durable;
+    private Thread flusher;
+    private volatile boolean closed;
+    // the force that stopped the journal
+    private volatile IOException failure;
+
+    private TransactionJournal(Path file, int segmentSize, boolean syncCommit) {
+        this.file = file;
+        this.segmentSize = segmentSize;
+        this.syncCommit = syncCommit;
+    }
+    // syncCommit: every logged operation waits until its records are forced to
+    // disk. Otherwise a background thread forces every few milliseconds.
+    public static TransactionJournal open(Path file, boolean syncCommit) throws IOException {
+        return open(file, syncCommit, SEGMENT);
+    }
+    static TransactionJournal open(Path file, boolean syncCommit, int segmentSize) throws IOException {
+        if (segmentSize % JournalRecord.SIZE != 0) throw new IllegalArgumentException("Segment size must be a whole number of records: " + segmentSize);
+        if (file.getParent() != null) Files.createDirectories(file.getParent());
+        TransactionJournal journal = new TransactionJournal(file, segmentSize, syncCommit);
+        if (!syncCommit) journal.startFlusher(10);
+        return journal;
+    }
+    // the file holding segment n of the journal at 'file'
+    static Path segmentFile(Path file, int n) {
+        return file.resolveSibling(file.getFileName() + "." + n);
+    }
+    public long position() { return tail; }
+    // why the journal stopped, or null while it is running
+    public IOException failure() { return failure; }
+
+    // ---- replay
+
+    public long replay(MRPService.Recovery target) throws IOException {
+        return replay(0, target);
+    }
+    // Applies every complete transaction from 'from' onwards and positions the
+    // journal for appending after the last one. Anything beyond it (an unfinished
+    // group, a record with a bad checksum) is a torn write and is erased.
+    // Segments before the one holding 'from' may have been dropped.
+    public long replay(long from, MRPService.Recovery target) throws IOException {
+        int first = (int) (from / segmentSize);
+        int lowest = lowestSegment();
+        if (lowest > first || from % segmentSize != 0 && !Files.exists(segmentFile(file, first)))
+            throw new IOException("Journal " + file + " no longer holds position " + from + "; it can only be replayed from a later snapshot.");
+        while (segments.size() < first) segments.add(null);
+        for (int n = first; Files.exists(segmentFile(file, n)); n++) segment((long) n * segmentSize);
+        long[] result = scan(segments, segmentSize, from, (long) segments.size() * segmentSize, target);
+        truncateAt(result[0]);
+        return result[1];
+    }
+    // Drops the segments that end at or before position, which a snapshot now
+    // covers. Only positions already durable can be covered.
+    public void discardBefore(long position) throws IOException {
+        if (position > durable) throw new IllegalArgumentException("Journal position " + position + " is not durable yet.");
+        List<Path> dropped = new ArrayList<>();
+        appendLock.lock();
+        try {
+            for (int n = 0; n < position / segmentSize && n < segments.size(); n++) {
+                if (segments.get(n) == null) continue;
+                segments.set(n, null);
+                dropped.add(segmentFile(file, n));
+            }
+        } finally {
+            appendLock.unlock();
+        }
+        for (Path p : dropped) Files.deleteIfExists(p);
+    }
+    // the lowest numbered segment file there is, or -1 if none
+    private int lowestSegment() throws IOException {
+        Path dir = file.toAbsolutePath().getParent();
+        String prefix = file.getFileName() + ".";
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.map(f -> f.getFileName().toString())
+                    .filter(name -> name.startsWith(prefix) && name.length() > prefix.length() && name.substring(prefix.length()).chars().allMatch(Character::isDigit))
+                    .mapToInt(name -> Integer.parseInt(name.substring(prefix.length())))
+                    .min().orElse(-1);
+        }
+    }
+    // Read-only pass over [from, to) of a live journal, e.g. to fold it into a
+    // snapshot. 'to' must be a position this journal has returned.
+    public long read(long from, long to, MRPService.Recovery target) {
+        List<MappedByteBuffer> mapped;
+        appendLock.lock();
+        try {
+            mapped = new ArrayList<>(segments);
+        } finally {
+            appendLock.unlock();
+        }
+        return scan(mapped, segmentSize, from, to, target)[1];
+    }
+    // returns {end of the last complete group, records applied}
+    private static long[] scan(List<MappedByteBuffer> segments, int segmentSize, long from, long limit, MRPService.Recovery target) {
+        JournalRecord rec = new JournalRecord();
+        byte[] group = new byte[JournalRecord.SIZE * 64];
+        int groupSize = 0;
+        long groupStart = from;
+        long pos = from;
+        long applied = 0;
+        while (pos < limit) {
+            if (!rec.load(segments.get((int) (pos / segmentSize)), (int) (pos % segmentSize))) break;
+            if (groupSize == 0) groupStart = pos;
+            if ((groupSize + 1) * JournalRecord.SIZE > group.length) group = Arrays.copyOf(group, group.length * 2);
+            System.arraycopy(rec.bytes, 0, group, groupSize++ * JournalRecord.SIZE, JournalRecord.SIZE);
+            pos += JournalRecord.SIZE;
+            if (rec.isEnd()) {
+                apply(group, groupSize, target);
+                applied += groupSize;
+                groupSize = 0;
+                groupStart = pos;
+            }
+        }
+        return new long[] { groupStart, applied };
+    }
+    private void truncateAt(long end) throws IOException {
+        int keep = (int) ((end + segmentSize - 1) / segmentSize);
+        if (end % segmentSize != 0) {
+            MappedByteBuffer last = segments.get(keep - 1);
+            byte[] zeros = new byte[JournalRecord.SIZE * 256];
+            for (int at = (int) (end % segmentSize); at < segmentSize; at += zeros.length)
+                last.put(at, zeros, 0, Math.min(zeros.length, segmentSize - at));
+            last.force();
+        }
+        for (int n = segments.size() - 1; n >= keep; n--) {
+            segments.remove(n);
+            Files.deleteIfExists(segmentFile(file, n));
+        }
+        tail = end;
+        durable = end;
+    }
+    private static void apply(byte[] group, int size, MRPService.Recovery target) {
+        JournalRecord head = new JournalRecord();
+        JournalRecord line = new JournalRecord();
+        System.arraycopy(group, 0, head.bytes, 0, JournalRecord.SIZE);
+        switch (head.type()) {
+            case JournalRecord.PRODUCT: {
+                byte[] name = new byte[JournalRecord.TEXT_BYTES * size];
+                int len = 0;
+                for (int i = 0; i < size; i++) {
+                    System.arraycopy(group, i * JournalRecord.SIZE, line.bytes, 0, JournalRecord.SIZE);
+                    line.copyText(name, len);
+                    len += line.textLength();
+                }
+                target.product(head.code(), new String(name, 0, len, StandardCharsets.UTF_8), head.aux());
+                break;
+            }
+            case JournalRecord.SITE:
+                target.site(head.site(), head.text(), head.qty(), head.aux());
+                break;
+            case JournalRecord.RECEIPT:
+                target.received(head.site(), head.code(), head.qty());
+                break;
+            case JournalRecord.BOM: {
+                List<String> components = new ArrayList<>(size - 1);
+                List<Integer> qty = new ArrayList<>(size - 1);
+                List<Integer> offsets = new ArrayList<>(size - 1);
+                for (int i = 1; i < size; i++) {
+                    System.arraycopy(group, i * JournalRecord.SIZE, line.bytes, 0, JournalRecord.SIZE);
+                    components.add(line.code());
+                    qty.add(line.qty());
+                    offsets.add(line.aux());
+                }
+                target.bom(head.code(), components, qty, offsets);
+                break;
+            }
+            case JournalRecord.WORK_ORDER: {
+                long woId = head.longId();
+                target.workOrder(woId, head.time(), head.code(), head.qty(), head.site(), WorkOrder.Status.MATERIAL_RESERVED, date(head.text()));
+                for (int i = 1; i < size; i++) {
+                    System.arraycopy(group, i * JournalRecord.SIZE, line.bytes, 0, JournalRecord.SIZE);
+                    target.reserved(woId, line.site(), line.code(), line.qty());
+                }
+                break;
+            }
+            case JournalRecord.ISSUE:
+                for (int i = 0; i < size; i++) {
+                    System.arraycopy(group, i * JournalRecord.SIZE, line.bytes, 0, JournalRecord.SIZE);
+                    target.materialIssued(line.longId(), line.time(), line.workOrderId(), line.site(), line.code(), line.qty());
+                }
+                break;
+            case JournalRecord.STARTED:
+                target.productionStarted(head.workOrderId());
+                break;
+            case JournalRecord.PRODUCTION: {
+                long woId = head.workOrderId();
+                for (int i = 1; i < size; i++) {
+                    System.arraycopy(group, i * JournalRecord.SIZE, line.bytes, 0, JournalRecord.SIZE);
+                    if (line.type() == JournalRecord.RELEASE) target.released(woId, line.site(), line.code(), line.qty());
+                    else target.materialIssued(line.longId(), line.time(), woId, line.site(), line.code(), line.qty());
+                }
+                target.production(head.longId(), head.time(), woId, head.qty(), head.has(JournalRecord.LAST));
+                break;
+            }
+            case JournalRecord.WORK_CENTER:
+                target.workCenter(head.code(), head.text(), head.qty());
+                break;
+            case JournalRecord.CAPACITY:
+                target.capacity(head.code(), LocalDate.ofEpochDay(head.aux()), head.qty());
+                break;
+            case JournalRecord.PLANNING:
+                target.planning(head.code(), head.qty(), head.text().isEmpty() ? null : head.text(), head.aux());
+                break;
+            case JournalRecord.DUE:
+                target.dueDate(head.workOrderId(), date(head.text()));
+                break;
+            default:
+                throw new IllegalStateException("Unknown journal record type " + head.type());
+        }
+    }
+    private static LocalDate date(String iso) { return iso.isEmpty() ? null : LocalDate.parse(iso); }
+
+    // ---- TransactionLog
+
+    public void siteAdded(int site, String name, int x, int y) {
+        byte[] group = new byte[JournalRecord.SIZE];
+        put(group, 0, scratch.get().clear(JournalRecord.SITE).site(site).text(name).qty(x).aux(y).end());
+        commit(group);
+    }
+    public void productAdded(Product product, int initialStock) {
+        commit(productGroup(product, initialStock));
+    }
+    public void productsAdded(List<Product> products) {
+        byte[][] groups = new byte[products.size()][];
+        for (int i = 0; i < groups.length; i++) groups[i] = productGroup(products.get(i), 0);
+        commit(concat(groups));
+    }
+    private byte[] productGroup(Product product, int initialStock) {
+        byte[] name = product.getName().getBytes(StandardCharsets.UTF_8);
+        int parts = Math.max(1, (name.length + JournalRecord.TEXT_BYTES - 1) / JournalRecord.TEXT_BYTES);
+        byte[] group = new byte[parts * JournalRecord.SIZE];
+        JournalRecord r = scratch.get();
+        for (int i = 0; i < parts; i++) {
+            int from = i * JournalRecord.TEXT_BYTES;
+            r.clear(i == 0 ? JournalRecord.PRODUCT : JournalRecord.NAME)
+                    .text(name, from, Math.min(JournalRecord.TEXT_BYTES, name.length - from));
+            if (i == 0) r.code(product.getCode()).aux(initialStock);
+            if (i == parts - 1) r.end();
+            put(group, i, r);
+        }
+        return group;
+    }
+    public void stockReceived(Warehouse site, Product product, int qty) {
+        byte[] group = new byte[JournalRecord.SIZE];
+        put(group, 0, scratch.get().clear(JournalRecord.RECEIPT).site(site.getSite()).code(product.getCode())
+                .qty(qty).time(LocalDateTime.now()).end());
+        commit(group);
+    }
+    // one single-record group per line, appended and forced together
+    public void stockReceived(Warehouse site, RequirementVector lines, ProductCatalog catalog) {
+        byte[] group = new byte[lines.size() * JournalRecord.SIZE];
+        JournalRecord r = scratch.get();
+        LocalDateTime now = LocalDateTime.now();
+        for (int i = 0; i < lines.size(); i++) {
+            put(group, i, r.clear(JournalRecord.RECEIPT).site(site.getSite()).code(catalog.get(lines.ordinal(i)).getCode())
+                    .qty(lines.quantity(i)).time(now).end());
+        }
+        commit(group);
+    }
+    public void bomDefined(BOM bom) {
+        commit(bomGroup(bom));
+    }
+    public void bomsDefined(List<BOM> boms) {
+        byte[][] groups = new byte[boms.size()][];
+        for (int i = 0; i < groups.length; i++) groups[i] = bomGroup(boms.get(i));
+        commit(concat(groups));
+    }
+    private byte[] bomGroup(BOM bom) {
+        List<BOMItem> items = bom.getItems();
+        byte[] group = new byte[(items.size() + 1) * JournalRecord.SIZE];
+        JournalRecord r = scratch.get();
+        r.clear(JournalRecord.BOM).code(bom.getFinishedProduct().getCode()).aux(items.size());
+        if (items.isEmpty()) r.end();
+        put(group, 0, r);
+        for (int i = 0; i < items.size(); i++) {
+            r.clear(JournalRecord.BOM_LINE).code(items.get(i).getComponent().getCode()).qty(items.get(i).getQtyPerProduct())
+                    .aux(items.get(i).getLeadTimeOffsetDays());
+            if (i == items.size() - 1) r.end();
+            put(group, i + 1, r);
+        }
+        return group;
+    }
+    public void workOrdersCreated(List<WorkOrder> workOrders, List<List<StockAllocation>> reserved) {
+        byte[][] groups = new byte[workOrders.size()][];
+        for (int i = 0; i < groups.length; i++) groups[i] = workOrderGroup(workOrders.get(i), reserved.get(i));
+        commit(concat(groups));
+    }
+    private byte[] workOrderGroup(WorkOrder workOrder, List<StockAllocation> reserved) {
+        byte[] group = new byte[(reserved.size() + 1) * JournalRecord.SIZE];
+        JournalRecord r = scratch.get();
+        r.clear(JournalRecord.WORK_ORDER).ids(workOrder.getId(), workOrder.getId()).code(workOrder.getProduct().getCode())
+                .site(workOrder.getSite().getSite()).qty(workOrder.getQuantity()).time(workOrder.getCreatedAt()).aux(reserved.size());
+        if (workOrder.getDueDate() != null) r.text(workOrder.getDueDate().toString());
+        if (reserved.isEmpty()) r.end();
+        put(group, 0, r);
+        for (int i = 0; i < reserved.size(); i++) {
+            StockAllocation a = reserved.get(i);
+            r.clear(JournalRecord.RESERVE).ids(workOrder.getId(), workOrder.getId()).site(a.getSite().getSite()).code(a.getComponent().getCode()).qty(a.getQuantity());
+            if (i == reserved.size() - 1) r.end();
+            put(group, i + 1, r);
+        }
+        return group;
+    }
+    public void materialsIssued(WorkOrder workOrder, List<MaterialIssue> issues) {
+        if (issues.isEmpty()) return;
+        byte[] group = new byte[issues.size() * JournalRecord.SIZE];
+        JournalRecord r = scratch.get();
+        for (int i = 0; i < issues.size(); i++) {
+            MaterialIssue mi = issues.get(i);
+            r.clear(JournalRecord.ISSUE).ids(mi.getId(), workOrder.getId()).site(mi.getWarehouse().getSite()).code(mi.getComponent().getCode())
+                    .qty(mi.getQuantityIssued()).time(mi.getTimestamp());
+            if (i == issues.size() - 1) r.end();
+            put(group, i, r);
+        }
+        commit(group);
+    }
+    public void productionStarted(WorkOrder workOrder) {
+        byte[] group = new byte[JournalRecord.SIZE];
+        put(group, 0, scratch.get().clear(JournalRecord.STARTED).ids(0, workOrder.getId()).time(LocalDateTime.now()).end());
+        commit(group);
+    }
+    public void productionReported(List<ProductionReport> reports) {
+        byte[][] groups = new byte[reports.size()][];
+        for (int i = 0; i < groups.length; i++) groups[i] = lotGroup(reports.get(i));
+        commit(concat(groups));
+    }
+    private byte[] lotGroup(ProductionReport report) {
+        List<MaterialIssue> issues = report.getBackflushed();
+        List<StockAllocation> released = report.getReleased();
+        int lines = issues.size() + released.size();
+        long woId = report.getWorkOrder().getId();
+        byte[] group = new byte[(lines + 1) * JournalRecord.SIZE];
+        JournalRecord r = scratch.get();
+        r.clear(JournalRecord.PRODUCTION).ids(report.getId(), woId).qty(report.getProducedQuantity()).time(report.getTimestamp())
+                .aux(lines);
+        if (report.isLast()) r.flag(JournalRecord.LAST);
+        if (lines == 0) r.end();
+        put(group, 0, r);
+        int n = 0;
+        for (MaterialIssue mi : issues) {
+            r.clear(JournalRecord.ISSUE).ids(mi.getId(), woId).site(mi.getWarehouse().getSite()).code(mi.getComponent().getCode())
+                    .qty(mi.getQuantityIssued()).time(mi.getTimestamp());
+            if (++n == lines) r.end();
+            put(group, n, r);
+        }
+        for (StockAllocation a : released) {
+            r.clear(JournalRecord.RELEASE).ids(0, woId).site(a.getSite().getSite()).code(a.getComponent().getCode()).qty(a.getQuantity());
+            if (++n == lines) r.end();
+            put(group, n, r);
+        }
+        return group;
+    }
+    public void workCenterAdded(WorkCenter workCenter) {
+        byte[] group = new byte[JournalRecord.SIZE];
+        put(group, 0, scratch.get().clear(JournalRecord.WORK_CENTER).code(workCenter.getCode()).text(workCenter.getName())
+                .qty(workCenter.getMinutesPerDay()).end());
+        commit(group);
+    }
+    public void capacityChanged(WorkCenter workCenter, LocalDate day, int minutes) {
+        byte[] group = new byte[JournalRecord.SIZE];
+        put(group, 0, scratch.get().clear(JournalRecord.CAPACITY).code(workCenter.getCode()).aux(Math.toIntExact(day.toEpochDay()))
+                .qty(minutes).end());
+        commit(group);
+    }
+    public void planningChanged(Product product, int leadTimeDays, WorkCenter workCenter, int minutesPerUnit) {
+        byte[] group = new byte[JournalRecord.SIZE];
+        put(group, 0, scratch.get().clear(JournalRecord.PLANNING).code(product.getCode()).text(workCenter == null ? "" : workCenter.getCode())
+                .qty(leadTimeDays).aux(minutesPerUnit).end());
+        commit(group);
+    }
+    public void dueDateChanged(WorkOrder workOrder, LocalDate dueDate) {
+        byte[] group = new byte[JournalRecord.SIZE];
+        put(group, 0, scratch.get().clear(JournalRecord.DUE).ids(0, workOrder.getId()).text(dueDate == null ? "" : dueDate.toString())
+                .time(LocalDateTime.now()).end());
+        commit(group);
+    }
+    // Groups keep their own end markers, so replay sees the same groups as if each
+    // had been committed alone; a torn batch loses only its unfinished tail.
+    private static byte[] concat(byte[][] groups) {
+        int len = 0;
+        for (byte[] g : groups) len += g.length;
+        byte[] all = new byte[len];
+        int off = 0;
+        for (byte[] g : groups) {
+            System.arraycopy(g, 0, all, off, g.length);
+            off += g.length;
+        }
+        return all;
+    }
+    private static void put(byte[] group, int index, JournalRecord r) {
+        System.arraycopy(r.seal().bytes, 0, group, index * JournalRecord.SIZE, JournalRecord.SIZE);
+    }
+
+    // ---- append and group commit
+
+    private void commit(byte[] group) {
+        long end = append(group);
+        if (syncCommit) awaitDurable(end);
+    }
+    private long append(byte[] group) {
+        appendLock.lock();
+        try {
+            if (failure != null) throw new UncheckedIOException("Journal stopped by a failed force", failure);
+            long pos = tail;
+            // every segment the group reaches is mapped before any of it is written
+            if (group.length > 0) segment(pos + group.length - 1);
+            for (int off = 0; off < group.length; off += JournalRecord.SIZE, pos += JournalRecord.SIZE)
+                segment(pos).put((int) (pos % segmentSize), group, off, JournalRecord.SIZE);
+            tail = pos;
+            return pos;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Journal append failed", e);
+        } finally {
+            appendLock.unlock();
+        }
+    }
+    // Returns once the records up to position are forced, or the journal has
+    // stopped and they never will be.
+    public void awaitDurable(long position) {
+        if (durable >= position || failure != null) return;
+        commitLock.lock();
+        try {
+            if (durable >= position || failure != null) return;
+            long target = tail;
+            force(durable, target);
+            durable = target;
+        } catch (RuntimeException e) {
+            failure = e instanceof UncheckedIOException io ? io.getCause() : new IOException("Journal force failed", e);
+        } finally {
+            commitLock.unlock();
+        }
+    }
+    private void force(long from, long to) {
+        appendLock.lock();
+        List<MappedByteBuffer> mapped;
+        try {
+            mapped = new ArrayList<>(segments);
+        } finally {
+            appendLock.unlock();
+        }
+        for (long at = from; at < to; ) {
+            int seg = (int) (at / segmentSize);
+            int off = (int) (at % segmentSize);
+            int len = (int) Math.min(segmentSize - off, to - at);
+            mapped.get(seg).force(off, len);
+            at += len;
+        }
+    }
+    private MappedByteBuffer segment(long pos) throws IOException {
+        int seg = (int) (pos / segmentSize);
+        while (segments.size() <= seg) {
+            // the mapping outlives the channel
+            try (FileChannel ch = FileChannel.open(segmentFile(file, segments.size()), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                segments.add(ch.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize));
+            }
+        }
+        return segments.get(seg);
+    }
+    private void startFlusher(long intervalMillis) {
+        if (syncCommit || flusher != null) return;
+        flusher = new Thread(() -> {
+            while (!closed) {
+                try {
+                    Thread.sleep(intervalMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                awaitDurable(tail);
+            }
+        }, "journal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+    public void close() throws IOException {
+        closed = true;
+        if (flusher != null) flusher.interrupt();
+        awaitDurable(tail);
+    }
+}
@@ -0,0 +1,72 @@
+package com.kce.bank.server;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+/*
+ * Request lines off a socket: UTF-8, ended by '\n' with any '\r' before it
+ * dropped, and none longer than a limit. Unlike BufferedReader it can say
+ * whether a whole line is already buffered, that is, whether readLine() would
+ * return without waiting on the client.
+ */
+final class LineReader {
+    private final InputStream in;
+    private final int maxLine;
+    private final byte[] buf;
+    // unread bytes are buf[start, end); buf[start, scanned) holds no '\n'
+    private int start, end, scanned;
+    LineReader(InputStream in, int maxLine) {
+        this.in = in;
+        this.maxLine = maxLine;
+        this.buf = new byte[maxLine + 2];
+    }
+    // the next line, or null at the end of the input; a line over the limit is
+    // refused before it has all been read
+    String readLine() throws IOException {
+        while (true) {
+            int nl = newline();
+            if (nl >= 0) {
+                int len = nl - start;
+                if (len > 0 && buf[nl - 1] == '\r') len--;
+                if (len > maxLine) throw tooLong();
+                String line = line(len);
+                start = scanned = nl + 1;
+                return line;
+            }
+            // over the limit already, unless all that is over is a '\r' before its '\n'
+            int n = end - start;
+            if (n > maxLine + 1 || n == maxLine + 1 && buf[end - 1] != '\r') throw tooLong();
+            if (!fill()) {
+                if (start == end) return null;
+                if (end - start > maxLine) throw tooLong();
+                String line = line(end - start);
+                start = scanned = end;
+                return line;
+            }
+        }
+    }
+    boolean lineBuffered() { return newline() >= 0; }
+
+    private String line(int len) { return new String(buf, start, len, StandardCharsets.UTF_8); }
+    private ProtocolException tooLong() { return new ProtocolException("Request longer than " + maxLine + " bytes"); }
+    private int newline() {
+        for (int i = scanned; i < end; i++) {
+            if (buf[i] == '\n') return i;
+        }
+        scanned = end;
+        return -1;
+    }
+    // false at the end of the input
+    private boolean fill() throws IOException {
+        if (start > 0) {
+            System.arraycopy(buf, start, buf, 0, end - start);
+            end -= start;
+            scanned -= start;
+            start = 0;
+        }
+        int n = in.read(buf, end, buf.length - end);
+        if (n < 0) return false;
+        end += n;
+        return true;
+    }
+}
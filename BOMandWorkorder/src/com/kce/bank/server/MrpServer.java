@@ -0,0 +1,137 @@
+package com.kce.bank.server;
+import com.kce.bank.service.MRPService;
+import java.io.*;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+/*
+ * The MRPService over TCP, so other programs can call it, speaking the line
+ * protocol of RequestHandler. Each connection has its own virtual thread, which
+ * blocks on reads and on the service like any other caller.
+ *
+ * Requests can be pipelined: a client may send any number before reading a
+ * reply. Replies come back in order, and everything answered while further
+ * whole requests are already buffered goes out in one write; the replies are
+ * flushed before any read that would wait on the client. A request line may be
+ * at most MAX_LINE bytes, not counting its line end; a longer one is refused and
+ * ends the connection. "BATCH n" marks the next n requests as independent of
+ * each other. They run at the same time and reply in order, so orders created
+ * in one batch are reserved and journalled together (see ReservationBatcher),
+ * as are orders created by many connections at once. "QUIT" ends the
+ * connection.
+ */
+public class MrpServer implements Closeable {
+    private static final int MAX_BATCH = 1024;
+    static final int MAX_LINE = 1 << 16;
+    private final RequestHandler handler;
+    private final ExecutorService threads = Executors.newVirtualThreadPerTaskExecutor();
+    private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+    private volatile ServerSocket socket;
+    public MrpServer(MRPService service) {
+        this.handler = new RequestHandler(service);
+    }
+    // port 0 takes any free port; getPort() says which
+    public synchronized void start(int port) throws IOException {
+        if (socket != null) throw new IllegalStateException("Server already started");
+        socket = new ServerSocket(port, 1024);
+        threads.submit(this::accept);
+    }
+    public int getPort() { return socket == null ? -1 : socket.getLocalPort(); }
+    public int getConnections() { return connections.size(); }
+    public void close() throws IOException {
+        if (socket != null) socket.close();
+        for (Socket s : connections) s.close();
+        threads.shutdownNow();
+    }
+
+    private void accept() {
+        try {
+            while (true) {
+                Socket s = socket.accept();
+                s.setTcpNoDelay(true);
+                threads.submit(() -> serve(s));
+            }
+        } catch (IOException e) {
+            if (!socket.isClosed()) System.err.println("Server stopped accepting: " + e.getMessage());
+        }
+    }
+    private void serve(Socket s) {
+        connections.add(s);
+        try (s;
+             Writer out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8), 1 << 16)) {
+            LineReader in = new LineReader(s.getInputStream(), MAX_LINE);
+            try {
+                serve(in, out);
+            } catch (ProtocolException e) {
+                reply(out, "ERR " + e.getMessage());
+                out.flush();
+            }
+        } catch (SocketException e) {
+            // reset by the client, or closed by close()
+        } catch (IOException e) {
+            System.err.println("Connection from " + s.getRemoteSocketAddress() + " failed: " + e.getMessage());
+        } finally {
+            connections.remove(s);
+        }
+    }
+    private void serve(LineReader in, Writer out) throws IOException {
+        for (String line; (line = next(in, out)) != null; ) {
+            String request = line.strip();
+            if (request.equalsIgnoreCase("QUIT")) {
+                reply(out, "OK");
+                out.flush();
+                return;
+            }
+            if (request.regionMatches(true, 0, "BATCH ", 0, 6)) batch(request.substring(6).strip(), in, out);
+            else reply(out, handler.handle(request));
+        }
+        out.flush();
+    }
+    // the next request, the replies so far flushed first if it is not all here yet
+    private static String next(LineReader in, Writer out) throws IOException {
+        if (!in.lineBuffered()) out.flush();
+        return in.readLine();
+    }
+    private void batch(String size, LineReader in, Writer out) throws IOException {
+        int n;
+        try {
+            n = Integer.parseInt(size);
+        } catch (NumberFormatException e) {
+            n = -1;
+        }
+        if (n < 1 || n > MAX_BATCH) {
+            reply(out, "ERR Batch size must be 1 to " + MAX_BATCH);
+            return;
+        }
+        List<Future<String>> replies = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            String line = next(in, out);
+            if (line == null) throw new EOFException("Connection closed inside a batch");
+            replies.add(threads.submit(() -> handler.handle(line)));
+        }
+        for (Future<String> f : replies) {
+            try {
+                reply(out, f.get());
+            } catch (ExecutionException e) {
+                reply(out, "ERR " + e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Server closing");
+            }
+        }
+    }
+    private static void reply(Writer out, String line) throws IOException {
+        out.write(line);
+        out.write('\n');
+    }
+}
@@ -0,0 +1,141 @@
+package com.kce.bank.server;
+import com.kce.bank.exception.InsufficientStockException;
+import com.kce.bank.exception.InvalidOperationException;
+import com.kce.bank.model.*;
+import com.kce.bank.service.MRPService;
+import com.kce.bank.util.IdGenerator;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+/*
+ * One request line in, one reply line out. Words are separated by spaces, the
+ * verb in any case; only a product name, the last word of PRODUCT, may contain
+ * spaces. A reply is "OK" and any results, or "ERR" and the reason.
+ *
+ *   PING
+ *   PRODUCT code initial-stock name        add a product
+ *   BOM code component*qty ...             define its BOM
+ *   SITE name x y                          add a site
+ *   RECEIVE site code qty                  receive stock at a site
+ *   CREATE code qty [site [yyyy-mm-dd]]    create a work order: OK WO-1001
+ *   ISSUE wo [component qty]               issue all outstanding materials, or one line: OK issues-made
+ *   REPORT wo qty [LAST]                   report a lot, LAST closing the order: OK produced/quantity status
+ *   WO wo                                  OK the order's summary line
+ *   STOCK code                             OK available reserved site=available/reserved ...
+ *   ATP code [yyyy-mm-dd]                  OK buildable promisable-by-the-date (today if none)
+ */
+final class RequestHandler {
+    private final MRPService service;
+    RequestHandler(MRPService service) {
+        this.service = service;
+    }
+    String handle(String line) {
+        String[] w = line.strip().split("\\s+");
+        try {
+            return switch (w[0].toUpperCase(Locale.ROOT)) {
+                case "PING" -> "OK";
+                case "PRODUCT" -> addProduct(line);
+                case "BOM" -> bom(w);
+                case "SITE" -> {
+                    service.addSite(arg(w, 1), number(w, 2), number(w, 3));
+                    yield "OK";
+                }
+                case "RECEIVE" -> {
+                    service.receiveStock(arg(w, 1), arg(w, 2), number(w, 3));
+                    yield "OK";
+                }
+                case "CREATE" -> create(w);
+                case "ISSUE" -> issue(w);
+                case "REPORT" -> report(w);
+                case "WO" -> "OK " + workOrder(w).summaryLine();
+                case "STOCK" -> stock(w);
+                case "ATP" -> atp(w);
+                case "" -> "ERR Empty request";
+                default -> "ERR Unknown request: " + w[0];
+            };
+        } catch (InvalidOperationException | InsufficientStockException | IllegalArgumentException | DateTimeParseException e) {
+            return error(e.getMessage());
+        } catch (RuntimeException e) {
+            return error(e.toString());
+        }
+    }
+
+    private String addProduct(String line) throws InvalidOperationException {
+        String[] w = line.strip().split("\\s+", 4);
+        service.addProduct(arg(w, 1), arg(w, 3), number(w, 2));
+        return "OK";
+    }
+    private String bom(String[] w) throws InvalidOperationException {
+        List<BOMItem> items = new ArrayList<>();
+        for (int i = 2; i < w.length; i++) {
+            int star = w[i].indexOf('*');
+            if (star < 0) throw new IllegalArgumentException("BOM line is not component*qty: " + w[i]);
+            items.add(new BOMItem(product(w[i].substring(0, star)), Integer.parseInt(w[i].substring(star + 1))));
+        }
+        service.defineBOM(arg(w, 1), items);
+        return "OK";
+    }
+    private String create(String[] w) throws InvalidOperationException, InsufficientStockException {
+        String site = w.length > 3 ? w[3] : service.getNetwork().primary().getName();
+        LocalDate due = w.length > 4 ? LocalDate.parse(w[4]) : null;
+        return "OK " + service.createWorkOrder(arg(w, 1), number(w, 2), site, due).getDisplayId();
+    }
+    private String issue(String[] w) throws InvalidOperationException, InsufficientStockException {
+        WorkOrder wo = workOrder(w);
+        if (w.length > 2) return "OK " + service.issueMaterial(wo.getId(), w[2], number(w, 3)).size();
+        return "OK " + service.issueMaterialsForWorkOrder(wo.getId()).size();
+    }
+    private String report(String[] w) throws InvalidOperationException, InsufficientStockException {
+        WorkOrder wo = workOrder(w);
+        boolean last = w.length > 3 && w[3].equalsIgnoreCase("LAST");
+        service.reportProduction(wo.getId(), number(w, 2), last);
+        return "OK " + wo.getProducedQuantity() + "/" + wo.getQuantity() + " " + wo.getStatus();
+    }
+    // live per-site figures: each pair exact, the sites read one after another
+    private String stock(String[] w) {
+        int ord = product(arg(w, 1)).getOrdinal();
+        StringBuilder sites = new StringBuilder();
+        long available = 0, reserved = 0;
+        for (Warehouse site : service.getNetwork().sites()) {
+            int a = site.getAvailable(ord), r = site.getReserved(ord);
+            sites.append(' ').append(site.getName()).append('=').append(a).append('/').append(r);
+            available += a;
+            reserved += r;
+        }
+        return "OK " + available + " " + reserved + sites;
+    }
+    private String atp(String[] w) throws InvalidOperationException {
+        String code = arg(w, 1);
+        LocalDate by = w.length > 2 ? LocalDate.parse(w[2]) : LocalDate.now();
+        return "OK " + service.buildable(code) + " " + service.availableToPromise(code, by);
+    }
+
+    private WorkOrder workOrder(String[] w) throws InvalidOperationException {
+        long id = IdGenerator.WORK_ORDERS.parse(arg(w, 1));
+        WorkOrder wo = id < 0 ? null : service.getWorkOrder(id);
+        if (wo == null) throw new InvalidOperationException("WorkOrder not found: " + w[1]);
+        return wo;
+    }
+    private Product product(String code) {
+        Product p = service.getProduct(code);
+        if (p == null) throw new IllegalArgumentException("Product not found: " + code);
+        return p;
+    }
+    private static String arg(String[] w, int i) {
+        if (i >= w.length) throw new IllegalArgumentException("Too few arguments to " + w[0]);
+        return w[i];
+    }
+    private static int number(String[] w, int i) {
+        try {
+            return Integer.parseInt(arg(w, i));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not a number: " + w[i]);
+        }
+    }
+    // replies are one line each
+    private static String error(String message) {
+        return "ERR " + String.valueOf(message).replace('\n', ' ').replace('\r', ' ');
+    }
+}
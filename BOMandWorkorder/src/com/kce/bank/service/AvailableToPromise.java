@@ -0,0 +1,202 @@
+package com.kce.bank.service;
+import com.kce.bank.model.BOM;
+import com.kce.bank.model.BOMItem;
+import com.kce.bank.model.ProductCatalog;
+import com.kce.bank.model.RequirementVector;
+import com.kce.bank.model.StockNetwork;
+import com.kce.bank.model.Warehouse;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+/*
+ * Cached buildable quantity per assembly: how many could be made now from the
+ * available stock across all sites, of its sub-assemblies as well as its leaf
+ * components. Each assembly has one packed cell (state, version, quantity). A
+ * stock change looks up the assemblies that use the product in the 'usedBy'
+ * index (product -> assemblies with it anywhere below them, registered when an
+ * assembly is first computed) and marks them invalid. Only a valid or computing
+ * cell is written, so once an assembly is invalid further movements of its
+ * components cost a read until it is queried again; reservations never wait on
+ * a query.
+ *
+ * A computation claims the cell (COMPUTING), reads the stock and publishes the
+ * result only if nothing invalidated the cell meanwhile; otherwise the answer
+ * is returned uncached. One that throws hands the cell back invalid. BOM and
+ * planning changes drop everything.
+ */
+class AvailableToPromise implements Warehouse.StockListener {
+    private static final long INVALID = 0, COMPUTING = 1, VALID = 2;
+    private final Map<String, BOM> boms;
+    private final BOMExplosion explosion;
+    private final StockNetwork network;
+    private final ProductCatalog catalog;
+    private volatile Generation current = new Generation(1024);
+    AvailableToPromise(Map<String, BOM> boms, BOMExplosion explosion, StockNetwork network) {
+        this.boms = boms;
+        this.explosion = explosion;
+        this.network = network;
+        this.catalog = network.getCatalog();
+    }
+    // BOMs or lead times changed
+    synchronized void invalidateAll() { current = new Generation(Math.max(1024, catalog.size())); }
+
+    public void availableChanged(int ordinal) {
+        Generation g = current;
+        int[][] usedBy = g.usedBy;
+        int[] assemblies = ordinal < usedBy.length ? usedBy[ordinal] : null;
+        if (assemblies == null) return;
+        for (int a : assemblies) g.invalidate(a);
+    }
+
+    int buildable(int ordinal) {
+        Generation g = current;
+        if (ordinal >= g.cells.length()) g = grow(ordinal);
+        long v = g.cells.get(ordinal);
+        if (state(v) == VALID) return quantity(v);
+        RequirementVector perUnit = explosion.perUnit(ordinal);
+        // nothing to build it from
+        if (perUnit.size() == 0) return 0;
+        if (!g.registered(ordinal)) register(g, ordinal, below(ordinal));
+        // claim the cell; an invalidation from here on makes the result uncacheable
+        long computing = pack(COMPUTING, version(v), 0);
+        boolean claimed = state(v) == INVALID && g.cells.compareAndSet(ordinal, v, computing);
+        try {
+            int q = compute(ordinal, perUnit);
+            if (claimed) g.cells.compareAndSet(ordinal, computing, pack(VALID, version(v), q));
+            return q;
+        } finally {
+            // still COMPUTING only if compute threw: handed back to be cached again
+            if (claimed) g.cells.compareAndSet(ordinal, computing, pack(INVALID, version(v) + 1, 0));
+        }
+    }
+    // What the leaves alone allow, stretched by any sub-assemblies on hand: the
+    // quantity is grown while its explosion netted against stock still fits, then
+    // bisected.
+    private int compute(int ordinal, RequirementVector perUnit) {
+        int q = Integer.MAX_VALUE;
+        for (int i = 0; i < perUnit.size() && q > 0; i++) q = Math.min(q, network.getAvailable(perUnit.ordinal(i)) / perUnit.quantity(i));
+        if (q == Integer.MAX_VALUE || !fits(ordinal, q + 1)) return q;
+        int lo = q + 1, hi = lo;
+        while (hi < Integer.MAX_VALUE && fits(ordinal, hi)) {
+            lo = hi;
+            hi = (int) Math.min(Integer.MAX_VALUE, 2L * hi);
+        }
+        if (hi == Integer.MAX_VALUE && fits(ordinal, hi)) return hi;
+        // lo fits, hi does not
+        while (hi - lo > 1) {
+            int mid = lo + (hi - lo) / 2;
+            if (fits(ordinal, mid)) lo = mid;
+            else hi = mid;
+        }
+        return lo;
+    }
+    private boolean fits(int ordinal, int qty) {
+        RequirementVector need;
+        try {
+            need = explosion.explode(ordinal, qty, network::getAvailable);
+        } catch (ArithmeticException e) {
+            return false;
+        }
+        for (int i = 0; i < need.size(); i++) if (network.getAvailable(need.ordinal(i)) < need.quantity(i)) return false;
+        return true;
+    }
+    // every product under an assembly, sub-assemblies and leaves, each once
+    private int[] below(int ordinal) {
+        BitSet seen = new BitSet();
+        int[] stack = { ordinal };
+        int top = 1;
+        while (top > 0) {
+            BOM bom = boms.get(catalog.get(stack[--top]).getCode());
+            if (bom == null) continue;
+            for (BOMItem it : bom.getItems()) {
+                int c = it.getComponent().getOrdinal();
+                if (seen.get(c)) continue;
+                seen.set(c);
+                if (top == stack.length) stack = Arrays.copyOf(stack, top * 2);
+                stack[top++] = c;
+            }
+        }
+        return seen.stream().toArray();
+    }
+    // whether a figure is held for the assembly
+    boolean cached(int ordinal) {
+        Generation g = current;
+        return ordinal < g.cells.length() && state(g.cells.get(ordinal)) == VALID;
+    }
+    // Days from starting the deepest component to finishing the product: lead
+    // times and BOM line offsets along the longest path. Cached with the quantity,
+    // for every product on the way, so shared subassemblies are walked once.
+    int cumulativeLeadTime(int ordinal) {
+        Generation g = current;
+        if (ordinal >= g.cells.length()) g = grow(ordinal);
+        return leadTime(g, ordinal);
+    }
+    private int leadTime(Generation g, int ordinal) {
+        // a product added since the generation began is worked out but not cached
+        boolean cacheable = ordinal < g.leadTimes.length;
+        if (cacheable && g.leadTimes[ordinal] != 0) return g.leadTimes[ordinal] - 1;
+        int own = catalog.get(ordinal).getLeadTimeDays();
+        BOM bom = boms.get(catalog.get(ordinal).getCode());
+        int below = 0;
+        if (bom != null) {
+            for (BOMItem it : bom.getItems()) below = Math.max(below, it.getLeadTimeOffsetDays() + leadTime(g, it.getComponent().getOrdinal()));
+        }
+        if (cacheable) g.leadTimes[ordinal] = own + below + 1;
+        return own + below;
+    }
+
+    private synchronized void register(Generation g, int assembly, int[] below) {
+        if (g.registered(assembly)) return;
+        int[][] usedBy = g.usedBy;
+        int max = -1;
+        for (int c : below) max = Math.max(max, c);
+        int[][] grown = max < usedBy.length ? usedBy.clone() : Arrays.copyOf(usedBy, Math.max(max + 1, usedBy.length * 2));
+        for (int c : below) {
+            int[] old = grown[c];
+            int[] now = old == null ? new int[1] : Arrays.copyOf(old, old.length + 1);
+            now[now.length - 1] = assembly;
+            grown[c] = now;
+        }
+        g.registered[assembly] = true;
+        // published before the cell can become valid, so no later movement is missed
+        g.usedBy = grown;
+    }
+    // a new product outgrew the cells: start a fresh generation large enough for it
+    private synchronized Generation grow(int ordinal) {
+        if (ordinal >= current.cells.length()) current = new Generation(Math.max(ordinal + 1, current.cells.length() * 2));
+        return current;
+    }
+
+    private static long pack(long state, long version, int quantity) { return state << 62 | (version & 0x3FFFFFFFL) << 32 | (quantity & 0xFFFFFFFFL); }
+    private static long state(long v) { return v >>> 62; }
+    private static long version(long v) { return (v >>> 32) & 0x3FFFFFFFL; }
+    private static int quantity(long v) { return (int) v; }
+
+    private static final class Generation {
+        final AtomicLongArray cells;
+        // by component ordinal; arrays are replaced, never changed, once published
+        volatile int[][] usedBy = new int[0][];
+        // written under the AvailableToPromise lock
+        final boolean[] registered;
+        // cumulative lead time + 1, 0 while unknown; racy but idempotent
+        final int[] leadTimes;
+        Generation(int size) {
+            cells = new AtomicLongArray(size);
+            registered = new boolean[size];
+            leadTimes = new int[size];
+        }
+        boolean registered(int assembly) {
+            // the volatile read of usedBy makes the flag set before its publication visible
+            int[][] published = usedBy;
+            return published.length > 0 && registered[assembly];
+        }
+        void invalidate(int assembly) {
+            while (true) {
+                long v = cells.get(assembly);
+                if (state(v) == INVALID) return;
+                if (cells.compareAndSet(assembly, v, pack(INVALID, version(v) + 1, 0))) return;
+            }
+        }
+    }
+}
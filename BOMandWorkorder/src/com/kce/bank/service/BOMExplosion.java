@@ -0,0 +1,334 @@
+package com.kce.bank.service;
+import com.kce.bank.exception.InvalidOperationException;
+import com.kce.bank.model.BOM;
+import com.kce.bank.model.BOMItem;
+import com.kce.bank.model.Product;
+import com.kce.bank.model.ProductCatalog;
+import com.kce.bank.model.RequirementVector;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.IntUnaryOperator;
+/*
+ * Multi-level explosion over the BOMs owned by MRPService. Every product's BOM is
+ * flattened once into a per-unit vector of leaf components (components without a
+ * BOM of their own) and cached; defineBOM only drops the cache of the changed
+ * product and the assemblies that use it. Work orders explode against stock
+ * instead, stopping at any sub-assembly that is on hand; the sub-assemblies
+ * under each product are cached with its vector, so while none of them is in
+ * stock that explosion is the cached vector too.
+ */
+class BOMExplosion {
+    private final Map<String, BOM> boms;
+    private final ProductCatalog catalog;
+    // indexed by product ordinal; replaced (under the lock) when the catalog outgrows it
+    private volatile AtomicReferenceArray<Flat> perUnit = new AtomicReferenceArray<>(1024);
+    // where-used by component ordinal: the first whereUsedCount[c] entries of
+    // whereUsed[c] are the assemblies with a line for c (one entry per line)
+    private int[][] whereUsed = new int[1024][];
+    private int[] whereUsedCount = new int[1024];
+    // products that have a BOM, by ordinal; lets walks skip leaves without a map lookup
+    private final BitSet assemblies = new BitSet();
+    private List<String> lowLevelOrder;
+    private Map<String, Integer> lowLevelCodes;
+    BOMExplosion(Map<String, BOM> boms, ProductCatalog catalog) {
+        this.boms = boms;
+        this.catalog = catalog;
+    }
+    synchronized void checkAcyclic(String productCode, List<BOMItem> items) throws InvalidOperationException {
+        Deque<String> stack = new ArrayDeque<>();
+        Set<String> seen = new HashSet<>();
+        for (BOMItem it : items) stack.push(it.getComponent().getCode());
+        while (!stack.isEmpty()) {
+            String code = stack.pop();
+            if (code.equals(productCode))
+                throw new InvalidOperationException("BOM for " + productCode + " would make it a component of itself");
+            if (!seen.add(code)) continue;
+            BOM child = boms.get(code);
+            if (child != null) for (BOMItem it : child.getItems()) stack.push(it.getComponent().getCode());
+        }
+    }
+    synchronized void bomChanged(String productCode, BOM oldBom, BOM newBom) {
+        relink(newBom.getFinishedProduct().getOrdinal(), oldBom, newBom);
+        invalidateAncestors(List.of(productCode));
+        lowLevelOrder = null;
+        lowLevelCodes = null;
+    }
+    // Bulk form of checkAcyclic: one walk from the batch's products over the
+    // stored BOMs as the batch would leave them. Nothing is changed.
+    synchronized void checkAcyclic(List<BOM> batch) throws InvalidOperationException {
+        Map<String, BOM> pending = new HashMap<>();
+        for (BOM bom : batch) pending.put(bom.getFinishedProduct().getCode(), bom);
+        String cyclic = findCycle(pending);
+        if (cyclic != null) throw new InvalidOperationException("BOM for " + cyclic + " would make it a component of itself");
+    }
+    // Bulk form of put and bomChanged for a batch that checkAcyclic accepted.
+    synchronized void defineAll(List<BOM> batch) {
+        Map<String, BOM> previous = new HashMap<>();
+        for (BOM bom : batch) {
+            String code = bom.getFinishedProduct().getCode();
+            BOM old = boms.put(code, bom);
+            if (!previous.containsKey(code)) previous.put(code, old);
+            assemblies.set(bom.getFinishedProduct().getOrdinal());
+        }
+        for (Map.Entry<String, BOM> e : previous.entrySet()) {
+            BOM now = boms.get(e.getKey());
+            relink(now.getFinishedProduct().getOrdinal(), e.getValue(), now);
+        }
+        invalidateAncestors(previous.keySet());
+        lowLevelOrder = null;
+        lowLevelCodes = null;
+    }
+    private void relink(int product, BOM oldBom, BOM newBom) {
+        assemblies.set(product);
+        if (oldBom != null) for (BOMItem it : oldBom.getItems()) unlink(it.getComponent().getOrdinal(), product);
+        for (BOMItem it : newBom.getItems()) link(it.getComponent().getOrdinal(), product);
+    }
+    private void link(int component, int parent) {
+        if (component >= whereUsed.length) {
+            int n = Math.max(component + 1, whereUsed.length * 2);
+            whereUsed = Arrays.copyOf(whereUsed, n);
+            whereUsedCount = Arrays.copyOf(whereUsedCount, n);
+        }
+        int[] parents = whereUsed[component];
+        int n = whereUsedCount[component];
+        if (parents == null) whereUsed[component] = parents = new int[2];
+        else if (n == parents.length) whereUsed[component] = parents = Arrays.copyOf(parents, n * 2);
+        parents[n] = parent;
+        whereUsedCount[component] = n + 1;
+    }
+    private void unlink(int component, int parent) {
+        if (component >= whereUsed.length) return;
+        int[] parents = whereUsed[component];
+        int n = whereUsedCount[component];
+        for (int i = 0; i < n; i++) {
+            if (parents[i] == parent) {
+                parents[i] = parents[n - 1];
+                whereUsedCount[component] = n - 1;
+                return;
+            }
+        }
+    }
+    // Depth-first from the given products, marking each product on the current path
+    // (1) or finished (2); reaching a product on the path closes a cycle. The
+    // pending BOMs are walked in place of the stored ones for their products.
+    private String findCycle(Map<String, BOM> pending) {
+        byte[] state = new byte[catalog.size()];
+        Deque<Iterator<BOMItem>> path = new ArrayDeque<>();
+        Deque<Integer> onPath = new ArrayDeque<>();
+        for (BOM root : pending.values()) {
+            int r = root.getFinishedProduct().getOrdinal();
+            if (state[r] != 0) continue;
+            state[r] = 1;
+            path.push(root.getItems().iterator());
+            onPath.push(r);
+            while (!path.isEmpty()) {
+                Iterator<BOMItem> items = path.peek();
+                if (!items.hasNext()) {
+                    path.pop();
+                    state[onPath.pop()] = 2;
+                    continue;
+                }
+                Product comp = items.next().getComponent();
+                int c = comp.getOrdinal();
+                if (state[c] == 1) return comp.getCode();
+                if (state[c] == 2) continue;
+                BOM child = pending.containsKey(comp.getCode()) ? pending.get(comp.getCode()) : assemblies.get(c) ? boms.get(comp.getCode()) : null;
+                if (child == null) {
+                    state[c] = 2;
+                    continue;
+                }
+                state[c] = 1;
+                path.push(child.getItems().iterator());
+                onPath.push(c);
+            }
+        }
+        return null;
+    }
+    // Drops the cached vectors of the changed products and of the assemblies above
+    // them. Caching an assembly caches its sub-assemblies, and dropping one always
+    // drops everything above it, so the walk stops at assemblies with no vector.
+    private void invalidateAncestors(Collection<String> changed) {
+        int[] stack = new int[64];
+        int top = 0;
+        for (String code : changed) {
+            int ord = catalog.ordinal(code);
+            if (ord < perUnit.length()) perUnit.set(ord, null);
+            if (ord >= whereUsed.length) continue;
+            for (int i = 0; i < whereUsedCount[ord]; i++) {
+                if (top == stack.length) stack = Arrays.copyOf(stack, top * 2);
+                stack[top++] = whereUsed[ord][i];
+            }
+        }
+        while (top > 0) {
+            int ord = stack[--top];
+            if (ord >= perUnit.length() || perUnit.get(ord) == null) continue;
+            perUnit.set(ord, null);
+            if (ord >= whereUsed.length) continue;
+            for (int i = 0; i < whereUsedCount[ord]; i++) {
+                if (top == stack.length) stack = Arrays.copyOf(stack, top * 2);
+                stack[top++] = whereUsed[ord][i];
+            }
+        }
+    }
+    // a product's leaf components per unit, and every sub-assembly under it once
+    private record Flat(RequirementVector leaves, int[] subAssemblies) {}
+    private static final Flat LEAF = new Flat(RequirementVector.EMPTY, new int[0]);
+    RequirementVector perUnit(int ordinal) { return flat(ordinal).leaves(); }
+    private Flat flat(int ordinal) {
+        AtomicReferenceArray<Flat> cache = perUnit;
+        Flat cached = ordinal < cache.length() ? cache.get(ordinal) : null;
+        if (cached != null) return cached;
+        synchronized (this) {
+            return flatten(ordinal);
+        }
+    }
+    RequirementVector explode(int ordinal, int qty) {
+        return perUnit(ordinal).times(qty);
+    }
+    // explode, netted level by level: a sub-assembly line is met first from the
+    // sub-assembly's own stock ('available' by ordinal) and only the shortfall is
+    // exploded further, so the result can hold sub-assemblies as well as leaves.
+    // Stock counted against one line is not offered again to another.
+    // Only when some sub-assembly under the product has stock is the BOM walked.
+    RequirementVector explode(int ordinal, int qty, IntUnaryOperator available) {
+        Flat flat = flat(ordinal);
+        boolean stocked = false;
+        for (int i = 0; i < flat.subAssemblies().length && !stocked; i++) stocked = available.applyAsInt(flat.subAssemblies()[i]) > 0;
+        if (!stocked) return flat.leaves().times(qty);
+        BOM bom = boms.get(catalog.get(ordinal).getCode());
+        if (bom == null) return RequirementVector.EMPTY;
+        Netting net = new Netting(available);
+        net.add(bom, qty);
+        return RequirementVector.ofPacked(net.entries, net.count);
+    }
+    private Flat flatten(int ordinal) {
+        if (ordinal >= perUnit.length()) {
+            AtomicReferenceArray<Flat> grown = new AtomicReferenceArray<>(Math.max(ordinal + 1, perUnit.length() * 2));
+            for (int i = 0; i < perUnit.length(); i++) grown.set(i, perUnit.get(i));
+            perUnit = grown;
+        }
+        Flat cached = perUnit.get(ordinal);
+        if (cached != null) return cached;
+        BOM bom = boms.get(catalog.get(ordinal).getCode());
+        if (bom == null) return LEAF;
+        long[] entries = new long[16];
+        int n = 0;
+        BitSet subs = new BitSet();
+        for (BOMItem it : bom.getItems()) {
+            int child = it.getComponent().getOrdinal();
+            if (boms.containsKey(it.getComponent().getCode())) {
+                Flat sub = flatten(child);
+                RequirementVector leaves = sub.leaves();
+                if (n + leaves.size() > entries.length) entries = Arrays.copyOf(entries, Math.max(entries.length * 2, n + leaves.size()));
+                for (int i = 0; i < leaves.size(); i++)
+                    entries[n++] = RequirementVector.pack(leaves.ordinal(i), Math.multiplyExact(leaves.quantity(i), it.getQtyPerProduct()));
+                subs.set(child);
+                for (int s : sub.subAssemblies()) subs.set(s);
+            } else {
+                if (n == entries.length) entries = Arrays.copyOf(entries, n * 2);
+                entries[n++] = RequirementVector.pack(child, it.getQtyPerProduct());
+            }
+        }
+        Flat result = new Flat(RequirementVector.ofPacked(entries, n), subs.stream().toArray());
+        perUnit.set(ordinal, result);
+        return result;
+    }
+    private final class Netting {
+        final IntUnaryOperator available;
+        final Map<Integer, Integer> taken = new HashMap<>();
+        final Map<Integer, Boolean> stocked = new HashMap<>();
+        long[] entries = new long[16];
+        int count;
+        Netting(IntUnaryOperator available) { this.available = available; }
+        void add(BOM bom, int qty) {
+            for (BOMItem it : bom.getItems()) {
+                int child = it.getComponent().getOrdinal();
+                int need = Math.multiplyExact(it.getQtyPerProduct(), qty);
+                BOM sub = boms.get(it.getComponent().getCode());
+                if (sub == null) {
+                    line(child, need);
+                    continue;
+                }
+                int used = taken.getOrDefault(child, 0);
+                int take = Math.min(need, Math.max(0, available.applyAsInt(child) - used));
+                if (take > 0) {
+                    taken.put(child, used + take);
+                    line(child, take);
+                }
+                if (take >= need) continue;
+                if (stockBelow(sub)) add(sub, need - take);
+                else {
+                    // nothing to net further down: the cached leaf vector will do
+                    RequirementVector leaves = perUnit(child);
+                    for (int i = 0; i < leaves.size(); i++) line(leaves.ordinal(i), Math.multiplyExact(leaves.quantity(i), need - take));
+                }
+            }
+        }
+        // whether any sub-assembly under the BOM has stock; shared ones are looked at once
+        boolean stockBelow(BOM bom) {
+            int ord = bom.getFinishedProduct().getOrdinal();
+            Boolean known = stocked.get(ord);
+            if (known != null) return known;
+            boolean any = false;
+            for (BOMItem it : bom.getItems()) {
+                BOM sub = boms.get(it.getComponent().getCode());
+                if (sub != null && (available.applyAsInt(it.getComponent().getOrdinal()) > 0 || stockBelow(sub))) {
+                    any = true;
+                    break;
+                }
+            }
+            stocked.put(ord, any);
+            return any;
+        }
+        void line(int ordinal, int qty) {
+            if (count == entries.length) entries = Arrays.copyOf(entries, count * 2);
+            entries[count++] = RequirementVector.pack(ordinal, qty);
+        }
+    }
+    synchronized int lowLevelCode(String productCode) {
+        computeLowLevelCodes();
+        return lowLevelCodes.getOrDefault(productCode, 0);
+    }
+    synchronized List<String> lowLevelOrder() {
+        computeLowLevelCodes();
+        return lowLevelOrder;
+    }
+    // Kahn's algorithm over parent -> component edges; a product's low-level code is
+    // the deepest level at which it appears in any structure.
+    private void computeLowLevelCodes() {
+        if (lowLevelOrder != null) return;
+        Map<String, Integer> inDegree = new HashMap<>();
+        for (Map.Entry<String, BOM> e : boms.entrySet()) {
+            inDegree.putIfAbsent(e.getKey(), 0);
+            for (String child : distinctChildren(e.getValue())) inDegree.merge(child, 1, Integer::sum);
+        }
+        Map<String, Integer> codes = new HashMap<>();
+        Deque<String> ready = new ArrayDeque<>();
+        for (Map.Entry<String, Integer> e : inDegree.entrySet()) {
+            if (e.getValue() == 0) {
+                ready.add(e.getKey());
+                codes.put(e.getKey(), 0);
+            }
+        }
+        List<String> order = new ArrayList<>(inDegree.size());
+        while (!ready.isEmpty()) {
+            String code = ready.poll();
+            order.add(code);
+            BOM bom = boms.get(code);
+            if (bom == null) continue;
+            int level = codes.get(code) + 1;
+            for (String child : distinctChildren(bom)) {
+                codes.merge(child, level, Math::max);
+                if (inDegree.merge(child, -1, Integer::sum) == 0) ready.add(child);
+            }
+        }
+        order.sort(Comparator.comparingInt((String c) -> codes.get(c)).thenComparing(Comparator.naturalOrder()));
+        lowLevelCodes = codes;
+        lowLevelOrder = Collections.unmodifiableList(order);
+    }
+    private static Set<String> distinctChildren(BOM bom) {
+        Set<String> children = new LinkedHashSet<>();
+        for (BOMItem it : bom.getItems()) children.add(it.getComponent().getCode());
+        return children;
+    }
+}
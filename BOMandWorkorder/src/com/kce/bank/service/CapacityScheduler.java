@@ -0,0 +1,356 @@
+package com.kce.bank.service;
+import com.kce.bank.model.*;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.stream.Collectors;
+/*
+ * Finite-capacity backward scheduling of the open work orders that have a due
+ * date. An order's BOM tree becomes one operation per node: the order's product
+ * finishes by the due date, and each component finishes by the day before its
+ * parent starts, less the BOM line's offset. An operation lasts its product's
+ * lead time (at least one day) and, at its work center, books quantity x
+ * minutes per unit spread evenly over those days; components with no work
+ * center take time but no capacity.
+ *
+ * Orders are placed in priority order off a priority queue, earliest due date
+ * first, then lowest id. Each operation goes as late as it fits in the capacity
+ * higher-priority orders left, never before today; if nothing fits it goes
+ * forward from its latest finish and the order is late, and if nothing fits
+ * within MAX_SLIP days it is booked at its latest finish regardless.
+ *
+ * A change to one order is rippled rather than rerun. The order is queued
+ * again; placing it queues the lower-priority occupants of any day it overfills
+ * and, if an order's placement changed, the lower-priority operations that
+ * could move into the capacity it gave up (those not yet at their latest
+ * finish). Placing an order only ever affects lower-priority ones, so draining
+ * the queue in priority order gives the same schedule as a full run, having
+ * touched only the orders whose placement could change. In an overloaded
+ * schedule that can be most of them, and the ripple gives way to a rebuild.
+ */
+class CapacityScheduler {
+    private static final int MAX_SLIP = 366;
+    // A rippled placement costs some tens of times one in a full run (priority
+    // checks, waking neighbours), so a ripple that spreads past this share of the
+    // orders, as in a heavily overloaded schedule, is abandoned for a rebuild.
+    private static final int RIPPLE_SHARE = 32;
+    private static final Comparator<Order> PRIORITY = Comparator.<Order>comparingLong(o -> o.due).thenComparingLong(o -> o.id);
+    private final Map<String, BOM> boms;
+    private final WorkOrderIndex workOrders;
+    private final Map<Long, Order> orders = new HashMap<>();
+    private final Map<WorkCenter, Load> loads = new HashMap<>();
+    private final PriorityQueue<Order> queue = new PriorityQueue<>(PRIORITY);
+    private long today;
+    // planning data changed: rebuild everything on next use
+    private boolean stale = true;
+    // every order in the queue is new, so all booked load has higher priority
+    private boolean building;
+    private int placed;
+    CapacityScheduler(Map<String, BOM> boms, WorkOrderIndex workOrders) {
+        this.boms = boms;
+        this.workOrders = workOrders;
+    }
+    synchronized void invalidate() { stale = true; }
+    // how many orders the last change or rebuild placed
+    synchronized int lastPlaced() { return placed; }
+    synchronized void rebuild() {
+        orders.clear();
+        loads.clear();
+        queue.clear();
+        today = LocalDate.now().toEpochDay();
+        stale = false;
+        try (var open = workOrders.find(new WorkOrderQuery().open())) {
+            open.forEach(wo -> {
+                LocalDate due = wo.getDueDate();
+                if (due == null) return;
+                Order o = order(wo, due);
+                orders.put(o.id, o);
+                enqueue(o);
+            });
+        }
+        building = true;
+        try {
+            drain();
+        } finally {
+            building = false;
+        }
+    }
+
+    // ---- changes
+
+    // A new dated order, or a dated order whose due date changed. Callers check
+    // the order outside this lock, so one that has completed or lost its date
+    // since is taken off, not put back after the last lot removed it.
+    synchronized void update(WorkOrder wo) {
+        if (stale) return;
+        LocalDate due = wo.getDueDate();
+        if (due == null || wo.getStatus() == WorkOrder.Status.COMPLETED) {
+            remove(wo.getId());
+            return;
+        }
+        Order o = orders.get(wo.getId());
+        if (o != null) {
+            // gives up its capacity at its old priority, then queues at the new one
+            queue.remove(o);
+            long[] before = o.placement();
+            release(o);
+            wake(o, before, null);
+            o.due = due.toEpochDay();
+        } else {
+            o = order(wo, due);
+            orders.put(o.id, o);
+        }
+        o.queued = false;
+        enqueue(o);
+        drain();
+    }
+    synchronized void remove(long id) {
+        if (stale) return;
+        Order o = orders.remove(id);
+        if (o == null) return;
+        queue.remove(o);
+        long[] before = o.placement();
+        release(o);
+        wake(o, before, null);
+        drain();
+    }
+
+    // ---- queries
+
+    synchronized List<ScheduledOperation> operations(long id) {
+        if (stale) rebuild();
+        Order o = orders.get(id);
+        if (o == null) return Collections.emptyList();
+        List<ScheduledOperation> ops = new ArrayList<>(o.ops.length);
+        for (Op op : o.ops) {
+            ops.add(new ScheduledOperation(op.product, op.load == 0 ? null : op.workCenter, op.quantity, op.load,
+                    LocalDate.ofEpochDay(op.start), LocalDate.ofEpochDay(op.finish), LocalDate.ofEpochDay(op.latest)));
+        }
+        return ops;
+    }
+    synchronized List<CapacityBucket> load(WorkCenter wc, LocalDate from, LocalDate to) {
+        if (stale) rebuild();
+        Load l = loads.get(wc);
+        List<CapacityBucket> buckets = new ArrayList<>();
+        for (long day = from.toEpochDay(); day <= to.toEpochDay(); day++)
+            buckets.add(new CapacityBucket(LocalDate.ofEpochDay(day), wc.getCapacity(day), l == null ? 0 : l.used(day)));
+        return buckets;
+    }
+    // ids of the orders with an operation finishing after it is needed
+    synchronized List<Long> late() {
+        if (stale) rebuild();
+        return orders.values().stream().filter(Order::isLate).sorted(PRIORITY).map(o -> o.id).collect(Collectors.toList());
+    }
+
+    // ---- placing
+
+    private void enqueue(Order o) {
+        if (o.queued) return;
+        o.queued = true;
+        queue.add(o);
+    }
+    private void drain() {
+        placed = 0;
+        for (Order o; (o = queue.poll()) != null; ) {
+            if (!building && placed > orders.size() / RIPPLE_SHARE) {
+                rebuild();
+                return;
+            }
+            o.queued = false;
+            long[] before = o.placement();
+            release(o);
+            place(o);
+            placed++;
+            // the capacity it gave up may let lower-priority operations move later
+            wake(o, before, o.placement());
+        }
+    }
+    private void place(Order o) {
+        List<Order> bumped = new ArrayList<>();
+        for (Op op : o.ops) {
+            op.latest = op.parent < 0 ? o.due : o.ops[op.parent].start - 1 - op.offset;
+            long best = Math.max(op.latest, today + op.days - 1);
+            long finish = best;
+            Load l = op.load == 0 ? null : load(op.workCenter);
+            boolean forced = false;
+            if (l != null) {
+                finish = Long.MIN_VALUE;
+                for (long f = best; f >= today + op.days - 1 && finish == Long.MIN_VALUE; f--) if (fits(l, op, f)) finish = f;
+                for (long f = best + 1; f <= best + MAX_SLIP && finish == Long.MIN_VALUE; f++) if (fits(l, op, f)) finish = f;
+                forced = finish == Long.MIN_VALUE;
+                if (forced) finish = best;
+            }
+            op.best = best;
+            op.finish = finish;
+            op.start = finish - op.days + 1;
+            // Days on which freed capacity could change where it goes: those it
+            // tried before settling for a day short of its best, or all it tried
+            // once it was pushed past its best or forced.
+            op.displaced = finish != best || forced;
+            op.reachFrom = finish < best ? op.start : today;
+            op.reachTo = forced ? best + MAX_SLIP : Math.max(finish, best);
+            if (l != null) claim(l, op, bumped);
+        }
+        for (Order b : bumped) enqueue(b);
+    }
+    // fits in what this order and higher-priority orders leave free on every day
+    private boolean fits(Load l, Op op, long finish) {
+        long start = finish - op.days + 1;
+        for (int i = 0; i < op.days; i++) {
+            long day = start + i;
+            long share = op.share(i);
+            int cap = l.wc.getCapacity(day);
+            if (l.used(day) + share <= cap) continue;
+            if (share > cap || (building ? l.used(day) : l.usedFrom(day, op.order, false)) + share > cap) return false;
+        }
+        return true;
+    }
+    private void claim(Load l, Op op, List<Order> bumped) {
+        if (op.displaced) l.displaced.add(op);
+        for (int i = 0; i < op.days; i++) {
+            long day = op.start + i;
+            l.add(day, op, op.share(i));
+            int cap = l.wc.getCapacity(day);
+            if (building || l.used(day) <= cap) continue;
+            // overfilled: the lowest-priority occupants have to move
+            List<Op> lower = l.occupants(day).stream().filter(q -> PRIORITY.compare(q.order, op.order) > 0)
+                    .sorted((a, b) -> PRIORITY.compare(b.order, a.order)).collect(Collectors.toList());
+            long over = l.used(day) - cap;
+            for (Op q : lower) {
+                if (over <= 0) break;
+                over -= q.share((int) (day - q.start));
+                if (!q.order.queued && !bumped.contains(q.order)) bumped.add(q.order);
+            }
+        }
+    }
+    // takes the order's load off the books and leaves it unplaced
+    private void release(Order o) {
+        for (Op op : o.ops) {
+            if (!op.placed()) continue;
+            if (op.load != 0) {
+                Load l = load(op.workCenter);
+                l.displaced.remove(op);
+                for (int i = 0; i < op.days; i++) l.remove(op.start + i, op, op.share(i));
+            }
+            op.start = Long.MIN_VALUE;
+        }
+    }
+    // Queues the lower-priority operations that may have been held back from the
+    // days the order booked before: for every operation that has moved since,
+    // or all of them when 'after' is null.
+    private void wake(Order o, long[] before, long[] after) {
+        if (before == null) return;
+        for (int k = 0; k < o.ops.length; k++) {
+            Op op = o.ops[k];
+            if (op.load == 0) continue;
+            long from = before[2 * k], to = before[2 * k + 1];
+            if (after != null && after[2 * k] == from && after[2 * k + 1] == to) continue;
+            for (Op q : load(op.workCenter).displaced) {
+                if (PRIORITY.compare(q.order, o) > 0 && q.reachFrom <= to && q.reachTo >= from) enqueue(q.order);
+            }
+        }
+    }
+    private Load load(WorkCenter wc) { return loads.computeIfAbsent(wc, Load::new); }
+
+    // The order's BOM tree as operations, parents before children, with the
+    // planning data as it is now.
+    private Order order(WorkOrder wo, LocalDate due) {
+        Order o = new Order(wo.getId(), due.toEpochDay());
+        List<Op> ops = new ArrayList<>();
+        ops.add(new Op(o, wo.getProduct(), -1, 0, wo.getQuantity()));
+        for (int k = 0; k < ops.size(); k++) {
+            Op parent = ops.get(k);
+            BOM bom = boms.get(parent.product.getCode());
+            if (bom == null) continue;
+            for (BOMItem it : bom.getItems())
+                ops.add(new Op(o, it.getComponent(), k, it.getLeadTimeOffsetDays(), Math.multiplyExact(parent.quantity, (long) it.getQtyPerProduct())));
+        }
+        o.ops = ops.toArray(new Op[0]);
+        return o;
+    }
+
+    private static final class Order {
+        final long id;
+        long due;
+        Op[] ops;
+        boolean queued;
+        Order(long id, long due) {
+            this.id = id;
+            this.due = due;
+        }
+        boolean isLate() {
+            for (Op op : ops) if (op.finish > op.latest) return true;
+            return false;
+        }
+        // start and finish of every operation, null if never placed
+        long[] placement() {
+            if (!ops[0].placed()) return null;
+            long[] p = new long[ops.length * 2];
+            for (int k = 0; k < ops.length; k++) {
+                p[2 * k] = ops[k].start;
+                p[2 * k + 1] = ops[k].finish;
+            }
+            return p;
+        }
+    }
+    private static final class Op {
+        final Order order;
+        final Product product;
+        final int parent;
+        final int offset;
+        final long quantity;
+        final WorkCenter workCenter;
+        final int days;
+        final long load;
+        long start = Long.MIN_VALUE, finish, latest, best, reachFrom, reachTo;
+        // placed away from its best day, or over capacity, for want of capacity
+        boolean displaced;
+        Op(Order order, Product product, int parent, int offset, long quantity) {
+            this.order = order;
+            this.product = product;
+            this.parent = parent;
+            this.offset = offset;
+            this.quantity = quantity;
+            this.workCenter = product.getWorkCenter();
+            this.days = Math.max(1, product.getLeadTimeDays());
+            this.load = workCenter == null ? 0 : Math.multiplyExact(quantity, (long) product.getMinutesPerUnit());
+        }
+        boolean placed() { return start != Long.MIN_VALUE; }
+        // minutes booked on day i of the operation
+        long share(int i) { return load / days + (i < load % days ? 1 : 0); }
+    }
+    // booked minutes and the operations booking them, per day from today
+    private final class Load {
+        final WorkCenter wc;
+        long[] used = new long[64];
+        List<List<Op>> occupants = new ArrayList<>();
+        final Set<Op> displaced = new HashSet<>();
+        Load(WorkCenter wc) { this.wc = wc; }
+        long used(long day) {
+            long i = day - today;
+            return i >= 0 && i < used.length ? used[(int) i] : 0;
+        }
+        List<Op> occupants(long day) {
+            long i = day - today;
+            return i >= 0 && i < occupants.size() ? occupants.get((int) i) : Collections.emptyList();
+        }
+        // minutes booked by 'order' and orders of higher priority (lower, if !higher)
+        long usedFrom(long day, Order order, boolean lower) {
+            long sum = 0;
+            for (Op q : occupants(day))
+                if ((PRIORITY.compare(q.order, order) > 0) == lower) sum += q.share((int) (day - q.start));
+            return sum;
+        }
+        void add(long day, Op op, long share) {
+            int i = (int) (day - today);
+            if (i >= used.length) used = Arrays.copyOf(used, Math.max(i + 1, used.length * 2));
+            while (occupants.size() <= i) occupants.add(new ArrayList<>());
+            used[i] += share;
+            occupants.get(i).add(op);
+        }
+        void remove(long day, Op op, long share) {
+            int i = (int) (day - today);
+            used[i] -= share;
+            occupants.get(i).remove(op);
+        }
+    }
+}
@@ -1,84 +1,757 @@
 package com.kce.bank.service;
 import com.kce.bank.exception.InsufficientStockException;
 import com.kce.bank.exception.InvalidOperationException;
+import com.kce.bank.metrics.Metrics;
+import com.kce.bank.metrics.Operation;
 import com.kce.bank.model.*;
+import com.kce.bank.util.IdGenerator;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntUnaryOperator;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 public class MRPService {
-    private final Map<String, Product> products = new HashMap<>();
-    private final Map<String, BOM> boms = new HashMap<>();
-    private final Map<String, WorkOrder> workOrders = new LinkedHashMap<>();
+    private final ProductCatalog catalog;
+    private final Map<String, BOM> boms = new ConcurrentHashMap<>();
+    private final WorkOrderIndex workOrders;
+    private final StockNetwork network;
     private final Warehouse warehouse;
+    private final BOMExplosion explosion;
+    private final SiteAllocator allocator;
+    private final Metrics metrics;
+    private final Map<String, WorkCenter> workCenters = new ConcurrentHashMap<>();
+    private final CapacityScheduler scheduler;
+    private final AvailableToPromise atp;
+    // Lots, and work orders, reported or created at the same time are combined
+    // into batches. A caller queues its request and takes the batcher's combiner
+    // lock; whoever holds it drains the queue, moves the stock of the whole batch
+    // summed per site and product - one CAS per cell however many orders draw on
+    // it - and journals the batch in one commit. A caller whose request went out
+    // in someone else's batch finds it done when it gets the lock.
+    private final ProductionBatcher batcher;
+    private final ReservationBatcher reservations;
+    private volatile SourcingRule sourcing = SourcingRule.nearest();
+    private volatile TransactionLog log;
+    // Every change is journalled before it is published, so no record can reach
+    // the journal ahead of one it depends on: a receipt behind its product, an
+    // issue behind its work order. Definitions (sites, products, BOMs, work
+    // centers and their settings) also take this lock, so that two changes to one
+    // thing are journalled in the order they were made. A Lock, as the journal
+    // may force to disk while it is held.
+    private final ReentrantLock definitions = new ReentrantLock();
+    // Receipts are checked, journalled and added one at a time, so a receipt the
+    // site cannot hold is refused before it reaches the journal.
+    private final ReentrantLock receipts = new ReentrantLock();
     public MRPService(Warehouse warehouse) {
-        this.warehouse = warehouse;
+        this(new StockNetwork(warehouse));
     }
-    public void addProduct(String code, String name, int initialStock) {
-        if (products.containsKey(code)) throw new IllegalArgumentException("Product code exists: " + code);
-        Product p = new Product(code, name);
-        products.put(code, p);
-        if (initialStock > 0) warehouse.addStock(p, initialStock);
+    public MRPService(StockNetwork network) {
+        this.network = network;
+        this.warehouse = network.primary();
+        this.catalog = network.getCatalog();
+        this.explosion = new BOMExplosion(boms, catalog);
+        this.workOrders = new WorkOrderIndex(catalog);
+        this.allocator = new SiteAllocator(network);
+        this.metrics = new Metrics(network);
+        this.scheduler = new CapacityScheduler(boms, workOrders);
+        this.atp = new AvailableToPromise(boms, explosion, network);
+        network.setStockListener(atp);
+        this.batcher = new ProductionBatcher(network, allocator, workOrders, scheduler, metrics);
+        this.reservations = new ReservationBatcher(network, allocator, workOrders, scheduler, metrics);
     }
-    public Product getProduct(String code) { return products.get(code); }
-    public Collection<Product> allProducts() { return Collections.unmodifiableCollection(products.values()); }
+    public void setTransactionLog(TransactionLog log) {
+        this.log = log == null ? null : new TimedLog(log, metrics);
+        batcher.setTransactionLog(this.log);
+        reservations.setTransactionLog(this.log); }
+    public Metrics getMetrics() { return metrics; }
+    public void setSourcingRule(SourcingRule rule) { this.sourcing = Objects.requireNonNull(rule); }
+    public StockNetwork getNetwork() { return network; }
+    public Warehouse addSite(String name, int x, int y) throws InvalidOperationException {
+        return timed(Operation.ADD_SITE, () -> {
+            checkLength("Site name", name, TransactionLog.NAME_BYTES);
+            definitions.lock();
+            try {
+                if (network.site(name) != null) throw new IllegalArgumentException("Site exists: " + name);
+                if (log != null) log.siteAdded(network.size(), name, x, y);
+                return network.addSite(name, x, y);
+            } finally {
+                definitions.unlock();
+            }
+        });
+    }
+    public void addProduct(String code, String name, int initialStock) throws InvalidOperationException {
+        timed(Operation.ADD_PRODUCT, () -> {
+            checkLength("Product code", code, TransactionLog.CODE_BYTES);
+            definitions.lock();
+            try {
+                if (catalog.get(code) != null) throw new IllegalArgumentException("Product code exists: " + code);
+                if (log != null) log.productAdded(new Product(code, name), initialStock);
+                Product p = catalog.register(code, name);
+                if (initialStock > 0) warehouse.addStock(p, initialStock);
+            } finally {
+                definitions.unlock();
+            }
+        });
+    }
+    public void receiveStock(String siteName, String productCode, int qty) throws InvalidOperationException {
+        timed(Operation.RECEIVE_STOCK, () -> {
+            Warehouse site = site(siteName);
+            Product p = catalog.get(productCode);
+            if (p == null) throw new InvalidOperationException("Product not found: " + productCode);
+            if (qty <= 0) throw new InvalidOperationException("Received quantity invalid.");
+            receipts.lock();
+            try {
+                checkRoom(site, p.getOrdinal(), qty);
+                if (log != null) log.stockReceived(site, p, qty);
+                site.addStock(p, qty);
+            } finally {
+                receipts.unlock();
+            }
+        });
+    }
+    public Product getProduct(String code) { return catalog.get(code); }
+    public Collection<Product> allProducts() { return catalog.all(); }
+    public ProductCatalog getCatalog() { return catalog; }
     public void defineBOM(String productCode, List<BOMItem> items) throws InvalidOperationException {
-        Product p = products.get(productCode);
+        timed(Operation.DEFINE_BOM, () -> {
+            BOM bom = resolve(productCode, items);
+            // the cycle check and the swap must not interleave with another definition
+            definitions.lock();
+            try {
+                explosion.checkAcyclic(productCode, items);
+                if (log != null) log.bomDefined(bom);
+                synchronized (explosion) {
+                    BOM old = boms.put(productCode, bom);
+                    explosion.bomChanged(productCode, old, bom);
+                }
+            } finally {
+                definitions.unlock();
+            }
+            scheduler.invalidate();
+            atp.invalidateAll();
+        });
+    }
+    // the BOM as stored: finished product and components are the catalog's own instances
+    private BOM resolve(String productCode, List<BOMItem> items) throws InvalidOperationException {
+        Product p = catalog.get(productCode);
         if (p == null) throw new InvalidOperationException("Product not found: " + productCode);
         BOM bom = new BOM(p);
-        for (BOMItem it : items) bom.addItem(it);
-        boms.put(productCode, bom); }
+        for (BOMItem it : items) {
+            Product comp = it.getComponent();
+            if (catalog.get(comp.getOrdinal()) != comp) comp = catalog.get(comp.getCode());
+            if (comp == null) throw new InvalidOperationException("Component not found: " + it.getComponent().getCode());
+            bom.addItem(comp == it.getComponent() ? it : new BOMItem(comp, it.getQtyPerProduct(), it.getLeadTimeOffsetDays()));
+        }
+        return bom;
+    }
+
+    // Bulk variants for loaders: one catalog lock, one explosion lock and one journal
+    // commit per batch rather than per record. Each batch is all or nothing.
+    public List<Product> addProducts(String[] codes, String[] names, int count) throws InvalidOperationException {
+        for (int i = 0; i < count; i++) checkLength("Product code", codes[i], TransactionLog.CODE_BYTES);
+        definitions.lock();
+        try {
+            Set<String> batch = new HashSet<>(count * 2);
+            List<Product> journalled = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                if (catalog.get(codes[i]) != null || !batch.add(codes[i])) throw new InvalidOperationException("Product code exists: " + codes[i]);
+                journalled.add(new Product(codes[i], names[i]));
+            }
+            if (log != null) log.productsAdded(journalled);
+            return Arrays.asList(catalog.registerAll(codes, names, count));
+        } finally {
+            definitions.unlock();
+        }
+    }
+    public void defineBOMs(List<BOM> batch) throws InvalidOperationException {
+        List<BOM> resolved = new ArrayList<>(batch.size());
+        for (BOM bom : batch) resolved.add(resolve(bom.getFinishedProduct().getCode(), bom.getItems()));
+        definitions.lock();
+        try {
+            explosion.checkAcyclic(resolved);
+            if (log != null) log.bomsDefined(resolved);
+            synchronized (explosion) {
+                explosion.defineAll(resolved);
+            }
+        } finally {
+            definitions.unlock();
+        }
+        scheduler.invalidate();
+        atp.invalidateAll();
+    }
+    public void receiveStock(String siteName, RequirementVector lines) throws InvalidOperationException {
+        Warehouse site = site(siteName);
+        for (int i = 0; i < lines.size(); i++) {
+            if (lines.quantity(i) <= 0) throw new InvalidOperationException("Received quantity invalid for " + catalog.get(lines.ordinal(i)).getCode());
+        }
+        StockMoves moves = new StockMoves();
+        for (int i = 0; i < lines.size(); i++) moves.add(site, lines.ordinal(i), lines.quantity(i), 0);
+        receipts.lock();
+        try {
+            // lines for the same product are checked together, as they will land together
+            for (int i = 0; i < lines.size(); ) {
+                int ord = lines.ordinal(i);
+                long total = 0;
+                for (; i < lines.size() && lines.ordinal(i) == ord; i++) total += lines.quantity(i);
+                checkRoom(site, ord, total);
+            }
+            if (log != null) log.stockReceived(site, lines, catalog);
+            network.adjustAll(moves);
+        } finally {
+            receipts.unlock();
+        }
+    }
+    // Against all the site holds, reserved included: stock handed back from a
+    // reservation moves into available meanwhile without changing the total.
+    private void checkRoom(Warehouse site, int ordinal, long qty) throws InvalidOperationException {
+        if (site.getOnHand(ordinal) + qty > Integer.MAX_VALUE)
+            throw new InvalidOperationException("Cannot receive " + qty + " of " + catalog.get(ordinal).getCode() + " at " + site.getName() + ": more than the site can hold.");
+    }
     public BOM getBOM(String productCode) { return boms.get(productCode); }
+    public Map<String, Integer> perUnitRequirements(String productCode) { return explode(productCode, 1); }
+    public Map<String, Integer> explode(String productCode, int qty) {
+        int ord = catalog.ordinal(productCode);
+        return ord < 0 ? Collections.emptyMap() : explosion.explode(ord, qty).toMap(catalog); }
+    public int lowLevelCode(String productCode) { return explosion.lowLevelCode(productCode); }
+    public List<String> productsByLowLevelCode() { return explosion.lowLevelOrder(); }
     public WorkOrder createWorkOrder(String productCode, int qty) throws InvalidOperationException, InsufficientStockException {
-        Product prod = products.get(productCode);
-        if (prod == null) throw new InvalidOperationException("Product not found: " + productCode);
-        BOM bom = boms.get(productCode);
-        if (bom == null) throw new InvalidOperationException("BOM not defined for: " + productCode);
-        WorkOrder wo = new WorkOrder(prod, qty);
-        for (BOMItem item : bom.getItems()) {
-            int required = item.getQtyPerProduct() * qty;
-            warehouse.reserve(item.getComponent().getCode(), required);
-        }
-        wo.setStatus(WorkOrder.Status.MATERIAL_RESERVED);
-        workOrders.put(wo.getId(), wo);
-        return wo; }
-    public MaterialIssue issueMaterial(String woId, String componentCode, int qty)
+        return createWorkOrder(productCode, qty, warehouse.getName());
+    }
+    // Reserves at the producing site alone while it is the only one; otherwise the
+    // requirement is split across sites by the sourcing rule.
+    public WorkOrder createWorkOrder(String productCode, int qty, String siteName) throws InvalidOperationException, InsufficientStockException {
+        return createWorkOrder(productCode, qty, siteName, null);
+    }
+    // Sub-assemblies in stock are reserved as they are, and only the shortfall is
+    // exploded to their components. An order with a due date is also
+    // backward-scheduled against work-center capacity. Orders created
+    // concurrently are reserved and journalled together; see ReservationBatcher.
+    public WorkOrder createWorkOrder(String productCode, int qty, String siteName, LocalDate dueDate)
             throws InvalidOperationException, InsufficientStockException {
-        WorkOrder wo = workOrders.get(woId);
-        if (wo == null) throw new InvalidOperationException("WorkOrder not found: " + woId);
-        if (wo.getStatus() == WorkOrder.Status.CREATED) throw new InvalidOperationException("Materials not reserved yet.");
-        Product comp = products.get(componentCode);
-        if (comp == null) throw new InvalidOperationException("Component not found: " + componentCode);
-        // Issue reserved quantity
-        warehouse.issueReserved(componentCode, qty);
-        MaterialIssue mi = new MaterialIssue(wo, warehouse, comp, qty);
-        wo.addMaterialIssue(mi);
-        if (wo.getStatus() == WorkOrder.Status.MATERIAL_RESERVED) wo.setStatus(WorkOrder.Status.MATERIAL_ISSUED);
-        return mi; }
-    public List<MaterialIssue> issueMaterialsForWorkOrder(String woId)
+        return timedStock(Operation.CREATE_WORK_ORDER, () -> {
+            Product prod = catalog.get(productCode);
+            if (prod == null) throw new InvalidOperationException("Product not found: " + productCode);
+            BOM bom = boms.get(productCode);
+            if (bom == null) throw new InvalidOperationException("BOM not defined for: " + productCode);
+            if (qty <= 0) throw new InvalidOperationException("Work order quantity invalid.");
+            Warehouse site = site(siteName);
+            SourcingRule rule = sourcing;
+            IntUnaryOperator available = network.size() == 1 ? site::getAvailable : c -> allocator.available(c, site, rule);
+            RequirementVector required = explosion.explode(prod.getOrdinal(), qty, available);
+            return reservations.create(prod, qty, site, dueDate, required, rule);
+        });
+    }
+    // From wherever the order still holds the component, split across its sites if need be.
+    public List<MaterialIssue> issueMaterial(long woId, String componentCode, int qty)
             throws InvalidOperationException, InsufficientStockException {
+        WorkOrder wo = workOrder(woId);
+        return issueMaterial(wo, null, componentCode, qty); }
+    public MaterialIssue issueMaterial(long woId, String siteName, String componentCode, int qty)
+            throws InvalidOperationException, InsufficientStockException {
+        WorkOrder wo = workOrder(woId);
+        return issueMaterial(wo, site(siteName), componentCode, qty).get(0); }
+    // at: the one site to issue from, or null for the sites holding it for the order
+    private List<MaterialIssue> issueMaterial(WorkOrder wo, Warehouse at, String componentCode, int qty)
+            throws InvalidOperationException, InsufficientStockException {
+        return timedStock(Operation.ISSUE_MATERIAL, () -> {
+            checkIssuable(wo);
+            Product comp = catalog.get(componentCode);
+            if (comp == null) throw new InvalidOperationException("Component not found: " + componentCode);
+            if (qty <= 0) throw new InvalidOperationException("Issue quantity invalid.");
+            int line = wo.lineOf(comp);
+            if (line < 0) throw new InvalidOperationException(componentCode + " is not a material of " + wo.simple());
+            // a named site must hold that much of it for this order, not for another;
+            // claimed there at once, so that two issues cannot both draw on it
+            List<StockAllocation> from = List.of();
+            if (at != null) {
+                boolean split = !wo.getAllocations().isEmpty();
+                if (split ? !wo.claimFrom(at, comp, qty) : at != siteOf(wo) || wo.outstandingAt(line) < qty) {
+                    int held = split ? wo.heldAt(at, comp) : at == siteOf(wo) ? wo.outstandingAt(line) : 0;
+                    throw new InvalidOperationException("Cannot issue " + qty + " of " + componentCode + " from " + at.getName() + ": "
+                            + held + " is held there for " + wo.getDisplayId() + ".");
+                }
+                from = List.of(new StockAllocation(at, comp, qty));
+            }
+            // claimed against the order's requirement too, so it is never over-issued
+            if (!wo.claimIssue(line, qty)) {
+                allocator.unclaim(wo, from);
+                throw new InvalidOperationException("Cannot issue " + qty + " of " + componentCode + ": " + wo.outstandingAt(line) + " of the "
+                        + wo.requiredAt(line) + " required by " + wo.getDisplayId() + " remain to be issued.");
+            }
+            try {
+                if (at == null) from = allocator.claim(wo, siteOf(wo), comp, qty);
+                long r = metrics.start();
+                allocator.issue(from);
+                metrics.stop(Operation.ISSUE_STOCK, r);
+            } catch (InsufficientStockException e) {
+                allocator.unclaim(wo, from);
+                wo.unclaimIssue(line, qty);
+                throw e;
+            }
+            List<MaterialIssue> issued = new ArrayList<>(from.size());
+            for (StockAllocation a : from) issued.add(new MaterialIssue(wo, a.getSite(), comp, a.getQuantity()));
+            // journalled before the order shows it, so a start or lot cannot be journalled first;
+            // a log that throws has appended nothing, so the issue is undone
+            try {
+                if (log != null) log.materialsIssued(wo, issued);
+            } catch (RuntimeException e) {
+                StockMoves back = new StockMoves();
+                for (StockAllocation a : from) back.add(a.getSite(), comp.getOrdinal(), 0, a.getQuantity());
+                network.adjustAll(back);
+                allocator.unclaim(wo, from);
+                wo.unclaimIssue(line, qty);
+                throw e;
+            }
+            wo.addMaterialIssues(issued);
+            if (workOrders.transition(wo, WorkOrder.Status.MATERIAL_RESERVED, WorkOrder.Status.MATERIAL_ISSUED))
+                metrics.stageEnded(wo, WorkOrder.Status.MATERIAL_RESERVED);
+            return issued;
+        });
+    }
+    // Issues whatever of the order's requirement is still outstanding, all or nothing.
+    public List<MaterialIssue> issueMaterialsForWorkOrder(long woId)
+            throws InvalidOperationException, InsufficientStockException {
+        return timedStock(Operation.ISSUE_MATERIALS, () -> {
+            WorkOrder wo = workOrder(woId);
+            checkIssuable(wo);
+            // claimed line by line so that two callers cannot both issue the same materials
+            int[] claimed = new int[wo.materialLines()];
+            List<StockAllocation> from = new ArrayList<>(claimed.length);
+            try {
+                for (int i = 0; i < claimed.length; i++) {
+                    claimed[i] = wo.claimOutstanding(i);
+                    if (claimed[i] > 0) from.addAll(allocator.claim(wo, siteOf(wo), wo.materialAt(i), claimed[i]));
+                }
+                if (from.isEmpty()) throw new InvalidOperationException("All materials for " + wo.getDisplayId() + " have been issued.");
+                long r = metrics.start();
+                if (wo.getAllocations().isEmpty()) siteOf(wo).issueReservedAll(RequirementVector.ofPacked(packed(from), from.size()));
+                else allocator.issue(from);
+                metrics.stop(Operation.ISSUE_STOCK, r);
+            } catch (InsufficientStockException e) {
+                allocator.unclaim(wo, from);
+                for (int i = 0; i < claimed.length; i++) if (claimed[i] > 0) wo.unclaimIssue(i, claimed[i]);
+                throw e;
+            }
+            List<MaterialIssue> issued = new ArrayList<>(from.size());
+            for (StockAllocation a : from) issued.add(new MaterialIssue(wo, a.getSite(), a.getComponent(), a.getQuantity()));
+            try {
+                if (log != null) log.materialsIssued(wo, issued);
+            } catch (RuntimeException e) {
+                StockMoves back = new StockMoves();
+                for (StockAllocation a : from) back.add(a.getSite(), a.getComponent().getOrdinal(), 0, a.getQuantity());
+                network.adjustAll(back);
+                allocator.unclaim(wo, from);
+                for (int i = 0; i < claimed.length; i++) if (claimed[i] > 0) wo.unclaimIssue(i, claimed[i]);
+                throw e;
+            }
+            wo.addMaterialIssues(issued);
+            if (workOrders.transition(wo, WorkOrder.Status.MATERIAL_RESERVED, WorkOrder.Status.MATERIAL_ISSUED))
+                metrics.stageEnded(wo, WorkOrder.Status.MATERIAL_RESERVED);
+            return issued;
+        });
+    }
+    public WorkOrder startProduction(long woId) throws InvalidOperationException {
+        return timed(Operation.START_PRODUCTION, () -> {
+            WorkOrder wo = workOrder(woId);
+            if (wo.getStatus() != WorkOrder.Status.MATERIAL_ISSUED)
+                throw new InvalidOperationException("Materials must be issued before production starts.");
+            // journalled before the order shows it, like an issue; a start that then
+            // loses the transition to another start or a lot leaves a record that
+            // replays as a no-op (see Recovery.productionStarted)
+            if (log != null) log.productionStarted(wo);
+            if (!workOrders.transition(wo, WorkOrder.Status.MATERIAL_ISSUED, WorkOrder.Status.IN_PRODUCTION))
+                throw new InvalidOperationException("Materials must be issued before production starts.");
+            metrics.stageEnded(wo, WorkOrder.Status.MATERIAL_ISSUED);
+            return wo;
+        });
+    }
+    // Reports one lot; the order completes once all of its quantity is reported.
+    public ProductionReport reportProduction(long woId, int producedQty) throws InvalidOperationException, InsufficientStockException {
+        return reportProduction(woId, producedQty, false);
+    }
+    // Reports one lot, backflushing the components it consumed from the order's
+    // reservation. 'last' closes the order even if short of its quantity, handing
+    // back the part of the reservation that was never issued; a last lot of none
+    // closes an order that is abandoned. Concurrent reports
+    // are batched; see ProductionBatcher.
+    public ProductionReport reportProduction(long woId, int producedQty, boolean last) throws InvalidOperationException, InsufficientStockException {
+        return timedStock(Operation.REPORT_PRODUCTION, () -> {
+            WorkOrder wo = workOrder(woId);
+            return batcher.report(wo, siteOf(wo), producedQty, last);
+        });
+    }
+
+    // ---- capacity scheduling
+
+    public WorkCenter addWorkCenter(String code, String name, int minutesPerDay) throws InvalidOperationException {
+        return timed(Operation.ADD_WORK_CENTER, () -> {
+            if (minutesPerDay < 0) throw new InvalidOperationException("Capacity invalid.");
+            checkLength("Work center code", code, TransactionLog.CODE_BYTES);
+            checkLength("Work center name", name, TransactionLog.NAME_BYTES);
+            WorkCenter wc = new WorkCenter(code, name, minutesPerDay);
+            definitions.lock();
+            try {
+                if (workCenters.containsKey(code)) throw new InvalidOperationException("Work center exists: " + code);
+                if (log != null) log.workCenterAdded(wc);
+                workCenters.put(code, wc);
+            } finally {
+                definitions.unlock();
+            }
+            return wc;
+        });
+    }
+    public WorkCenter getWorkCenter(String code) { return workCenters.get(code); }
+    public Collection<WorkCenter> allWorkCenters() { return workCenters.values(); }
+    // minutes available on one day, overriding the work center's default
+    public void setWorkCenterCapacity(String code, LocalDate day, int minutes) throws InvalidOperationException {
+        timed(Operation.SET_CAPACITY, () -> {
+            WorkCenter wc = workCenter(code);
+            if (minutes < 0) throw new InvalidOperationException("Capacity invalid.");
+            definitions.lock();
+            try {
+                if (log != null) log.capacityChanged(wc, day, minutes);
+                wc.setCapacity(day, minutes);
+            } finally {
+                definitions.unlock();
+            }
+            scheduler.invalidate();
+        });
+    }
+    // workCenterCode may be null for a bought-in or uncapacitated product
+    public void setProductPlanning(String productCode, int leadTimeDays, String workCenterCode, int minutesPerUnit) throws InvalidOperationException {
+        timed(Operation.SET_PLANNING, () -> {
+            Product p = catalog.get(productCode);
+            if (p == null) throw new InvalidOperationException("Product not found: " + productCode);
+            if (leadTimeDays < 0 || minutesPerUnit < 0) throw new InvalidOperationException("Lead time and minutes per unit must not be negative.");
+            WorkCenter wc = workCenterCode == null ? null : workCenter(workCenterCode);
+            definitions.lock();
+            try {
+                if (log != null) log.planningChanged(p, leadTimeDays, wc, minutesPerUnit);
+                p.setPlanning(leadTimeDays, wc, minutesPerUnit);
+            } finally {
+                definitions.unlock();
+            }
+            scheduler.invalidate();
+            atp.invalidateAll();
+        });
+    }
+    // null takes the order off the schedule
+    public WorkOrder setDueDate(long woId, LocalDate dueDate) throws InvalidOperationException {
+        return timed(Operation.SET_DUE_DATE, () -> {
+            WorkOrder wo = workOrder(woId);
+            if (wo.getStatus() == WorkOrder.Status.COMPLETED) throw new InvalidOperationException("WorkOrder " + wo.getDisplayId() + " is " + wo.getStatus() + "; it is no longer scheduled.");
+            definitions.lock();
+            try {
+                if (log != null) log.dueDateChanged(wo, dueDate);
+                wo.setDueDate(dueDate);
+            } finally {
+                definitions.unlock();
+            }
+            if (dueDate == null) scheduler.remove(woId);
+            else scheduler.update(wo);
+            return wo;
+        });
+    }
+    // one operation per node of the order's BOM tree, finished product first
+    public List<ScheduledOperation> schedule(long woId) throws InvalidOperationException {
+        WorkOrder wo = workOrder(woId);
+        if (wo.getDueDate() == null) throw new InvalidOperationException("WorkOrder " + wo.getDisplayId() + " has no due date.");
+        return scheduler.operations(woId); }
+    public List<CapacityBucket> capacityLoad(String workCenterCode, LocalDate from, LocalDate to) throws InvalidOperationException {
+        return scheduler.load(workCenter(workCenterCode), from, to); }
+    public List<WorkOrder> lateWorkOrders() {
+        List<WorkOrder> late = new ArrayList<>();
+        for (long id : scheduler.late()) late.add(workOrders.get(id));
+        return late; }
+    // schedules every dated open order from scratch; returns how many were placed
+    public int reschedule() {
+        scheduler.rebuild();
+        return scheduler.lastPlaced(); }
+    private WorkCenter workCenter(String code) throws InvalidOperationException {
+        WorkCenter wc = workCenters.get(code);
+        if (wc == null) throw new InvalidOperationException("Work center not found: " + code);
+        return wc; }
+
+    public MRPPlan plan(List<Demand> demands) throws InvalidOperationException {
+        return plan(demands, ForkJoinPool.commonPool()); }
+    public MRPPlan plan(List<Demand> demands, ForkJoinPool pool) throws InvalidOperationException {
+        return timed(Operation.PLAN, () -> {
+            return new PlanningRun(catalog, boms, explosion, network).run(demands, pool);
+        });
+    }
+    // an unknown code has no stock, as at a single site
+    public int totalAvailable(String productCode) {
+        int ord = catalog.ordinal(productCode);
+        return ord < 0 ? 0 : network.getAvailable(ord); }
+    // site name -> available, in site order
+    public Map<String, Integer> availability(String productCode) {
+        return availability(List.of(productCode)).getOrDefault(productCode, Collections.emptyMap()); }
+    // product code -> (site name -> available) for every known code
+    public Map<String, Map<String, Integer>> availability(Collection<String> productCodes) {
+        return timed(Operation.AVAILABILITY, () -> {
+            List<String> codes = new ArrayList<>(productCodes.size());
+            int[] ords = new int[productCodes.size()];
+            for (String code : productCodes) {
+                int ord = catalog.ordinal(code);
+                if (ord < 0) continue;
+                ords[codes.size()] = ord;
+                codes.add(code); }
+            int[][] bySite = network.availability(Arrays.copyOf(ords, codes.size()));
+            Map<String, Map<String, Integer>> result = new LinkedHashMap<>();
+            for (int i = 0; i < codes.size(); i++) {
+                Map<String, Integer> row = new LinkedHashMap<>();
+                for (int s = 0; s < bySite.length; s++) row.put(network.site(s).getName(), bySite[s][i]);
+                result.put(codes.get(i), row); }
+            return result;
+        });
+    }
+    // How many could be built now from the available stock of the product's
+    // sub-assemblies and components across all sites. Cached until one of those
+    // moves.
+    public int buildable(String productCode) throws InvalidOperationException {
+        int ord = catalog.ordinal(productCode);
+        if (ord < 0) throw new InvalidOperationException("Product not found: " + productCode);
+        return atp.buildable(ord); }
+    AvailableToPromise atp() { return atp; }
+    CapacityScheduler scheduler() { return scheduler; }
+    // What can be promised by the given day: the product's available stock, open
+    // orders for it due by then, and what can be built from components if its
+    // cumulative lead time still allows it to be finished in time.
+    public int availableToPromise(String productCode, LocalDate by) throws InvalidOperationException {
+        return timed(Operation.AVAILABLE_TO_PROMISE, () -> {
+            int ord = catalog.ordinal(productCode);
+            if (ord < 0) throw new InvalidOperationException("Product not found: " + productCode);
+            long total = network.getAvailable(ord);
+            try (Stream<WorkOrder> open = workOrders.find(new WorkOrderQuery().product(productCode).open())) {
+                total += open.filter(wo -> wo.getDueDate() != null && !wo.getDueDate().isAfter(by)).mapToLong(WorkOrder::getRemainingQuantity).sum();
+            }
+            if (!LocalDate.now().plusDays(atp.cumulativeLeadTime(ord)).isAfter(by)) total += atp.buildable(ord);
+            return (int) Math.min(Integer.MAX_VALUE, total);
+        });
+    }
+    public WorkOrder getWorkOrder(long woId) { return workOrders.get(woId); }
+    private WorkOrder workOrder(long woId) throws InvalidOperationException {
         WorkOrder wo = workOrders.get(woId);
-        if (wo == null) throw new InvalidOperationException("WorkOrder not found: " + woId);
-        BOM bom = boms.get(wo.getProduct().getCode());
-        if (bom == null) throw new InvalidOperationException("BOM not defined for: " + wo.getProduct().getCode());
-        List<MaterialIssue> issued = new ArrayList<>();
-        for (BOMItem item : bom.getItems()) {
-            int required = item.getQtyPerProduct() * wo.getQuantity();
-            warehouse.issueReserved(item.getComponent().getCode(), required);
-            MaterialIssue mi = new MaterialIssue(wo, warehouse, item.getComponent(), required);
-            wo.addMaterialIssue(mi);
-            issued.add(mi); }
-        wo.setStatus(WorkOrder.Status.MATERIAL_ISSUED);
-        return issued;}
-    public ProductionReport reportProduction(String woId, int producedQty) throws InvalidOperationException {
-        WorkOrder wo = workOrders.get(woId);
-        if (wo == null) throw new InvalidOperationException("WorkOrder not found: " + woId);
-        if (wo.getStatus() != WorkOrder.Status.MATERIAL_ISSUED)
-            throw new InvalidOperationException("Materials must be issued before production reporting.");
-        if (producedQty <= 0 || producedQty > wo.getQuantity())
-            throw new InvalidOperationException("Produced quantity invalid.");
-        warehouse.addStock(wo.getProduct(), producedQty);
-        ProductionReport pr = new ProductionReport(wo, producedQty);
-        wo.setProductionReport(pr);
-        wo.setStatus(WorkOrder.Status.COMPLETED);
-        return pr; }
-    public Collection<WorkOrder> allWorkOrders() { return Collections.unmodifiableCollection(workOrders.values()); }
-    public String warehouseSummary() { return warehouse.stockSummary(); }
+        if (wo == null) throw new InvalidOperationException("WorkOrder not found: " + IdGenerator.WORK_ORDERS.format(woId));
+        return wo;
+    }
+    // in creation order; a live view, weakly consistent under concurrent creation
+    public Collection<WorkOrder> allWorkOrders() { return workOrders.all(); }
+    // lazily evaluated, in creation order; see WorkOrderIndex for how queries are served
+    public Stream<WorkOrder> findWorkOrders(WorkOrderQuery query) { return workOrders.find(query); }
+    // one page; pass the last id of a page to query.after() for the next
+    public List<WorkOrder> findWorkOrders(WorkOrderQuery query, int pageSize) {
+        try (Stream<WorkOrder> s = workOrders.find(query)) {
+            return s.limit(pageSize).collect(Collectors.toList());
+        } }
+    public String warehouseSummary() {
+        StringWriter out = new StringWriter();
+        try {
+            warehouseSummary(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toString(); }
+    // every site from one view, streamed a row at a time
+    public void warehouseSummary(Writer out) throws IOException {
+        StockView view = network.view();
+        for (int s = 0; s < view.size(); s++) {
+            view.summary(s, out);
+            if (view.size() > 1) out.write('\n');
+        } }
+    private Warehouse site(String name) throws InvalidOperationException {
+        Warehouse site = network.site(name);
+        if (site == null) throw new InvalidOperationException("Site not found: " + name);
+        return site; }
+    private Warehouse siteOf(WorkOrder wo) { return wo.getSite() != null ? wo.getSite() : warehouse; }
+    // what the journal can hold, checked before anything changes
+    private static void checkLength(String what, String value, int maxBytes) throws InvalidOperationException {
+        if (value.getBytes(StandardCharsets.UTF_8).length > maxBytes)
+            throw new InvalidOperationException(what + " is longer than " + maxBytes + " bytes: " + value);
+    }
+    private static void checkIssuable(WorkOrder wo) throws InvalidOperationException {
+        WorkOrder.Status status = wo.getStatus();
+        if (status == WorkOrder.Status.CREATED) throw new InvalidOperationException("Materials not reserved yet.");
+        if (status == WorkOrder.Status.COMPLETED)
+            throw new InvalidOperationException("WorkOrder " + wo.getDisplayId() + " is " + status + "; materials can no longer be issued.");
+    }
+    private static long[] packed(List<StockAllocation> lines) {
+        long[] entries = new long[lines.size()];
+        for (int i = 0; i < entries.length; i++) entries[i] = RequirementVector.pack(lines.get(i).getComponent().getOrdinal(), lines.get(i).getQuantity());
+        return entries;
+    }
+    // A public operation timed under 'op', its failure counted if it throws. The
+    // stock form is for operations that can also run short of stock.
+    private interface Call<T, E extends Exception> { T run() throws E; }
+    private interface Action<E extends Exception> { void run() throws E; }
+    private interface StockCall<T> { T run() throws InvalidOperationException, InsufficientStockException; }
+    private <T, E extends Exception> T timed(Operation op, Call<T, E> call) throws E {
+        long t = metrics.start();
+        try {
+            return call.run();
+        } catch (Exception e) {
+            metrics.failed(op, e);
+            throw e;
+        } finally {
+            metrics.stop(op, t);
+        }
+    }
+    private <E extends Exception> void timed(Operation op, Action<E> action) throws E {
+        timed(op, () -> {
+            action.run();
+            return null;
+        });
+    }
+    private <T> T timedStock(Operation op, StockCall<T> call) throws InvalidOperationException, InsufficientStockException {
+        long t = metrics.start();
+        try {
+            return call.run();
+        } catch (Exception e) {
+            metrics.failed(op, e);
+            throw e;
+        } finally {
+            metrics.stop(op, t);
+        }
+    }
+    public Recovery recovery() { return new Recovery(); }
+    // Rebuilds state from journalled facts. Nothing is validated or logged again:
+    // every record describes something that already succeeded once, after what
+    // it depends on. Sites are referred to by their index in the network.
+    public final class Recovery {
+        private Recovery() {}
+        // the primary site is configured, not journalled, so index 0 is already there
+        public void site(int index, String name, int x, int y) {
+            if (index >= network.size()) network.addSite(name, x, y);
+        }
+        public void product(String code, String name, int initialStock) {
+            Product p = catalog.intern(code, name);
+            p.setName(name);
+            if (initialStock > 0) warehouse.addStock(p, initialStock);
+        }
+        public void received(int site, String code, int qty) {
+            move(site, code, qty, 0);
+        }
+        public void bom(String productCode, List<String> components, List<Integer> qty, List<Integer> offsets) {
+            BOM bom = new BOM(product(productCode));
+            for (int i = 0; i < components.size(); i++) bom.addItem(new BOMItem(product(components.get(i)), qty.get(i), offsets.get(i)));
+            BOM old = boms.put(productCode, bom);
+            explosion.bomChanged(productCode, old, bom);
+            scheduler.invalidate();
+            atp.invalidateAll();
+        }
+        public void workCenter(String code, String name, int minutesPerDay) {
+            workCenters.computeIfAbsent(code, c -> new WorkCenter(c, name, minutesPerDay)).setMinutesPerDay(minutesPerDay);
+            scheduler.invalidate();
+        }
+        public void capacity(String workCenterCode, LocalDate day, int minutes) {
+            workCenters.computeIfAbsent(workCenterCode, c -> new WorkCenter(c, c, 0)).setCapacity(day, minutes);
+            scheduler.invalidate();
+        }
+        public void planning(String productCode, int leadTimeDays, String workCenterCode, int minutesPerUnit) {
+            WorkCenter wc = workCenterCode == null ? null : workCenters.computeIfAbsent(workCenterCode, c -> new WorkCenter(c, c, 0));
+            product(productCode).setPlanning(leadTimeDays, wc, minutesPerUnit);
+            scheduler.invalidate();
+            atp.invalidateAll();
+        }
+        public void dueDate(long woId, LocalDate dueDate) {
+            order(woId).setDueDate(dueDate);
+            scheduler.invalidate();
+        }
+        public void reserved(long woId, int site, String componentCode, int qty) {
+            move(site, componentCode, -qty, qty);
+            requirement(woId, componentCode, qty);
+            // as in createWorkOrder, a single-site order keeps no allocation list
+            if (network.size() > 1) allocation(woId, site, componentCode, qty);
+        }
+        public void materialIssued(long id, LocalDateTime timestamp, long woId, int site, String componentCode, int qty) {
+            move(site, componentCode, 0, -qty);
+            issue(id, timestamp, woId, site, componentCode, qty);
+        }
+        // only from MATERIAL_ISSUED: a start journalled by the loser of a race with a
+        // lot must not take a completed order back into production
+        public void productionStarted(long woId) {
+            workOrders.transition(order(woId), WorkOrder.Status.MATERIAL_ISSUED, WorkOrder.Status.IN_PRODUCTION);
+        }
+        // one lot; its backflushed issues and released reservation are separate entries
+        public void production(long id, LocalDateTime timestamp, long woId, int qty, boolean last) {
+            IdGenerator.PRODUCTION_REPORTS.advancePast(id);
+            WorkOrder wo = order(woId);
+            siteOf(wo).adjust(wo.getProduct().getOrdinal(), qty, 0);
+            lot(wo, id, timestamp, qty, last);
+        }
+        public void released(long woId, int site, String componentCode, int qty) {
+            move(site, componentCode, qty, -qty);
+            order(woId).recordDrawnFrom(network.site(site), product(componentCode), qty);
+            release(woId, componentCode, qty);
+        }
+        // Snapshot entries carry absolute state: stock() loads a product's balances
+        // and the work order, allocation and issue entries below leave stock alone.
+        public void stock(int site, String code, int available, int reserved) {
+            move(site, code, available, reserved);
+        }
+        public void workOrder(long id, LocalDateTime createdAt, String productCode, int qty, int site, WorkOrder.Status status, LocalDate dueDate) {
+            IdGenerator.WORK_ORDERS.advancePast(id);
+            WorkOrder wo = new WorkOrder(id, createdAt, product(productCode), qty);
+            wo.setSite(network.site(site));
+            wo.setStatus(status);
+            wo.setDueDate(dueDate);
+            workOrders.add(wo);
+            if (dueDate != null) scheduler.invalidate();
+        }
+        // a completed order, kept as a summary without its ledger
+        public void completed(long id, LocalDateTime createdAt, String productCode, int qty, int site, LocalDate dueDate, int produced) {
+            workOrder(id, createdAt, productCode, qty, site, WorkOrder.Status.COMPLETED, dueDate);
+            workOrders.get(id).recordProduced(produced);
+        }
+        // requirement() and allocation() come with the order, in its own group or snapshot entry
+        public void requirement(long woId, String componentCode, int qty) {
+            order(woId).require(product(componentCode), qty);
+        }
+        // what a closed order handed back of a material line
+        public void release(long woId, String componentCode, int qty) {
+            WorkOrder wo = order(woId);
+            int line = qty == 0 ? -1 : wo.lineOf(catalog.get(componentCode));
+            if (line >= 0) wo.recordReleased(line, qty);
+        }
+        public void lot(long id, LocalDateTime timestamp, long woId, int qty, boolean last) {
+            IdGenerator.PRODUCTION_REPORTS.advancePast(id);
+            lot(order(woId), id, timestamp, qty, last);
+        }
+        private void lot(WorkOrder wo, long id, LocalDateTime timestamp, int qty, boolean last) {
+            wo.addProductionReport(new ProductionReport(id, timestamp, wo, qty, last));
+            workOrders.setStatus(wo, last ? WorkOrder.Status.COMPLETED : WorkOrder.Status.IN_PRODUCTION);
+            if (wo.getDueDate() != null && last) scheduler.invalidate();
+        }
+        public void allocation(long woId, int site, String componentCode, int qty) {
+            order(woId).addAllocation(new StockAllocation(network.site(site), product(componentCode), qty));
+        }
+        public void issue(long id, LocalDateTime timestamp, long woId, int site, String componentCode, int qty) {
+            IdGenerator.MATERIAL_ISSUES.advancePast(id);
+            Product component = product(componentCode);
+            WorkOrder wo = order(woId);
+            wo.addMaterialIssue(new MaterialIssue(id, timestamp, wo, network.site(site), component, qty));
+            wo.recordDrawnFrom(network.site(site), component, qty);
+            int line = wo.lineOf(component);
+            if (line >= 0) wo.recordIssued(line, qty);
+            if (wo.getStatus() == WorkOrder.Status.MATERIAL_RESERVED) workOrders.setStatus(wo, WorkOrder.Status.MATERIAL_ISSUED);
+        }
+        private WorkOrder order(long woId) {
+            WorkOrder wo = workOrders.get(woId);
+            if (wo == null) throw new IllegalStateException("Journal refers to unknown work order " + woId);
+            return wo;
+        }
+        private Product product(String code) { return catalog.intern(code, code); }
+        private void move(int site, String code, int availableDelta, int reservedDelta) {
+            network.site(site).adjust(product(code).getOrdinal(), availableDelta, reservedDelta);
+        }
+    }
 }
@@ -0,0 +1,21 @@
+package com.kce.bank.service;
+import com.kce.bank.model.Warehouse;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+// Distance order does not depend on the component, so it is worked out once per
+// producing site and reused until a site is added.
+class NearestSites implements SourcingRule {
+    private final Map<Warehouse, List<Warehouse>> byDestination = new ConcurrentHashMap<>();
+    public List<Warehouse> rank(int component, Warehouse destination, List<Warehouse> sites) {
+        List<Warehouse> ranked = byDestination.get(destination);
+        if (ranked != null && ranked.size() == sites.size()) return ranked;
+        ranked = new ArrayList<>(sites);
+        ranked.sort(Comparator.comparingDouble(destination::distanceTo));
+        ranked = List.copyOf(ranked);
+        byDestination.put(destination, ranked);
+        return ranked;
+    }
+}
@@ -0,0 +1,206 @@
+package com.kce.bank.service;
+import com.kce.bank.exception.InvalidOperationException;
+import com.kce.bank.model.*;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+/*
+ * One MRP pass over a batch of demands. Demands are summed per product and due
+ * date on the fork-join pool, each slice keeping only the products it names;
+ * the sums seed time-phased gross requirements, one bucket per need date, in an
+ * array indexed by catalog ordinal. Products are netted level by level in
+ * low-level-code order, so sub-assembly stock is consumed before its
+ * components are planned: stock across all sites covers the earliest buckets
+ * first, and each bucket left short becomes a planned order. Its components are
+ * needed by its start, the need date less the product's lead time and the BOM
+ * line's offset. Nothing is reserved.
+ */
+class PlanningRun {
+    private static final int LEAF_SIZE = 4096;
+    private static final long NO_DATE = Long.MAX_VALUE;
+    private final Map<String, BOM> boms;
+    private final BOMExplosion explosion;
+    private final StockNetwork network;
+    private final ProductCatalog catalog;
+    private final int size;
+    PlanningRun(ProductCatalog catalog, Map<String, BOM> boms, BOMExplosion explosion, StockNetwork network) {
+        this.catalog = catalog;
+        this.boms = boms;
+        this.explosion = explosion;
+        this.network = network;
+        this.size = catalog.size();
+    }
+    MRPPlan run(List<Demand> demands, ForkJoinPool pool) throws InvalidOperationException {
+        long start = System.nanoTime();
+        int[] product = new int[demands.size()];
+        int[] qty = new int[demands.size()];
+        long[] due = new long[demands.size()];
+        for (int i = 0; i < product.length; i++) {
+            Demand d = demands.get(i);
+            int idx = catalog.ordinal(d.getProductCode());
+            if (idx < 0 || idx >= size) throw new InvalidOperationException("Product not found: " + d.getProductCode());
+            product[i] = idx;
+            qty[i] = d.getQuantity();
+            due[i] = d.getDueDate() == null ? NO_DATE : d.getDueDate().toEpochDay();
+        }
+        Totals sums = pool.invoke(new Aggregate(product, qty, due, 0, product.length));
+        Buckets[] gross = new Buckets[size];
+        for (int i = 0; i < sums.count; i++) {
+            int p = sums.products[i];
+            if (gross[p] == null) gross[p] = new Buckets();
+            gross[p].add(sums.days[i], sums.gross[i]);
+        }
+        List<PlannedOrder> planned = new ArrayList<>();
+        List<Shortage> shortages = new ArrayList<>();
+        for (int p : netOrder()) {
+            Buckets req = gross[p];
+            if (req == null) continue;
+            Product prod = catalog.get(p);
+            int available = network.getAvailable(p);
+            BOM bom = boms.get(prod.getCode());
+            long left = available;
+            long firstShort = NO_DATE;
+            for (int k = 0; k < req.count; k++) {
+                long used = Math.min(left, req.qty[k]);
+                left -= used;
+                long net = req.qty[k] - used;
+                if (net == 0) continue;
+                if (firstShort == NO_DATE) firstShort = req.days[k];
+                if (bom == null) continue;
+                planned.add(new PlannedOrder(prod, net, date(req.days[k])));
+                long startDay = offset(req.days[k], prod.getLeadTimeDays());
+                for (BOMItem it : bom.getItems()) {
+                    int c = it.getComponent().getOrdinal();
+                    if (c >= size) continue; // catalogued after this run started
+                    if (gross[c] == null) gross[c] = new Buckets();
+                    gross[c].add(offset(startDay, it.getLeadTimeOffsetDays()), Math.multiplyExact(net, (long) it.getQtyPerProduct()));
+                }
+            }
+            if (bom == null && req.total > available) shortages.add(new Shortage(prod, req.total, available, network.getReserved(p), date(firstShort)));
+        }
+        return new MRPPlan(planned, shortages, (System.nanoTime() - start) / 1_000_000);
+    }
+    private static long offset(long day, int days) { return day == NO_DATE ? NO_DATE : day - days; }
+    private static LocalDate date(long day) { return day == NO_DATE ? null : LocalDate.ofEpochDay(day); }
+    // BOM graph in low-level-code order, then the products that are neither
+    // assemblies nor components.
+    private int[] netOrder() {
+        List<String> levels = explosion.lowLevelOrder();
+        boolean[] placed = new boolean[size];
+        int[] order = new int[size];
+        int n = 0;
+        for (String code : levels) {
+            int idx = catalog.ordinal(code);
+            if (idx < 0 || idx >= size || placed[idx]) continue;
+            placed[idx] = true;
+            order[n++] = idx;
+        }
+        for (int i = 0; i < size; i++) if (!placed[i]) order[n++] = i;
+        return order;
+    }
+    // One product's gross requirement by need day, earliest first; undated
+    // requirements come last.
+    private static final class Buckets {
+        long[] days = new long[4];
+        long[] qty = new long[4];
+        int count;
+        long total;
+        void add(long day, long q) {
+            total = Math.addExact(total, q);
+            int k = Arrays.binarySearch(days, 0, count, day);
+            if (k >= 0) {
+                qty[k] = Math.addExact(qty[k], q);
+                return;
+            }
+            k = -k - 1;
+            if (count == days.length) {
+                days = Arrays.copyOf(days, count * 2);
+                qty = Arrays.copyOf(qty, count * 2);
+            }
+            System.arraycopy(days, k, days, k + 1, count - k);
+            System.arraycopy(qty, k, qty, k + 1, count - k);
+            days[k] = day;
+            qty[k] = q;
+            count++;
+        }
+    }
+    // Demand summed per product and due day over a slice of the demands, for the
+    // products the slice names only, in (ordinal, day) order so that two slices
+    // merge in one pass.
+    private static final class Totals {
+        final int[] products;
+        final long[] days;
+        final long[] gross;
+        int count;
+        Totals(int capacity) {
+            products = new int[capacity];
+            days = new long[capacity];
+            gross = new long[capacity];
+        }
+        // in (ordinal, day) order: an entry equal to the last one is added to it
+        void add(int product, long day, long qty) {
+            int last = count - 1;
+            if (last >= 0 && products[last] == product && days[last] == day) {
+                gross[last] = Math.addExact(gross[last], qty);
+                return;
+            }
+            products[count] = product;
+            days[count] = day;
+            gross[count++] = qty;
+        }
+        Totals merge(Totals other) {
+            Totals m = new Totals(count + other.count);
+            int i = 0, j = 0;
+            while (i < count || j < other.count) {
+                if (j == other.count || i < count && (products[i] < other.products[j] || products[i] == other.products[j] && days[i] <= other.days[j])) {
+                    m.add(products[i], days[i], gross[i]);
+                    i++;
+                } else {
+                    m.add(other.products[j], other.days[j], other.gross[j]);
+                    j++;
+                }
+            }
+            return m;
+        }
+    }
+    private static final class Aggregate extends RecursiveTask<Totals> {
+        private static final long serialVersionUID = 1L;
+        private final int[] product;
+        private final int[] qty;
+        private final long[] due;
+        private final int from, to;
+        Aggregate(int[] product, int[] qty, long[] due, int from, int to) {
+            this.product = product;
+            this.qty = qty;
+            this.due = due;
+            this.from = from;
+            this.to = to;
+        }
+        protected Totals compute() {
+            if (to - from <= LEAF_SIZE) {
+                // the slice's distinct due days, so a day fits the sort key as its rank
+                long[] days = Arrays.copyOfRange(due, from, to);
+                Arrays.sort(days);
+                int distinct = 0;
+                for (long d : days) if (distinct == 0 || days[distinct - 1] != d) days[distinct++] = d;
+                // the slice's demands by product, then day: ordinal high, then day
+                // rank and position, each under LEAF_SIZE
+                long[] order = new long[to - from];
+                for (int i = from; i < to; i++) order[i - from] = (long) product[i] << 32 | (long) Arrays.binarySearch(days, 0, distinct, due[i]) << 12 | (i - from);
+                Arrays.sort(order);
+                Totals t = new Totals(order.length);
+                for (long o : order) {
+                    int i = from + (int) (o & (LEAF_SIZE - 1));
+                    t.add(product[i], due[i], qty[i]);
+                }
+                return t;
+            }
+            int mid = (from + to) >>> 1;
+            Aggregate left = new Aggregate(product, qty, due, from, mid);
+            left.fork();
+            Totals right = new Aggregate(product, qty, due, mid, to).compute();
+            return left.join().merge(right);
+        }
+    }
+}
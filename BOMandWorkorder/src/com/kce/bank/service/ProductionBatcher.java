@@ -0,0 +1,246 @@
+package com.kce.bank.service;
+import com.kce.bank.exception.InsufficientStockException;
+import com.kce.bank.exception.InvalidOperationException;
+import com.kce.bank.metrics.Metrics;
+import com.kce.bank.model.*;
+import com.kce.bank.util.IdGenerator;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+// Production lot reporting, concurrent lots combined into batches (see
+// MRPService). Two lots of one order never share a batch.
+class ProductionBatcher {
+    private static final int MAX_BATCH = 512;
+    private final ReentrantLock combiner = new ReentrantLock();
+    private final Queue<Lot> pending = new ConcurrentLinkedQueue<>();
+    private final StockNetwork network;
+    private final SiteAllocator allocator;
+    private final WorkOrderIndex workOrders;
+    private final CapacityScheduler scheduler;
+    private final Metrics metrics;
+    private volatile TransactionLog log;
+    ProductionBatcher(StockNetwork network, SiteAllocator allocator, WorkOrderIndex workOrders, CapacityScheduler scheduler, Metrics metrics) {
+        this.network = network;
+        this.allocator = allocator;
+        this.workOrders = workOrders;
+        this.scheduler = scheduler;
+        this.metrics = metrics;
+    }
+    void setTransactionLog(TransactionLog log) { this.log = log; }
+
+    // home: the order's site, where the finished lot is received
+    ProductionReport report(WorkOrder wo, Warehouse home, int qty, boolean last) throws InvalidOperationException, InsufficientStockException {
+        Lot lot = new Lot(wo, home, qty, last);
+        pending.add(lot);
+        combiner.lock();
+        try {
+            while (!lot.done) combine();
+        } finally {
+            combiner.unlock();
+        }
+        if (lot.failure == null) return lot.report;
+        if (lot.failure instanceof InvalidOperationException e) throw e;
+        if (lot.failure instanceof InsufficientStockException e) throw e;
+        throw (RuntimeException) lot.failure;
+    }
+
+    private void combine() {
+        List<Lot> batch = new ArrayList<>();
+        List<Lot> deferred = new ArrayList<>();
+        Set<WorkOrder> orders = Collections.newSetFromMap(new IdentityHashMap<>());
+        Lot planning = null;
+        RuntimeException abandoned = null;
+        try {
+            for (Lot lot; batch.size() < MAX_BATCH && (lot = pending.poll()) != null; ) {
+                if (!orders.add(lot.order)) {
+                    deferred.add(lot);
+                    continue;
+                }
+                planning = lot;
+                if (plan(lot)) batch.add(lot);
+                planning = null;
+            }
+            commit(batch);
+        } catch (RuntimeException e) {
+            abandoned = e;
+        } finally {
+            // whatever stopped the batch part way, the lots not yet shown on their
+            // orders are undone and fail, and no reporter is left waiting
+            pending.addAll(deferred);
+            if (planning != null) batch.add(planning);
+            StockMoves undo = new StockMoves();
+            for (Lot lot : batch) {
+                if (lot.done) continue;
+                if (lot.failure == null) {
+                    if (lot.moved) moves(undo, lot, -1);
+                    unclaim(lot);
+                    lot.failure = abandoned != null ? abandoned : new IllegalStateException("Production batch abandoned");
+                }
+                lot.done = true;
+            }
+            network.adjustAll(undo);
+        }
+    }
+    private void commit(List<Lot> batch) {
+        if (batch.isEmpty()) return;
+        apply(batch);
+        List<ProductionReport> reports = new ArrayList<>(batch.size());
+        for (Lot lot : batch) if (lot.failure == null) reports.add(build(lot));
+        // journalled before the orders show the lots; a log that throws has
+        // appended nothing, so the lots are undone
+        try {
+            if (log != null && !reports.isEmpty()) log.productionReported(reports);
+        } catch (RuntimeException e) {
+            StockMoves undo = new StockMoves();
+            for (Lot lot : batch) {
+                if (lot.failure != null) continue;
+                moves(undo, lot, -1);
+                unclaim(lot);
+                lot.failure = e;
+            }
+            network.adjustAll(undo);
+        }
+        for (Lot lot : batch) {
+            // once shown on the order the lot stands, whatever happens to the rest of the batch
+            if (lot.failure == null) finish(lot);
+            lot.done = true;
+            if (lot.failure == null && lot.finishing) scheduler.remove(lot.order.getId());
+        }
+    }
+
+    // Validates the lot and claims its backflush (and, closing, the release) on
+    // the order's material lines and the sites holding them; false, with the
+    // lot done and its claims undone, if it is refused.
+    // Each component's issued total is brought up to its requirement times the
+    // share produced so far, rounded down until the order is finished. Issues
+    // made by hand count, so a lot may issue nothing; the last lot of an order
+    // closed short hands the unissued rest of the reservation back.
+    private boolean plan(Lot lot) {
+        WorkOrder wo = lot.order;
+        WorkOrder.Status status = wo.getStatus();
+        int remaining = wo.getRemainingQuantity();
+        if (status == WorkOrder.Status.CREATED) lot.failure = new InvalidOperationException("Materials not reserved yet.");
+        else if (status == WorkOrder.Status.COMPLETED)
+            lot.failure = new InvalidOperationException("WorkOrder " + wo.getDisplayId() + " is " + status + "; no more production can be reported.");
+        else if (lot.qty < 0 || lot.qty == 0 && !lot.last || lot.qty > remaining)
+            lot.failure = new InvalidOperationException("Produced quantity invalid: " + remaining + " of " + wo.simple() + " remain to be produced.");
+        if (lot.failure != null) {
+            lot.done = true;
+            return false;
+        }
+        int produced = wo.getProducedQuantity() + lot.qty;
+        lot.finishing = lot.last || produced == wo.getQuantity();
+        lot.issued = new int[wo.materialLines()];
+        lot.released = new int[wo.materialLines()];
+        try {
+            for (int i = 0; i < wo.materialLines(); i++) {
+                int due = produced == wo.getQuantity() ? wo.requiredAt(i) : (int) ((long) wo.requiredAt(i) * produced / wo.getQuantity());
+                while (true) {
+                    int need = due - wo.issuedAt(i);
+                    if (need <= 0) break;
+                    if (wo.claimIssue(i, need)) {
+                        lot.issued[i] = need;
+                        lot.issues.addAll(allocator.claim(wo, lot.home, wo.materialAt(i), need));
+                        break;
+                    }
+                }
+                if (lot.finishing) {
+                    lot.released[i] = wo.releaseOutstanding(i);
+                    if (lot.released[i] > 0) lot.releases.addAll(allocator.claim(wo, lot.home, wo.materialAt(i), lot.released[i]));
+                }
+            }
+        } catch (InsufficientStockException e) {
+            unclaim(lot);
+            lot.failure = e;
+            lot.done = true;
+            return false;
+        }
+        return true;
+    }
+    private void unclaim(Lot lot) {
+        if (lot.issued == null) return;
+        allocator.unclaim(lot.order, lot.issues);
+        allocator.unclaim(lot.order, lot.releases);
+        for (int i = 0; i < lot.issued.length; i++) {
+            if (lot.issued[i] > 0) lot.order.unclaimIssue(i, lot.issued[i]);
+            if (lot.released[i] > 0) lot.order.recordReleased(i, -lot.released[i]);
+        }
+    }
+
+    // The batch's movements summed per site and product and applied all or
+    // nothing in one epoch, so a view sees the whole batch or none of it; if
+    // that fails the lots are applied one by one so only those that cannot be
+    // met fail.
+    private void apply(List<Lot> batch) {
+        try {
+            StockMoves moves = new StockMoves();
+            for (Lot lot : batch) moves(moves, lot, 1);
+            network.moveAll(moves);
+            for (Lot lot : batch) lot.moved = true;
+        } catch (InsufficientStockException | ArithmeticException e) {
+            if (batch.size() > 1) {
+                for (Lot lot : batch) apply(List.of(lot));
+                return;
+            }
+            unclaim(batch.get(0));
+            batch.get(0).failure = e;
+        }
+    }
+    // a lot's stock movements, or with sign -1 their reverse
+    private static void moves(StockMoves moves, Lot lot, int sign) {
+        for (StockAllocation a : lot.issues) moves.add(a.getSite(), a.getComponent().getOrdinal(), 0, -sign * a.getQuantity());
+        for (StockAllocation a : lot.releases) moves.add(a.getSite(), a.getComponent().getOrdinal(), sign * a.getQuantity(), -sign * a.getQuantity());
+        moves.add(lot.home, lot.order.getProduct().getOrdinal(), sign * lot.qty, 0);
+    }
+
+    private ProductionReport build(Lot lot) {
+        WorkOrder wo = lot.order;
+        LocalDateTime now = LocalDateTime.now();
+        List<MaterialIssue> issues = new ArrayList<>(lot.issues.size());
+        for (StockAllocation a : lot.issues) issues.add(new MaterialIssue(IdGenerator.MATERIAL_ISSUES.next(), now, wo, a.getSite(), a.getComponent(), a.getQuantity()));
+        lot.report = new ProductionReport(IdGenerator.PRODUCTION_REPORTS.next(), now, wo, lot.qty, lot.finishing, issues, lot.releases);
+        return lot.report;
+    }
+    private void finish(Lot lot) {
+        WorkOrder wo = lot.order;
+        wo.addMaterialIssues(lot.report.getBackflushed());
+        wo.addProductionReport(lot.report);
+        advance(wo, lot.finishing);
+    }
+    // A reported lot puts the order in production; the last one completes it.
+    private void advance(WorkOrder wo, boolean finishing) {
+        while (true) {
+            WorkOrder.Status s = wo.getStatus();
+            if (finishing && (s == WorkOrder.Status.IN_PRODUCTION || s == WorkOrder.Status.MATERIAL_ISSUED)) {
+                if (workOrders.transition(wo, s, WorkOrder.Status.COMPLETED)) {
+                    metrics.completed(wo, s);
+                    return;
+                }
+            } else if (s == WorkOrder.Status.MATERIAL_RESERVED || s == WorkOrder.Status.MATERIAL_ISSUED) {
+                if (workOrders.transition(wo, s, WorkOrder.Status.IN_PRODUCTION)) metrics.stageEnded(wo, s);
+            } else return;
+        }
+    }
+
+    private static final class Lot {
+        final WorkOrder order;
+        final Warehouse home;
+        final int qty;
+        final boolean last;
+        // planned and applied by the combiner
+        boolean finishing, moved;
+        int[] issued, released;
+        final List<StockAllocation> issues = new ArrayList<>(), releases = new ArrayList<>();
+        // published to the reporting thread by the combiner lock
+        ProductionReport report;
+        Exception failure;
+        volatile boolean done;
+        Lot(WorkOrder order, Warehouse home, int qty, boolean last) {
+            this.order = order;
+            this.home = home;
+            this.qty = qty;
+            this.last = last;
+        }
+    }
+}
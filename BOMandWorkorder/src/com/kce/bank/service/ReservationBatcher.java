@@ -0,0 +1,189 @@
+package com.kce.bank.service;
+import com.kce.bank.exception.InsufficientStockException;
+import com.kce.bank.metrics.Metrics;
+import com.kce.bank.metrics.Operation;
+import com.kce.bank.model.*;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+// Work order creation, concurrent orders combined into batches (see
+// MRPService). With several sites each order is split by the sourcing rule.
+class ReservationBatcher {
+    private static final int MAX_BATCH = 512;
+    private final ReentrantLock combiner = new ReentrantLock();
+    private final Queue<Order> pending = new ConcurrentLinkedQueue<>();
+    private final StockNetwork network;
+    private final SiteAllocator allocator;
+    private final WorkOrderIndex workOrders;
+    private final CapacityScheduler scheduler;
+    private final Metrics metrics;
+    private volatile TransactionLog log;
+    ReservationBatcher(StockNetwork network, SiteAllocator allocator, WorkOrderIndex workOrders, CapacityScheduler scheduler, Metrics metrics) {
+        this.network = network;
+        this.allocator = allocator;
+        this.workOrders = workOrders;
+        this.scheduler = scheduler;
+        this.metrics = metrics;
+    }
+    void setTransactionLog(TransactionLog log) { this.log = log; }
+
+    // required: the order's components, already exploded by the caller
+    WorkOrder create(Product product, int qty, Warehouse site, LocalDate dueDate, RequirementVector required, SourcingRule sourcing)
+            throws InsufficientStockException {
+        Order order = new Order(product, qty, site, dueDate, required, sourcing);
+        pending.add(order);
+        combiner.lock();
+        try {
+            while (!order.done) combine();
+        } finally {
+            combiner.unlock();
+        }
+        if (order.failure == null) return order.created;
+        if (order.failure instanceof InsufficientStockException e) throw e;
+        throw (RuntimeException) order.failure;
+    }
+
+    private void combine() {
+        List<Order> batch = new ArrayList<>();
+        for (Order o; batch.size() < MAX_BATCH && (o = pending.poll()) != null; ) batch.add(o);
+        if (batch.isEmpty()) return;
+        RuntimeException abandoned = null;
+        try {
+            commit(batch);
+        } catch (RuntimeException e) {
+            abandoned = e;
+        } finally {
+            // whatever stopped the batch part way, the orders not yet indexed fail
+            // with their reservations handed back, and no creator is left waiting
+            StockMoves back = new StockMoves();
+            for (Order o : batch) {
+                if (o.done) continue;
+                if (o.failure == null) {
+                    if (o.journalled != null) {
+                        for (StockAllocation a : o.journalled) back.add(a.getSite(), a.getComponent().getOrdinal(), a.getQuantity(), -a.getQuantity());
+                    }
+                    o.failure = abandoned != null ? abandoned : new IllegalStateException("Work order batch abandoned");
+                }
+                o.done = true;
+            }
+            network.adjustAll(back);
+        }
+    }
+    private void commit(List<Order> batch) {
+        long r = metrics.start();
+        if (network.size() == 1) reserveTogether(batch);
+        else for (Order o : batch) reserveSplit(o);
+        metrics.stop(Operation.RESERVE_STOCK, r);
+        List<WorkOrder> created = new ArrayList<>(batch.size());
+        List<List<StockAllocation>> reserved = new ArrayList<>(batch.size());
+        for (Order o : batch) {
+            if (o.failure != null) continue;
+            created.add(build(o));
+            reserved.add(o.journalled);
+        }
+        // journalled before the orders are indexed, so nothing can be journalled
+        // against one first; a log that throws has appended nothing, so their
+        // reservations are handed back
+        try {
+            if (log != null && !created.isEmpty()) log.workOrdersCreated(created, reserved);
+        } catch (RuntimeException e) {
+            StockMoves back = new StockMoves();
+            for (Order o : batch) {
+                if (o.failure != null) continue;
+                for (StockAllocation a : o.journalled) back.add(a.getSite(), a.getComponent().getOrdinal(), a.getQuantity(), -a.getQuantity());
+                o.failure = e;
+            }
+            network.adjustAll(back);
+        }
+        for (Order o : batch) {
+            // once indexed the order stands, whatever happens to the rest of the batch
+            if (o.failure == null) workOrders.add(o.created);
+            o.done = true;
+            if (o.failure == null && o.dueDate != null) scheduler.update(o.created);
+        }
+    }
+    // One site: the summed requirement of the batch in one all-or-nothing pass,
+    // or if that cannot be met, order by order so only those short of stock fail.
+    private void reserveTogether(List<Order> batch) {
+        Warehouse site = network.primary();
+        if (batch.size() > 1) {
+            int lines = 0;
+            for (Order o : batch) lines += o.required.size();
+            long[] entries = new long[lines];
+            int n = 0;
+            for (Order o : batch) {
+                for (int i = 0; i < o.required.size(); i++) entries[n++] = RequirementVector.pack(o.required.ordinal(i), o.required.quantity(i));
+            }
+            try {
+                site.reserveAll(RequirementVector.ofPacked(entries, n));
+                for (Order o : batch) o.atSite(site, network.getCatalog());
+                return;
+            } catch (InsufficientStockException | RuntimeException e) {
+                // someone is short, or the sum overflowed: take them one at a time
+            }
+        }
+        for (Order o : batch) {
+            try {
+                site.reserveAll(o.required);
+                o.atSite(site, network.getCatalog());
+            } catch (InsufficientStockException | RuntimeException e) {
+                o.failure = e;
+            }
+        }
+    }
+    private void reserveSplit(Order o) {
+        try {
+            o.allocations = allocator.reserve(o.required, o.site, o.sourcing);
+            o.journalled = o.allocations;
+        } catch (InsufficientStockException | RuntimeException e) {
+            o.failure = e;
+        }
+    }
+
+    private WorkOrder build(Order o) {
+        WorkOrder wo = new WorkOrder(o.product, o.qty);
+        wo.setSite(o.site);
+        wo.addAllocations(o.allocations);
+        RequirementVector required = o.required;
+        Product[] components = new Product[required.size()];
+        int[] quantities = new int[required.size()];
+        for (int i = 0; i < components.length; i++) {
+            components[i] = network.getCatalog().get(required.ordinal(i));
+            quantities[i] = required.quantity(i);
+        }
+        wo.require(components, quantities);
+        wo.setDueDate(o.dueDate);
+        wo.transition(WorkOrder.Status.CREATED, WorkOrder.Status.MATERIAL_RESERVED);
+        o.created = wo;
+        return wo;
+    }
+
+    private static final class Order {
+        final Product product;
+        final int qty;
+        final Warehouse site;
+        final LocalDate dueDate;
+        final RequirementVector required;
+        final SourcingRule sourcing;
+        // what the order holds: split allocations when there are several sites
+        // (none when it is all at its own), and the reservation lines journalled
+        List<StockAllocation> allocations = Collections.emptyList(), journalled;
+        // published to the creating thread by the combiner lock
+        WorkOrder created;
+        Exception failure;
+        volatile boolean done;
+        Order(Product product, int qty, Warehouse site, LocalDate dueDate, RequirementVector required, SourcingRule sourcing) {
+            this.product = product;
+            this.qty = qty;
+            this.site = site;
+            this.dueDate = dueDate;
+            this.required = required;
+            this.sourcing = sourcing;
+        }
+        void atSite(Warehouse site, ProductCatalog catalog) {
+            journalled = new ArrayList<>(required.size());
+            for (int i = 0; i < required.size(); i++) journalled.add(new StockAllocation(site, catalog.get(required.ordinal(i)), required.quantity(i)));
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.kce.bank.service;
+import com.kce.bank.exception.InsufficientStockException;
+import com.kce.bank.model.*;
+import java.util.ArrayList;
+import java.util.List;
+/*
+ * Splits a requirement across the sites of a network and reserves it all or
+ * nothing. Availability is read first to plan the split, then every site's share
+ * is reserved as one batch; if another order took the stock in between, the
+ * split is planned again from fresh figures.
+ */
+class SiteAllocator {
+    private static final int ATTEMPTS = 4;
+    private final StockNetwork network;
+    private final ProductCatalog catalog;
+    SiteAllocator(StockNetwork network) {
+        this.network = network;
+        this.catalog = network.getCatalog();
+    }
+    List<StockAllocation> reserve(RequirementVector required, Warehouse destination, SourcingRule rule) throws InsufficientStockException {
+        InsufficientStockException last = null;
+        for (int attempt = 0; attempt < ATTEMPTS; attempt++) {
+            RequirementVector[] split = split(required, destination, rule);
+            try {
+                network.reserveAll(split);
+            } catch (InsufficientStockException e) {
+                last = e;
+                continue;
+            }
+            List<StockAllocation> allocations = new ArrayList<>();
+            for (int s = 0; s < split.length; s++) {
+                if (split[s] == null) continue;
+                for (int i = 0; i < split[s].size(); i++)
+                    allocations.add(new StockAllocation(network.site(s), catalog.get(split[s].ordinal(i)), split[s].quantity(i)));
+            }
+            return allocations;
+        }
+        throw last;
+    }
+    // what the rule could draw of a component for an order at 'destination'
+    int available(int component, Warehouse destination, SourcingRule rule) {
+        boolean[] counted = new boolean[network.size()];
+        int total = 0;
+        for (Warehouse w : rule.rank(component, destination, network.sites())) {
+            if (counted[w.getSite()]) continue;
+            counted[w.getSite()] = true;
+            total = (int) Math.min(Integer.MAX_VALUE, (long) total + w.getAvailable(component));
+        }
+        return total;
+    }
+    // per site index, the lines to take there (null where nothing is taken)
+    private RequirementVector[] split(RequirementVector required, Warehouse destination, SourcingRule rule) throws InsufficientStockException {
+        List<Warehouse> sites = network.sites();
+        long[][] lines = new long[sites.size()][];
+        int[] counts = new int[sites.size()];
+        // the line each site was last drawn on: a rule naming a site twice must
+        // not count its stock twice
+        int[] drawn = new int[sites.size()];
+        for (int i = 0; i < required.size(); i++) {
+            int ord = required.ordinal(i);
+            int remaining = required.quantity(i);
+            for (Warehouse w : rule.rank(ord, destination, sites)) {
+                int s = w.getSite();
+                if (drawn[s] == i + 1) continue;
+                drawn[s] = i + 1;
+                int take = Math.min(remaining, w.getAvailable(ord));
+                if (take <= 0) continue;
+                if (lines[s] == null) lines[s] = new long[required.size()];
+                lines[s][counts[s]++] = RequirementVector.pack(ord, take);
+                remaining -= take;
+                if (remaining == 0) break;
+            }
+            if (remaining > 0)
+                throw new InsufficientStockException("Not enough available stock across sites to reserve for " + catalog.get(ord).getCode());
+        }
+        RequirementVector[] split = new RequirementVector[lines.length];
+        for (int s = 0; s < lines.length; s++) if (lines[s] != null) split[s] = RequirementVector.ofPacked(lines[s], counts[s]);
+        return split;
+    }
+    // Issues every allocation from its site, all or nothing.
+    void issue(List<StockAllocation> allocations) throws InsufficientStockException {
+        network.issueReservedAll(bySite(allocations));
+    }
+    // Claims qty of an order's outstanding reservation of one component from
+    // the sites holding it, in allocation order, each site's share claimed on
+    // the order as it is chosen (see WorkOrder.claimFrom) so that concurrent
+    // issues cannot both draw on it; on failure nothing stays claimed. An order
+    // without allocations holds it all at 'home', claimed on its line alone.
+    List<StockAllocation> claim(WorkOrder wo, Warehouse home, Product component, int qty)
+            throws InsufficientStockException {
+        if (wo.getAllocations().isEmpty()) return List.of(new StockAllocation(home, component, qty));
+        List<StockAllocation> from = new ArrayList<>(1);
+        int left = qty;
+        for (StockAllocation a : wo.getAllocations()) {
+            if (a.getComponent() != component || left == 0 || claimed(from, a.getSite())) continue;
+            while (true) {
+                int take = Math.min(left, wo.heldAt(a.getSite(), component));
+                if (take <= 0) break;
+                if (wo.claimFrom(a.getSite(), component, take)) {
+                    from.add(new StockAllocation(a.getSite(), component, take));
+                    left -= take;
+                    break;
+                }
+            }
+        }
+        if (left > 0) {
+            unclaim(wo, from);
+            throw new InsufficientStockException("Not enough " + component.getCode() + " reserved for " + wo.getDisplayId() + " at its sites to issue " + left + " more.");
+        }
+        return from;
+    }
+    // hands back claims whose stock did not move
+    void unclaim(WorkOrder wo, List<StockAllocation> claimed) {
+        for (StockAllocation a : claimed) wo.unclaimFrom(a.getSite(), a.getComponent(), a.getQuantity());
+    }
+    // a site's allocations of one component are claimed on together
+    private static boolean claimed(List<StockAllocation> from, Warehouse site) {
+        for (StockAllocation a : from) if (a.getSite() == site) return true;
+        return false;
+    }
+    private RequirementVector[] bySite(List<StockAllocation> allocations) {
+        long[][] lines = new long[network.size()][];
+        int[] counts = new int[lines.length];
+        for (StockAllocation a : allocations) {
+            int s = a.getSite().getSite();
+            if (lines[s] == null) lines[s] = new long[allocations.size()];
+            lines[s][counts[s]++] = RequirementVector.pack(a.getComponent().getOrdinal(), a.getQuantity());
+        }
+        RequirementVector[] split = new RequirementVector[lines.length];
+        for (int s = 0; s < lines.length; s++) if (lines[s] != null) split[s] = RequirementVector.ofPacked(lines[s], counts[s]);
+        return split;
+    }
+}
@@ -0,0 +1,35 @@
+package com.kce.bank.service;
+import com.kce.bank.model.Warehouse;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+/*
+ * Decides which sites a component is drawn from when a work order's requirement
+ * is split across the network. The split takes everything available at the first
+ * site, then the next, until the line is covered.
+ */
+public interface SourcingRule {
+    List<Warehouse> rank(int component, Warehouse destination, List<Warehouse> sites);
+
+    // closest to the producing site first, the site itself before all others
+    static SourcingRule nearest() { return new NearestSites(); }
+    // fewest sites per line: the one holding the most of the component first
+    static SourcingRule mostStock() {
+        return (component, destination, sites) -> {
+            List<Warehouse> ranked = new ArrayList<>(sites);
+            ranked.sort(Comparator.comparingInt((Warehouse w) -> w.getAvailable(component)).reversed());
+            return ranked;
+        };
+    }
+    // only the named sites, in the given order
+    static SourcingRule priority(List<String> siteNames) {
+        List<String> order = List.copyOf(siteNames);
+        return (component, destination, sites) -> {
+            List<Warehouse> ranked = new ArrayList<>(order.size());
+            for (String name : order) {
+                for (Warehouse w : sites) if (w.getName().equals(name)) ranked.add(w);
+            }
+            return ranked;
+        };
+    }
+}
@@ -0,0 +1,90 @@
+package com.kce.bank.service;
+import com.kce.bank.metrics.Metrics;
+import com.kce.bank.metrics.Operation;
+import com.kce.bank.model.*;
+import java.time.LocalDate;
+import java.util.List;
+// Times every append, including the wait for its commit, as Operation.JOURNAL.
+class TimedLog implements TransactionLog {
+    private final TransactionLog log;
+    private final Metrics metrics;
+    TimedLog(TransactionLog log, Metrics metrics) {
+        this.log = log;
+        this.metrics = metrics;
+    }
+    public void siteAdded(int site, String name, int x, int y) {
+        long t = metrics.start();
+        log.siteAdded(site, name, x, y);
+        metrics.stop(Operation.JOURNAL, t);
+    }
+    public void productAdded(Product product, int initialStock) {
+        long t = metrics.start();
+        log.productAdded(product, initialStock);
+        metrics.stop(Operation.JOURNAL, t);
+    }
+    public void stockReceived(Warehouse site, Product product, int qty) {
+        long t = metrics.start();
+        log.stockReceived(site, product, qty);
+        metrics.stop(Operation.JOURNAL, t);
+    }
+    public void bomDefined(BOM bom) {
+        long t = metrics.start();
+        log.bomDefined(bom);
+        metrics.stop(Operation.JOURNAL, t);
+    }
+    public void productsAdded(List<Product> products) {
+        long t = metrics.start();
+        log.productsAdded(products);
+        metrics.stop(Operation.JOURNAL, t);
+    }
+    public void stockReceived(Warehouse site, RequirementVector lines, ProductCatalog catalog) {
+        long t = metrics.start();
+        log.stockReceived(site, lines, catalog);
+        metrics.stop(Operation.JOURNAL, t);
+    }
+    public void bomsDefined(List<BOM> boms) {
+        long t = metrics.start();
+        log.bomsDefined(boms);
+        metrics.stop(Operation.JOURNAL, t);
+    }
+    public void workOrdersCreated(List<WorkOrder> workOrders, List<List<StockAllocation>> reserved) {
+        long t = metrics.start();
+        log.workOrdersCreated(workOrders, reserved);
+        metrics.stop(Operation.JOURNAL, t);
+    }
+    public void materialsIssued(WorkOrder workOrder, List<MaterialIssue> issues) {
+        long t = metrics.start();
+        log.materialsIssued(workOrder, issues);
+        metrics.stop(Operation.JOURNAL, t);
+    }
+    public void productionStarted(WorkOrder workOrder) {
+        long t = metrics.start();
+        log.productionStarted(workOrder);
+        metrics.stop(Operation.JOURNAL, t);
+    }
+    public void productionReported(List<ProductionReport> reports) {
+        long t = metrics.start();
+        log.productionReported(reports);
+        metrics.stop(Operation.JOURNAL, t);
+    }
+    public void workCenterAdded(WorkCenter workCenter) {
+        long t = metrics.start();
+        log.workCenterAdded(workCenter);
+        metrics.stop(Operation.JOURNAL, t);
+    }
+    public void capacityChanged(WorkCenter workCenter, LocalDate day, int minutes) {
+        long t = metrics.start();
+        log.capacityChanged(workCenter, day, minutes);
+        metrics.stop(Operation.JOURNAL, t);
+    }
+    public void planningChanged(Product product, int leadTimeDays, WorkCenter workCenter, int minutesPerUnit) {
+        long t = metrics.start();
+        log.planningChanged(product, leadTimeDays, workCenter, minutesPerUnit);
+        metrics.stop(Operation.JOURNAL, t);
+    }
+    public void dueDateChanged(WorkOrder workOrder, LocalDate dueDate) {
+        long t = metrics.start();
+        log.dueDateChanged(workOrder, dueDate);
+        metrics.stop(Operation.JOURNAL, t);
+    }
+}
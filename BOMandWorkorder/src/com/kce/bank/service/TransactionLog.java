@@ -0,0 +1,33 @@
+package com.kce.bank.service;
+import com.kce.bank.model.*;
+import java.time.LocalDate;
+import java.util.List;
+public interface TransactionLog {
+    // the longest code, and site or work center name, in UTF-8 bytes, that a log
+    // must be able to hold; MRPService refuses longer ones up front
+    int CODE_BYTES = 31, NAME_BYTES = 39;
+    // Records are appended before the change they describe is published (see
+    // MRPService), so a new site is described by its fields. A call that throws
+    // has appended nothing and its change may be undone; once a call returns the
+    // change stands, even if the log later fails to make it durable.
+    void siteAdded(int site, String name, int x, int y);
+    void productAdded(Product product, int initialStock);
+    void stockReceived(Warehouse site, Product product, int qty);
+    void bomDefined(BOM bom);
+    // bulk loads: one append and one commit for the whole batch
+    void productsAdded(List<Product> products);
+    void stockReceived(Warehouse site, RequirementVector lines, ProductCatalog catalog);
+    void bomsDefined(List<BOM> boms);
+    // reserved.get(i) is what workOrders.get(i) reserved
+    void workOrdersCreated(List<WorkOrder> workOrders, List<List<StockAllocation>> reserved);
+    void materialsIssued(WorkOrder workOrder, List<MaterialIssue> issues);
+    void productionStarted(WorkOrder workOrder);
+    // production lots, each with its backflushed issues and released reservation;
+    // lots batched together are journalled in one commit
+    void productionReported(List<ProductionReport> reports);
+    void workCenterAdded(WorkCenter workCenter);
+    void capacityChanged(WorkCenter workCenter, LocalDate day, int minutes);
+    // the new settings, journalled before they are set
+    void planningChanged(Product product, int leadTimeDays, WorkCenter workCenter, int minutesPerUnit);
+    void dueDateChanged(WorkOrder workOrder, LocalDate dueDate);
+}
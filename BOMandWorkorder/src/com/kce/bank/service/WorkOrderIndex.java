@@ -0,0 +1,184 @@
+package com.kce.bank.service;
+import com.kce.bank.model.ProductCatalog;
+import com.kce.bank.model.WorkOrder;
+import com.kce.bank.model.WorkOrderQuery;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+/*
+ * Work orders by id, plus secondary indexes kept up to date on every insert and
+ * status change:
+ *
+ *   byTime           all orders in creation order
+ *   byStatus         one creation-ordered set per status
+ *   byProductStatus  one creation-ordered set per (product, status)
+ *
+ * A query walks the narrowest matching sets, each cut to the creation-time
+ * range, merging them in creation order; nothing outside the matching sets is
+ * visited. Iteration is weakly consistent, like the concurrent collections under
+ * it: an order changing status while a query runs is reported under the status
+ * it has when it is reached, or missed if it moved behind the cursor.
+ */
+class WorkOrderIndex {
+    private static final WorkOrder.Status[] STATUSES = WorkOrder.Status.values();
+    private final Map<Long, Entry> byId = new ConcurrentHashMap<>();
+    private final NavigableSet<Entry> byTime = new ConcurrentSkipListSet<>();
+    private final Map<WorkOrder.Status, NavigableSet<Entry>> byStatus = new EnumMap<>(WorkOrder.Status.class);
+    private final Map<Long, NavigableSet<Entry>> byProductStatus = new ConcurrentHashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final ProductCatalog catalog;
+    WorkOrderIndex(ProductCatalog catalog) {
+        this.catalog = catalog;
+        for (WorkOrder.Status s : STATUSES) byStatus.put(s, new ConcurrentSkipListSet<>());
+    }
+    WorkOrder get(long id) {
+        Entry e = byId.get(id);
+        return e == null ? null : e.order;
+    }
+    int size() { return byId.size(); }
+    void add(WorkOrder wo) {
+        Entry e = new Entry(wo, sequence.incrementAndGet());
+        if (byId.putIfAbsent(wo.getId(), e) != null) throw new IllegalArgumentException("Work order exists: " + wo.getDisplayId());
+        byTime.add(e);
+        WorkOrder.Status s = wo.getStatus();
+        e.indexed = s;
+        statusSet(s).add(e);
+        productSet(wo, s).add(e);
+    }
+    // CAS on the order, then move its index entry
+    boolean transition(WorkOrder wo, WorkOrder.Status from, WorkOrder.Status to) {
+        if (!wo.transition(from, to)) return false;
+        reindex(wo);
+        return true;
+    }
+    void setStatus(WorkOrder wo, WorkOrder.Status to) {
+        wo.setStatus(to);
+        reindex(wo);
+    }
+    // Entries are added to the new sets before leaving the old ones, so an order
+    // is never absent from the index; queries filter on the live status.
+    private void reindex(WorkOrder wo) {
+        Entry e = byId.get(wo.getId());
+        if (e == null) return;
+        synchronized (e) {
+            WorkOrder.Status now = wo.getStatus();
+            WorkOrder.Status was = e.indexed;
+            if (now == was) return;
+            statusSet(now).add(e);
+            productSet(wo, now).add(e);
+            e.indexed = now;
+            statusSet(was).remove(e);
+            productSet(wo, was).remove(e);
+        }
+    }
+    Collection<WorkOrder> all() {
+        return new AbstractCollection<WorkOrder>() {
+            public Iterator<WorkOrder> iterator() { return orders(byTime.iterator()); }
+            public int size() { return byTime.size(); }
+        };
+    }
+    Stream<WorkOrder> find(WorkOrderQuery q) {
+        int productOrdinal = -1;
+        if (q.getProductCode() != null) {
+            productOrdinal = catalog.ordinal(q.getProductCode());
+            if (productOrdinal < 0) return Stream.empty();
+        }
+        Set<WorkOrder.Status> statuses = q.getStatuses();
+        Entry lo = lowerBound(q);
+        Entry hi = q.getCreatedTo() == null ? null : Entry.probe(nanos(q.getCreatedTo()), 0);
+        List<NavigableSet<Entry>> sources = new ArrayList<>();
+        if (productOrdinal < 0 && statuses == null) sources.add(byTime);
+        else {
+            for (WorkOrder.Status s : statuses == null ? EnumSet.allOf(WorkOrder.Status.class) : statuses) {
+                NavigableSet<Entry> set = productOrdinal < 0 ? statusSet(s) : byProductStatus.get(key(productOrdinal, s));
+                if (set != null) sources.add(set);
+            }
+        }
+        List<Iterator<Entry>> cursors = new ArrayList<>(sources.size());
+        for (NavigableSet<Entry> set : sources) {
+            NavigableSet<Entry> range = set;
+            if (lo != null) range = range.tailSet(lo, false);
+            if (hi != null) range = range.headSet(hi, false);
+            cursors.add(range.iterator());
+        }
+        Iterator<Entry> merged = cursors.size() == 1 ? cursors.get(0) : new Merge(cursors);
+        Stream<WorkOrder> result = StreamSupport.stream(Spliterators.spliteratorUnknownSize(orders(merged),
+                Spliterator.ORDERED | Spliterator.NONNULL), false);
+        if (statuses != null) result = result.filter(wo -> statuses.contains(wo.getStatus()));
+        return result;
+    }
+    // strictly after the 'after' order if given, otherwise just before createdFrom
+    private Entry lowerBound(WorkOrderQuery q) {
+        Entry lo = q.getCreatedFrom() == null ? null : Entry.probe(nanos(q.getCreatedFrom()), 0);
+        if (q.getAfterId() >= 0) {
+            Entry after = byId.get(q.getAfterId());
+            if (after != null && (lo == null || after.compareTo(lo) > 0)) lo = after;
+        }
+        return lo;
+    }
+    private NavigableSet<Entry> statusSet(WorkOrder.Status s) { return byStatus.get(s); }
+    private NavigableSet<Entry> productSet(WorkOrder wo, WorkOrder.Status s) {
+        return byProductStatus.computeIfAbsent(key(wo.getProduct().getOrdinal(), s), k -> new ConcurrentSkipListSet<>());
+    }
+    private static long key(int productOrdinal, WorkOrder.Status s) { return ((long) productOrdinal << 3) | s.ordinal(); }
+    // full precision, so that a range bound falls exactly where the caller put it
+    static long nanos(LocalDateTime t) { return t.toEpochSecond(ZoneOffset.UTC) * 1_000_000_000L + t.getNano(); }
+    private static Iterator<WorkOrder> orders(Iterator<Entry> entries) {
+        return new Iterator<WorkOrder>() {
+            public boolean hasNext() { return entries.hasNext(); }
+            public WorkOrder next() { return entries.next().order; }
+        };
+    }
+
+    // creation time, then insertion sequence
+    private static final class Entry implements Comparable<Entry> {
+        final WorkOrder order;
+        final long created;
+        final long seq;
+        volatile WorkOrder.Status indexed;
+        Entry(WorkOrder order, long seq) {
+            this(order, nanos(order.getCreatedAt()), seq);
+        }
+        private Entry(WorkOrder order, long created, long seq) {
+            this.order = order;
+            this.created = created;
+            this.seq = seq;
+        }
+        static Entry probe(long created, long seq) { return new Entry(null, created, seq); }
+        public int compareTo(Entry o) {
+            int c = Long.compare(created, o.created);
+            return c != 0 ? c : Long.compare(seq, o.seq);
+        }
+    }
+    // k-way merge of creation-ordered cursors; k is at most the number of statuses.
+    // An order caught between two status sets is returned once.
+    private static final class Merge implements Iterator<Entry> {
+        private final List<Iterator<Entry>> cursors;
+        private final Entry[] heads;
+        Merge(List<Iterator<Entry>> cursors) {
+            this.cursors = cursors;
+            this.heads = new Entry[cursors.size()];
+            for (int i = 0; i < heads.length; i++) advance(i);
+        }
+        private void advance(int i) { heads[i] = cursors.get(i).hasNext() ? cursors.get(i).next() : null; }
+        public boolean hasNext() {
+            for (Entry h : heads) if (h != null) return true;
+            return false;
+        }
+        public Entry next() {
+            int min = -1;
+            for (int i = 0; i < heads.length; i++) {
+                if (heads[i] != null && (min < 0 || heads[i].compareTo(heads[min]) < 0)) min = i;
+            }
+            if (min < 0) throw new NoSuchElementException();
+            Entry e = heads[min];
+            for (int i = 0; i < heads.length; i++) if (heads[i] == e) advance(i);
+            return e;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.kce.bank.service;
+import com.kce.bank.model.WorkOrder;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ToIntFunction;
+/*
+ * Drives work orders through their whole lifecycle asynchronously:
+ *
+ *   reserve -> issue -> start production -> produce and report
+ *
+ * Each stage is a fixed set of virtual-thread workers taking from a bounded queue
+ * and handing the order on to the next stage's queue. Orders at different stages
+ * overlap, a full queue blocks the stage feeding it (and finally submit()), and
+ * a blocked worker costs no platform thread, so thousands of orders can be in
+ * flight at once. The status transitions themselves are the CAS-checked ones in
+ * MRPService, so the pipeline and console calls cannot push an order through a
+ * stage twice. An order that fails or is cancelled after it was created is
+ * closed with nothing produced, handing its reservation back.
+ */
+public class WorkOrderPipeline implements AutoCloseable {
+    private final MRPService service;
+    private final ExecutorService workers = Executors.newVirtualThreadPerTaskExecutor();
+    private final BlockingQueue<Job> reserve, issue, start, produce;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    // taken by submit() around the closed check and the enqueue, and by close()
+    private final ReentrantLock admission = new ReentrantLock();
+    private final Condition drained = admission.newCondition();
+    private boolean closed;
+
+    // production: does the actual making (may block) and returns the quantity produced
+    public WorkOrderPipeline(MRPService service, int queueCapacity, int workersPerStage, ToIntFunction<WorkOrder> production) {
+        this.service = service;
+        reserve = new ArrayBlockingQueue<>(queueCapacity);
+        issue = new ArrayBlockingQueue<>(queueCapacity);
+        start = new ArrayBlockingQueue<>(queueCapacity);
+        produce = new ArrayBlockingQueue<>(queueCapacity);
+        for (int i = 0; i < workersPerStage; i++) {
+            stage(reserve, issue, job -> job.order = service.createWorkOrder(job.productCode, job.quantity, job.site));
+            stage(issue, start, job -> service.issueMaterialsForWorkOrder(job.order.getId()));
+            stage(start, produce, job -> service.startProduction(job.order.getId()));
+            // one report per order, closing it even if production fell short
+            stage(produce, null, job -> service.reportProduction(job.order.getId(), production.applyAsInt(job.order), true));
+        }
+    }
+    public WorkOrderPipeline(MRPService service) {
+        this(service, 1024, 64, WorkOrder::getQuantity);
+    }
+    public CompletableFuture<WorkOrder> submit(String productCode, int quantity) throws InterruptedException {
+        return submit(productCode, quantity, service.getNetwork().primary().getName());
+    }
+    // Blocks while the first stage's queue is full.
+    public CompletableFuture<WorkOrder> submit(String productCode, int quantity, String site) throws InterruptedException {
+        Job job = new Job(productCode, quantity, site);
+        admission.lockInterruptibly();
+        try {
+            if (closed) throw new IllegalStateException("Pipeline is closed");
+            inFlight.incrementAndGet();
+            try {
+                reserve.put(job);
+            } catch (InterruptedException e) {
+                done();
+                throw e;
+            }
+        } finally {
+            admission.unlock();
+        }
+        return job.result;
+    }
+    public int inFlight() { return inFlight.get(); }
+    // Stops taking orders and waits for those already submitted to finish; if the
+    // caller is interrupted the workers are stopped and queued orders cancelled.
+    public void close() {
+        admission.lock();
+        try {
+            closed = true;
+            while (inFlight.get() > 0) drained.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            admission.unlock();
+        }
+        workers.shutdownNow();
+        for (BlockingQueue<Job> q : List.of(reserve, issue, start, produce)) {
+            for (Job job; (job = q.poll()) != null; ) finish(job, new CancellationException("Pipeline closed"));
+        }
+    }
+
+    private interface Step {
+        void run(Job job) throws Exception;
+    }
+    private void stage(BlockingQueue<Job> in, BlockingQueue<Job> out, Step step) {
+        workers.execute(() -> {
+            while (true) {
+                Job job;
+                try {
+                    job = in.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                try {
+                    step.run(job);
+                } catch (Exception e) {
+                    finish(job, e);
+                    continue;
+                }
+                if (out == null) {
+                    finish(job, null);
+                    continue;
+                }
+                try {
+                    out.put(job);
+                } catch (InterruptedException e) {
+                    finish(job, e);
+                    return;
+                }
+            }
+        });
+    }
+    private void finish(Job job, Exception failure) {
+        if (failure == null) job.result.complete(job.order);
+        else {
+            if (job.order != null) abandon(job.order, failure);
+            job.result.completeExceptionally(failure);
+        }
+        done();
+    }
+    private void abandon(WorkOrder wo, Exception failure) {
+        if (wo.getStatus() == WorkOrder.Status.COMPLETED) return;
+        try {
+            service.reportProduction(wo.getId(), 0, true);
+        } catch (Exception e) {
+            failure.addSuppressed(e);
+        }
+    }
+    private void done() {
+        if (inFlight.decrementAndGet() > 0) return;
+        admission.lock();
+        try {
+            drained.signalAll();
+        } finally {
+            admission.unlock();
+        }
+    }
+    private static final class Job {
+        final String productCode;
+        final int quantity;
+        final String site;
+        final CompletableFuture<WorkOrder> result = new CompletableFuture<>();
+        WorkOrder order;
+        Job(String productCode, int quantity, String site) {
+            this.productCode = productCode;
+            this.quantity = quantity;
+            this.site = site;
+        }
+    }
+}
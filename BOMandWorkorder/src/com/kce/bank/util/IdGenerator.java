@@ -1,9 +1,136 @@
 package com.kce.bank.util;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+/*
+ * 64-bit id sequence, one per kind of transaction. Ids are drawn from blocks of
+ * BLOCK consecutive values, one block per stripe with threads spread over the
+ * stripes by id, so the shared counter is touched once per block rather than
+ * once per id and nothing is allocated per id. A block outlives the threads
+ * using it: short-lived virtual threads neither leave gaps nor use up the
+ * ceiling faster. Ids are unique and increase within a thread, but stripes
+ * interleave blocks, so ids are not in creation order across threads.
+ *
+ * With a CeilingStore attached, no id is handed out until a ceiling above it
+ * has been saved; a restart resumes from the saved ceilings and so never
+ * repeats an id, even one that was never journalled.
+ */
 public final class IdGenerator {
-    private static final AtomicInteger COUNTER = new AtomicInteger(1000);
-    private IdGenerator() {}
-    public static String next(String prefix) {
-        return prefix + "-" + COUNTER.getAndIncrement();
+    // a power of two, at least two per processor; set before the generators below use it
+    private static final int STRIPES = Integer.highestOneBit(2 * Runtime.getRuntime().availableProcessors() - 1) << 1;
+    public static final IdGenerator WORK_ORDERS = new IdGenerator("WO");
+    public static final IdGenerator MATERIAL_ISSUES = new IdGenerator("MI");
+    public static final IdGenerator PRODUCTION_REPORTS = new IdGenerator("PR");
+    private static final List<IdGenerator> ALL = List.of(WORK_ORDERS, MATERIAL_ISSUES, PRODUCTION_REPORTS);
+    private static final long FIRST = 1000;
+    private static final int BLOCK = 256;
+    private static final long LEASE = 1 << 20;
+
+    public interface CeilingStore {
+        void save(IdGenerator generator, long ceiling) throws IOException;
+    }
+    private static volatile CeilingStore store;
+
+    private final String prefix;
+    private final AtomicLong unclaimed = new AtomicLong(FIRST);
+    private volatile long ceiling = Long.MAX_VALUE;
+    // bumped by advanceTo so that blocks claimed before it are dropped
+    private volatile long epoch;
+    private final AtomicReferenceArray<Block> blocks = new AtomicReferenceArray<>(STRIPES);
+    private final ReentrantLock[] refills = new ReentrantLock[STRIPES];
+    private IdGenerator(String prefix) {
+        this.prefix = prefix;
+        for (int i = 0; i < STRIPES; i++) refills[i] = new ReentrantLock();
+    }
+
+    public static List<IdGenerator> all() { return ALL; }
+    public String getPrefix() { return prefix; }
+    public long next() {
+        int stripe = (int) Thread.currentThread().threadId() & (STRIPES - 1);
+        while (true) {
+            Block b = blocks.get(stripe);
+            if (b != null && b.epoch == epoch) {
+                long id = b.next.getAndIncrement();
+                if (id < b.end) return id;
+            }
+            refill(stripe, b);
+        }
+    }
+    // one thread replaces a spent block; the others wait for it and retry
+    private void refill(int stripe, Block spent) {
+        ReentrantLock lock = refills[stripe];
+        lock.lock();
+        try {
+            if (blocks.get(stripe) == spent) blocks.set(stripe, claim());
+        } finally {
+            lock.unlock();
+        }
+    }
+    private Block claim() {
+        long e = epoch;
+        long from = unclaimed.getAndAdd(BLOCK);
+        if (from + BLOCK > ceiling) raiseCeiling(from + BLOCK);
+        return new Block(from, e);
+    }
+    private synchronized void raiseCeiling(long needed) {
+        if (needed <= ceiling) return;
+        long next = needed + LEASE;
+        try {
+            store.save(this, next);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not save id ceiling for " + prefix, e);
+        }
+        ceiling = next;
+    }
+    // Ids below the saved ceilings may have been used before the restart: every
+    // sequence continues from its ceiling, and ids beyond it wait for a save.
+    public static void useCeilingStore(CeilingStore ceilings) {
+        store = ceilings;
+        for (IdGenerator g : ALL) {
+            synchronized (g) {
+                g.ceiling = g.unclaimed.get();
+            }
+        }
+    }
+    // Called for every id seen during recovery so new ids never collide with old ones.
+    public void advancePast(long id) { advanceTo(id + 1); }
+    public void advanceTo(long next) {
+        if (unclaimed.get() >= next) return;
+        synchronized (this) {
+            unclaimed.accumulateAndGet(next, Math::max);
+            epoch++;
+        }
+    }
+    // the next value not yet given to any thread; every id issued so far is below it
+    public long peek() { return unclaimed.get(); }
+
+    // ---- text form, for display and for reading ids typed by a user
+
+    public String format(long id) { return prefix + "-" + id; }
+    // "WO-1001" or plain "1001"; -1 if it is neither
+    public long parse(String text) {
+        String s = text.trim();
+        if (s.regionMatches(true, 0, prefix, 0, prefix.length()) && s.length() > prefix.length() && s.charAt(prefix.length()) == '-')
+            s = s.substring(prefix.length() + 1);
+        try {
+            long id = Long.parseLong(s);
+            return id >= 0 ? id : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // ids from next up to end (exclusive), claimed in the given epoch
+    private static final class Block {
+        final AtomicLong next;
+        final long end, epoch;
+        Block(long from, long epoch) {
+            this.next = new AtomicLong(from);
+            this.end = from + BLOCK;
+            this.epoch = epoch;
+        }
     }
 }
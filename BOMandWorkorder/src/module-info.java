@@ -5,4 +5,7 @@
  * 
  */
 module BOMandWorkorder {
+    requires java.management;
+    // JMX reads the MXBeans reflectively
+    exports com.kce.bank.metrics to java.management;
 }
\ No newline at end of file
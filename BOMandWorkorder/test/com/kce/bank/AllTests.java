@@ -0,0 +1,40 @@
+package com.kce.bank;
+import com.kce.bank.model.WarehouseConcurrencyTest;
+import com.kce.bank.persistence.JournalRecoveryTest;
+import com.kce.bank.persistence.SnapshotRecoveryTest;
+import com.kce.bank.server.MrpServerTest;
+import com.kce.bank.service.AvailableToPromiseTest;
+import com.kce.bank.service.BOMExplosionTest;
+import com.kce.bank.service.CapacitySchedulerTest;
+import com.kce.bank.service.LotBackflushTest;
+import com.kce.bank.service.PlanningRunTest;
+import com.kce.bank.service.WorkOrderConcurrencyTest;
+import com.kce.bank.service.WorkOrderPipelineTest;
+/*
+ * Runs every test, stopping at the first failure. Compile src and test
+ * together and run with assertions enabled:
+ *
+ *   javac -d out $(find src test -name '*.java')
+ *   java -ea -cp out com.kce.bank.AllTests
+ */
+public class AllTests {
+    public static void main(String[] args) throws Exception {
+        run("WarehouseConcurrencyTest", WarehouseConcurrencyTest::run);
+        run("BOMExplosionTest", BOMExplosionTest::run);
+        run("WorkOrderConcurrencyTest", WorkOrderConcurrencyTest::run);
+        run("LotBackflushTest", LotBackflushTest::run);
+        run("WorkOrderPipelineTest", WorkOrderPipelineTest::run);
+        run("AvailableToPromiseTest", AvailableToPromiseTest::run);
+        run("PlanningRunTest", PlanningRunTest::run);
+        run("CapacitySchedulerTest", CapacitySchedulerTest::run);
+        run("JournalRecoveryTest", JournalRecoveryTest::run);
+        run("SnapshotRecoveryTest", SnapshotRecoveryTest::run);
+        run("MrpServerTest", MrpServerTest::run);
+        System.out.println("All tests passed: " + Checks.passed() + " checks.");
+    }
+    private static void run(String name, Checks.Action test) throws Exception {
+        long t = System.nanoTime();
+        test.run();
+        System.out.printf("%-28s ok %6d ms%n", name, (System.nanoTime() - t) / 1_000_000);
+    }
+}
@@ -0,0 +1,72 @@
+package com.kce.bank;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.stream.Stream;
+// Assertions for the tests, which run without a test framework; see AllTests.
+public final class Checks {
+    private static int passed;
+    private Checks() {}
+    public static void check(boolean ok, String what) {
+        if (!ok) throw new AssertionError(what);
+        passed++;
+    }
+    public static void equal(Object expected, Object actual, String what) {
+        if (!expected.equals(actual)) throw new AssertionError(what + ": expected <" + expected + "> but was <" + actual + ">");
+        passed++;
+    }
+    public static <E extends Exception> E fails(Class<E> type, Action action, String what) {
+        try {
+            action.run();
+        } catch (Exception e) {
+            if (type.isInstance(e)) {
+                passed++;
+                return type.cast(e);
+            }
+            throw new AssertionError(what + ": threw " + e, e);
+        }
+        throw new AssertionError(what + ": did not throw " + type.getSimpleName());
+    }
+    public interface Action {
+        void run() throws Exception;
+    }
+    public interface Worker {
+        void work(int thread) throws Exception;
+    }
+    // Runs the worker on that many threads at once, released together, and
+    // rethrows the first failure.
+    public static void race(int threads, Worker worker) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        CountDownLatch go = new CountDownLatch(1);
+        List<Future<?>> done = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            done.add(pool.submit(() -> {
+                go.await();
+                worker.work(thread);
+                return null;
+            }));
+        }
+        go.countDown();
+        pool.shutdown();
+        try {
+            for (Future<?> f : done) f.get(2, TimeUnit.MINUTES);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception x) throw x;
+            throw new AssertionError(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+    public static int passed() { return passed; }
+    public static Path tempDir(String prefix) throws IOException { return Files.createTempDirectory(prefix); }
+    public static void delete(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path p : files.sorted(Comparator.reverseOrder()).toList()) Files.delete(p);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.kce.bank.model;
+import com.kce.bank.exception.InsufficientStockException;
+import com.kce.bank.service.MRPService;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import static com.kce.bank.Checks.*;
+// Many threads racing for the same stock: nothing is oversold or lost.
+public class WarehouseConcurrencyTest {
+    public static void run() throws Exception {
+        noOversell();
+        reserveAllIsAllOrNothing();
+        negativeQuantityRefused();
+        unknownOrdinalRefused();
+        viewSeesWholeBatches();
+    }
+
+    // Reservations of 1 to 7 and some issues until the stock runs out.
+    static void noOversell() throws Exception {
+        for (int round = 0; round < 10; round++) {
+            Warehouse w = new Warehouse("W");
+            Product p = w.getCatalog().register("P", "p");
+            int stock = 50_000;
+            w.addStock(p, stock);
+            AtomicLong reserved = new AtomicLong(), issued = new AtomicLong();
+            race(16, t -> {
+                for (int i = 0; i < 10_000; i++) {
+                    int qty = 1 + (i + t) % 7;
+                    try {
+                        w.reserve(p.getOrdinal(), qty);
+                        reserved.addAndGet(qty);
+                        if (i % 3 == 0) {
+                            w.issueReserved(p.getOrdinal(), 1);
+                            issued.incrementAndGet();
+                        }
+                    } catch (InsufficientStockException e) {
+                        // expected once the stock is gone
+                    }
+                }
+            });
+            int available = w.getAvailable("P"), held = w.getReserved("P");
+            check(available >= 0 && available < 7, "stock runs out without going negative: " + available);
+            equal(reserved.get() - issued.get(), (long) held, "reserved is what callers were granted, less issues");
+            equal((long) stock, available + held + issued.get(), "stock is conserved");
+            check(w.getShortages() > 0, "some reservations were refused");
+        }
+    }
+
+    // Two products taken in both orders by concurrent batches: each batch is
+    // reserved whole or not at all, and none deadlock.
+    static void reserveAllIsAllOrNothing() throws Exception {
+        Warehouse w = new Warehouse("W");
+        Product a = w.getCatalog().register("A", "a"), b = w.getCatalog().register("B", "b");
+        w.addStock(a, 30_000);
+        w.addStock(b, 45_000);
+        RequirementVector oneTwo = RequirementVector.of(Map.of("A", 1, "B", 2), w.getCatalog());
+        RequirementVector twoOne = RequirementVector.of(Map.of("B", 1, "A", 2), w.getCatalog());
+        AtomicLong first = new AtomicLong(), second = new AtomicLong();
+        race(16, t -> {
+            for (int i = 0; i < 5_000; i++) {
+                boolean odd = ((i ^ t) & 1) == 1;
+                try {
+                    w.reserveAll(odd ? oneTwo : twoOne);
+                    (odd ? first : second).incrementAndGet();
+                } catch (InsufficientStockException e) {
+                    // one of the two is short; neither may have been taken
+                }
+            }
+        });
+        equal(first.get() + 2 * second.get(), (long) w.getReserved("A"), "A reserved by whole batches only");
+        equal(2 * first.get() + second.get(), (long) w.getReserved("B"), "B reserved by whole batches only");
+        equal(30_000, w.getAvailable("A") + w.getReserved("A"), "A conserved");
+        equal(45_000, w.getAvailable("B") + w.getReserved("B"), "B conserved");
+        check(w.getAvailable("A") < 2 || w.getAvailable("B") < 2, "demand exhausted one of the products");
+    }
+
+    static void negativeQuantityRefused() {
+        Warehouse w = new Warehouse("W");
+        Product p = w.getCatalog().register("P", "p");
+        w.addStock(p, 10);
+        fails(IllegalArgumentException.class, () -> w.reserve("P", -5), "negative reserve");
+        fails(IllegalArgumentException.class, () -> w.issueReserved("P", -5), "negative issue");
+        fails(ArithmeticException.class, () -> w.adjust("P", Integer.MAX_VALUE, 0), "overflowing adjust");
+        equal(10, w.getAvailable("P"), "refused calls leave the stock alone");
+        equal(0, w.getReserved("P"), "refused calls reserve nothing");
+    }
+
+    static void unknownOrdinalRefused() {
+        Warehouse w = new Warehouse("W");
+        Product p = w.getCatalog().register("P", "p");
+        w.addStock(p, 10);
+        for (int ord : new int[] { -1, 1, 1 << 20 }) {
+            fails(IllegalArgumentException.class, () -> w.reserve(ord, 1), "reserve of ordinal " + ord);
+            fails(IllegalArgumentException.class, () -> w.issueReserved(ord, 1), "issue of ordinal " + ord);
+            fails(IllegalArgumentException.class, () -> w.adjust(ord, 1, 0), "adjust of ordinal " + ord);
+            fails(IllegalArgumentException.class, () -> w.move(ord, 1, 0), "move of ordinal " + ord);
+            fails(IllegalArgumentException.class, () -> w.reserveAll(RequirementVector.ofPacked(new long[] { RequirementVector.pack(ord, 1) }, 1)), "batch with ordinal " + ord);
+            fails(IllegalArgumentException.class, () -> w.getAvailable(ord), "available of ordinal " + ord);
+        }
+        equal(0, w.getAvailable("Q"), "an unknown code has no stock");
+        equal(0, new MRPService(w).totalAvailable("Q"), "nor across the network");
+        equal(10, w.getAvailable("P"), "refused calls leave the stock alone");
+    }
+
+    // Stock shuttled between two sites in one batch at a time: every view sees
+    // it at one site or the other, never gone from both or at both.
+    static void viewSeesWholeBatches() throws Exception {
+        StockNetwork network = new StockNetwork(new Warehouse("W"));
+        Warehouse w = network.primary(), s = network.addSite("S", 1, 1);
+        Product p = w.getCatalog().register("P", "p");
+        w.addStock(p, 1000);
+        int ord = p.getOrdinal();
+        AtomicLong views = new AtomicLong();
+        race(4, t -> {
+            for (int i = 0; i < 20_000; i++) {
+                if (t == 0) {
+                    StockView v = network.view();
+                    equal(1000, v.getAvailable(0, ord) + v.getAvailable(1, ord), "stock whole in view " + v.getVersion());
+                    views.incrementAndGet();
+                    continue;
+                }
+                StockMoves moves = new StockMoves();
+                Warehouse from = i % 2 == 0 ? w : s, to = from == w ? s : w;
+                moves.add(from, ord, -1, 0);
+                moves.add(to, ord, 1, 0);
+                try {
+                    network.moveAll(moves);
+                } catch (InsufficientStockException e) {
+                    // that site is empty for now
+                }
+            }
+        });
+        equal(1000, w.getAvailable(ord) + s.getAvailable(ord), "stock conserved");
+        check(views.get() > 0, "views taken while stock moved");
+    }
+}
@@ -0,0 +1,193 @@
+package com.kce.bank.persistence;
+import com.kce.bank.exception.InvalidOperationException;
+import com.kce.bank.model.*;
+import com.kce.bank.service.MRPService;
+import com.kce.bank.service.TransactionLog;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Map;
+import static com.kce.bank.Checks.*;
+// Replaying the journal rebuilds the service; a torn tail is dropped cleanly.
+public class JournalRecoveryTest {
+    public static void run() throws Exception {
+        Path dir = tempDir("journal");
+        try {
+            replayAndTornTail(dir.resolve("mrp.journal"));
+            overlongFieldsRefusedUpFront(dir.resolve("long.journal"));
+            overflowingReceiptRefusedUpFront(dir.resolve("full.journal"));
+            settingsNotJournalledAreNotSet();
+            startJournalledBeforeShown(dir.resolve("start.journal"));
+        } finally {
+            delete(dir);
+        }
+    }
+
+    static void replayAndTornTail(Path file) throws Exception {
+        MRPService s = new MRPService(new Warehouse("W"));
+        TransactionJournal journal = TransactionJournal.open(file, false);
+        journal.replay(s.recovery());
+        s.setTransactionLog(journal);
+        work(s, 200);
+        long beforeLast = journal.position();
+        String before = state(s);
+        s.createWorkOrder("FG", 1);
+        long end = journal.position();
+        String after = state(s);
+        journal.close();
+
+        MRPService r = new MRPService(new Warehouse("W"));
+        try (TransactionJournal replayed = TransactionJournal.open(file, false)) {
+            replayed.replay(r.recovery());
+            equal(after, state(r), "full replay rebuilds the same state");
+            equal(end, replayed.position(), "appends resume at the end");
+        }
+
+        // a write torn inside the last group: that group is dropped, all before it kept
+        long at = end - JournalRecord.SIZE + 40;
+        try (FileChannel ch = FileChannel.open(TransactionJournal.segmentFile(file, (int) (at / TransactionJournal.SEGMENT)), StandardOpenOption.WRITE)) {
+            ch.write(ByteBuffer.wrap(new byte[] { 9, 9, 9 }), at % TransactionJournal.SEGMENT);
+        }
+        MRPService torn = new MRPService(new Warehouse("W"));
+        try (TransactionJournal replayed = TransactionJournal.open(file, false)) {
+            replayed.replay(torn.recovery());
+            equal(before, state(torn), "torn group dropped");
+            equal(beforeLast, replayed.position(), "journal truncated to the last whole group");
+            torn.setTransactionLog(replayed);
+            torn.createWorkOrder("FG", 2);
+            after = state(torn);
+        }
+        MRPService again = new MRPService(new Warehouse("W"));
+        try (TransactionJournal replayed = TransactionJournal.open(file, false)) {
+            replayed.replay(again.recovery());
+            equal(after, state(again), "records appended after the tear survive");
+        }
+    }
+
+    // codes and names the journal cannot hold change nothing, in memory or on disk
+    static void overlongFieldsRefusedUpFront(Path file) throws Exception {
+        MRPService s = new MRPService(new Warehouse("W"));
+        try (TransactionJournal journal = TransactionJournal.open(file, false)) {
+            s.setTransactionLog(journal);
+            String code = "C".repeat(32), name = "N".repeat(40);
+            fails(InvalidOperationException.class, () -> s.addProduct(code, "long", 5), "product code");
+            fails(InvalidOperationException.class, () -> s.addProducts(new String[] { "OK", code }, new String[] { "ok", "long" }, 2), "bulk product code");
+            fails(InvalidOperationException.class, () -> s.addProducts(new String[] { "OK", "OK" }, new String[] { "ok", "again" }, 2), "code repeated in a batch");
+            fails(InvalidOperationException.class, () -> s.addSite(name, 0, 0), "site name");
+            fails(InvalidOperationException.class, () -> s.addWorkCenter(code, "wc", 480), "work center code");
+            fails(InvalidOperationException.class, () -> s.addWorkCenter("WC", name, 480), "work center name");
+            // a name may be long: it is split over records; multi-byte text counts in bytes
+            s.addProduct("É".repeat(15), name, 1);
+            fails(InvalidOperationException.class, () -> s.addProduct("É".repeat(16), "x", 1), "code over 31 bytes of UTF-8");
+            equal(1, s.allProducts().size(), "only the product that fits was added");
+            equal(1, s.getNetwork().size(), "no site added");
+            check(s.allWorkCenters().isEmpty(), "no work center added");
+            equal(2L * JournalRecord.SIZE, journal.position(), "only the product that fits was journalled, its name in two records");
+        }
+    }
+
+    // a receipt the site cannot hold is never journalled, so the journal still replays
+    static void overflowingReceiptRefusedUpFront(Path file) throws Exception {
+        MRPService s = new MRPService(new Warehouse("W"));
+        try (TransactionJournal journal = TransactionJournal.open(file, false)) {
+            s.setTransactionLog(journal);
+            s.addProduct("C", "c", Integer.MAX_VALUE - 10);
+            s.addProduct("D", "d", 0);
+            long end = journal.position();
+            fails(InvalidOperationException.class, () -> s.receiveStock("W", "C", 11), "receipt past the limit");
+            RequirementVector lines = RequirementVector.of(Map.of("C", 11, "D", 5), s.getCatalog());
+            fails(InvalidOperationException.class, () -> s.receiveStock("W", lines), "bulk receipt past the limit");
+            equal(end, journal.position(), "refused receipts not journalled");
+            equal(0, s.getNetwork().primary().getAvailable("D"), "bulk receipt refused whole");
+            s.receiveStock("W", "C", 10);
+        }
+        MRPService r = new MRPService(new Warehouse("W"));
+        try (TransactionJournal journal = TransactionJournal.open(file, false)) {
+            journal.replay(r.recovery());
+        }
+        equal(Integer.MAX_VALUE, r.getNetwork().primary().getAvailable("C"), "replay fills the site to the limit");
+        equal(0, r.getNetwork().primary().getAvailable("D"), "nothing of the refused bulk receipt replayed");
+    }
+
+    // planning and due dates the log refuses stay as they were
+    static void settingsNotJournalledAreNotSet() throws Exception {
+        MRPService s = new MRPService(new Warehouse("W"));
+        s.addProduct("C", "c", 10);
+        s.addProduct("A", "a", 0);
+        s.defineBOM("A", List.of(new BOMItem(s.getProduct("C"), 1)));
+        WorkOrder wo = s.createWorkOrder("A", 1);
+        s.setTransactionLog((TransactionLog) Proxy.newProxyInstance(TransactionLog.class.getClassLoader(), new Class<?>[] { TransactionLog.class },
+                (proxy, method, args) -> { throw new UncheckedIOException(new IOException("Disk full")); }));
+        fails(UncheckedIOException.class, () -> s.setProductPlanning("A", 3, null, 5), "planning with the journal failing");
+        fails(UncheckedIOException.class, () -> s.setDueDate(wo.getId(), LocalDate.now()), "due date with the journal failing");
+        equal(0, s.getProduct("A").getLeadTimeDays(), "lead time unchanged");
+        equal(0, s.getProduct("A").getMinutesPerUnit(), "minutes per unit unchanged");
+        check(wo.getDueDate() == null, "due date unchanged");
+    }
+
+    // A start the log refuses leaves the order issued; a start journalled by the
+    // loser of a race with the last lot replays without reopening the order.
+    static void startJournalledBeforeShown(Path file) throws Exception {
+        MRPService s = new MRPService(new Warehouse("W"));
+        WorkOrder wo;
+        try (TransactionJournal journal = TransactionJournal.open(file, false)) {
+            s.setTransactionLog(journal);
+            s.addProduct("C", "c", 10);
+            s.addProduct("A", "a", 0);
+            s.defineBOM("A", List.of(new BOMItem(s.getProduct("C"), 1)));
+            wo = s.createWorkOrder("A", 2);
+            s.issueMaterialsForWorkOrder(wo.getId());
+            s.setTransactionLog((TransactionLog) Proxy.newProxyInstance(TransactionLog.class.getClassLoader(), new Class<?>[] { TransactionLog.class },
+                    (proxy, method, args) -> { throw new UncheckedIOException(new IOException("Disk full")); }));
+            fails(UncheckedIOException.class, () -> s.startProduction(wo.getId()), "start with the journal failing");
+            equal(WorkOrder.Status.MATERIAL_ISSUED, wo.getStatus(), "order not shown started");
+            s.setTransactionLog(journal);
+            s.reportProduction(wo.getId(), 2);
+            journal.productionStarted(wo);
+        }
+        MRPService r = new MRPService(new Warehouse("W"));
+        try (TransactionJournal journal = TransactionJournal.open(file, false)) {
+            journal.replay(r.recovery());
+        }
+        equal(WorkOrder.Status.COMPLETED, r.getWorkOrder(wo.getId()).getStatus(), "late start does not reopen the order");
+    }
+
+    // orders at every stage, so each kind of record is written
+    static void work(MRPService s, int orders) throws Exception {
+        s.addProduct("R1", "A long product name that spans more than one journal record", 1_000_000);
+        s.addProduct("R2", "r2", 1_000_000);
+        s.addProduct("FG", "fg", 0);
+        s.defineBOM("FG", List.of(new BOMItem(s.getProduct("R1"), 2), new BOMItem(s.getProduct("R2"), 1)));
+        for (int i = 0; i < orders; i++) {
+            WorkOrder wo = s.createWorkOrder("FG", 1 + i % 5);
+            if (i % 4 == 1) s.issueMaterialsForWorkOrder(wo.getId());
+            if (i % 4 == 2) s.reportProduction(wo.getId(), 1, i % 8 == 2);
+            if (i % 4 == 3) s.reportProduction(wo.getId(), wo.getQuantity());
+        }
+    }
+    // stock by site and every work order with its ledger
+    static String state(MRPService s) { return state(s, true); }
+    // completedLedgers false: a completed order by its summary alone, as a snapshot keeps it
+    static String state(MRPService s, boolean completedLedgers) {
+        StringBuilder sb = new StringBuilder(s.warehouseSummary());
+        for (WorkOrder wo : s.allWorkOrders()) {
+            sb.append(wo.getDisplayId()).append(' ').append(wo.getProduct().getCode()).append(' ').append(wo.getStatus())
+                    .append(' ').append(wo.getProducedQuantity()).append('/').append(wo.getQuantity());
+            if (!completedLedgers && wo.getStatus() == WorkOrder.Status.COMPLETED) {
+                sb.append('\n');
+                continue;
+            }
+            sb.append(" lots=").append(wo.getProductionReports().size()).append(" issues=").append(wo.getMaterialIssues().size());
+            for (int i = 0; i < wo.materialLines(); i++)
+                sb.append(' ').append(wo.materialAt(i).getCode()).append(':').append(wo.issuedAt(i)).append('/').append(wo.releasedAt(i)).append('/').append(wo.requiredAt(i));
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,76 @@
+package com.kce.bank.persistence;
+import com.kce.bank.model.Warehouse;
+import com.kce.bank.model.WorkOrder;
+import com.kce.bank.service.MRPService;
+import com.kce.bank.util.IdGenerator;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import static com.kce.bank.Checks.*;
+// A snapshot and the journal after it rebuild what the whole journal does,
+// completed orders by their summary; the journal it covers is dropped.
+public class SnapshotRecoveryTest {
+    // small enough for a checkpoint to cover several segments
+    private static final int SEGMENT = 64 * JournalRecord.SIZE;
+
+    public static void run() throws Exception {
+        Path dir = tempDir("snapshot");
+        try {
+            snapshotMatchesFullReplay(dir.resolve("mrp.journal"), dir.resolve("mrp.snapshot"));
+        } finally {
+            delete(dir);
+        }
+    }
+
+    static void snapshotMatchesFullReplay(Path file, Path snapshotFile) throws Exception {
+        MRPService s = new MRPService(new Warehouse("W"));
+        MRPService replayed = new MRPService(new Warehouse("W"));
+        String live;
+        try (TransactionJournal journal = TransactionJournal.open(file, false, SEGMENT);
+             SnapshotManager snapshots = new SnapshotManager(snapshotFile, journal)) {
+            s.setTransactionLog(journal);
+            JournalRecoveryTest.work(s, 200);
+            // read back before any of it is dropped
+            journal.awaitDurable(journal.position());
+            journal.read(0, journal.position(), replayed.recovery());
+            long first = snapshots.checkpoint();
+            check(first > 2L * SEGMENT, "the first snapshot covers several segments");
+            check(!Files.exists(TransactionJournal.segmentFile(file, 0)), "segments the snapshot covers are dropped");
+            check(Files.exists(TransactionJournal.segmentFile(file, (int) (first / SEGMENT))), "the segment it ends in is kept");
+            long size = Files.size(snapshotFile);
+            // closing orders taken in the first snapshot, so the second is built on it
+            List<WorkOrder> early = s.allWorkOrders().stream().filter(wo -> wo.getId() % 3 == 0 && wo.getProducedQuantity() == 0)
+                    .collect(Collectors.toList());
+            for (WorkOrder wo : early) s.reportProduction(wo.getId(), 1, true);
+            for (int i = 0; i < 20; i++) s.createWorkOrder("FG", 2);
+            long unclaimed = IdGenerator.WORK_ORDERS.peek();
+            journal.awaitDurable(journal.position());
+            journal.read(first, journal.position(), replayed.recovery());
+            snapshots.checkpoint();
+            equal(unclaimed, IdGenerator.WORK_ORDERS.peek(), "a checkpoint leaves the live id sequence alone");
+            check(Files.size(snapshotFile) < size, "closing orders shrinks the snapshot: " + Files.size(snapshotFile) + " of " + size);
+            for (int i = 0; i < 20; i++) s.reportProduction(s.createWorkOrder("FG", 3).getId(), 1, i % 2 == 0);
+            live = state(s, false);
+        }
+        check(live.contains("COMPLETED"), "some orders completed before the snapshot");
+
+        MRPService fromSnapshot = new MRPService(new Warehouse("W"));
+        try (TransactionJournal journal = TransactionJournal.open(file, false, SEGMENT);
+             SnapshotManager snapshots = new SnapshotManager(snapshotFile, journal)) {
+            RecoveryStats stats = snapshots.recover(fromSnapshot);
+            check(stats.getSnapshotPosition() > 0, "recovery started from the snapshot");
+        }
+        equal(live, state(fromSnapshot, false), "snapshot and tail rebuild the live state");
+        try (TransactionJournal journal = TransactionJournal.open(file, false, SEGMENT)) {
+            fails(IOException.class, () -> journal.replay(new MRPService(new Warehouse("W")).recovery()), "replay from a dropped position");
+        }
+        for (WorkOrder wo : fromSnapshot.allWorkOrders()) {
+            if (wo.getStatus() == WorkOrder.Status.COMPLETED) continue;
+            WorkOrder full = replayed.getWorkOrder(wo.getId());
+            if (full != null) equal(full.getMaterialIssues().size(), wo.getMaterialIssues().size(), wo.getDisplayId() + " open with its whole ledger");
+        }
+    }
+    private static String state(MRPService s, boolean completedLedgers) { return JournalRecoveryTest.state(s, completedLedgers); }
+}
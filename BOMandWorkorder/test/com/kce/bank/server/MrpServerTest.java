@@ -0,0 +1,113 @@
+package com.kce.bank.server;
+import com.kce.bank.model.Warehouse;
+import com.kce.bank.service.MRPService;
+import java.io.*;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import static com.kce.bank.Checks.*;
+// The line protocol over a socket: pipelining, line ends split across reads and the length limit.
+public class MrpServerTest {
+    public static void run() throws Exception {
+        lineLimit();
+        pipelinedAndSplitRequests();
+        longestLineOverTheSocket();
+    }
+
+    // a line of exactly the limit is read whichever read its line end comes in
+    static void lineLimit() throws Exception {
+        equal(List.of("12345678"), lines(8, "12345678\r", "\n"), "CR LF split after a full line");
+        equal(List.of("12345678"), lines(8, "1234", "5678", "\r", "\n"), "line end in its own reads");
+        equal(List.of("12345678", "ab"), lines(8, "12345678\nab"), "full line, then a short one at the end");
+        equal(List.of("a", "", "b"), lines(8, "a\r\n\nb\n"), "empty line kept");
+        fails(ProtocolException.class, () -> lines(8, "123456789", "\n"), "one byte over");
+        fails(ProtocolException.class, () -> lines(8, "12345678x", "\r\n"), "over, with CR LF to come");
+        fails(ProtocolException.class, () -> lines(8, "123456789"), "over at the end of the input");
+        LineReader in = new LineReader(chunks("a\nb", "\n"), 8);
+        check(!in.lineBuffered(), "nothing read yet");
+        equal("a", in.readLine(), "first line");
+        check(!in.lineBuffered(), "b not ended yet");
+        equal("b", in.readLine(), "second line");
+    }
+    static List<String> lines(int maxLine, String... chunks) throws IOException {
+        LineReader in = new LineReader(chunks(chunks), maxLine);
+        List<String> lines = new ArrayList<>();
+        for (String line; (line = in.readLine()) != null; ) lines.add(line);
+        return lines;
+    }
+    // each chunk comes back from a read of its own
+    static InputStream chunks(String... chunks) {
+        Deque<byte[]> left = new ArrayDeque<>();
+        for (String c : chunks) left.add(c.getBytes(StandardCharsets.UTF_8));
+        return new InputStream() {
+            public int read() { throw new UnsupportedOperationException(); }
+            public int read(byte[] b, int off, int len) {
+                byte[] c = left.poll();
+                if (c == null) return -1;
+                int n = Math.min(len, c.length);
+                System.arraycopy(c, 0, b, off, n);
+                if (n < c.length) left.addFirst(Arrays.copyOfRange(c, n, c.length));
+                return n;
+            }
+        };
+    }
+
+    static void pipelinedAndSplitRequests() throws Exception {
+        try (MrpServer server = new MrpServer(new MRPService(new Warehouse("W")));
+             Connection c = connect(server)) {
+            c.send("PING\r\nPI");
+            equal("OK", c.read(), "first of a pipelined pair");
+            c.send("NG\nBATCH 2\nPING\n");
+            equal("OK", c.read(), "request split across writes");
+            Thread.sleep(50);
+            c.send("PING\n");
+            equal("OK", c.read(), "batch finished by a later write");
+            equal("OK", c.read(), "and replied in order");
+            c.send("QUIT\n");
+            equal("OK", c.read(), "quit");
+            check(c.read() == null, "connection closed");
+        }
+    }
+
+    // MAX_LINE bytes then CR, with the LF held back until the server has read the rest
+    static void longestLineOverTheSocket() throws Exception {
+        try (MrpServer server = new MrpServer(new MRPService(new Warehouse("W")));
+             Connection c = connect(server)) {
+            String longest = "PING " + "x".repeat(MrpServer.MAX_LINE - 5);
+            c.send(longest + "\r");
+            Thread.sleep(100);
+            c.send("\n");
+            equal("OK", c.read(), "a line of exactly the limit");
+            c.send(longest + "x\n");
+            equal("ERR Request longer than " + MrpServer.MAX_LINE + " bytes", c.read(), "one byte more is refused");
+            check(c.read() == null, "and ends the connection");
+        }
+    }
+
+    static Connection connect(MrpServer server) throws IOException {
+        server.start(0);
+        return new Connection(new Socket("localhost", server.getPort()));
+    }
+    static final class Connection implements Closeable {
+        final Socket socket;
+        final OutputStream out;
+        final BufferedReader in;
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            socket.setSoTimeout(10_000);
+            out = socket.getOutputStream();
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        }
+        void send(String s) throws IOException {
+            out.write(s.getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
+        String read() throws IOException { return in.readLine(); }
+        public void close() throws IOException { socket.close(); }
+    }
+}
@@ -0,0 +1,102 @@
+package com.kce.bank.service;
+import com.kce.bank.model.*;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import static com.kce.bank.Checks.*;
+// Buildable quantities, and promise dates from cumulative lead times.
+public class AvailableToPromiseTest {
+    public static void run() throws Exception {
+        buildableFollowsStockBelow();
+        sharedSubassembliesWalkedOnce();
+        failedComputationHandsCellBack();
+    }
+
+    // SA on hand counts towards FG. The figure is dropped by any movement of
+    // available stock below FG and kept across movements of anything else.
+    static void buildableFollowsStockBelow() throws Exception {
+        MRPService s = new MRPService(new Warehouse("W"));
+        s.addProduct("L", "leaf", 0);
+        s.addProduct("P", "part", 10);
+        s.addProduct("SA", "sub", 5);
+        s.addProduct("FG", "fg", 0);
+        s.addProduct("X", "other", 100);
+        s.addProduct("Y", "other assembly", 0);
+        s.defineBOM("SA", List.of(new BOMItem(s.getProduct("L"), 2)));
+        s.defineBOM("FG", List.of(new BOMItem(s.getProduct("SA"), 1), new BOMItem(s.getProduct("P"), 1)));
+        s.defineBOM("Y", List.of(new BOMItem(s.getProduct("X"), 1)));
+        int fg = s.getProduct("FG").getOrdinal();
+        AvailableToPromise atp = s.atp();
+        equal(5, s.buildable("FG"), "FG from the SA on hand");
+        check(atp.cached(fg), "FG cached");
+
+        s.receiveStock("W", "X", 10);
+        WorkOrder y = s.createWorkOrder("Y", 4);
+        s.issueMaterialsForWorkOrder(y.getId());
+        s.reportProduction(y.getId(), 4);
+        check(atp.cached(fg), "FG kept across movements of X and Y");
+        equal(5, s.buildable("FG"), "FG unchanged");
+
+        s.receiveStock("W", "L", 4);
+        check(!atp.cached(fg), "FG dropped by stock received");
+        equal(7, s.buildable("FG"), "5 SA on hand and 2 from L");
+
+        WorkOrder order = s.createWorkOrder("FG", 1);
+        check(!atp.cached(fg), "FG dropped by a reservation");
+        equal(6, s.buildable("FG"), "4 SA on hand and 2 from L");
+
+        // issuing what is reserved leaves available stock as it was
+        s.issueMaterialsForWorkOrder(order.getId());
+        check(atp.cached(fg), "FG kept across an issue of reserved stock");
+        equal(6, s.buildable("FG"), "FG unchanged by the issue");
+
+        WorkOrder sub = s.createWorkOrder("SA", 2);
+        equal(4, s.buildable("FG"), "L reserved for SA");
+        s.issueMaterialsForWorkOrder(sub.getId());
+        s.reportProduction(sub.getId(), 2);
+        check(!atp.cached(fg), "FG dropped by SA produced");
+        equal(6, s.buildable("FG"), "6 SA on hand");
+    }
+
+    // A computation that throws must not leave the cell claimed, or the figure
+    // would never be cached again.
+    static void failedComputationHandsCellBack() throws Exception {
+        MRPService s = new MRPService(new Warehouse("W"));
+        s.addProduct("L", "leaf", 10);
+        s.addProduct("A", "assembly", 0);
+        s.defineBOM("A", List.of(new BOMItem(s.getProduct("L"), 2)));
+        AtomicBoolean failing = new AtomicBoolean(true);
+        StockNetwork network = new StockNetwork(s.getNetwork().primary()) {
+            public int getAvailable(int ordinal) {
+                if (failing.get()) throw new IllegalStateException("Stock unreadable");
+                return super.getAvailable(ordinal);
+            }
+        };
+        Map<String, BOM> boms = Map.of("A", s.getBOM("A"));
+        AvailableToPromise atp = new AvailableToPromise(boms, new BOMExplosion(boms, s.getCatalog()), network);
+        int a = s.getProduct("A").getOrdinal();
+        fails(IllegalStateException.class, () -> atp.buildable(a), "computation failing");
+        check(!atp.cached(a), "nothing cached");
+        failing.set(false);
+        equal(5, atp.buildable(a), "computed once the stock can be read");
+        check(atp.cached(a), "and cached again");
+    }
+
+    // Each level uses the next one twice over, so walking every path would take
+    // 2^LEVELS steps; the lead time must still come back at once.
+    static void sharedSubassembliesWalkedOnce() throws Exception {
+        int levels = 40;
+        MRPService s = new MRPService(new Warehouse("W"));
+        s.addProduct("L" + levels, "leaf", 1000);
+        s.setProductPlanning("L" + levels, 1, null, 0);
+        for (int i = levels - 1; i >= 0; i--) {
+            s.addProduct("L" + i, "level " + i, 0);
+            s.setProductPlanning("L" + i, 1, null, 0);
+            Product below = s.getProduct("L" + (i + 1));
+            s.defineBOM("L" + i, List.of(new BOMItem(below, 1), new BOMItem(below, 1, 1)));
+        }
+        // 81 days to make L0, and none in stock or on order: nothing to promise a day sooner
+        equal(0, s.availableToPromise("L0", LocalDate.now().plusDays(2L * levels)), "not buildable within " + 2 * levels + " days");
+    }
+}
@@ -0,0 +1,74 @@
+package com.kce.bank.service;
+import com.kce.bank.model.*;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import static com.kce.bank.Checks.*;
+// Cached per-unit vectors, low-level codes and explosion netted against stock.
+public class BOMExplosionTest {
+    public static void run() throws Exception {
+        lowLevelCodes();
+        redefinedBOMDropsCachesAbove();
+        nettingAgainstSubAssemblyStock();
+    }
+
+    // FG -> SA1, SA2 -> SB -> L, and FG -> L directly: the deepest use counts.
+    static MRPService diamond() throws Exception {
+        MRPService s = new MRPService(new Warehouse("W"));
+        for (String code : List.of("L", "SB", "SA1", "SA2", "FG")) s.addProduct(code, code.toLowerCase(), 0);
+        s.defineBOM("SB", List.of(new BOMItem(s.getProduct("L"), 2)));
+        s.defineBOM("SA1", List.of(new BOMItem(s.getProduct("SB"), 1)));
+        s.defineBOM("SA2", List.of(new BOMItem(s.getProduct("SB"), 1)));
+        s.defineBOM("FG", List.of(new BOMItem(s.getProduct("SA1"), 1), new BOMItem(s.getProduct("SA2"), 1), new BOMItem(s.getProduct("L"), 1)));
+        return s;
+    }
+
+    static void lowLevelCodes() throws Exception {
+        MRPService s = diamond();
+        equal(0, s.lowLevelCode("FG"), "FG at the top");
+        equal(1, s.lowLevelCode("SA1"), "SA1 under FG");
+        equal(2, s.lowLevelCode("SB"), "SB under the SAs");
+        equal(3, s.lowLevelCode("L"), "L at its deepest use, not under FG directly");
+        equal(List.of("FG", "SA1", "SA2", "SB", "L"), s.productsByLowLevelCode(), "products by level, then code");
+        s.defineBOM("SA2", List.of(new BOMItem(s.getProduct("L"), 1)));
+        equal(3, s.lowLevelCode("L"), "still under SB through SA1");
+        s.defineBOM("SA1", List.of(new BOMItem(s.getProduct("L"), 1)));
+        equal(2, s.lowLevelCode("L"), "codes follow a redefined BOM");
+    }
+
+    static void redefinedBOMDropsCachesAbove() throws Exception {
+        MRPService s = diamond();
+        equal(Map.of("L", 5), s.perUnitRequirements("FG"), "FG flattened to leaves");
+        equal(Map.of("L", 2), s.perUnitRequirements("SA2"), "SA2 cached too");
+        s.defineBOM("SB", List.of(new BOMItem(s.getProduct("L"), 3)));
+        equal(Map.of("L", 7), s.perUnitRequirements("FG"), "FG sees the new SB");
+        equal(Map.of("L", 3), s.perUnitRequirements("SA1"), "so does SA1");
+        s.addProduct("X", "x", 0);
+        BOM sb = new BOM(s.getProduct("SB"));
+        sb.addItem(new BOMItem(s.getProduct("X"), 1));
+        s.defineBOMs(List.of(sb));
+        equal(Map.of("X", 2, "L", 1), s.perUnitRequirements("FG"), "and a bulk redefinition");
+        equal(Map.of(), s.perUnitRequirements("L"), "a leaf has no vector");
+    }
+
+    // Without sub-assembly stock the cached vector is used, each sub-assembly looked
+    // at once; with it, each line takes what is left of it before exploding.
+    static void nettingAgainstSubAssemblyStock() throws Exception {
+        MRPService s = diamond();
+        Map<String, BOM> boms = new HashMap<>();
+        for (String code : List.of("SB", "SA1", "SA2", "FG")) boms.put(code, s.getBOM(code));
+        BOMExplosion explosion = new BOMExplosion(boms, s.getCatalog());
+        int fg = s.getProduct("FG").getOrdinal(), sb = s.getProduct("SB").getOrdinal();
+        AtomicInteger lookups = new AtomicInteger();
+        RequirementVector none = explosion.explode(fg, 3, c -> {
+            lookups.incrementAndGet();
+            return 0;
+        });
+        equal(Map.of("L", 15), none.toMap(s.getCatalog()), "nothing on hand: leaves only");
+        equal(3, lookups.get(), "only the sub-assemblies looked at");
+        equal(Map.of("SB", 4, "L", 7), explosion.explode(fg, 3, c -> c == sb ? 4 : 0).toMap(s.getCatalog()),
+                "4 SB shared between the lines, the rest exploded");
+        equal(Map.of("SB", 6, "L", 3), explosion.explode(fg, 3, c -> c == sb ? 100 : 0).toMap(s.getCatalog()), "enough SB for both lines");
+    }
+}
@@ -0,0 +1,96 @@
+package com.kce.bank.service;
+import com.kce.bank.model.*;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import static com.kce.bank.Checks.*;
+// Rippled changes to the schedule must leave it as a full rebuild would.
+public class CapacitySchedulerTest {
+    public static void run() throws Exception {
+        rippleMatchesRebuild();
+        completedOrderNotPutBack();
+    }
+
+    // Two work centers loaded past capacity by orders of two-level products;
+    // due dates are moved, dropped and orders completed at random, and after
+    // each change the rippled schedule is compared with a rebuilt one.
+    static void rippleMatchesRebuild() throws Exception {
+        Random rnd = new Random(42);
+        MRPService s = shop(rnd);
+        LocalDate today = LocalDate.now();
+        List<WorkOrder> orders = new ArrayList<>();
+        for (int i = 0; i < 400; i++)
+            orders.add(s.createWorkOrder("F" + rnd.nextInt(4), 1 + rnd.nextInt(10), "W", today.plusDays(5 + rnd.nextInt(120))));
+        s.reschedule();
+        int rippled = 0;
+        for (int change = 0; change < 200; change++) {
+            WorkOrder wo = orders.get(rnd.nextInt(orders.size()));
+            if (wo.getStatus() == WorkOrder.Status.COMPLETED) continue;
+            int kind = rnd.nextInt(10);
+            if (kind == 0) s.setDueDate(wo.getId(), null);
+            else if (kind == 1) s.reportProduction(wo.getId(), wo.getRemainingQuantity());
+            else s.setDueDate(wo.getId(), today.plusDays(rnd.nextInt(130)));
+            if (s.scheduler().lastPlaced() < s.allWorkOrders().stream().filter(CapacitySchedulerTest::scheduled).count()) rippled++;
+            String after = schedule(s);
+            s.reschedule();
+            equal(schedule(s), after, "schedule after change " + change);
+        }
+        check(rippled > 100, "most changes rippled rather than rebuilt: " + rippled);
+        check(!s.lateWorkOrders().isEmpty(), "some capacity overloaded");
+    }
+
+    // The last lot removes its order from the schedule; an update that checked
+    // the order before that and reaches the scheduler after must not restore it.
+    static void completedOrderNotPutBack() throws Exception {
+        MRPService s = shop(new Random(7));
+        LocalDate due = LocalDate.now().plusDays(20);
+        WorkOrder a = s.createWorkOrder("F0", 10, "W", due);
+        WorkOrder b = s.createWorkOrder("F1", 10, "W", due);
+        s.reschedule();
+        s.reportProduction(a.getId(), 10);
+        s.scheduler().update(a);
+        equal(0, s.schedule(a.getId()).size(), "completed order not scheduled");
+        String after = schedule(s);
+        s.reschedule();
+        equal(schedule(s), after, "same as a rebuild");
+        check(!s.schedule(b.getId()).isEmpty(), "the other order still scheduled");
+    }
+
+    // F0..F3 on M1 each take an S on M2 and raw R; capacity is short on some days
+    static MRPService shop(Random rnd) throws Exception {
+        MRPService s = new MRPService(new Warehouse("W"));
+        s.addWorkCenter("M1", "m1", 480);
+        s.addWorkCenter("M2", "m2", 240);
+        LocalDate today = LocalDate.now();
+        for (int d = 0; d < 130; d += 1 + rnd.nextInt(5)) s.setWorkCenterCapacity("M" + (1 + rnd.nextInt(2)), today.plusDays(d), rnd.nextInt(200));
+        s.addProduct("R", "r", 1_000_000);
+        for (int j = 0; j < 3; j++) {
+            s.addProduct("S" + j, "s" + j, 0);
+            s.setProductPlanning("S" + j, 1 + rnd.nextInt(2), "M2", 2 + rnd.nextInt(6));
+            s.defineBOM("S" + j, List.of(new BOMItem(s.getProduct("R"), 1)));
+        }
+        for (int i = 0; i < 4; i++) {
+            s.addProduct("F" + i, "f" + i, 0);
+            s.setProductPlanning("F" + i, 1 + rnd.nextInt(3), "M1", 5 + rnd.nextInt(10));
+            s.defineBOM("F" + i, List.of(new BOMItem(s.getProduct("S" + i % 3), 1, rnd.nextInt(2)), new BOMItem(s.getProduct("R"), 2)));
+        }
+        return s;
+    }
+    static boolean scheduled(WorkOrder wo) { return wo.getDueDate() != null && wo.getStatus() != WorkOrder.Status.COMPLETED; }
+    // every scheduled order's operations, the late ones and the load by day
+    static String schedule(MRPService s) throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (WorkOrder wo : s.allWorkOrders()) {
+            if (!scheduled(wo)) continue;
+            sb.append(wo.getDisplayId()).append(' ').append(s.schedule(wo.getId())).append('\n');
+        }
+        for (WorkOrder wo : s.lateWorkOrders()) sb.append("late ").append(wo.getDisplayId()).append('\n');
+        LocalDate today = LocalDate.now();
+        for (String wc : List.of("M1", "M2")) {
+            for (CapacityBucket b : s.capacityLoad(wc, today, today.plusDays(200))) sb.append(b.getLoad()).append(' ');
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,127 @@
+package com.kce.bank.service;
+import com.kce.bank.exception.InvalidOperationException;
+import com.kce.bank.model.*;
+import com.kce.bank.util.IdGenerator;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import static com.kce.bank.Checks.*;
+// Production reported in lots, each backflushing its share of the components.
+public class LotBackflushTest {
+    public static void run() throws Exception {
+        proportionalBackflush();
+        shortCloseReleasesTheRest();
+        concurrentLots();
+        unsavedCeilingUndoesWholeBatch();
+    }
+
+    static MRPService service(int stock) throws Exception {
+        MRPService s = new MRPService(new Warehouse("W"));
+        s.addProduct("C1", "c1", stock);
+        s.addProduct("C2", "c2", stock);
+        s.addProduct("A", "a", 0);
+        s.defineBOM("A", List.of(new BOMItem(s.getProduct("C1"), 2), new BOMItem(s.getProduct("C2"), 3)));
+        return s;
+    }
+
+    static void proportionalBackflush() throws Exception {
+        MRPService s = service(1000);
+        WorkOrder wo = s.createWorkOrder("A", 10);
+        ProductionReport lot = s.reportProduction(wo.getId(), 3);
+        check(!lot.isLast() && wo.getStatus() == WorkOrder.Status.IN_PRODUCTION, "first lot puts the order in production");
+        equal(6, wo.issuedAt(0), "C1 backflushed for 3 of 10");
+        equal(9, wo.issuedAt(1), "C2 backflushed for 3 of 10");
+        // a hand issue counts towards the next lot's share
+        s.issueMaterial(wo.getId(), "C1", 4);
+        s.reportProduction(wo.getId(), 2);
+        equal(10, wo.issuedAt(0), "C1 already issued by hand for 5 of 10");
+        equal(15, wo.issuedAt(1), "C2 backflushed for 5 of 10");
+        fails(InvalidOperationException.class, () -> s.reportProduction(wo.getId(), 6), "more than remains");
+        lot = s.reportProduction(wo.getId(), 5);
+        check(lot.isLast() && wo.getStatus() == WorkOrder.Status.COMPLETED, "the lot finishing the quantity completes the order");
+        equal(20, wo.issuedAt(0), "all of C1 issued");
+        equal(30, wo.issuedAt(1), "all of C2 issued");
+        Warehouse w = s.getNetwork().primary();
+        equal(980, w.getAvailable("C1"), "C1 consumed");
+        equal(0, w.getReserved("C1") + w.getReserved("C2"), "nothing left reserved");
+        equal(10, w.getAvailable("A"), "finished goods received");
+        fails(InvalidOperationException.class, () -> s.reportProduction(wo.getId(), 1), "report on a completed order");
+    }
+
+    static void shortCloseReleasesTheRest() throws Exception {
+        MRPService s = service(1000);
+        WorkOrder wo = s.createWorkOrder("A", 10);
+        s.reportProduction(wo.getId(), 4, true);
+        check(wo.getStatus() == WorkOrder.Status.COMPLETED, "closed short");
+        equal(8, wo.issuedAt(0), "C1 issued for 4");
+        equal(12, wo.releasedAt(0), "rest of C1 released");
+        equal(18, wo.releasedAt(1), "rest of C2 released");
+        Warehouse w = s.getNetwork().primary();
+        equal(992, w.getAvailable("C1"), "released C1 available again");
+        equal(0, w.getReserved("C1") + w.getReserved("C2"), "nothing left reserved");
+    }
+
+    // one-unit lots on many orders from many threads; each order completes exactly
+    static void concurrentLots() throws Exception {
+        int orders = 200;
+        MRPService s = service(100_000);
+        long[] ids = new long[orders];
+        for (int i = 0; i < orders; i++) ids[i] = s.createWorkOrder("A", 10).getId();
+        race(32, t -> {
+            for (int k = 0; k < 10; k++) {
+                for (int i = t % 16; i < orders; i += 16) {
+                    try {
+                        s.reportProduction(ids[i], 1);
+                    } catch (InvalidOperationException e) {
+                        // another thread finished the order first
+                    }
+                }
+            }
+        });
+        for (long id : ids) {
+            WorkOrder wo = s.getWorkOrder(id);
+            check(wo.getStatus() == WorkOrder.Status.COMPLETED && wo.getProducedQuantity() == 10, wo.getDisplayId() + " completed once");
+            check(wo.issuedAt(0) == 20 && wo.issuedAt(1) == 30, wo.getDisplayId() + " fully backflushed");
+        }
+        Warehouse w = s.getNetwork().primary();
+        equal(orders * 10, w.getAvailable("A"), "every unit received once");
+        equal(100_000 - orders * 20, w.getAvailable("C1"), "C1 consumed exactly");
+        equal(0, w.getReserved("C1") + w.getReserved("C2"), "nothing left reserved");
+    }
+
+    // no report id can be drawn: every lot of every batch is undone, none is left waiting
+    static void unsavedCeilingUndoesWholeBatch() throws Exception {
+        int orders = 64;
+        MRPService s = service(100_000);
+        long[] ids = new long[orders];
+        for (int i = 0; i < orders; i++) ids[i] = s.createWorkOrder("A", 10).getId();
+        AtomicBoolean full = new AtomicBoolean(true);
+        IdGenerator.useCeilingStore((generator, ceiling) -> {
+            if (full.get()) throw new IOException("Disk full");
+        });
+        try {
+            // drops the blocks already leased, so every lot needs a new one
+            IdGenerator.PRODUCTION_REPORTS.advanceTo(IdGenerator.PRODUCTION_REPORTS.peek() + 1);
+            race(32, t -> {
+                for (int i = t; i < orders; i += 32) {
+                    long id = ids[i];
+                    fails(UncheckedIOException.class, () -> s.reportProduction(id, 4), "report with the ceiling unsaved");
+                }
+            });
+        } finally {
+            full.set(false);
+        }
+        for (long id : ids) {
+            WorkOrder wo = s.getWorkOrder(id);
+            check(wo.getStatus() == WorkOrder.Status.MATERIAL_RESERVED && wo.getProducedQuantity() == 0, wo.getDisplayId() + " shows no lot");
+            check(wo.issuedAt(0) == 0 && wo.issuedAt(1) == 0, wo.getDisplayId() + " claims no issue");
+        }
+        Warehouse w = s.getNetwork().primary();
+        equal(0, w.getAvailable("A"), "nothing received");
+        equal(orders * 20, w.getReserved("C1"), "C1 still reserved");
+        equal(orders * 30, w.getReserved("C2"), "C2 still reserved");
+        for (long id : ids) s.reportProduction(id, 10);
+        equal(orders * 10, w.getAvailable("A"), "lots reported once the ceiling is saved");
+    }
+}
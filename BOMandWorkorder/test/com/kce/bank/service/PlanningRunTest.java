@@ -0,0 +1,54 @@
+package com.kce.bank.service;
+import com.kce.bank.model.*;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import static com.kce.bank.Checks.*;
+// Time-phased netting: requirements kept per need date, components offset by lead time.
+public class PlanningRunTest {
+    public static void run() throws Exception {
+        bucketsAndOffsets();
+        bucketsSurviveSlicing();
+    }
+
+    // FG takes 2 days, SA 3; SA is needed a day before FG starts, L when it starts.
+    static void bucketsAndOffsets() throws Exception {
+        MRPService s = new MRPService(new Warehouse("W"));
+        s.addProduct("L", "leaf", 0);
+        s.addProduct("SA", "sub", 4);
+        s.addProduct("FG", "fg", 0);
+        s.setProductPlanning("FG", 2, null, 0);
+        s.setProductPlanning("SA", 3, null, 0);
+        s.defineBOM("SA", List.of(new BOMItem(s.getProduct("L"), 1)));
+        s.defineBOM("FG", List.of(new BOMItem(s.getProduct("SA"), 1, 1), new BOMItem(s.getProduct("L"), 2)));
+        LocalDate d = LocalDate.of(2030, 1, 1);
+        MRPPlan plan = s.plan(List.of(new Demand("FG", 5, d.plusDays(10)), new Demand("FG", 3, d.plusDays(20)), new Demand("FG", 2, d.plusDays(10))));
+        equal(List.of("FG x7 " + d.plusDays(10), "FG x3 " + d.plusDays(20), "SA x3 " + d.plusDays(7), "SA x3 " + d.plusDays(17)),
+                orders(plan), "one planned order per need date; the 4 SA on hand cover the first bucket in part");
+        equal(1, plan.getShortages().size(), "L short");
+        Shortage l = plan.getShortages().get(0);
+        // 3 + 3 for the SA started on days 4 and 14, 14 + 6 for the FG started on days 8 and 18
+        equal(26L, l.getRequired(), "L over every bucket");
+        equal(d.plusDays(4), l.getNeededBy(), "L first needed when the first SA starts");
+    }
+
+    // the same demands split over many fork-join slices still sum per date
+    static void bucketsSurviveSlicing() throws Exception {
+        MRPService s = new MRPService(new Warehouse("W"));
+        s.addProduct("L", "leaf", 0);
+        s.addProduct("FG", "fg", 0);
+        s.defineBOM("FG", List.of(new BOMItem(s.getProduct("L"), 1)));
+        LocalDate d = LocalDate.of(2030, 1, 1);
+        List<Demand> demands = new ArrayList<>();
+        for (int i = 0; i < 20_000; i++) demands.add(new Demand("FG", 1, i % 3 == 2 ? null : d.plusDays(i % 3)));
+        MRPPlan plan = s.plan(demands, new ForkJoinPool(4));
+        equal(List.of("FG x6667 " + d, "FG x6667 " + d.plusDays(1), "FG x6666 null"), orders(plan), "summed per date, undated last");
+    }
+
+    private static List<String> orders(MRPPlan plan) {
+        List<String> out = new ArrayList<>();
+        for (PlannedOrder o : plan.getPlannedOrders()) out.add(o.getProduct().getCode() + " x" + o.getQuantity() + " " + o.getDueDate());
+        return out;
+    }
+}
@@ -0,0 +1,289 @@
+package com.kce.bank.service;
+import com.kce.bank.exception.InsufficientStockException;
+import com.kce.bank.exception.InvalidOperationException;
+import com.kce.bank.model.*;
+import com.kce.bank.util.IdGenerator;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.LongSummaryStatistics;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import static com.kce.bank.Checks.*;
+// Orders created from many threads at once, batched by ReservationBatcher.
+public class WorkOrderConcurrencyTest {
+    public static void run() throws Exception {
+        noOversellAtOneSite();
+        noOversellAcrossSites();
+        siteRankedTwiceCountedOnce();
+        handIssueFollowsAllocations();
+        splitIssuesClaimEachSiteOnce();
+        namedSiteMustHoldTheOrdersShare();
+        subAssemblyStockReservedFirst();
+        idsDenseAcrossShortLivedThreads();
+        failedCommitHandsReservationBack();
+        unsavedCeilingFailsWholeBatch();
+        quantityMustBePositive();
+    }
+
+    // C1 runs out long before C2: an order short of C1 must not keep any C2.
+    static void noOversellAtOneSite() throws Exception {
+        MRPService s = new MRPService(new Warehouse("W"));
+        s.addProduct("C1", "c1", 10_000);
+        s.addProduct("C2", "c2", 1_000_000);
+        s.addProduct("A", "a", 0);
+        s.defineBOM("A", List.of(new BOMItem(s.getProduct("C1"), 3), new BOMItem(s.getProduct("C2"), 1)));
+        AtomicInteger made = new AtomicInteger(), refused = new AtomicInteger();
+        race(32, t -> {
+            for (int i = 0; i < 200; i++) {
+                try {
+                    s.createWorkOrder("A", 1 + (i + t) % 3);
+                    made.incrementAndGet();
+                } catch (InsufficientStockException e) {
+                    refused.incrementAndGet();
+                }
+            }
+        });
+        Warehouse w = s.getNetwork().primary();
+        long units = 0;
+        for (WorkOrder wo : s.allWorkOrders()) {
+            units += wo.getQuantity();
+            check(wo.getStatus() == WorkOrder.Status.MATERIAL_RESERVED, wo.getDisplayId() + " reserved");
+        }
+        equal(made.get(), s.allWorkOrders().size(), "every order reported created exists");
+        check(refused.get() > 0, "some orders were short");
+        equal(units * 3, (long) w.getReserved("C1"), "C1 reserved for created orders only");
+        equal(units, (long) w.getReserved("C2"), "C2 reserved for created orders only");
+        equal(10_000, w.getAvailable("C1") + w.getReserved("C1"), "C1 conserved");
+        check(w.getAvailable("C1") < 9, "C1 exhausted: " + w.getAvailable("C1"));
+    }
+
+    static void noOversellAcrossSites() throws Exception {
+        MRPService s = new MRPService(new Warehouse("N"));
+        s.addSite("S", 5, 0);
+        s.addSite("E", 0, 9);
+        s.addProduct("C1", "c1", 100);
+        s.receiveStock("S", "C1", 100);
+        s.receiveStock("E", "C1", 100);
+        s.addProduct("A", "a", 0);
+        s.defineBOM("A", List.of(new BOMItem(s.getProduct("C1"), 1)));
+        AtomicInteger made = new AtomicInteger();
+        race(16, t -> {
+            for (int i = 0; i < 40; i++) {
+                try {
+                    s.createWorkOrder("A", 1 + i % 4, t % 2 == 0 ? "N" : "S");
+                    made.incrementAndGet();
+                } catch (InsufficientStockException e) {
+                    // out of stock everywhere
+                }
+            }
+        });
+        int ord = s.getProduct("C1").getOrdinal();
+        long units = 0;
+        for (WorkOrder wo : s.allWorkOrders()) {
+            units += wo.getQuantity();
+            int held = 0;
+            for (StockAllocation a : wo.getAllocations()) held += a.getQuantity();
+            equal(wo.getQuantity(), held, wo.getDisplayId() + " holds exactly its requirement");
+        }
+        equal(made.get(), s.allWorkOrders().size(), "every order reported created exists");
+        equal(units, (long) s.getNetwork().getReserved(ord), "reserved across sites matches orders");
+        equal(300, s.getNetwork().getAvailable(ord) + s.getNetwork().getReserved(ord), "stock conserved");
+        for (Warehouse site : s.getNetwork().sites()) check(site.getAvailable(ord) >= 0, site.getName() + " not oversold");
+    }
+
+    static void siteRankedTwiceCountedOnce() throws Exception {
+        MRPService s = new MRPService(new Warehouse("N"));
+        s.addSite("S", 5, 0);
+        s.addSite("E", 0, 9);
+        s.addProduct("C1", "c1", 0);
+        s.receiveStock("S", "C1", 10);
+        s.receiveStock("E", "C1", 10);
+        s.addProduct("A", "a", 0);
+        s.defineBOM("A", List.of(new BOMItem(s.getProduct("C1"), 1)));
+        s.setSourcingRule(SourcingRule.priority(List.of("S", "S", "E")));
+        WorkOrder wo = s.createWorkOrder("A", 15, "N");
+        equal(2, wo.getAllocations().size(), "one allocation per site");
+        equal(10, s.getNetwork().site(1).getReserved("C1"), "S drawn on once");
+        equal(5, s.getNetwork().site(2).getReserved("C1"), "the rest from E");
+    }
+
+    // an issue by hand draws on the order's own share at each site, not another order's
+    static void handIssueFollowsAllocations() throws Exception {
+        MRPService s = new MRPService(new Warehouse("N"));
+        s.addSite("S", 5, 0);
+        s.addProduct("C1", "c1", 5);
+        s.receiveStock("S", "C1", 5);
+        s.addProduct("A", "a", 0);
+        s.defineBOM("A", List.of(new BOMItem(s.getProduct("C1"), 1)));
+        WorkOrder x = s.createWorkOrder("A", 10, "N");
+        s.receiveStock("N", "C1", 5);
+        WorkOrder y = s.createWorkOrder("A", 5, "N");
+        equal(2, x.getAllocations().size(), "X split over both sites");
+        equal(1, s.issueMaterial(x.getId(), "C1", 3).size(), "part of X's share at N in one issue");
+        List<MaterialIssue> rest = s.issueMaterial(x.getId(), "C1", 7);
+        equal(2, rest.size(), "X's rest split over the sites");
+        equal("N", rest.get(0).getWarehouse().getName(), "what is left at N first");
+        equal(5, rest.get(1).getQuantityIssued(), "then X's share at S");
+        equal(1, s.issueMaterial(y.getId(), "C1", 5).size(), "Y's share at N still there");
+        equal(0, s.getNetwork().getReserved(s.getProduct("C1").getOrdinal()), "nothing left reserved");
+    }
+
+    // Two issues of a split order at once must take X's share at each site, not
+    // both X's share at N, which would leave Y's reservation there issued to X.
+    static void splitIssuesClaimEachSiteOnce() throws Exception {
+        for (int round = 0; round < 200; round++) {
+            MRPService s = new MRPService(new Warehouse("N"));
+            s.addSite("S", 5, 0);
+            s.addProduct("C1", "c1", 5);
+            s.receiveStock("S", "C1", 5);
+            s.addProduct("A", "a", 0);
+            s.defineBOM("A", List.of(new BOMItem(s.getProduct("C1"), 1)));
+            WorkOrder x = s.createWorkOrder("A", 10, "N");
+            s.receiveStock("N", "C1", 5);
+            s.createWorkOrder("A", 5, "N");
+            race(2, t -> s.issueMaterial(x.getId(), "C1", 5));
+            int c1 = s.getProduct("C1").getOrdinal();
+            equal(5, s.getNetwork().site("N").getReserved(c1), "Y's share still reserved at N");
+            equal(0, s.getNetwork().site("S").getReserved(c1), "X's share at S issued");
+        }
+    }
+
+    // an issue from a named site draws only on what the order holds there
+    static void namedSiteMustHoldTheOrdersShare() throws Exception {
+        MRPService s = new MRPService(new Warehouse("W1"));
+        s.addSite("W2", 5, 0);
+        s.addProduct("C", "c", 5);
+        s.receiveStock("W2", "C", 5);
+        s.addProduct("A", "a", 0);
+        s.addProduct("B", "b", 0);
+        s.defineBOM("A", List.of(new BOMItem(s.getProduct("C"), 1)));
+        s.defineBOM("B", List.of(new BOMItem(s.getProduct("C"), 1)));
+        WorkOrder a = s.createWorkOrder("A", 5, "W1");
+        WorkOrder b = s.createWorkOrder("B", 5, "W2");
+        fails(InvalidOperationException.class, () -> s.issueMaterial(a.getId(), "W2", "C", 5), "A holds nothing at W2");
+        s.issueMaterial(a.getId(), "W1", "C", 2);
+        fails(InvalidOperationException.class, () -> s.issueMaterial(a.getId(), "W1", "C", 4), "A holds only 3 more at W1");
+        s.issueMaterial(a.getId(), "W1", "C", 3);
+        equal(1, s.issueMaterialsForWorkOrder(b.getId()).size(), "B's share at W2 still there");
+        equal(0, s.getNetwork().getReserved(s.getProduct("C").getOrdinal()), "nothing left reserved");
+    }
+
+    // a thread per order, as the server runs them: ids must not skip a block per thread
+    // SA on hand is reserved as it is; only the shortfall is exploded to L.
+    static void subAssemblyStockReservedFirst() throws Exception {
+        MRPService s = new MRPService(new Warehouse("W"));
+        s.addProduct("L", "leaf", 0);
+        s.addProduct("SA", "sub", 5);
+        s.addProduct("FG", "fg", 0);
+        s.defineBOM("SA", List.of(new BOMItem(s.getProduct("L"), 2)));
+        s.defineBOM("FG", List.of(new BOMItem(s.getProduct("SA"), 1), new BOMItem(s.getProduct("L"), 1)));
+        fails(InsufficientStockException.class, () -> s.createWorkOrder("FG", 1), "FG still needs its own L");
+        s.receiveStock("W", "L", 1);
+        WorkOrder one = s.createWorkOrder("FG", 1);
+        Warehouse w = s.getNetwork().primary();
+        equal(1, w.getReserved("SA"), "SA reserved from stock");
+        equal(1, w.getReserved("L"), "no L for the SA in stock");
+        // 4 SA left: the other 2 are built from 4 L, on top of the 6 L FG takes directly
+        s.receiveStock("W", "L", 10);
+        WorkOrder six = s.createWorkOrder("FG", 6);
+        equal(5, w.getReserved("SA"), "every SA on hand reserved");
+        equal(11, w.getReserved("L"), "L for the shortfall and for FG");
+        equal(0, w.getAvailable("L"), "L exhausted");
+        s.issueMaterialsForWorkOrder(one.getId());
+        s.issueMaterialsForWorkOrder(six.getId());
+        equal(0, w.getReserved("SA") + w.getReserved("L"), "SA and L lines issued");
+    }
+
+    static void idsDenseAcrossShortLivedThreads() throws Exception {
+        MRPService s = new MRPService(new Warehouse("W"));
+        s.addProduct("C1", "c1", 1_000_000);
+        s.addProduct("A", "a", 0);
+        s.defineBOM("A", List.of(new BOMItem(s.getProduct("C1"), 1)));
+        int orders = 2000;
+        List<Thread> threads = new ArrayList<>(orders);
+        for (int i = 0; i < orders; i++) {
+            threads.add(Thread.ofVirtual().start(() -> {
+                try {
+                    s.createWorkOrder("A", 1);
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }));
+        }
+        for (Thread t : threads) t.join();
+        LongSummaryStatistics ids = s.allWorkOrders().stream().mapToLong(WorkOrder::getId).summaryStatistics();
+        equal((long) orders, ids.getCount(), "every order created");
+        check(ids.getMax() - ids.getMin() < orders + 64 * 256, "ids span " + (ids.getMax() - ids.getMin()) + " for " + orders + " orders");
+    }
+
+    // the journal refusing the batch: no order is created and nothing stays reserved
+    static void failedCommitHandsReservationBack() throws Exception {
+        TransactionLog failing = (TransactionLog) Proxy.newProxyInstance(TransactionLog.class.getClassLoader(), new Class<?>[] { TransactionLog.class },
+                (proxy, method, args) -> {
+                    if (method.getName().equals("workOrdersCreated")) throw new UncheckedIOException(new IOException("Disk full"));
+                    return null;
+                });
+        for (boolean twoSites : new boolean[] { false, true }) {
+            MRPService s = new MRPService(new Warehouse("N"));
+            s.addProduct("C1", "c1", 100);
+            if (twoSites) {
+                s.addSite("S", 5, 0);
+                s.receiveStock("S", "C1", 100);
+            }
+            s.addProduct("A", "a", 0);
+            s.defineBOM("A", List.of(new BOMItem(s.getProduct("C1"), 1)));
+            s.setTransactionLog(failing);
+            race(8, t -> {
+                for (int i = 0; i < 20; i++) {
+                    int qty = 1 + (i + t) % 3;
+                    fails(UncheckedIOException.class, () -> s.createWorkOrder("A", qty), "create with the journal failing");
+                }
+            });
+            int ord = s.getProduct("C1").getOrdinal();
+            String sites = twoSites ? "two sites" : "one site";
+            check(s.allWorkOrders().isEmpty(), "no order created, " + sites);
+            equal(0, s.getNetwork().getReserved(ord), "nothing left reserved, " + sites);
+            equal(twoSites ? 200 : 100, s.getNetwork().getAvailable(ord), "all stock available again, " + sites);
+        }
+    }
+
+    // no id can be drawn: every order of every batch fails, none is left waiting
+    static void unsavedCeilingFailsWholeBatch() throws Exception {
+        MRPService s = new MRPService(new Warehouse("W"));
+        s.addProduct("C1", "c1", 100);
+        s.addProduct("A", "a", 0);
+        s.defineBOM("A", List.of(new BOMItem(s.getProduct("C1"), 1)));
+        AtomicBoolean full = new AtomicBoolean(true);
+        IdGenerator.useCeilingStore((generator, ceiling) -> {
+            if (full.get()) throw new IOException("Disk full");
+        });
+        try {
+            // drops the blocks already leased, so every order needs a new one
+            IdGenerator.WORK_ORDERS.advanceTo(IdGenerator.WORK_ORDERS.peek() + 1);
+            race(32, t -> {
+                for (int i = 0; i < 5; i++) fails(UncheckedIOException.class, () -> s.createWorkOrder("A", 1), "create with the ceiling unsaved");
+            });
+        } finally {
+            full.set(false);
+        }
+        check(s.allWorkOrders().isEmpty(), "no order created");
+        equal(0, s.getNetwork().getReserved(0), "nothing left reserved");
+        equal(100, s.getNetwork().getAvailable(0), "all stock available again");
+        s.createWorkOrder("A", 1);
+        equal(1, s.allWorkOrders().size(), "orders created once the ceiling is saved");
+    }
+
+    static void quantityMustBePositive() throws Exception {
+        MRPService s = new MRPService(new Warehouse("W"));
+        s.addProduct("C1", "c1", 10);
+        s.addProduct("A", "a", 0);
+        s.defineBOM("A", List.of(new BOMItem(s.getProduct("C1"), 1)));
+        fails(InvalidOperationException.class, () -> s.createWorkOrder("A", 0), "zero quantity");
+        fails(InvalidOperationException.class, () -> s.createWorkOrder("A", -3), "negative quantity");
+        equal(10, s.totalAvailable("C1"), "refused orders take no stock");
+        check(s.allWorkOrders().isEmpty(), "refused orders are not created");
+    }
+}
@@ -0,0 +1,78 @@
+package com.kce.bank.service;
+import com.kce.bank.model.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import static com.kce.bank.Checks.*;
+// Orders driven through the pipeline; a failed one gives its stock back.
+public class WorkOrderPipelineTest {
+    public static void run() throws Exception {
+        failedOrdersReleaseTheirReservation();
+        interruptedSubmitDoesNotHoldUpClose();
+    }
+
+    static void failedOrdersReleaseTheirReservation() throws Exception {
+        MRPService s = service(10_000);
+        List<CompletableFuture<WorkOrder>> results = new ArrayList<>();
+        try (WorkOrderPipeline pipeline = new WorkOrderPipeline(s, 16, 4, wo -> {
+            if (wo.getId() % 2 == 0) throw new IllegalStateException("machine down");
+            return wo.getQuantity();
+        })) {
+            for (int i = 0; i < 200; i++) results.add(pipeline.submit("A", 1 + i % 3));
+        }
+        int failed = 0;
+        for (CompletableFuture<WorkOrder> f : results) {
+            try {
+                equal(WorkOrder.Status.COMPLETED, f.get().getStatus(), "finished order completed");
+            } catch (ExecutionException e) {
+                failed++;
+            }
+        }
+        check(failed > 0, "some orders failed: " + failed);
+        for (WorkOrder wo : s.allWorkOrders()) equal(WorkOrder.Status.COMPLETED, wo.getStatus(), wo.getDisplayId() + " closed");
+        equal(0, s.getNetwork().primary().getReserved("C1"), "nothing left reserved");
+    }
+
+    // a submit blocked on a full queue and interrupted must not leave close() waiting for it
+    static void interruptedSubmitDoesNotHoldUpClose() throws Exception {
+        MRPService s = service(10_000);
+        CountDownLatch release = new CountDownLatch(1);
+        WorkOrderPipeline pipeline = new WorkOrderPipeline(s, 1, 1, wo -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return wo.getQuantity();
+        });
+        // one order per worker and queue fills the pipeline, seven of them created
+        // once it settles; the next submit blocks
+        for (int i = 0; i < 8; i++) pipeline.submit("A", 1);
+        while (s.allWorkOrders().size() < 7) Thread.onSpinWait();
+        Thread blocked = Thread.ofVirtual().start(() -> {
+            try {
+                pipeline.submit("A", 1);
+            } catch (InterruptedException e) {
+                // expected
+            }
+        });
+        while (blocked.getState() != Thread.State.WAITING) Thread.onSpinWait();
+        blocked.interrupt();
+        blocked.join();
+        equal(8, pipeline.inFlight(), "the interrupted submit is not counted");
+        release.countDown();
+        pipeline.close();
+        equal(0, pipeline.inFlight(), "close returned with every order done");
+        equal(0, s.getNetwork().primary().getReserved("C1"), "nothing left reserved");
+    }
+
+    private static MRPService service(int stock) throws Exception {
+        MRPService s = new MRPService(new Warehouse("W"));
+        s.addProduct("C1", "c1", stock);
+        s.addProduct("A", "a", 0);
+        s.defineBOM("A", List.of(new BOMItem(s.getProduct("C1"), 2)));
+        return s;
+    }
+}
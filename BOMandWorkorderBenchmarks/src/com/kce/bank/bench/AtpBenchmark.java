@@ -0,0 +1,54 @@
+package com.kce.bank.bench;
+import com.kce.bank.exception.InsufficientStockException;
+import com.kce.bank.exception.InvalidOperationException;
+import com.kce.bank.model.Warehouse;
+import com.kce.bank.service.MRPService;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+// "How many can I build?" for a 20-component finished good: the cached answer,
+// the explosion and per-component scan it replaces, and the cached query paired
+// with a thread reserving one of the components, which keeps invalidating it.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Group)
+public class AtpBenchmark {
+    MRPService service;
+    Warehouse warehouse;
+    String product;
+    @Setup(Level.Iteration)
+    public void setUp() throws InvalidOperationException {
+        warehouse = new Warehouse("Bench");
+        service = Fixtures.products(warehouse, 20, Fixtures.PLENTY);
+        product = Fixtures.flat(service, 20);
+    }
+    @Benchmark
+    @Group("cached")
+    public int cached() throws InvalidOperationException {
+        return service.buildable(product);
+    }
+    @Benchmark
+    @Group("scan")
+    public int explodeAndScan() {
+        int q = Integer.MAX_VALUE;
+        for (Map.Entry<String, Integer> line : service.perUnitRequirements(product).entrySet())
+            q = Math.min(q, service.totalAvailable(line.getKey()) / line.getValue());
+        return q;
+    }
+    @Benchmark
+    @Group("churn")
+    @GroupThreads(1)
+    public int query() throws InvalidOperationException {
+        return service.buildable(product);
+    }
+    @Benchmark
+    @Group("churn")
+    @GroupThreads(1)
+    public void reserve() throws InsufficientStockException {
+        warehouse.reserve(0, 1);
+        warehouse.adjust(0, 1, -1);
+    }
+}
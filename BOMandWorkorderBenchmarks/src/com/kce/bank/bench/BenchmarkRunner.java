@@ -0,0 +1,56 @@
+package com.kce.bank.bench;
+import java.io.File;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+/*
+ * Runs the whole suite with the GC profiler (allocation rate per operation) and
+ * writes JSON results under results/, one file per benchmark class, so runs can
+ * be diffed across changes. Reservation, id generation, histogram recording and
+ * lot reporting are measured at 1, 4, 16 and 64 threads to show contention on
+ * the stock ledger, the id counters, the metrics and the production batcher.
+ *
+ * Any standard JMH arguments are passed through, e.g. "-f 0 -wi 1 -i 1" for a
+ * quick smoke run.
+ */
+public class BenchmarkRunner {
+    private static final int[] THREADS = { 1, 4, 16, 64 };
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        CommandLineOptions cli = new CommandLineOptions(args);
+        new File("results").mkdirs();
+        for (int threads : THREADS) {
+            run(cli, WarehouseBenchmark.class.getSimpleName() + ".reserveBy", "reserve-t" + threads, threads);
+        }
+        for (int threads : THREADS) {
+            run(cli, IdBenchmark.class.getSimpleName(), "ids-t" + threads, threads);
+        }
+        for (int threads : THREADS) {
+            run(cli, MetricsBenchmark.class.getSimpleName() + ".record", "histogram-t" + threads, threads);
+        }
+        for (int threads : THREADS) {
+            run(cli, LotBenchmark.class.getSimpleName(), "lots-t" + threads, threads);
+        }
+        run(cli, WarehouseBenchmark.class.getSimpleName() + ".stockSummary", "summary", 1);
+        run(cli, WorkOrderBenchmark.class.getSimpleName(), "workorder", 1);
+        run(cli, ExplosionBenchmark.class.getSimpleName(), "explosion", 1);
+        run(cli, NetworkBenchmark.class.getSimpleName(), "network", 1);
+        run(cli, QueryBenchmark.class.getSimpleName(), "query", 1);
+        run(cli, MetricsBenchmark.class.getSimpleName() + ".fullLifecycle", "metrics", 1);
+        run(cli, ScheduleBenchmark.class.getSimpleName(), "schedule", 1);
+        run(cli, AtpBenchmark.class.getSimpleName(), "atp", 1);
+    }
+    private static void run(CommandLineOptions cli, String include, String name, int threads) throws RunnerException {
+        ChainedOptionsBuilder opts = new OptionsBuilder().parent(cli)
+                .include(include)
+                .threads(threads)
+                .addProfiler(GCProfiler.class)
+                .resultFormat(ResultFormatType.JSON)
+                .result("results/" + name + ".json");
+        new Runner(opts.build()).run();
+    }
+}
@@ -0,0 +1,45 @@
+package com.kce.bank.bench;
+import com.kce.bank.exception.InvalidOperationException;
+import com.kce.bank.model.Warehouse;
+import com.kce.bank.service.MRPService;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+// BOM explosion for a deep (multi-level, shared sub-assemblies) and a wide
+// (one level, many components) structure, from a warm cache and right after a
+// BOM change has invalidated the finished good.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ExplosionBenchmark {
+    @Param({ "deep", "wide" })
+    String shape;
+    MRPService service;
+    String product;
+    String leafAssembly;
+    @Setup(Level.Trial)
+    public void setUp() throws InvalidOperationException {
+        service = new MRPService(new Warehouse("Bench"));
+        if (shape.equals("deep")) {
+            product = Fixtures.deep(service, 12, 4);
+            leafAssembly = "A12-0"; // lowest level
+        } else {
+            product = Fixtures.wide(service, 2000);
+            leafAssembly = product;
+        }
+        service.explode(product, 1);
+    }
+    @Benchmark
+    public Map<String, Integer> cached() {
+        return service.explode(product, 25);
+    }
+    @Benchmark
+    public Map<String, Integer> afterChange() throws InvalidOperationException {
+        // redefining the lowest assembly with the same lines invalidates every ancestor
+        service.defineBOM(leafAssembly, service.getBOM(leafAssembly).getItems());
+        return service.explode(product, 25);
+    }
+}
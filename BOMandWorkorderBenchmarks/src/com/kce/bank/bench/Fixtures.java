@@ -0,0 +1,67 @@
+package com.kce.bank.bench;
+import com.kce.bank.exception.InvalidOperationException;
+import com.kce.bank.model.BOMItem;
+import com.kce.bank.model.Product;
+import com.kce.bank.model.Warehouse;
+import com.kce.bank.service.MRPService;
+import java.util.ArrayList;
+import java.util.List;
+// Synthetic catalogs and BOM structures shared by the benchmarks.
+final class Fixtures {
+    static final int PLENTY = 1_000_000_000;
+    private Fixtures() {}
+    static MRPService products(int count, int stockEach) { return products(new Warehouse("Bench"), count, stockEach); }
+    static MRPService products(Warehouse warehouse, int count, int stockEach) {
+        MRPService service = new MRPService(warehouse);
+        try {
+            for (int i = 0; i < count; i++) service.addProduct(code(i), "Part " + i, stockEach);
+        } catch (InvalidOperationException e) {
+            throw new IllegalStateException(e);
+        }
+        return service;
+    }
+    static String code(int i) { return "P" + i; }
+    // Single-level BOM "FG" over the first 'components' products.
+    static String flat(MRPService service, int components) throws InvalidOperationException {
+        List<BOMItem> items = new ArrayList<>(components);
+        for (int i = 0; i < components; i++) items.add(new BOMItem(service.getProduct(code(i)), 1 + i % 3));
+        service.addProduct("FG", "Finished good", 0);
+        service.defineBOM("FG", items);
+        return "FG";
+    }
+    // 'levels' deep, every assembly built from all 'fanOut' assemblies of the level
+    // below plus one raw part of its own level, so the structure has fanOut^levels
+    // paths while the leaf vector stays small.
+    static String deep(MRPService service, int levels, int fanOut) throws InvalidOperationException {
+        for (int level = 0; level <= levels; level++) service.addProduct("RAW" + level, "Raw " + level, PLENTY);
+        List<Product> below = new ArrayList<>();
+        for (int level = levels; level >= 1; level--) {
+            List<Product> assemblies = new ArrayList<>(fanOut);
+            for (int f = 0; f < fanOut; f++) {
+                String code = "A" + level + "-" + f;
+                service.addProduct(code, "Assembly " + level + "/" + f, 0);
+                service.defineBOM(code, lines(service.getProduct("RAW" + level), below));
+                assemblies.add(service.getProduct(code));
+            }
+            below = assemblies;
+        }
+        service.addProduct("FG", "Finished good", 0);
+        service.defineBOM("FG", lines(service.getProduct("RAW0"), below));
+        return "FG";
+    }
+    private static List<BOMItem> lines(Product raw, List<Product> components) {
+        List<BOMItem> items = new ArrayList<>(components.size() + 1);
+        items.add(new BOMItem(raw, 1));
+        for (Product p : components) items.add(new BOMItem(p, 1));
+        return items;
+    }
+    // One level, 'width' distinct raw components.
+    static String wide(MRPService service, int width) throws InvalidOperationException {
+        for (int i = 0; i < width; i++) service.addProduct("W" + i, "Wide " + i, PLENTY);
+        List<BOMItem> items = new ArrayList<>(width);
+        for (int i = 0; i < width; i++) items.add(new BOMItem(service.getProduct("W" + i), 1));
+        service.addProduct("FG", "Finished good", 0);
+        service.defineBOM("FG", items);
+        return "FG";
+    }
+}
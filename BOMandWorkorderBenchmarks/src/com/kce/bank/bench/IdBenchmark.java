@@ -0,0 +1,36 @@
+package com.kce.bank.bench;
+import com.kce.bank.util.IdGenerator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.*;
+/*
+ * Id generation under contention: one shared counter and a formatted String per
+ * id, as ids used to be made, against per-thread blocks of 64-bit ids with and
+ * without formatting. BenchmarkRunner runs it at 1, 4, 16 and 64 threads.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class IdBenchmark {
+    // the old generator: every id of every kind bumps the same counter
+    private final AtomicInteger shared = new AtomicInteger(1000);
+    @Benchmark
+    public String sharedCounterString() {
+        return "WO" + "-" + shared.getAndIncrement();
+    }
+    @Benchmark
+    public int sharedCounter() {
+        return shared.getAndIncrement();
+    }
+    @Benchmark
+    public long threadBlock() {
+        return IdGenerator.WORK_ORDERS.next();
+    }
+    @Benchmark
+    public String threadBlockFormatted() {
+        return IdGenerator.WORK_ORDERS.format(IdGenerator.WORK_ORDERS.next());
+    }
+}
@@ -0,0 +1,191 @@
+package com.kce.bank.bench;
+import com.kce.bank.metrics.LatencyHistogram;
+import com.kce.bank.model.Warehouse;
+import com.kce.bank.persistence.TransactionJournal;
+import com.kce.bank.server.MrpServer;
+import com.kce.bank.service.MRPService;
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+/*
+ * Load for an MrpServer: requests per second and latency percentiles. Each
+ * connection keeps a window of 'pipeline' requests in flight, written at once
+ * and then read back, cycling through a mix: create a one-unit order of a
+ * product with a 20-component BOM, report a one-unit lot on the connection's
+ * own long-running order, query a component's stock, and query ATP. With
+ * --batch each window is sent as one BATCH. A request's latency runs from the
+ * write of its window to the read of its reply. Without --host a server is
+ * started in-process, journalled synchronously with --journal.
+ *
+ *   LoadGenerator [--host h] [--port p] [--connections n] [--pipeline d]
+ *                 [--seconds s] [--warmup s] [--batch] [--journal]
+ */
+public class LoadGenerator {
+    private static final int COMPONENTS = 20;
+    private static final String PRODUCT = "LG-A";
+    private final String host;
+    private final int port;
+    private final int pipeline;
+    private final boolean batch;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicReference<String> firstError = new AtomicReference<>();
+    private volatile boolean recording, running = true;
+    LoadGenerator(String host, int port, int pipeline, boolean batch) {
+        this.host = host;
+        this.port = port;
+        this.pipeline = pipeline;
+        this.batch = batch;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String host = null;
+        int port = 7070, connections = 16, pipeline = 8, seconds = 10, warmup = 2;
+        boolean batch = false, journal = false;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--host" -> host = args[++i];
+                case "--port" -> port = Integer.parseInt(args[++i]);
+                case "--connections" -> connections = Integer.parseInt(args[++i]);
+                case "--pipeline" -> pipeline = Integer.parseInt(args[++i]);
+                case "--seconds" -> seconds = Integer.parseInt(args[++i]);
+                case "--warmup" -> warmup = Integer.parseInt(args[++i]);
+                case "--batch" -> batch = true;
+                case "--journal" -> journal = true;
+                default -> throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+        MrpServer server = null;
+        TransactionJournal log = null;
+        Path dir = null;
+        if (host == null) {
+            MRPService service = new MRPService(new Warehouse("Load"));
+            if (journal) {
+                dir = Files.createTempDirectory("load");
+                log = TransactionJournal.open(dir.resolve("mrp.journal"), true);
+                service.setTransactionLog(log);
+            }
+            server = new MrpServer(service);
+            server.start(0);
+            host = "localhost";
+            port = server.getPort();
+        }
+        try {
+            LoadGenerator load = new LoadGenerator(host, port, pipeline, batch);
+            load.setUp();
+            System.out.println(load.run(connections, warmup, seconds));
+        } finally {
+            if (server != null) server.close();
+            if (log != null) {
+                log.close();
+                try (var files = Files.list(dir)) {
+                    for (Path p : files.toList()) Files.delete(p);
+                }
+                Files.delete(dir);
+            }
+        }
+    }
+
+    // the product and its components; ones left by an earlier run are reused
+    void setUp() throws IOException {
+        try (Connection c = new Connection()) {
+            StringBuilder bom = new StringBuilder("BOM " + PRODUCT);
+            for (int i = 0; i < COMPONENTS; i++) {
+                c.call("PRODUCT LG-C" + i + " 2000000000 load component " + i);
+                bom.append(" LG-C").append(i).append("*1");
+            }
+            c.call("PRODUCT " + PRODUCT + " 0 load assembly");
+            check(c.call(bom.toString()));
+        }
+    }
+
+    String run(int connections, int warmupSeconds, int seconds) throws InterruptedException {
+        AtomicLong requests = new AtomicLong();
+        List<Thread> clients = new ArrayList<>(connections);
+        for (int i = 0; i < connections; i++) {
+            clients.add(Thread.ofVirtual().name("load-" + i).start(() -> {
+                try (Connection c = new Connection()) {
+                    c.drive(requests);
+                } catch (IOException e) {
+                    error("connection failed: " + e.getMessage());
+                }
+            }));
+        }
+        Thread.sleep(warmupSeconds * 1000L);
+        recording = true;
+        long start = System.nanoTime(), before = requests.get();
+        Thread.sleep(seconds * 1000L);
+        long done = requests.get() - before;
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        recording = false;
+        running = false;
+        for (Thread t : clients) t.join();
+        LatencyHistogram.Snapshot s = latency.snapshot();
+        return String.format("%d connections, pipeline %d%s: %d requests in %.1f s, %.0f req/s, %d errors%s%n"
+                + "latency us: mean %.0f  p50 %.0f  p99 %.0f  p99.9 %.0f  max %.0f",
+                connections, pipeline, batch ? " (batched)" : "", done, elapsed, done / elapsed, errors.get(),
+                firstError.get() == null ? "" : " (first: " + firstError.get() + ")",
+                s.getMean() / 1000, s.percentile(0.5) / 1000.0, s.percentile(0.99) / 1000.0, s.percentile(0.999) / 1000.0, s.getMax() / 1000.0);
+    }
+
+    private void error(String reply) {
+        errors.incrementAndGet();
+        firstError.compareAndSet(null, reply);
+    }
+    private static void check(String reply) throws IOException {
+        if (!reply.startsWith("OK")) throw new IOException("Setup failed: " + reply);
+    }
+
+    private final class Connection implements Closeable {
+        private final Socket socket;
+        private final BufferedReader in;
+        private final Writer out;
+        Connection() throws IOException {
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8), 1 << 16);
+            out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), 1 << 16);
+        }
+        String call(String request) throws IOException {
+            out.write(request);
+            out.write('\n');
+            out.flush();
+            String reply = in.readLine();
+            if (reply == null) throw new EOFException("Server closed the connection");
+            return reply;
+        }
+        void drive(AtomicLong requests) throws IOException {
+            String order = call("CREATE " + PRODUCT + " 1000000");
+            check(order);
+            order = order.substring(3);
+            String[] mix = { "CREATE " + PRODUCT + " 1", "REPORT " + order + " 1", null, "ATP " + PRODUCT };
+            int component = 0;
+            for (long n = 0; running; ) {
+                long sent = System.nanoTime();
+                if (batch) out.write("BATCH " + pipeline + "\n");
+                for (int i = 0; i < pipeline; i++, n++) {
+                    String request = mix[(int) (n & 3)];
+                    if (request == null) request = "STOCK LG-C" + (component++ % COMPONENTS);
+                    out.write(request);
+                    out.write('\n');
+                }
+                out.flush();
+                for (int i = 0; i < pipeline; i++) {
+                    String reply = in.readLine();
+                    if (reply == null) throw new EOFException("Server closed the connection");
+                    if (!reply.startsWith("OK")) error(reply);
+                    if (recording) latency.record(System.nanoTime() - sent);
+                }
+                requests.addAndGet(pipeline);
+            }
+            call("QUIT");
+        }
+        public void close() throws IOException { socket.close(); }
+    }
+}
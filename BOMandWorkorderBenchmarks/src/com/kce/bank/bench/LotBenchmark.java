@@ -0,0 +1,63 @@
+package com.kce.bank.bench;
+import com.kce.bank.exception.InsufficientStockException;
+import com.kce.bank.exception.InvalidOperationException;
+import com.kce.bank.persistence.TransactionJournal;
+import com.kce.bank.service.MRPService;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+// Production lot reports of one unit, each backflushing a 20-component BOM, every
+// thread against its own order. BenchmarkRunner runs it at 1, 4, 16 and 64
+// threads: with a synchronous journal, concurrent lots share batches and so
+// share each commit and each stock CAS.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LotBenchmark {
+    static final int ORDER_QUANTITY = 1_000_000;
+    @State(Scope.Benchmark)
+    public static class Service {
+        @Param({ "none", "sync" })
+        String journal;
+        MRPService service;
+        String product;
+        Path dir;
+        TransactionJournal log;
+        @Setup(Level.Iteration)
+        public void setUp() throws InvalidOperationException, IOException {
+            service = Fixtures.products(20, Fixtures.PLENTY);
+            product = Fixtures.flat(service, 20);
+            if (journal.equals("sync")) {
+                dir = Files.createTempDirectory("lots");
+                log = TransactionJournal.open(dir.resolve("mrp.journal"), true);
+                service.setTransactionLog(log);
+            }
+        }
+        @TearDown(Level.Iteration)
+        public void tearDown() throws IOException {
+            if (log == null) return;
+            log.close();
+            try (var files = Files.list(dir)) {
+                for (Path p : files.toList()) Files.delete(p);
+            }
+            Files.delete(dir);
+            log = null;
+        }
+    }
+    @State(Scope.Thread)
+    public static class Order {
+        long id;
+        @Setup(Level.Iteration)
+        public void setUp(Service s) throws InvalidOperationException, InsufficientStockException {
+            id = s.service.createWorkOrder(s.product, ORDER_QUANTITY).getId();
+        }
+    }
+    @Benchmark
+    public Object reportLot(Service s, Order o) throws InvalidOperationException, InsufficientStockException {
+        return s.service.reportProduction(o.id, 1);
+    }
+}
@@ -0,0 +1,46 @@
+package com.kce.bank.bench;
+import com.kce.bank.exception.InsufficientStockException;
+import com.kce.bank.exception.InvalidOperationException;
+import com.kce.bank.metrics.LatencyHistogram;
+import com.kce.bank.model.WorkOrder;
+import com.kce.bank.service.MRPService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+// The cost of metrics: the work-order lifecycle with metrics on and off, and a
+// bare histogram recording, which BenchmarkRunner runs at 1, 4, 16 and 64 threads.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricsBenchmark {
+    @State(Scope.Benchmark)
+    public static class Service {
+        @Param({ "true", "false" })
+        boolean enabled;
+        MRPService service;
+        String product;
+        @Setup(Level.Iteration)
+        public void setUp() throws InvalidOperationException {
+            service = Fixtures.products(20, Fixtures.PLENTY);
+            product = Fixtures.flat(service, 20);
+            service.getMetrics().setEnabled(enabled);
+        }
+    }
+    @State(Scope.Benchmark)
+    public static class Histogram {
+        final LatencyHistogram histogram = new LatencyHistogram();
+    }
+    @Benchmark
+    public WorkOrder fullLifecycle(Service s) throws InvalidOperationException, InsufficientStockException {
+        WorkOrder wo = s.service.createWorkOrder(s.product, 1);
+        s.service.issueMaterialsForWorkOrder(wo.getId());
+        s.service.reportProduction(wo.getId(), 1);
+        return wo;
+    }
+    @Benchmark
+    public void record(Histogram h) {
+        h.histogram.record(ThreadLocalRandom.current().nextLong(100, 100_000));
+    }
+}
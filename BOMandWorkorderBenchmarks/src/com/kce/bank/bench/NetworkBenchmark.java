@@ -0,0 +1,58 @@
+package com.kce.bank.bench;
+import com.kce.bank.exception.InsufficientStockException;
+import com.kce.bank.exception.InvalidOperationException;
+import com.kce.bank.model.StockAllocation;
+import com.kce.bank.model.Warehouse;
+import com.kce.bank.model.WorkOrder;
+import com.kce.bank.service.MRPService;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+// Availability queries and split reservations over a network of sites; each
+// site holds a little of every component so a work order draws from several.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class NetworkBenchmark {
+    @Param({ "50" })
+    int sites;
+    @Param({ "20" })
+    int components;
+    MRPService service;
+    String product;
+    List<String> codes;
+    @Setup(Level.Iteration)
+    public void setUp() throws InvalidOperationException {
+        service = Fixtures.products(new Warehouse("Plant"), components, 0);
+        codes = new ArrayList<>();
+        for (int s = 1; s < sites; s++) service.addSite("S" + s, s % 10, s / 10);
+        for (int i = 0; i < components; i++) {
+            codes.add(Fixtures.code(i));
+            for (Warehouse w : service.getNetwork().sites()) w.addStock(service.getProduct(Fixtures.code(i)), Fixtures.PLENTY / sites);
+        }
+        product = Fixtures.flat(service, components);
+    }
+    @Benchmark
+    public Map<String, Integer> availabilityOfOne() {
+        return service.availability(codes.get(0));
+    }
+    @Benchmark
+    public Map<String, Map<String, Integer>> availabilityOfBom() {
+        return service.availability(codes);
+    }
+    // Each order needs more than one site holds, so every line spans two or more
+    // sites. The reservation is handed straight back (a CAS per line) so the
+    // network never drains during an iteration.
+    @Benchmark
+    public WorkOrder splitAcrossSites() throws InvalidOperationException, InsufficientStockException {
+        WorkOrder wo = service.createWorkOrder(product, Fixtures.PLENTY / sites / 2 + 1, "S25");
+        for (StockAllocation a : wo.getAllocations())
+            a.getSite().adjust(a.getComponent().getOrdinal(), a.getQuantity(), -a.getQuantity());
+        return wo;
+    }
+}
@@ -0,0 +1,64 @@
+package com.kce.bank.bench;
+import com.kce.bank.exception.InsufficientStockException;
+import com.kce.bank.exception.InvalidOperationException;
+import com.kce.bank.model.BOMItem;
+import com.kce.bank.model.Warehouse;
+import com.kce.bank.model.WorkOrder;
+import com.kce.bank.model.WorkOrderQuery;
+import com.kce.bank.service.MRPService;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+// Work-order lookups over a history of mostly completed orders spread over 100
+// finished goods, against the full scan the console used to do.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Benchmark)
+public class QueryBenchmark {
+    private static final int PRODUCTS = 100;
+    @Param({ "300000" })
+    int orders;
+    MRPService service;
+    long[] ids;
+    @Setup(Level.Trial)
+    public void setUp() throws InvalidOperationException, InsufficientStockException {
+        service = new MRPService(new Warehouse("Bench"));
+        service.addProduct("C", "Component", Fixtures.PLENTY);
+        for (int p = 0; p < PRODUCTS; p++) {
+            service.addProduct("FG" + p, "Finished " + p, 0);
+            service.defineBOM("FG" + p, List.of(new BOMItem(service.getProduct("C"), 1)));
+        }
+        ids = new long[orders];
+        for (int i = 0; i < orders; i++) {
+            WorkOrder wo = service.createWorkOrder("FG" + (i % PRODUCTS), 1);
+            ids[i] = wo.getId();
+            if (i % 10 < 9) {
+                service.issueMaterialsForWorkOrder(wo.getId());
+                if (i % 10 < 8) service.reportProduction(wo.getId(), 1);
+            }
+        }
+    }
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public WorkOrder byId() {
+        return service.getWorkOrder(ids[ThreadLocalRandom.current().nextInt(ids.length)]);
+    }
+    @Benchmark
+    public long openForProduct() {
+        return service.findWorkOrders(new WorkOrderQuery().product("FG" + ThreadLocalRandom.current().nextInt(PRODUCTS)).open()).count();
+    }
+    @Benchmark
+    public List<WorkOrder> firstPageOpen() {
+        return service.findWorkOrders(new WorkOrderQuery().open(), 20);
+    }
+    @Benchmark
+    public long openForProductByScan() {
+        String code = "FG" + ThreadLocalRandom.current().nextInt(PRODUCTS);
+        return service.allWorkOrders().stream()
+                .filter(wo -> wo.getProduct().getCode().equals(code) && wo.getStatus() != WorkOrder.Status.COMPLETED).count();
+    }
+}
@@ -0,0 +1,63 @@
+package com.kce.bank.bench;
+import com.kce.bank.exception.InsufficientStockException;
+import com.kce.bank.exception.InvalidOperationException;
+import com.kce.bank.model.BOMItem;
+import com.kce.bank.model.ScheduledOperation;
+import com.kce.bank.model.Warehouse;
+import com.kce.bank.service.MRPService;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+// Capacity scheduling of 50k dated orders due over a year, with both work centers
+// about three-quarters loaded: moving one order's due date, against scheduling
+// everything again.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Benchmark)
+public class ScheduleBenchmark {
+    private static final int PRODUCTS = 20, HORIZON = 365;
+    @Param({ "50000" })
+    int orders;
+    MRPService service;
+    long[] ids;
+    LocalDate today;
+    @Setup(Level.Trial)
+    public void setUp() throws InvalidOperationException, InsufficientStockException {
+        service = new MRPService(new Warehouse("Bench"));
+        service.addWorkCenter("ASM", "Assembly", 2000);
+        service.addWorkCenter("MCH", "Machining", 2000);
+        service.addProduct("RAW", "Raw", Fixtures.PLENTY);
+        service.setProductPlanning("RAW", 3, null, 0);
+        for (int p = 0; p < PRODUCTS; p++) {
+            service.addProduct("S" + p, "Sub " + p, 0);
+            service.setProductPlanning("S" + p, 2, "MCH", 1);
+            service.defineBOM("S" + p, List.of(new BOMItem(service.getProduct("RAW"), 1)));
+            service.addProduct("FG" + p, "Finished " + p, 0);
+            service.setProductPlanning("FG" + p, 1, "ASM", 2);
+            service.defineBOM("FG" + p, List.of(new BOMItem(service.getProduct("S" + p), 2, 1)));
+        }
+        today = LocalDate.now();
+        ThreadLocalRandom r = ThreadLocalRandom.current();
+        ids = new long[orders];
+        for (int i = 0; i < orders; i++)
+            ids[i] = service.createWorkOrder("FG" + (i % PRODUCTS), 1 + r.nextInt(10), "Bench", today.plusDays(r.nextInt(HORIZON))).getId();
+        service.reschedule();
+    }
+    @Benchmark
+    public List<ScheduledOperation> changeDueDate() throws InvalidOperationException {
+        ThreadLocalRandom r = ThreadLocalRandom.current();
+        long id = ids[r.nextInt(ids.length)];
+        service.setDueDate(id, today.plusDays(r.nextInt(HORIZON)));
+        return service.schedule(id);
+    }
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public int rescheduleAll() {
+        return service.reschedule();
+    }
+}
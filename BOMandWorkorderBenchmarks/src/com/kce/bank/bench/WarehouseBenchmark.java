@@ -0,0 +1,71 @@
+package com.kce.bank.bench;
+import com.kce.bank.exception.InsufficientStockException;
+import com.kce.bank.model.Warehouse;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WarehouseBenchmark {
+    @State(Scope.Benchmark)
+    public static class Ledger {
+        @Param({ "10000" })
+        int products;
+        Warehouse warehouse;
+        String[] codes;
+        @Setup(Level.Iteration)
+        public void setUp() {
+            warehouse = new Warehouse("Bench");
+            Fixtures.products(warehouse, products, Fixtures.PLENTY);
+            codes = new String[products];
+            for (int i = 0; i < products; i++) codes[i] = Fixtures.code(i);
+        }
+        // Every reservation moved exactly one unit, so any lost update or
+        // oversell shows up as a broken total.
+        @TearDown(Level.Iteration)
+        public void checkNoLostUpdates() {
+            for (int i = 0; i < products; i++) {
+                long total = (long) warehouse.getAvailable(i) + warehouse.getReserved(i);
+                if (total != Fixtures.PLENTY || warehouse.getAvailable(i) < 0)
+                    throw new IllegalStateException("Stock of " + codes[i] + " drifted to " + total);
+            }
+        }
+    }
+    @Benchmark
+    public void reserveByOrdinal(Ledger l) throws InsufficientStockException {
+        l.warehouse.reserve(ThreadLocalRandom.current().nextInt(l.products), 1);
+    }
+    @Benchmark
+    public void reserveByCode(Ledger l) throws InsufficientStockException {
+        l.warehouse.reserve(l.codes[ThreadLocalRandom.current().nextInt(l.products)], 1);
+    }
+    @State(Scope.Benchmark)
+    public static class Summary {
+        @Param({ "10000", "100000", "1000000" })
+        int products;
+        Warehouse warehouse;
+        @Setup(Level.Trial)
+        public void setUp() {
+            warehouse = new Warehouse("Bench");
+            Fixtures.products(warehouse, products, 100);
+        }
+    }
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public String stockSummary(Summary s) {
+        return s.warehouse.stockSummary();
+    }
+    // the same rows streamed to a writer, without the one big String
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void stockSummaryStreamed(Summary s) throws IOException {
+        s.warehouse.stockSummary(Writer.nullWriter());
+    }
+}
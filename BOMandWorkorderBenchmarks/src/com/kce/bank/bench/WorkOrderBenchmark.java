@@ -0,0 +1,43 @@
+package com.kce.bank.bench;
+import com.kce.bank.exception.InsufficientStockException;
+import com.kce.bank.exception.InvalidOperationException;
+import com.kce.bank.model.WorkOrder;
+import com.kce.bank.service.MRPService;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+// Work-order lifecycle against a 20 component single-level BOM. A fresh service
+// per iteration keeps the work-order map from growing without bound.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WorkOrderBenchmark {
+    @Param({ "20" })
+    int components;
+    MRPService service;
+    String product;
+    @Setup(Level.Iteration)
+    public void setUp() throws InvalidOperationException {
+        service = Fixtures.products(components, Fixtures.PLENTY);
+        product = Fixtures.flat(service, components);
+    }
+    @Benchmark
+    public WorkOrder create() throws InvalidOperationException, InsufficientStockException {
+        return service.createWorkOrder(product, 1);
+    }
+    @Benchmark
+    public WorkOrder createAndIssue() throws InvalidOperationException, InsufficientStockException {
+        WorkOrder wo = service.createWorkOrder(product, 1);
+        service.issueMaterialsForWorkOrder(wo.getId());
+        return wo;
+    }
+    @Benchmark
+    public WorkOrder fullLifecycle() throws InvalidOperationException, InsufficientStockException {
+        WorkOrder wo = service.createWorkOrder(product, 1);
+        service.issueMaterialsForWorkOrder(wo.getId());
+        service.reportProduction(wo.getId(), 1);
+        return wo;
+    }
+}